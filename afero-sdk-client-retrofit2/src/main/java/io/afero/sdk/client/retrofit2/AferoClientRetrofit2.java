@@ -12,6 +12,9 @@ import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 
 import io.afero.sdk.client.afero.AferoClient;
+import io.afero.sdk.client.afero.ProfileJsonSource;
+import io.afero.sdk.client.afero.RequestScheduler;
+import io.afero.sdk.client.afero.RetryPolicy;
 import io.afero.sdk.client.afero.models.AccountDescriptionBody;
 import io.afero.sdk.client.afero.models.AccountUserSummary;
 import io.afero.sdk.client.afero.models.ActionResponse;
@@ -55,6 +58,7 @@ import okhttp3.Credentials;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okhttp3.ResponseBody;
 import okhttp3.Route;
 import okhttp3.logging.HttpLoggingInterceptor;
 import okio.ByteString;
@@ -66,7 +70,6 @@ import retrofit2.converter.jackson.JacksonConverterFactory;
 import rx.Observable;
 import rx.functions.Action0;
 import rx.functions.Func1;
-import rx.functions.Func2;
 import rx.schedulers.Schedulers;
 import rx.subjects.BehaviorSubject;
 import rx.subjects.PublishSubject;
@@ -77,7 +80,7 @@ import static okhttp3.OkHttpClient.Builder;
  * Concrete implementation of AferoClient that provides access to the Afero Cloud API.
  */
 @SuppressWarnings({ "WeakerAccess", "unused" })
-public class AferoClientRetrofit2 implements AferoClient {
+public class AferoClientRetrofit2 implements AferoClient, ProfileJsonSource {
 
     public static final String GRANT_TYPE_PASSWORD = "password";
     public static final String GRANT_TYPE_REFRESH_TOKEN = "refresh_token";
@@ -90,6 +93,8 @@ public class AferoClientRetrofit2 implements AferoClient {
     private final OkHttpClient mHttpClient;
     private final AferoClientAPI mAferoService;
     private final String mOAuthAuthorizationBase64;
+    private final RetryPolicy mRetryPolicy;
+    private final RequestScheduler mRequestScheduler;
 
     private String mActiveAccountId;
     private String mOwnerAccountId;
@@ -112,6 +117,8 @@ public class AferoClientRetrofit2 implements AferoClient {
         private HttpLoggingInterceptor.Level httpLogLevel = HttpLoggingInterceptor.Level.NONE;
         private int defaultTimeout = 60;
         private ImageScale imageScale = ImageScale.SCALE_DEFAULT;
+        private RetryPolicy retryPolicy;
+        private RequestScheduler requestScheduler;
 
         private Config() {}
 
@@ -225,6 +232,39 @@ public class AferoClientRetrofit2 implements AferoClient {
             return this;
         }
 
+        /**
+         * Sets the policy used to retry attribute writes, and available to retry any other call
+         * with {@link RetryPolicy#retrying}. Defaults to the {@link RetryPolicy.Builder} defaults.
+         *
+         * @param retryPolicy RetryPolicy shared by every call of the client
+         * @return this ConfigBuilder instance
+         */
+        public ConfigBuilder retryPolicy(RetryPolicy retryPolicy) {
+            config.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Sets the scheduler that paces the client's device and account calls. Defaults to the
+         * {@link RequestScheduler.Builder} defaults.
+         *
+         * <p>
+         * Those defaults allow only 4 calls in flight at once, shared by every device. Attribute
+         * writes are therefore limited to 4 requests at a time, which caps a
+         * {@link io.afero.sdk.device.FleetWriter}'s concurrency and the depth of pipelined
+         * {@link io.afero.sdk.device.AttributeWriter} batches. Raise
+         * {@link RequestScheduler.Builder#maxInFlight} and the {@link RequestScheduler.Lane#WRITE}
+         * rate to write to more devices at once.
+         * </p>
+         *
+         * @param requestScheduler RequestScheduler shared by every call of the client
+         * @return this ConfigBuilder instance
+         */
+        public ConfigBuilder requestScheduler(RequestScheduler requestScheduler) {
+            config.requestScheduler = requestScheduler;
+            return this;
+        }
+
         /**
          * Constructs and validates a {@link Config}.
          *
@@ -246,6 +286,8 @@ public class AferoClientRetrofit2 implements AferoClient {
         mHttpClient = client != null ? client : createHttpClient(config.httpLogLevel, config.defaultTimeout);
         mAferoService = createRetrofit().create(AferoClientAPI.class);
         mOAuthAuthorizationBase64 = config.oauthClientSecret != null ? Credentials.basic(config.oauthClientId, config.oauthClientSecret) : "";
+        mRetryPolicy = config.retryPolicy != null ? config.retryPolicy : new RetryPolicy.Builder().build();
+        mRequestScheduler = config.requestScheduler != null ? config.requestScheduler : new RequestScheduler.Builder().build();
     }
 
     // don't use me
@@ -254,6 +296,8 @@ public class AferoClientRetrofit2 implements AferoClient {
         mHttpClient = null;
         mAferoService = null;
         mOAuthAuthorizationBase64 = "";
+        mRetryPolicy = null;
+        mRequestScheduler = null;
     }
 
     /**
@@ -360,7 +404,7 @@ public class AferoClientRetrofit2 implements AferoClient {
 
     @Override
     public Observable<AccountDescriptionBody> putAccountDescription(String accountId, AccountDescriptionBody body) {
-        return mAferoService.putAccountDescription(accountId, body);
+        return schedule(RequestScheduler.Lane.READ, mAferoService.putAccountDescription(accountId, body));
     }
 
     /**
@@ -460,7 +504,7 @@ public class AferoClientRetrofit2 implements AferoClient {
      * @return {@link Observable} that emits {@link UserDetails} in {@link rx.Observer#onNext}.
      */
     public Observable<UserDetails> usersMe() {
-        return mAferoService.usersMe();
+        return schedule(RequestScheduler.Lane.READ, mAferoService.usersMe());
     }
 
     /**
@@ -475,8 +519,8 @@ public class AferoClientRetrofit2 implements AferoClient {
     @Override
     public Observable<DeviceAssociateResponse> deviceAssociateGetProfile(String associationId, boolean isOwnershipVerified) {
         DeviceAssociateBody body = new DeviceAssociateBody(associationId);
-        return isOwnershipVerified ? mAferoService.deviceAssociateVerified(mOwnerAccountId, body, getLocale(), mConfig.imageScale.toImageSizeSpecifier())
-                : mAferoService.deviceAssociateGetProfile(mActiveAccountId, body, getLocale(), mConfig.imageScale.toImageSizeSpecifier());
+        return isOwnershipVerified ? schedule(RequestScheduler.Lane.READ, mAferoService.deviceAssociateVerified(mOwnerAccountId, body, getLocale(), mConfig.imageScale.toImageSizeSpecifier()))
+                : schedule(RequestScheduler.Lane.READ, mAferoService.deviceAssociateGetProfile(mActiveAccountId, body, getLocale(), mConfig.imageScale.toImageSizeSpecifier()));
     }
 
     /**
@@ -490,7 +534,7 @@ public class AferoClientRetrofit2 implements AferoClient {
     @Override
     public Observable<DeviceAssociateResponse> deviceAssociate(String associationId) {
         DeviceAssociateBody body = new DeviceAssociateBody(associationId);
-        return mAferoService.deviceAssociate(mOwnerAccountId, body);
+        return schedule(RequestScheduler.Lane.READ, mAferoService.deviceAssociate(mOwnerAccountId, body));
     }
 
     /**
@@ -503,16 +547,16 @@ public class AferoClientRetrofit2 implements AferoClient {
      */
     @Override
     public Observable<DeviceModel> deviceDisassociate(DeviceModel deviceModel) {
-        return mAferoService.deviceDisassociate(mOwnerAccountId, deviceModel.getId())
+        return schedule(RequestScheduler.Lane.READ, mAferoService.deviceDisassociate(mOwnerAccountId, deviceModel.getId()))
             .map(new RxUtils.Mapper<Void, DeviceModel>(deviceModel));
     }
 
     public Observable<NameDeviceBody> putFriendlyName(String deviceId, String name) {
-        return mAferoService.putFriendlyName(getActiveAccountId(), deviceId, new NameDeviceBody(name));
+        return schedule(RequestScheduler.Lane.READ, mAferoService.putFriendlyName(getActiveAccountId(), deviceId, new NameDeviceBody(name)));
     }
 
     public Observable<DeviceVersions> getDeviceVersions(String deviceId) {
-        return mAferoService.getDeviceVersions(getActiveAccountId(), deviceId);
+        return schedule(RequestScheduler.Lane.READ, mAferoService.getDeviceVersions(getActiveAccountId(), deviceId));
     }
 
     /**
@@ -524,7 +568,7 @@ public class AferoClientRetrofit2 implements AferoClient {
      */
     @Override
     public Observable<Void> putDeviceTimeZone(DeviceModel deviceModel, TimeZone tz) {
-        return mAferoService.putDeviceTimezone(mActiveAccountId, deviceModel.getId(), new DeviceTimezone(tz.getID()));
+        return schedule(RequestScheduler.Lane.READ, mAferoService.putDeviceTimezone(mActiveAccountId, deviceModel.getId(), new DeviceTimezone(tz.getID())));
     }
 
     /**
@@ -537,7 +581,7 @@ public class AferoClientRetrofit2 implements AferoClient {
      */
     @Override
     public Observable<TimeZone> getDeviceTimeZone(DeviceModel deviceModel) {
-        return mAferoService.getDeviceTimezone(mActiveAccountId, deviceModel.getId())
+        return schedule(RequestScheduler.Lane.READ, mAferoService.getDeviceTimezone(mActiveAccountId, deviceModel.getId()))
                 .flatMap(new Func1<DeviceTimeZoneResponse, Observable<TimeZone>>() {
                     @Override
                     public Observable<TimeZone> call(DeviceTimeZoneResponse timeZoneResponse) {
@@ -557,7 +601,7 @@ public class AferoClientRetrofit2 implements AferoClient {
      */
     @Override
     public Observable<DeviceSync[]> getDevicesWithState() {
-        return mAferoService.getDevicesWithState(mActiveAccountId);
+        return schedule(RequestScheduler.Lane.BULK, mAferoService.getDevicesWithState(mActiveAccountId));
     }
 
     /**
@@ -571,8 +615,8 @@ public class AferoClientRetrofit2 implements AferoClient {
      */
     @Override
     public Observable<ActionResponse> postAttributeWrite(DeviceModel deviceModel, PostActionBody body, int maxRetryCount, int statusCode) {
-        Observable<ActionResponse> observable = mAferoService.postAction(mActiveAccountId, deviceModel.getId(), body);
-        return maxRetryCount > 0 ? observable.retryWhen(new RetryOnError(maxRetryCount, statusCode)) : observable;
+        Observable<ActionResponse> observable = schedule(RequestScheduler.Lane.WRITE, mAferoService.postAction(mActiveAccountId, deviceModel.getId(), body));
+        return maxRetryCount > 0 ? observable.retryWhen(retryOnStatus(maxRetryCount, statusCode)) : observable;
     }
 
     /**
@@ -586,8 +630,47 @@ public class AferoClientRetrofit2 implements AferoClient {
      */
     @Override
     public Observable<WriteResponse[]> postBatchAttributeWrite(DeviceModel deviceModel, WriteRequest[] body, int maxRetryCount, int statusCode) {
-        Observable<WriteResponse[]> observable = mAferoService.postDeviceRequest(mActiveAccountId, deviceModel.getId(), body);
-        return maxRetryCount > 0 ? observable.retryWhen(new RetryOnError(maxRetryCount, statusCode)) : observable;
+        Observable<WriteResponse[]> observable = schedule(RequestScheduler.Lane.WRITE, mAferoService.postDeviceRequest(mActiveAccountId, deviceModel.getId(), body));
+        return maxRetryCount > 0 ? observable.retryWhen(retryOnStatus(maxRetryCount, statusCode)) : observable;
+    }
+
+    /**
+     * Gets the {@link RetryPolicy} used by this client, whose {@link RetryPolicy#getStats()} count
+     * the retries made, the errors given up on and the delay the retries added.
+     *
+     * @return RetryPolicy of this client
+     */
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /**
+     * Gets the {@link RequestScheduler} that paces this client's calls, whose
+     * {@link RequestScheduler#getStats} give the time calls spent waiting in each lane.
+     *
+     * @return RequestScheduler of this client
+     */
+    public RequestScheduler getRequestScheduler() {
+        return mRequestScheduler;
+    }
+
+    private <T> Observable<T> schedule(RequestScheduler.Lane lane, Observable<T> call) {
+        return call.compose(mRequestScheduler.<T>schedule(lane));
+    }
+
+    private static final Func1<ResponseBody, Observable<byte[]>> READ_RESPONSE_BYTES = new Func1<ResponseBody, Observable<byte[]>>() {
+        @Override
+        public Observable<byte[]> call(ResponseBody body) {
+            try {
+                return Observable.just(body.bytes());
+            } catch (IOException e) {
+                return Observable.error(e);
+            }
+        }
+    };
+
+    private Func1<Observable<? extends Throwable>, Observable<?>> retryOnStatus(int maxRetryCount, int statusCode) {
+        return mRetryPolicy.retryWhen(mActiveAccountId, maxRetryCount, RetryPolicy.onHttpStatus(this, statusCode));
     }
 
     /**
@@ -601,7 +684,7 @@ public class AferoClientRetrofit2 implements AferoClient {
     @Override
     public Observable<ViewResponse[]> postDeviceViewRequest(DeviceModel deviceModel, ViewRequest body) {
         ViewRequest[] requests = { body };
-        return mAferoService.postDeviceViewRequest(mActiveAccountId, deviceModel.getId(), requests);
+        return schedule(RequestScheduler.Lane.READ, mAferoService.postDeviceViewRequest(mActiveAccountId, deviceModel.getId(), requests));
     }
 
     /**
@@ -612,7 +695,7 @@ public class AferoClientRetrofit2 implements AferoClient {
      */
     @Override
     public Observable<DeviceProfile[]> getAccountDeviceProfiles() {
-        return mAferoService.deviceProfiles(mActiveAccountId, getLocale(), mConfig.imageScale.toImageSizeSpecifier());
+        return schedule(RequestScheduler.Lane.BULK, mAferoService.deviceProfiles(mActiveAccountId, getLocale(), mConfig.imageScale.toImageSizeSpecifier()));
     }
 
     /**
@@ -622,7 +705,7 @@ public class AferoClientRetrofit2 implements AferoClient {
      */
     @Override
     public Observable<DeviceProfile> getDeviceProfilePreAssociation(String associationId, int version) {
-        return mAferoService.deviceProfiles(associationId, version);
+        return schedule(RequestScheduler.Lane.READ, mAferoService.deviceProfiles(associationId, version));
     }
 
     /**
@@ -635,7 +718,36 @@ public class AferoClientRetrofit2 implements AferoClient {
      */
     @Override
     public Observable<DeviceProfile> getDeviceProfile(String profileId) {
-        return mAferoService.deviceProfiles(mActiveAccountId, profileId, getLocale(), mConfig.imageScale.toImageSizeSpecifier());
+        return schedule(RequestScheduler.Lane.BULK, mAferoService.deviceProfiles(mActiveAccountId, profileId, getLocale(), mConfig.imageScale.toImageSizeSpecifier()));
+    }
+
+    /**
+     * <p><b>For internal use only. Use {@link DeviceCollection} instead to manage {@link DeviceModel} objects.</b></p>
+     *
+     * Same as {@link #getDeviceProfile(String)} but emits the JSON of the profile, which is what a
+     * {@link io.afero.sdk.device.ProfileStore} persists.
+     *
+     * @param profileId
+     * @return {@link Observable} that emits the profile JSON in {@link rx.Observer#onNext}.
+     */
+    @Override
+    public Observable<byte[]> getDeviceProfileJson(String profileId) {
+        return schedule(RequestScheduler.Lane.BULK, mAferoService.deviceProfilesJson(mActiveAccountId, profileId, getLocale(), mConfig.imageScale.toImageSizeSpecifier()))
+                .flatMap(READ_RESPONSE_BYTES);
+    }
+
+    /**
+     * <p><b>For internal use only. Use {@link DeviceCollection} instead to manage {@link DeviceModel} objects.</b></p>
+     *
+     * Same as {@link #getAccountDeviceProfiles()} but emits the JSON array of the profiles, which
+     * is what a {@link io.afero.sdk.device.ProfileStore} persists.
+     *
+     * @return {@link Observable} that emits the profiles JSON in {@link rx.Observer#onNext}.
+     */
+    @Override
+    public Observable<byte[]> getAccountDeviceProfilesJson() {
+        return schedule(RequestScheduler.Lane.BULK, mAferoService.deviceProfilesJson(mActiveAccountId, getLocale(), mConfig.imageScale.toImageSizeSpecifier()))
+                .flatMap(READ_RESPONSE_BYTES);
     }
 
     /**
@@ -646,7 +758,7 @@ public class AferoClientRetrofit2 implements AferoClient {
      */
     @Override
     public Observable<Location> getDeviceLocation(DeviceModel deviceModel) {
-        return mAferoService.getDeviceLocation(mActiveAccountId, deviceModel.getId());
+        return schedule(RequestScheduler.Lane.READ, mAferoService.getDeviceLocation(mActiveAccountId, deviceModel.getId()));
     }
 
     /**
@@ -659,7 +771,7 @@ public class AferoClientRetrofit2 implements AferoClient {
      */
     @Override
     public Observable<DeviceTag> postDeviceTag(String deviceId, String tagKey, String tagValue) {
-        return mAferoService.postDeviceTag(mActiveAccountId, deviceId, new DeviceTag(tagKey, tagValue));
+        return schedule(RequestScheduler.Lane.READ, mAferoService.postDeviceTag(mActiveAccountId, deviceId, new DeviceTag(tagKey, tagValue)));
     }
 
     /**
@@ -671,7 +783,7 @@ public class AferoClientRetrofit2 implements AferoClient {
      */
     @Override
     public Observable<DeviceTag> putDeviceTag(String deviceId, DeviceTag tag) {
-        return mAferoService.putDeviceTag(mActiveAccountId, deviceId, tag);
+        return schedule(RequestScheduler.Lane.READ, mAferoService.putDeviceTag(mActiveAccountId, deviceId, tag));
     }
 
     /**
@@ -683,7 +795,7 @@ public class AferoClientRetrofit2 implements AferoClient {
      */
     @Override
     public Observable<Void> deleteDeviceTag(String deviceId, String tagId) {
-        return mAferoService.deleteDeviceTag(mActiveAccountId, deviceId, tagId);
+        return schedule(RequestScheduler.Lane.READ, mAferoService.deleteDeviceTag(mActiveAccountId, deviceId, tagId));
     }
 
     /**
@@ -693,64 +805,64 @@ public class AferoClientRetrofit2 implements AferoClient {
      */
     @Override
     public Observable<ConclaveAccessDetails> postConclaveAccess() {
-        return mAferoService.postConclaveAccess(mActiveAccountId, new ConclaveAccessBody());
+        return schedule(RequestScheduler.Lane.READ, mAferoService.postConclaveAccess(mActiveAccountId, new ConclaveAccessBody()));
     }
 
     @Deprecated
     @Override
     public Observable<ConclaveAccessDetails> postConclaveAccess(String mobileClientId) {
-        return mAferoService.postConclaveAccess(mActiveAccountId, new ConclaveAccessBody());
+        return schedule(RequestScheduler.Lane.READ, mAferoService.postConclaveAccess(mActiveAccountId, new ConclaveAccessBody()));
     }
 
     public Observable<DeviceInfoExtendedData> getDeviceInfo(String deviceId) {
-        return mAferoService.getDeviceInfo(getActiveAccountId(), deviceId);
+        return schedule(RequestScheduler.Lane.READ, mAferoService.getDeviceInfo(getActiveAccountId(), deviceId));
     }
 
     public Observable<ActionResponse[]> ruleExecuteActions(String ruleId, RuleExecuteBody body) {
-        return mAferoService.ruleExecuteActions(getActiveAccountId(), ruleId, body);
+        return schedule(RequestScheduler.Lane.WRITE, mAferoService.ruleExecuteActions(getActiveAccountId(), ruleId, body));
     }
     public Observable<DeviceRules.Rule[]> getDeviceRules(String deviceId) {
-        return mAferoService.getDeviceRules(getActiveAccountId(), deviceId);
+        return schedule(RequestScheduler.Lane.BULK, mAferoService.getDeviceRules(getActiveAccountId(), deviceId));
     }
 
     public Observable<DeviceRules.Rule[]> getAccountRules() {
-        return mAferoService.getAccountRules(getActiveAccountId());
+        return schedule(RequestScheduler.Lane.BULK, mAferoService.getAccountRules(getActiveAccountId()));
     }
 
     public Observable<DeviceRules.Schedule> putSchedule(String scheduleId, DeviceRules.Schedule schedule) {
-        return mAferoService.putSchedule(getActiveAccountId(), scheduleId, schedule);
+        return schedule(RequestScheduler.Lane.READ, mAferoService.putSchedule(getActiveAccountId(), scheduleId, schedule));
     }
 
     public Observable<DeviceRules.Schedule> postSchedule(DeviceRules.Schedule schedule) {
-        return mAferoService.postSchedule(getActiveAccountId(), schedule);
+        return schedule(RequestScheduler.Lane.READ, mAferoService.postSchedule(getActiveAccountId(), schedule));
     }
 
     public Observable<DeviceRules.Rule> postRule(DeviceRules.Rule rule) {
-        return mAferoService.postRule(getActiveAccountId(), rule);
+        return schedule(RequestScheduler.Lane.READ, mAferoService.postRule(getActiveAccountId(), rule));
     }
 
     public Observable<DeviceRules.Rule> putRule(String ruleId, DeviceRules.Rule rule) {
-        return mAferoService.putRule(getActiveAccountId(), ruleId, rule);
+        return schedule(RequestScheduler.Lane.READ, mAferoService.putRule(getActiveAccountId(), ruleId, rule));
     }
 
     public Observable<Void> deleteRule(String ruleId) {
-        return mAferoService.deleteRule(getActiveAccountId(), ruleId);
+        return schedule(RequestScheduler.Lane.READ, mAferoService.deleteRule(getActiveAccountId(), ruleId));
     }
 
     public Observable<AccountUserSummary> getAccountUserSummary() {
-        return mAferoService.getAccountUserSummary(getActiveAccountId());
+        return schedule(RequestScheduler.Lane.READ, mAferoService.getAccountUserSummary(getActiveAccountId()));
     }
 
     public Observable<Void> postInvite(InvitationDetails invite) {
-        return mAferoService.postInvite(getActiveAccountId(), invite);
+        return schedule(RequestScheduler.Lane.READ, mAferoService.postInvite(getActiveAccountId(), invite));
     }
 
     public Observable<Void> deleteInvite(String invitationId) {
-        return mAferoService.deleteInvite(getActiveAccountId(), invitationId);
+        return schedule(RequestScheduler.Lane.READ, mAferoService.deleteInvite(getActiveAccountId(), invitationId));
     }
 
     public Observable<Void> deleteUser(String userId) {
-        return mAferoService.deleteUser(getActiveAccountId(), userId);
+        return schedule(RequestScheduler.Lane.READ, mAferoService.deleteUser(getActiveAccountId(), userId));
     }
 
     /**
@@ -809,7 +921,7 @@ public class AferoClientRetrofit2 implements AferoClient {
      */
     @Override
     public Observable<Location> putDeviceLocation(String deviceId, Location location) {
-        return mAferoService.putDeviceLocation(mActiveAccountId, deviceId, location)
+        return schedule(RequestScheduler.Lane.READ, mAferoService.putDeviceLocation(mActiveAccountId, deviceId, location))
                 .map(new RxUtils.Mapper<Void, Location>(location));
     }
 
@@ -1052,55 +1164,4 @@ public class AferoClientRetrofit2 implements AferoClient {
             return chain.proceed(builder.build());
         }
     }
-
-    private static class RetryOnError implements Func1<Observable<? extends Throwable>, Observable<?>> {
-
-        private int mMaxRetryCount;
-        private int mRetryOnStatus;
-
-        public RetryOnError(int maxRetryCount, int retryOnStatus) {
-            mMaxRetryCount = maxRetryCount;
-            mRetryOnStatus = retryOnStatus;
-        }
-
-        public RetryOnError(int maxRetryCount) {
-            this(maxRetryCount, 0);
-        }
-
-        @Override
-        public Observable<?> call(Observable<? extends Throwable> observable) {
-            return observable.zipWith(Observable.range(1, mMaxRetryCount), new Func2<Throwable, Integer, Retry>() {
-                @Override
-                public Retry call(Throwable throwable, Integer retry) {
-                    return new Retry(retry, throwable);
-                }
-            })
-            .flatMap(new Func1<Retry, Observable<?>>() {
-                @Override
-                public Observable<?> call(Retry retry) {
-                    if (retry.throwable instanceof HttpException) {
-                        int status = ((HttpException) retry.throwable).code();
-
-                        AfLog.e("RetryOnError: retry=" + retry.retryCount + " '" + retry.throwable.getMessage() + "' status=" + status);
-
-                        if (mRetryOnStatus == 0 || mRetryOnStatus == status) {
-                            return Observable.timer(retry.retryCount, TimeUnit.SECONDS);
-                        }
-                    }
-
-                    return Observable.error(retry.throwable);
-                }
-            });
-        }
-    }
-
-    private static class Retry {
-        int retryCount;
-        Throwable throwable;
-
-        Retry(int r, Throwable t) {
-            retryCount = r;
-            throwable = t;
-        }
-    }
 }
@@ -34,6 +34,7 @@ import io.afero.sdk.client.retrofit2.models.NameDeviceBody;
 import io.afero.sdk.client.retrofit2.models.UserDetails;
 import io.afero.sdk.conclave.models.DeviceSync;
 import io.afero.sdk.device.DeviceProfile;
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.Response;
 import retrofit2.http.Body;
@@ -209,6 +210,21 @@ public interface AferoClientAPI {
             @Query("imageSize") String imageSize
     );
 
+    @GET(V1 + "accounts/{accountId}/deviceProfiles")
+    Observable<ResponseBody> deviceProfilesJson(
+            @Path("accountId") String accountId,
+            @Query("locale") String locale,
+            @Query("imageSize") String imageSize
+    );
+
+    @GET(V1 + "accounts/{accountId}/deviceProfiles/{profileId}")
+    Observable<ResponseBody> deviceProfilesJson(
+            @Path("accountId") String accountId,
+            @Path("profileId") String profileId,
+            @Query("locale") String locale,
+            @Query("imageSize") String imageSize
+    );
+
     @GET(V1 + "devices/{associationId}/deviceProfiles/versions/{versionNumber}")
     Observable<DeviceProfile> deviceProfiles(
         @Path("associationId") String associationId,
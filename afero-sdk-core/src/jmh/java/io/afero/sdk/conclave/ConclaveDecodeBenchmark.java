@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.conclave;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.afero.sdk.conclave.models.DeviceError;
+import io.afero.sdk.conclave.models.DeviceState;
+import io.afero.sdk.conclave.models.DeviceSync;
+import io.afero.sdk.conclave.models.OTAInfo;
+import io.afero.sdk.utils.JSONUtils;
+
+/**
+ * Compares the readTree + treeToValue decode path that ConclaveClient and ConclaveDeviceEventSource
+ * used to share against {@link ConclaveMessageDecoder}, over a recording of conclave traffic
+ * (hello, welcome, a peripheralList snapshot and a stream of mostly attr_change events).
+ *
+ * Run with {@code ./gradlew :afero-sdk-core:jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConclaveDecodeBenchmark {
+
+    private static final String TRAFFIC_RESOURCE = "/conclave/traffic.jsonl";
+
+    private String[] mLines;
+    private ObjectMapper mMapper;
+    private ConclaveMessageDecoder mDecoder;
+
+    @Setup
+    public void setup() throws IOException {
+        ArrayList<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                ConclaveDecodeBenchmark.class.getResourceAsStream(TRAFFIC_RESOURCE), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        mLines = lines.toArray(new String[lines.size()]);
+        mMapper = JSONUtils.getObjectMapper();
+        mDecoder = new ConclaveMessageDecoder(mMapper);
+    }
+
+    @Benchmark
+    public void treeDecode(Blackhole bh) throws IOException {
+        for (String line : mLines) {
+            JsonNode node = mMapper.readTree(line);
+
+            // ConclaveClient.readEvent
+            Map.Entry<String, JsonNode> entry = node.fields().next();
+            String key = entry.getKey().toLowerCase(Locale.ROOT);
+            bh.consume(key);
+
+            // ConclaveDeviceEventSource.onNextConclave/onMessage
+            if (key.equals("public") || key.equals("private")) {
+                JsonNode message = entry.getValue();
+                String event = message.get("event").asText().toLowerCase(Locale.ROOT);
+                JsonNode data = message.get("data");
+                JsonNode seqNode = message.get("seq");
+                bh.consume(seqNode != null ? seqNode.asInt() : 0);
+
+                if (event.equals("attr_change")) {
+                    bh.consume(mMapper.treeToValue(data, DeviceSync.class));
+                } else if (event.equals("peripherallist")) {
+                    bh.consume(data.has("currentSeq") ? data.get("currentSeq").asInt() : 0);
+                    bh.consume(mMapper.treeToValue(data.get("peripherals"), DeviceSync[].class));
+                } else if (event.equals("status_change")) {
+                    bh.consume(mMapper.treeToValue(data, DeviceState.class));
+                } else if (event.equals("device:error")) {
+                    bh.consume(mMapper.treeToValue(data, DeviceError.class));
+                } else if (event.equals("device:ota_progress")) {
+                    bh.consume(mMapper.treeToValue(data, OTAInfo.class));
+                }
+            } else if (key.equals("hello")) {
+                bh.consume(mMapper.treeToValue(node.get("hello"), ConclaveMessage.HelloFields.class));
+            } else if (key.equals("welcome")) {
+                bh.consume(mMapper.treeToValue(node.get("welcome"), ConclaveMessage.WelcomeFields.class));
+            }
+        }
+    }
+
+    @Benchmark
+    public void streamingDecode(Blackhole bh) throws IOException {
+        for (String line : mLines) {
+            bh.consume(mDecoder.decode(line));
+        }
+    }
+}
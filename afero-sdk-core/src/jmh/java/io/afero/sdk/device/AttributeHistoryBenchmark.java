@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link AttributeHistory} for {@value #DEVICE_COUNT} devices keeping one attribute's
+ * history each, full to {@code capacity} samples taken a minute apart. The heap retained by the
+ * histories is printed during setup. {@code record} adds a sample to one device; the aggregates
+ * run over the newest quarter of a device's samples. Run with {@code -prof gc} to confirm none of
+ * them allocate.
+ *
+ * Run with {@code ./gradlew :afero-sdk-core:jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AttributeHistoryBenchmark {
+
+    private static final int DEVICE_COUNT = 10000;
+    private static final long SAMPLE_INTERVAL = 60000;
+
+    // an hour and a day of one-minute samples
+    @Param({"60", "1440"})
+    public int capacity;
+
+    private AttributeHistory[] mHistories;
+    private long mNow;
+    private long mWindowStart;
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        final long before = usedHeap();
+
+        mHistories = new AttributeHistory[DEVICE_COUNT];
+        for (int d = 0; d < DEVICE_COUNT; ++d) {
+            mHistories[d] = new AttributeHistory(capacity);
+        }
+
+        final long retained = usedHeap() - before;
+        System.out.println();
+        System.out.println("capacity " + capacity + ": " + (retained / (1024 * 1024)) + " MB retained, "
+                + (retained / DEVICE_COUNT) + " bytes per attribute");
+
+        for (int d = 0; d < DEVICE_COUNT; ++d) {
+            for (int i = 0; i < capacity; ++i) {
+                mHistories[d].record(i * SAMPLE_INTERVAL, (d + i) % 100);
+            }
+        }
+        mNow = capacity * SAMPLE_INTERVAL;
+        mWindowStart = mNow - (capacity / 4) * SAMPLE_INTERVAL;
+    }
+
+    @Benchmark
+    public AttributeHistory record() {
+        final AttributeHistory history = mHistories[mNext++ % DEVICE_COUNT];
+        history.record(mNow, mNext & 127);
+        return history;
+    }
+
+    @Benchmark
+    public double min() {
+        return mHistories[mNext++ % DEVICE_COUNT].min(mWindowStart);
+    }
+
+    @Benchmark
+    public double mean() {
+        return mHistories[mNext++ % DEVICE_COUNT].mean(mWindowStart);
+    }
+
+    @Benchmark
+    public long lastChangeTime() {
+        return mHistories[mNext++ % DEVICE_COUNT].getLastChangeTime();
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
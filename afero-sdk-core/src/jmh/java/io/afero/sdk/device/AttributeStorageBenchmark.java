@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link AttributeMap} against the {@code HashMap<Integer, ...>} that {@link DeviceModel}
+ * and {@link DeviceProfile} used before, with {@value #DEVICE_COUNT} maps of
+ * {@value #ATTRIBUTE_COUNT} attributes each: 40 device attributes plus five each from the
+ * schedule and Wi-Fi ranges, whose ids are outside the {@code Integer} cache. {@code lookup}
+ * reads one attribute of a device and {@code update} replaces one; the heap retained by the maps
+ * is printed during setup.
+ *
+ * Run with {@code ./gradlew :afero-sdk-core:jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AttributeStorageBenchmark {
+
+    private static final int DEVICE_COUNT = 100000;
+    private static final int ATTRIBUTE_COUNT = 50;
+
+    @Param({"attributeMap", "hashMap"})
+    public String impl;
+
+    private Storage[] mDevices;
+    private int[] mIds;
+    private final Object mValue = new Object();
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        mIds = new int[ATTRIBUTE_COUNT];
+        for (int i = 0; i < 40; ++i) {
+            mIds[i] = i + 1;
+        }
+        for (int i = 0; i < 5; ++i) {
+            mIds[40 + i] = 59001 + i;
+            mIds[45 + i] = 65001 + i;
+        }
+
+        final long before = usedHeap();
+
+        mDevices = new Storage[DEVICE_COUNT];
+        for (int d = 0; d < DEVICE_COUNT; ++d) {
+            Storage storage = impl.equals("attributeMap") ? new AttributeMapStorage() : new HashMapStorage();
+            for (int id : mIds) {
+                storage.put(id, new Object());
+            }
+            mDevices[d] = storage;
+        }
+
+        final long retained = usedHeap() - before;
+        System.out.println();
+        System.out.println(impl + ": " + (retained / (1024 * 1024)) + " MB retained, "
+                + (retained / DEVICE_COUNT) + " bytes per device");
+    }
+
+    @Benchmark
+    public Object lookup() {
+        final int n = mNext++;
+        return mDevices[n % DEVICE_COUNT].get(mIds[(n * 7) % ATTRIBUTE_COUNT]);
+    }
+
+    @Benchmark
+    public Object update() {
+        final int n = mNext++;
+        return mDevices[n % DEVICE_COUNT].put(mIds[(n * 7) % ATTRIBUTE_COUNT], mValue);
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private interface Storage {
+        Object get(int id);
+        Object put(int id, Object value);
+    }
+
+    private static final class AttributeMapStorage implements Storage {
+        private final AttributeMap<Object> mMap = new AttributeMap<>();
+
+        @Override
+        public Object get(int id) {
+            return mMap.get(id);
+        }
+
+        @Override
+        public Object put(int id, Object value) {
+            return mMap.put(id, value);
+        }
+    }
+
+    private static final class HashMapStorage implements Storage {
+        private final HashMap<Integer, Object> mMap = new HashMap<>();
+
+        @Override
+        public Object get(int id) {
+            return mMap.get(id);
+        }
+
+        @Override
+        public Object put(int id, Object value) {
+            return mMap.put(id, value);
+        }
+    }
+}
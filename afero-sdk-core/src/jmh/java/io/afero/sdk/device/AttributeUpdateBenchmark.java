@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import io.afero.sdk.conclave.models.DeviceSync;
+import io.afero.sdk.utils.JSONUtils;
+
+/**
+ * Measures applying a single attr_change to a {@link DeviceModel}, the steady-state load of a
+ * connected fleet. Attributes cycle through a handful of values, as switches, modes and small
+ * counters do in practice. Run with {@code -prof gc} to see the allocation per update.
+ *
+ * Run with {@code ./gradlew :afero-sdk-core:jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AttributeUpdateBenchmark {
+
+    private static final String PROFILE_ID = "benchmark-profile";
+    private static final int ATTRIBUTE_ID = 1;
+
+    @Param({"boolean", "sint32", "utf8s"})
+    public String dataType;
+
+    private DeviceModel mDeviceModel;
+    private DeviceSync[] mUpdates;
+    private int mNext;
+
+    @Setup
+    public void setup() throws IOException {
+        final DeviceProfile profile = JSONUtils.readValue(createProfileJSON(dataType), DeviceProfile.class);
+        mDeviceModel = new DeviceModel("benchmark-device", profile, false, null);
+
+        final String[] values;
+        switch (dataType) {
+            case "boolean":
+                values = new String[] { "0", "1" };
+                break;
+            case "utf8s":
+                values = new String[] { "off", "low", "medium", "high" };
+                break;
+            default:
+                values = new String[] { "0", "25", "50", "75", "100", "-10", "10", "42" };
+                break;
+        }
+
+        mUpdates = new DeviceSync[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            DeviceSync ds = new DeviceSync();
+            ds.attribute = new DeviceSync.AttributeEntry(ATTRIBUTE_ID, values[i]);
+            mUpdates[i] = ds;
+        }
+    }
+
+    @Benchmark
+    public DeviceModel update() {
+        mDeviceModel.update(mUpdates[mNext++ & (mUpdates.length - 1)]);
+        return mDeviceModel;
+    }
+
+    private static String createProfileJSON(String dataType) {
+        return "{\"profileId\":\"" + PROFILE_ID + "\",\"services\":[{\"id\":1,\"attributes\":["
+                + "{\"id\":" + ATTRIBUTE_ID + ",\"dataType\":\"" + dataType + "\",\"operations\":[\"read\",\"write\"]}"
+                + "]}]}";
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import io.afero.sdk.client.afero.models.AttributeValue;
+
+/**
+ * Measures the {@link AttributeValue} operations on the attribute update path: parsing the
+ * values that arrive from the service, as {@link DeviceModel} does twice per attribute, comparing
+ * them and encoding them for a write. Run with {@code -prof gc} to see the allocation per op.
+ *
+ * Run with {@code ./gradlew :afero-sdk-core:jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AttributeValueBenchmark {
+
+    private static final String[] INTEGERS = { "0", "1", "42", "-17", "1023", "65535", "123456", "-99999" };
+    private static final String[] DECIMALS = { "21.5", "-3.25", "0.125", "1013.25", "98.6", "0.5", "12345.678", "-0.75" };
+
+    private AttributeValue[] mIntegerValues;
+    private AttributeValue[] mDecimalValues;
+    private ByteBuffer mBuffer;
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        mIntegerValues = new AttributeValue[INTEGERS.length];
+        mDecimalValues = new AttributeValue[DECIMALS.length];
+        for (int i = 0; i < INTEGERS.length; ++i) {
+            mIntegerValues[i] = new AttributeValue(INTEGERS[i], AttributeValue.DataType.SINT32);
+            mDecimalValues[i] = new AttributeValue(DECIMALS[i], AttributeValue.DataType.Q_15_16);
+        }
+        mBuffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Benchmark
+    public AttributeValue parseInteger() {
+        return new AttributeValue(INTEGERS[mNext++ & 7], AttributeValue.DataType.SINT32);
+    }
+
+    @Benchmark
+    public AttributeValue parseDecimal() {
+        return new AttributeValue(DECIMALS[mNext++ & 7], AttributeValue.DataType.Q_15_16);
+    }
+
+    @Benchmark
+    public AttributeValue parseBoolean() {
+        return new AttributeValue((mNext++ & 1) == 0 ? "1" : "0", AttributeValue.DataType.BOOLEAN);
+    }
+
+    @Benchmark
+    public int compareDecimal() {
+        final int n = mNext++;
+        return mDecimalValues[n & 7].compareTo(mDecimalValues[(n >> 3) & 7]);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeDecimal() {
+        mBuffer.clear();
+        return mDecimalValues[mNext++ & 7].getValueBytes(mBuffer);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeInteger() {
+        mBuffer.clear();
+        return mIntegerValues[mNext++ & 7].getValueBytes(mBuffer);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import io.afero.sdk.client.afero.models.DeviceStatus;
+import io.afero.sdk.client.afero.models.DeviceTag;
+import io.afero.sdk.conclave.models.DeviceSync;
+
+/**
+ * Measures {@link DeviceCheckpoint} throughput. The {@code Stream} variants write to and read from
+ * memory to isolate encoding and compression; the {@code File} variants include the temp file,
+ * fsync and rename that {@link DeviceCollection} pays on every checkpoint.
+ *
+ * Run with {@code ./gradlew :afero-sdk-core:jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CheckpointBenchmark {
+
+    private static final int PROFILE_COUNT = 20;
+    private static final int ATTRIBUTE_COUNT = 8;
+
+    @Param({"100000"})
+    public int deviceCount;
+
+    private DeviceSync[] mDevices;
+    private byte[] mCheckpoint;
+    private File mFile;
+
+    @Setup
+    public void setup() throws IOException {
+        mDevices = new DeviceSync[deviceCount];
+
+        for (int i = 0; i < deviceCount; ++i) {
+            DeviceSync ds = new DeviceSync();
+            ds.deviceId = String.format("%016x", i);
+            ds.profileId = "benchmark-profile-" + (i % PROFILE_COUNT);
+            ds.friendlyName = "Device " + i;
+            ds.status = new DeviceStatus();
+            ds.status.available = true;
+            ds.status.linked = false;
+            ds.status.direct = false;
+            ds.status.rssi = -60 - (i % 30);
+
+            ds.attributes = new DeviceSync.AttributeEntry[ATTRIBUTE_COUNT];
+            for (int a = 0; a < ATTRIBUTE_COUNT; ++a) {
+                ds.attributes[a] = new DeviceSync.AttributeEntry(a + 1, String.format("%08X", i * ATTRIBUTE_COUNT + a));
+                ds.attributes[a].updatedTimestamp = 1500000000000L + i;
+            }
+
+            ds.deviceTags = new DeviceTag[] { new DeviceTag("site", "site-" + (i % 100)) };
+            ds.timezone = ds.new DeviceTimeZone();
+            ds.timezone.timezone = "America/Los_Angeles";
+
+            mDevices[i] = ds;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeviceCheckpoint.write(out, mDevices);
+        mCheckpoint = out.toByteArray();
+
+        mFile = File.createTempFile("devices", ".checkpoint");
+        DeviceCheckpoint.write(mFile, mDevices);
+    }
+
+    @TearDown
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Benchmark
+    public int writeStream() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(mCheckpoint.length);
+        DeviceCheckpoint.write(out, mDevices);
+        return out.size();
+    }
+
+    @Benchmark
+    public DeviceSync[] readStream() throws IOException {
+        return DeviceCheckpoint.read(new ByteArrayInputStream(mCheckpoint));
+    }
+
+    @Benchmark
+    public File writeFile() throws IOException {
+        DeviceCheckpoint.write(mFile, mDevices);
+        return mFile;
+    }
+
+    @Benchmark
+    public DeviceSync[] readFile() throws IOException {
+        return DeviceCheckpoint.read(mFile);
+    }
+}
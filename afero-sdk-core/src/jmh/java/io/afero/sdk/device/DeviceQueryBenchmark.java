@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.afero.sdk.client.afero.models.DeviceStatus;
+import io.afero.sdk.client.afero.models.DeviceTag;
+import io.afero.sdk.utils.JSONUtils;
+
+/**
+ * Measures {@link DeviceIndex} queries against a scan of every device, as callers of
+ * {@link DeviceCollection#getDevices()} had to do before, over devices spread across
+ * {@value #PROFILE_COUNT} profiles and {@value #SITE_COUNT} "site" tags, half of them available.
+ * {@code selective} matches a few dozen devices; {@code broad} matches about a sixth of them, so
+ * the index falls back to a scan.
+ * {@code updateUnchanged} is the index upkeep paid on every attribute update.
+ *
+ * Run with {@code ./gradlew :afero-sdk-core:jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeviceQueryBenchmark {
+
+    private static final int PROFILE_COUNT = 10;
+    private static final int SITE_COUNT = 1000;
+
+    @Param({"100000"})
+    public int deviceCount;
+
+    private DeviceModel[] mModels;
+    private List<DeviceModel> mAll;
+    private DeviceIndex mIndex;
+    private DeviceQuery mSelectiveQuery;
+    private DeviceQuery mBroadQuery;
+    private String mProfileId;
+    private int mNext;
+
+    @Setup
+    public void setup() throws IOException {
+        DeviceProfile[] profiles = new DeviceProfile[PROFILE_COUNT];
+        for (int i = 0; i < PROFILE_COUNT; ++i) {
+            profiles[i] = JSONUtils.readValue(
+                    "{\"profileId\":\"profile-" + i + "\",\"deviceType\":\"type-" + (i % 3) + "\",\"services\":[{\"id\":1,\"attributes\":[]}]}",
+                    DeviceProfile.class);
+        }
+
+        mIndex = new DeviceIndex();
+        mModels = new DeviceModel[deviceCount];
+        for (int i = 0; i < deviceCount; ++i) {
+            DeviceModel deviceModel = new DeviceModel(String.format("%016x", i), profiles[i % PROFILE_COUNT], false, null);
+
+            DeviceStatus status = new DeviceStatus();
+            status.available = (i / PROFILE_COUNT) % 2 == 0;
+            deviceModel.update(status);
+
+            DeviceTag tag = new DeviceTag("site", Integer.toString(i % SITE_COUNT));
+            tag.deviceTagId = "tag-" + i;
+            deviceModel.invalidateTag("add", tag);
+
+            mModels[i] = deviceModel;
+            mIndex.update(deviceModel);
+        }
+
+        mAll = Arrays.asList(mModels);
+        mProfileId = profiles[7].getId();
+        mSelectiveQuery = new DeviceQuery().profileId(mProfileId).tag("site", "7").available(true);
+        mBroadQuery = new DeviceQuery().deviceType("type-1").available(true);
+    }
+
+    @Benchmark
+    public List<DeviceModel> selectiveIndexed() {
+        return mIndex.find(mSelectiveQuery, mAll);
+    }
+
+    @Benchmark
+    public List<DeviceModel> selectiveScan() {
+        ArrayList<DeviceModel> result = new ArrayList<>();
+        for (DeviceModel deviceModel : mModels) {
+            if (mProfileId.equals(deviceModel.getProfileID())
+                    && deviceModel.isAvailable()
+                    && hasTag(deviceModel, "site", "7")) {
+                result.add(deviceModel);
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public List<DeviceModel> broadIndexed() {
+        return mIndex.find(mBroadQuery, mAll);
+    }
+
+    @Benchmark
+    public List<DeviceModel> broadScan() {
+        ArrayList<DeviceModel> result = new ArrayList<>();
+        for (DeviceModel deviceModel : mModels) {
+            if ("type-1".equals(deviceModel.getProfile().getDeviceType()) && deviceModel.isAvailable()) {
+                result.add(deviceModel);
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public int updateUnchanged() {
+        final DeviceModel deviceModel = mModels[mNext++ % mModels.length];
+        mIndex.update(deviceModel);
+        return mNext;
+    }
+
+    private static boolean hasTag(DeviceModel deviceModel, String key, String value) {
+        for (DeviceTagCollection.Tag tag : deviceModel.getTags()) {
+            if (key.equals(tag.getKey()) && value.equals(tag.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
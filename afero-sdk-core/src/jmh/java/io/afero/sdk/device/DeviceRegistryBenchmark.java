@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.afero.sdk.utils.JSONUtils;
+
+/**
+ * Measures {@link DeviceRegistry} under a mix of lookups, whole-collection reads and membership
+ * churn from several threads, against the {@code synchronized} case-insensitive {@code TreeMap}
+ * {@link DeviceCollection} used before. The lookup ids arrive upper case, as they may from the
+ * service, so the registry's normalization is part of the cost.
+ *
+ * Run with {@code ./gradlew :afero-sdk-core:jmh}.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeviceRegistryBenchmark {
+
+    private static final int CHURN_DEVICE_COUNT = 1000;
+
+    @Param({"registry", "synchronizedTreeMap"})
+    public String impl;
+
+    @Param({"10000", "100000"})
+    public int deviceCount;
+
+    private Registry mRegistry;
+    private String[] mLookupIds;
+    private DeviceModel[] mChurnModels;
+
+    @Setup
+    public void setup() throws IOException {
+        final DeviceProfile profile = JSONUtils.readValue(
+                "{\"profileId\":\"benchmark-profile\",\"services\":[{\"id\":1,\"attributes\":[]}]}", DeviceProfile.class);
+
+        mRegistry = impl.equals("registry") ? new ConcurrentRegistry() : new LockedTreeMapRegistry();
+
+        mLookupIds = new String[deviceCount];
+        for (int i = 0; i < deviceCount; ++i) {
+            String id = String.format("%016x", i);
+            mRegistry.add(new DeviceModel(id, profile, false, null));
+            mLookupIds[i] = id.toUpperCase(Locale.ROOT);
+        }
+
+        mChurnModels = new DeviceModel[CHURN_DEVICE_COUNT];
+        for (int i = 0; i < CHURN_DEVICE_COUNT; ++i) {
+            mChurnModels[i] = new DeviceModel(String.format("churn%011x", i), profile, false, null);
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public DeviceModel lookup() {
+        return mRegistry.get(mLookupIds[ThreadLocalRandom.current().nextInt(mLookupIds.length)]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public int readAll() {
+        // e.g. a UI refreshing its device list
+        int count = 0;
+        for (DeviceModel ignored : mRegistry.values()) {
+            ++count;
+        }
+        return count;
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public boolean churn() {
+        DeviceModel deviceModel = mChurnModels[ThreadLocalRandom.current().nextInt(CHURN_DEVICE_COUNT)];
+        if (mRegistry.get(deviceModel.getId()) != null) {
+            return mRegistry.remove(deviceModel);
+        }
+        mRegistry.add(deviceModel);
+        return true;
+    }
+
+    private interface Registry {
+        DeviceModel get(String deviceId);
+        void add(DeviceModel deviceModel);
+        boolean remove(DeviceModel deviceModel);
+        Collection<DeviceModel> values();
+    }
+
+    private static class ConcurrentRegistry implements Registry {
+        private final DeviceRegistry mDevices = new DeviceRegistry();
+
+        @Override
+        public DeviceModel get(String deviceId) {
+            return mDevices.get(deviceId);
+        }
+
+        @Override
+        public void add(DeviceModel deviceModel) {
+            mDevices.putIfAbsent(deviceModel);
+        }
+
+        @Override
+        public boolean remove(DeviceModel deviceModel) {
+            return mDevices.remove(deviceModel);
+        }
+
+        @Override
+        public List<DeviceModel> values() {
+            return mDevices.values();
+        }
+    }
+
+    // what DeviceCollection did before DeviceRegistry
+    private static class LockedTreeMapRegistry implements Registry {
+        private final TreeMap<String,DeviceModel> mModelMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        @Override
+        public DeviceModel get(String deviceId) {
+            synchronized (mModelMap) {
+                return mModelMap.get(deviceId);
+            }
+        }
+
+        @Override
+        public void add(DeviceModel deviceModel) {
+            synchronized (mModelMap) {
+                mModelMap.put(deviceModel.getId(), deviceModel);
+            }
+        }
+
+        @Override
+        public boolean remove(DeviceModel deviceModel) {
+            synchronized (mModelMap) {
+                return mModelMap.remove(deviceModel.getId()) != null;
+            }
+        }
+
+        @Override
+        public Collection<DeviceModel> values() {
+            TreeMap<String,DeviceModel> mapCopy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            synchronized (mModelMap) {
+                mapCopy.putAll(mModelMap);
+            }
+            return new ArrayList<>(mapCopy.values());
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import io.afero.sdk.client.afero.AferoClient;
+import io.afero.sdk.client.afero.models.DeviceStatus;
+import io.afero.sdk.conclave.DeviceEventSource;
+import io.afero.sdk.conclave.models.DeviceSync;
+import io.afero.sdk.utils.JSONUtils;
+import rx.Observable;
+
+/**
+ * Measures the cost of applying a peripheralList snapshot to a populated {@link DeviceCollection}.
+ * {@code fullApply} is what DeviceCollection used to do: update every device and emit an update for
+ * each. The {@code reconcile} variants go through {@link DeviceCollection#reconcileSnapshot}, once with
+ * a snapshot identical to the current state (the common reconnect case) and once with 1% of the devices
+ * carrying a changed attribute.
+ *
+ * Run with {@code ./gradlew :afero-sdk-core:jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotReconcileBenchmark {
+
+    private static final String PROFILE_ID = "benchmark-profile";
+    private static final int ATTRIBUTE_COUNT = 8;
+    private static final int CHANGED_DEVICE_INTERVAL = 100;
+
+    @Param({"10000", "50000", "100000"})
+    public int deviceCount;
+
+    private DeviceCollection mDeviceCollection;
+    private DeviceSync[] mSnapshot;
+    private DeviceSync[] mChangedSnapshot;
+    private int mInvocation;
+
+    @Setup
+    public void setup() throws IOException {
+        final DeviceProfile profile = JSONUtils.readValue(createProfileJSON(), DeviceProfile.class);
+
+        mSnapshot = createSnapshot(0);
+        mChangedSnapshot = createSnapshot(1);
+
+        AferoClient aferoClient = stub(AferoClient.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getAccountDeviceProfiles")) {
+                    return Observable.just(new DeviceProfile[] { profile });
+                }
+                if (method.getName().equals("getDevicesWithState")) {
+                    return Observable.just(mSnapshot);
+                }
+                return Observable.never();
+            }
+        });
+
+        DeviceEventSource eventSource = stub(DeviceEventSource.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getReturnType() == Observable.class ? Observable.never() : null;
+            }
+        });
+
+        mDeviceCollection = new DeviceCollection(eventSource, aferoClient);
+        mDeviceCollection.start().toBlocking().single();
+    }
+
+    @Benchmark
+    public void fullApply(Blackhole bh) {
+        for (DeviceSync ds : mSnapshot) {
+            DeviceModel deviceModel = mDeviceCollection.getDevice(ds.getDeviceId());
+            deviceModel.update(ds);
+            bh.consume(deviceModel);
+        }
+    }
+
+    @Benchmark
+    public DeviceCollection.SnapshotSummary reconcileUnchanged() {
+        return mDeviceCollection.reconcileSnapshot(mSnapshot);
+    }
+
+    @Benchmark
+    public DeviceCollection.SnapshotSummary reconcileOnePercentChanged() {
+        // alternate so that every invocation sees the same number of real changes
+        return mDeviceCollection.reconcileSnapshot((mInvocation++ & 1) == 0 ? mChangedSnapshot : mSnapshot);
+    }
+
+    private DeviceSync[] createSnapshot(int valueOffset) {
+        DeviceSync[] snapshot = new DeviceSync[deviceCount];
+
+        for (int i = 0; i < deviceCount; ++i) {
+            DeviceSync ds = new DeviceSync();
+            ds.deviceId = String.format("%016x", i);
+            ds.profileId = PROFILE_ID;
+            ds.friendlyName = "Device " + i;
+            ds.status = new DeviceStatus();
+            ds.status.available = true;
+            ds.status.visible = true;
+            ds.status.rssi = -60;
+
+            ds.attributes = new DeviceSync.AttributeEntry[ATTRIBUTE_COUNT];
+            for (int a = 0; a < ATTRIBUTE_COUNT; ++a) {
+                int value = a + (i % CHANGED_DEVICE_INTERVAL == 0 ? valueOffset : 0);
+                ds.attributes[a] = new DeviceSync.AttributeEntry(a + 1, Integer.toString(value));
+            }
+
+            snapshot[i] = ds;
+        }
+
+        return snapshot;
+    }
+
+    private static String createProfileJSON() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"profileId\":\"").append(PROFILE_ID).append("\",\"services\":[{\"id\":1,\"attributes\":[");
+        for (int a = 0; a < ATTRIBUTE_COUNT; ++a) {
+            if (a > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"id\":").append(a + 1).append(",\"dataType\":\"sint32\",\"operations\":[\"read\",\"write\"]}");
+        }
+        sb.append("]}]}");
+        return sb.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> c, InvocationHandler handler) {
+        return (T)Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] { c }, handler);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import io.afero.sdk.client.afero.models.AttributeValue;
+import io.afero.sdk.client.mock.MockAferoClient;
+import io.afero.sdk.conclave.models.DeviceSync;
+import io.afero.sdk.utils.JSONUtils;
+import io.afero.sdk.utils.RxUtils;
+
+/**
+ * Measures applying an attr_change that acknowledges a write to a {@link DeviceModel} while
+ * {@code writers} other {@link AttributeWriter}s wait on the same device for their own acks,
+ * as when a scene or fleet write is in flight. The ack belongs to none of them, so the cost is
+ * that of finding out, which should not grow with the number of writers.
+ *
+ * Run with {@code ./gradlew :afero-sdk-core:jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteAckBenchmark {
+
+    private static final String PROFILE_ID = "benchmark-profile";
+    private static final int ATTRIBUTE_ID = 1;
+
+    // longer than the benchmark, so no writer gives up waiting
+    private static final long WRITE_TIMEOUT = 3600;
+
+    @Param({"1", "16", "256"})
+    public int writers;
+
+    private DeviceModel mDeviceModel;
+    private final DeviceSync[] mAcks = new DeviceSync[2];
+    private int mNext;
+
+    @Setup
+    public void setup() throws IOException {
+        final DeviceProfile profile = JSONUtils.readValue(createProfileJSON(), DeviceProfile.class);
+        mDeviceModel = new DeviceModel("benchmark-device", profile, false, new MockAferoClient());
+
+        // the mock client numbers these writes' requests 1 to writers
+        for (int i = 0; i < writers; ++i) {
+            new AttributeWriter(mDeviceModel, WRITE_TIMEOUT)
+                .put(ATTRIBUTE_ID, new AttributeValue(Integer.toString(i & 1), AttributeValue.DataType.BOOLEAN))
+                .commit()
+                .subscribe(new RxUtils.IgnoreResponseObserver<AttributeWriter.Result>());
+        }
+
+        for (int i = 0; i < mAcks.length; ++i) {
+            DeviceSync ds = new DeviceSync();
+            ds.requestId = writers + 1 + i;
+            ds.attribute = new DeviceSync.AttributeEntry(ATTRIBUTE_ID, Integer.toString(i));
+            mAcks[i] = ds;
+        }
+    }
+
+    @Benchmark
+    public DeviceModel foreignAck() {
+        mDeviceModel.update(mAcks[mNext++ & 1]);
+        return mDeviceModel;
+    }
+
+    private static String createProfileJSON() {
+        return "{\"profileId\":\"" + PROFILE_ID + "\",\"services\":[{\"id\":1,\"attributes\":["
+                + "{\"id\":" + ATTRIBUTE_ID + ",\"dataType\":\"boolean\",\"operations\":[\"read\",\"write\"]}"
+                + "]}]}";
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.client.afero;
+
+import rx.Observable;
+
+/**
+ * Implemented by an {@link AferoClient} that can return device profiles as the JSON the service
+ * sent. {@link io.afero.sdk.device.DeviceCollection} uses it only when it has a
+ * {@link io.afero.sdk.device.ProfileStore}, which persists that JSON; clients that don't
+ * implement it simply don't get their profiles stored.
+ */
+public interface ProfileJsonSource {
+
+    /**
+     * @param profileId id of the profile to fetch
+     * @return {@link Observable} that emits the JSON of the {@link io.afero.sdk.device.DeviceProfile}
+     */
+    Observable<byte[]> getDeviceProfileJson(String profileId);
+
+    /**
+     * @return {@link Observable} that emits the JSON array of the active account's
+     * {@link io.afero.sdk.device.DeviceProfile}s
+     */
+    Observable<byte[]> getAccountDeviceProfilesJson();
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.client.afero;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import rx.Emitter;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.schedulers.Schedulers;
+import rx.subscriptions.CompositeSubscription;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Admits {@link AferoClient} calls to the network at a controlled pace, so that bursts such as
+ * fleet writes or profile fetches for a large account don't run into the Afero Cloud's own
+ * throttling.
+ *
+ * <p>
+ * Each call is made in a {@link Lane}. A lane has a token bucket limiting the rate at which its
+ * calls start, and all lanes share a limit on the number of calls in flight. When a call
+ * finishes, the free slot goes to the waiting call in the highest priority lane that has a
+ * token, so an interactive attribute write queued behind a backlog of background fetches
+ * starts next.
+ * </p>
+ *
+ * <p>
+ * Calls in flight are never pre-empted, so {@link Lane#READ} and {@link Lane#BULK} calls may
+ * only fill all but one of the slots. A write therefore doesn't wait for slow fetches to finish,
+ * unless the limit is a single call.
+ * </p>
+ *
+ * <p>
+ * Example:
+ * <pre><code>
+ *     aferoClient.getAccountRules()
+ *         .compose(requestScheduler.&lt;DeviceRules.Rule[]&gt;schedule(RequestScheduler.Lane.BULK))
+ *         .subscribe(...);
+ * </code></pre>
+ * </p>
+ *
+ * A call waits in its lane from subscription until it's admitted; unsubscribing a waiting call
+ * removes it from the lane without it ever reaching the network. Instances are thread-safe and
+ * meant to be shared by every call a client makes.
+ */
+public final class RequestScheduler {
+
+    /**
+     * Classes of calls, in priority order.
+     */
+    public enum Lane {
+        /**
+         * Interactive attribute writes and rule executions.
+         */
+        WRITE,
+
+        /**
+         * Single-resource reads and edits.
+         */
+        READ,
+
+        /**
+         * Background fetches of account-wide state, profiles and rules.
+         */
+        BULK
+    }
+
+    private static final Lane[] LANES = Lane.values();
+
+    private final Object mLock = new Object();
+    private final LaneState[] mLanes = new LaneState[LANES.length];
+    private final int mMaxInFlight;
+    private final int mMaxInFlightNonWrite;
+    private final Scheduler mScheduler;
+    private final Scheduler.Worker mWorker;
+
+    private int mInFlight;
+    private boolean mDraining;
+    private boolean mMissed;
+    private long mTokenWaitDue = Long.MAX_VALUE;
+
+    /**
+     * Queue-time metrics of one {@link Lane} of a {@link RequestScheduler}.
+     *
+     * @see #getStats(Lane)
+     */
+    public static final class Stats {
+
+        /**
+         * The lane these metrics describe.
+         */
+        public final Lane lane;
+
+        /**
+         * Number of calls admitted to the network.
+         */
+        public final long admittedCount;
+
+        /**
+         * Number of calls unsubscribed while waiting.
+         */
+        public final long cancelledCount;
+
+        /**
+         * Number of calls waiting now.
+         */
+        public final int waitingCount;
+
+        /**
+         * Total milliseconds the admitted calls waited.
+         */
+        public final long totalQueueTimeMs;
+
+        /**
+         * Longest wait of an admitted call, in milliseconds.
+         */
+        public final long maxQueueTimeMs;
+
+        Stats(Lane lane, long admittedCount, long cancelledCount, int waitingCount, long totalQueueTimeMs, long maxQueueTimeMs) {
+            this.lane = lane;
+            this.admittedCount = admittedCount;
+            this.cancelledCount = cancelledCount;
+            this.waitingCount = waitingCount;
+            this.totalQueueTimeMs = totalQueueTimeMs;
+            this.maxQueueTimeMs = maxQueueTimeMs;
+        }
+
+        /**
+         * @return mean milliseconds the admitted calls waited
+         */
+        public long getAverageQueueTimeMs() {
+            return admittedCount > 0 ? totalQueueTimeMs / admittedCount : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats { " +
+                    "lane=" + lane +
+                    ", admittedCount=" + admittedCount +
+                    ", cancelledCount=" + cancelledCount +
+                    ", waitingCount=" + waitingCount +
+                    ", totalQueueTimeMs=" + totalQueueTimeMs +
+                    ", maxQueueTimeMs=" + maxQueueTimeMs +
+                    " }";
+        }
+    }
+
+    /**
+     * Builder used to construct a {@link RequestScheduler}.
+     */
+    public static final class Builder {
+        private final double[] ratePerSecond = { 10, 5, 2 };
+        private final int[] burst = { 20, 10, 5 };
+        private int maxInFlight = 4;
+        private Scheduler scheduler = Schedulers.computation();
+
+        public Builder() {}
+
+        /**
+         * Sets the token bucket of a lane. The defaults are 10 calls per second with bursts of 20
+         * for {@link Lane#WRITE}, 5 and 10 for {@link Lane#READ}, and 2 and 5 for {@link Lane#BULK}.
+         *
+         * @param lane Lane to configure
+         * @param callsPerSecond rate at which the lane's calls may start
+         * @param burst number of calls the lane may start at once
+         * @return this Builder instance
+         */
+        public Builder lane(Lane lane, double callsPerSecond, int burst) {
+            this.ratePerSecond[lane.ordinal()] = callsPerSecond;
+            this.burst[lane.ordinal()] = burst;
+            return this;
+        }
+
+        /**
+         * @param maxInFlight calls of all lanes that may be in flight at once; defaults to 4, below
+         *                    OkHttp's default of 5 per host so that priority is decided here. One of
+         *                    these is kept for {@link Lane#WRITE} unless the limit is 1.
+         * @return this Builder instance
+         */
+        public Builder maxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * @param scheduler {@link Scheduler} on which time is measured and waits for tokens run
+         * @return this Builder instance
+         */
+        public Builder scheduler(Scheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * @return a new {@link RequestScheduler}
+         * @throws IllegalArgumentException if any parameter is out of range
+         */
+        public RequestScheduler build() {
+            if (maxInFlight < 1) {
+                throw new IllegalArgumentException("maxInFlight must be at least 1");
+            }
+            for (int i = 0; i < LANES.length; ++i) {
+                if (ratePerSecond[i] <= 0 || burst[i] < 1) {
+                    throw new IllegalArgumentException("lane " + LANES[i] + " must admit at least one call");
+                }
+            }
+            return new RequestScheduler(this);
+        }
+    }
+
+    private RequestScheduler(Builder builder) {
+        mMaxInFlight = builder.maxInFlight;
+        mMaxInFlightNonWrite = Math.max(1, mMaxInFlight - 1);
+        mScheduler = builder.scheduler;
+        mWorker = mScheduler.createWorker();
+
+        final long now = mScheduler.now();
+        for (int i = 0; i < LANES.length; ++i) {
+            mLanes[i] = new LaneState(LANES[i], new TokenBucket(builder.ratePerSecond[i], builder.burst[i], now));
+        }
+    }
+
+    /**
+     * Makes a call wait in the specified lane until it's admitted. Apply it before any retry, so
+     * that each retry is admitted in turn.
+     *
+     * @param lane Lane in which the call waits
+     * @return Transformer to apply to the call with {@link Observable#compose}
+     */
+    public <T> Observable.Transformer<T, T> schedule(final Lane lane) {
+        return new Observable.Transformer<T, T>() {
+            @Override
+            public Observable<T> call(final Observable<T> call) {
+                return Observable.create(
+                    new Action1<Emitter<T>>() {
+                        @Override
+                        public void call(final Emitter<T> emitter) {
+                            final CompositeSubscription subscriptions = new CompositeSubscription();
+                            emitter.setSubscription(subscriptions);
+
+                            enqueue(new Ticket(mLanes[lane.ordinal()], mScheduler.now()) {
+                                @Override
+                                void start() {
+                                    if (subscriptions.isUnsubscribed()) {
+                                        release(this);
+                                        return;
+                                    }
+
+                                    final Ticket ticket = this;
+                                    subscriptions.add(call.doOnTerminate(new Action0() {
+                                            @Override
+                                            public void call() {
+                                                release(ticket);
+                                            }
+                                        })
+                                        .unsafeSubscribe(new Subscriber<T>() {
+                                            @Override
+                                            public void onNext(T t) {
+                                                emitter.onNext(t);
+                                            }
+
+                                            @Override
+                                            public void onError(Throwable e) {
+                                                emitter.onError(e);
+                                            }
+
+                                            @Override
+                                            public void onCompleted() {
+                                                emitter.onCompleted();
+                                            }
+                                        }));
+                                }
+                            }, subscriptions);
+                        }
+                    }, Emitter.BackpressureMode.BUFFER);
+            }
+        };
+    }
+
+    /**
+     * @param lane Lane whose metrics are wanted
+     * @return {@link Stats} of the lane so far
+     */
+    public Stats getStats(Lane lane) {
+        synchronized (mLock) {
+            return mLanes[lane.ordinal()].getStats();
+        }
+    }
+
+    /**
+     * @return number of calls in flight
+     */
+    public int getInFlightCount() {
+        synchronized (mLock) {
+            return mInFlight;
+        }
+    }
+
+    private void enqueue(final Ticket ticket, CompositeSubscription subscriptions) {
+        synchronized (mLock) {
+            ticket.lane.queue.add(ticket);
+        }
+
+        subscriptions.add(Subscriptions.create(new Action0() {
+            @Override
+            public void call() {
+                cancel(ticket);
+            }
+        }));
+
+        drain();
+    }
+
+    private void cancel(Ticket ticket) {
+        synchronized (mLock) {
+            if (ticket.admitted) {
+                if (!releaseLocked(ticket)) {
+                    return;
+                }
+            } else if (ticket.lane.queue.remove(ticket)) {
+                ticket.lane.cancelledCount++;
+                return;
+            } else {
+                return;
+            }
+        }
+
+        drain();
+    }
+
+    private void release(Ticket ticket) {
+        synchronized (mLock) {
+            if (!releaseLocked(ticket)) {
+                return;
+            }
+        }
+
+        drain();
+    }
+
+    private boolean releaseLocked(Ticket ticket) {
+        if (ticket.released) {
+            return false;
+        }
+
+        ticket.released = true;
+        mInFlight--;
+        return true;
+    }
+
+    // Starts as many waiting calls as the limits allow. Calls are started outside the lock, and a
+    // drain requested by a call finishing synchronously is folded into the running loop.
+    private void drain() {
+        synchronized (mLock) {
+            if (mDraining) {
+                mMissed = true;
+                return;
+            }
+            mDraining = true;
+        }
+
+        for (;;) {
+            final Ticket ticket;
+
+            synchronized (mLock) {
+                ticket = admitLocked();
+
+                if (ticket == null) {
+                    if (mMissed) {
+                        mMissed = false;
+                        continue;
+                    }
+
+                    mDraining = false;
+                    scheduleTokenWaitLocked();
+                    return;
+                }
+            }
+
+            ticket.start();
+        }
+    }
+
+    private Ticket admitLocked() {
+        if (mInFlight >= mMaxInFlight) {
+            return null;
+        }
+
+        final long now = mScheduler.now();
+        for (LaneState lane : mLanes) {
+            if (!lane.queue.isEmpty() && !isLaneFullLocked(lane) && lane.bucket.tryTake(now)) {
+                final Ticket ticket = lane.queue.poll();
+                ticket.admitted = true;
+                mInFlight++;
+                lane.onAdmitted(now - ticket.enqueuedAt);
+                return ticket;
+            }
+        }
+
+        return null;
+    }
+
+    // the last slot is kept for writes
+    private boolean isLaneFullLocked(LaneState lane) {
+        return lane.lane != Lane.WRITE && mInFlight >= mMaxInFlightNonWrite;
+    }
+
+    // If calls are waiting only for tokens, drain again when the first token arrives.
+    private void scheduleTokenWaitLocked() {
+        if (mInFlight >= mMaxInFlight) {
+            return;
+        }
+
+        final long now = mScheduler.now();
+        long wait = Long.MAX_VALUE;
+        for (LaneState lane : mLanes) {
+            if (!lane.queue.isEmpty() && !isLaneFullLocked(lane)) {
+                wait = Math.min(wait, lane.bucket.millisUntilAvailable(now));
+            }
+        }
+
+        if (wait == Long.MAX_VALUE || now + wait >= mTokenWaitDue) {
+            return;
+        }
+
+        final long due = now + wait;
+        mTokenWaitDue = due;
+        mWorker.schedule(new Action0() {
+            @Override
+            public void call() {
+                synchronized (mLock) {
+                    if (mTokenWaitDue == due) {
+                        mTokenWaitDue = Long.MAX_VALUE;
+                    }
+                }
+                drain();
+            }
+        }, wait, TimeUnit.MILLISECONDS);
+    }
+
+    private static final class LaneState {
+        final Lane lane;
+        final TokenBucket bucket;
+        final ArrayDeque<Ticket> queue = new ArrayDeque<>();
+
+        long admittedCount;
+        long cancelledCount;
+        long totalQueueTimeMs;
+        long maxQueueTimeMs;
+
+        LaneState(Lane lane, TokenBucket bucket) {
+            this.lane = lane;
+            this.bucket = bucket;
+        }
+
+        void onAdmitted(long queueTimeMs) {
+            admittedCount++;
+            totalQueueTimeMs += queueTimeMs;
+            maxQueueTimeMs = Math.max(maxQueueTimeMs, queueTimeMs);
+        }
+
+        Stats getStats() {
+            return new Stats(lane, admittedCount, cancelledCount, queue.size(), totalQueueTimeMs, maxQueueTimeMs);
+        }
+    }
+
+    // admitted and released are guarded by mLock
+    private abstract static class Ticket {
+        final LaneState lane;
+        final long enqueuedAt;
+        boolean admitted;
+        boolean released;
+
+        Ticket(LaneState lane, long enqueuedAt) {
+            this.lane = lane;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        abstract void start();
+    }
+}
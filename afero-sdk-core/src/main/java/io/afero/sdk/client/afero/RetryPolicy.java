@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.client.afero;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.afero.sdk.log.AfLog;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+/**
+ * Decides whether and when a failed {@link AferoClient} call is retried: exponential backoff with
+ * full jitter, capped by a retry count, a maximum delay and a maximum elapsed time, and drawn from
+ * a token bucket per account so that many devices failing at once can't start a retry storm.
+ *
+ * <p>
+ * Example, retrying any call while the Afero Cloud reports it's unavailable:
+ * <pre><code>
+ *     aferoClient.getDevicesWithState()
+ *         .compose(retryPolicy.&lt;DeviceSync[]&gt;retrying(aferoClient, 503))
+ *         .subscribe(...);
+ * </code></pre>
+ * </p>
+ *
+ * Instances are thread-safe and meant to be shared by every call a client makes.
+ */
+public final class RetryPolicy {
+
+    private static final String NO_ACCOUNT = "";
+
+    private final int mMaxRetries;
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private final double mMultiplier;
+    private final long mMaxElapsedMs;
+    private final double mBudgetPerSecond;
+    private final int mBudgetBurst;
+    private final Scheduler mScheduler;
+    private final Random mRandom;
+
+    private final ConcurrentHashMap<String, TokenBucket> mBudgets = new ConcurrentHashMap<>();
+
+    private final AtomicLong mRetryCount = new AtomicLong();
+    private final AtomicLong mGiveUpCount = new AtomicLong();
+    private final AtomicLong mBudgetExhaustedCount = new AtomicLong();
+    private final AtomicLong mAddedDelayMs = new AtomicLong();
+
+    /**
+     * Counts of the retry decisions made by a {@link RetryPolicy}.
+     *
+     * @see #getStats()
+     */
+    public static final class Stats {
+
+        /**
+         * Number of retries scheduled.
+         */
+        public final long retryCount;
+
+        /**
+         * Number of retryable errors passed on without a retry, whether for lack of retries,
+         * time or budget.
+         */
+        public final long giveUpCount;
+
+        /**
+         * Number of the give-ups that were due to an empty retry budget.
+         */
+        public final long budgetExhaustedCount;
+
+        /**
+         * Total milliseconds of backoff added to calls by the retries.
+         */
+        public final long addedDelayMs;
+
+        Stats(long retryCount, long giveUpCount, long budgetExhaustedCount, long addedDelayMs) {
+            this.retryCount = retryCount;
+            this.giveUpCount = giveUpCount;
+            this.budgetExhaustedCount = budgetExhaustedCount;
+            this.addedDelayMs = addedDelayMs;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats { " +
+                    "retryCount=" + retryCount +
+                    ", giveUpCount=" + giveUpCount +
+                    ", budgetExhaustedCount=" + budgetExhaustedCount +
+                    ", addedDelayMs=" + addedDelayMs +
+                    " }";
+        }
+    }
+
+    /**
+     * Builder used to construct a {@link RetryPolicy}.
+     */
+    public static final class Builder {
+        private int maxRetries = 4;
+        private long initialDelayMs = 1000;
+        private long maxDelayMs = 8000;
+        private double multiplier = 2;
+        private long maxElapsedMs = 30000;
+        private double budgetPerSecond = 1;
+        private int budgetBurst = 10;
+        private Scheduler scheduler = Schedulers.computation();
+        private Random random = new Random();
+
+        public Builder() {}
+
+        /**
+         * @param maxRetries retries made by {@link #retrying} after the first attempt; defaults to 4
+         * @return this Builder instance
+         */
+        public Builder maxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * Sets the backoff. The delay before retry {@code n} is chosen at random between zero and
+         * {@code min(maxDelay, initialDelay * multiplier^(n - 1))}.
+         *
+         * @param initialDelay upper bound of the first delay; defaults to one second
+         * @param maxDelay upper bound of any delay; defaults to eight seconds
+         * @param multiplier growth of the upper bound with each retry; defaults to 2
+         * @param unit unit of the delays
+         * @return this Builder instance
+         */
+        public Builder backoff(long initialDelay, long maxDelay, double multiplier, TimeUnit unit) {
+            this.initialDelayMs = unit.toMillis(initialDelay);
+            this.maxDelayMs = unit.toMillis(maxDelay);
+            this.multiplier = multiplier;
+            return this;
+        }
+
+        /**
+         * @param maxElapsed time after a call starts beyond which no retry will begin; defaults to 30 seconds
+         * @param unit unit of {@code maxElapsed}
+         * @return this Builder instance
+         */
+        public Builder maxElapsed(long maxElapsed, TimeUnit unit) {
+            this.maxElapsedMs = unit.toMillis(maxElapsed);
+            return this;
+        }
+
+        /**
+         * Sets the retry budget of each account, a token bucket from which each retry takes a
+         * token.
+         *
+         * @param retriesPerSecond rate at which the bucket refills; defaults to 1
+         * @param burst size of the bucket, the retries that can be made at once; defaults to 10
+         * @return this Builder instance
+         */
+        public Builder budget(double retriesPerSecond, int burst) {
+            this.budgetPerSecond = retriesPerSecond;
+            this.budgetBurst = burst;
+            return this;
+        }
+
+        /**
+         * @param scheduler {@link Scheduler} on which the delays run and time is measured
+         * @return this Builder instance
+         */
+        public Builder scheduler(Scheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * @param random source of the jitter
+         * @return this Builder instance
+         */
+        public Builder random(Random random) {
+            this.random = random;
+            return this;
+        }
+
+        /**
+         * @return a new {@link RetryPolicy}
+         * @throws IllegalArgumentException if any parameter is out of range
+         */
+        public RetryPolicy build() {
+            if (maxRetries < 0) {
+                throw new IllegalArgumentException("maxRetries must not be negative");
+            }
+            if (initialDelayMs < 0 || maxDelayMs < initialDelayMs || multiplier < 1) {
+                throw new IllegalArgumentException("backoff must grow from a non-negative initial delay");
+            }
+            if (budgetPerSecond < 0 || budgetBurst < 0) {
+                throw new IllegalArgumentException("budget must not be negative");
+            }
+            return new RetryPolicy(this);
+        }
+    }
+
+    private RetryPolicy(Builder builder) {
+        mMaxRetries = builder.maxRetries;
+        mInitialDelayMs = builder.initialDelayMs;
+        mMaxDelayMs = builder.maxDelayMs;
+        mMultiplier = builder.multiplier;
+        mMaxElapsedMs = builder.maxElapsedMs;
+        mBudgetPerSecond = builder.budgetPerSecond;
+        mBudgetBurst = builder.budgetBurst;
+        mScheduler = builder.scheduler;
+        mRandom = builder.random;
+    }
+
+    /**
+     * @param client {@link AferoClient} whose errors are examined
+     * @param statusCode HTTP status code to retry, or zero to retry any HTTP error
+     * @return predicate that accepts the HTTP errors with the specified status
+     */
+    public static Func1<Throwable, Boolean> onHttpStatus(final AferoClient client, final int statusCode) {
+        return new Func1<Throwable, Boolean>() {
+            @Override
+            public Boolean call(Throwable t) {
+                final int status = client.getStatusCode(t);
+                return status != 0 && (statusCode == 0 || status == statusCode);
+            }
+        };
+    }
+
+    /**
+     * Retries an {@link AferoClient} call that fails with the specified HTTP status, using the
+     * budget of the client's active account.
+     *
+     * @param client {@link AferoClient} making the call
+     * @param statusCode HTTP status code to retry, or zero to retry any HTTP error
+     * @return Transformer to apply to the call with {@link Observable#compose}
+     */
+    public <T> Observable.Transformer<T, T> retrying(final AferoClient client, final int statusCode) {
+        return new Observable.Transformer<T, T>() {
+            @Override
+            public Observable<T> call(Observable<T> call) {
+                return call.retryWhen(retryWhen(client.getActiveAccountId(), mMaxRetries, onHttpStatus(client, statusCode)));
+            }
+        };
+    }
+
+    /**
+     * @param accountId account whose retry budget the retries are drawn from
+     * @param maxRetries retries allowed after the first attempt
+     * @param isRetryable predicate that accepts the errors worth retrying
+     * @return handler to pass to {@link Observable#retryWhen}
+     */
+    public Func1<Observable<? extends Throwable>, Observable<?>> retryWhen(
+            final String accountId, final int maxRetries, final Func1<Throwable, Boolean> isRetryable) {
+
+        return new Func1<Observable<? extends Throwable>, Observable<?>>() {
+            @Override
+            public Observable<?> call(Observable<? extends Throwable> errors) {
+                final long start = mScheduler.now();
+                final int[] retries = { 0 };
+
+                return errors.flatMap(new Func1<Throwable, Observable<?>>() {
+                    @Override
+                    public Observable<?> call(Throwable t) {
+                        if (!isRetryable.call(t)) {
+                            return Observable.error(t);
+                        }
+
+                        final int retry = ++retries[0];
+                        final long delay = nextDelay(retry);
+                        final long elapsed = mScheduler.now() - start;
+
+                        if (retry > maxRetries || elapsed + delay > mMaxElapsedMs) {
+                            mGiveUpCount.incrementAndGet();
+                            return Observable.error(t);
+                        }
+
+                        if (!getBudget(accountId).tryTake(mScheduler.now())) {
+                            AfLog.d("RetryPolicy: retry budget exhausted: " + t.getMessage());
+                            mGiveUpCount.incrementAndGet();
+                            mBudgetExhaustedCount.incrementAndGet();
+                            return Observable.error(t);
+                        }
+
+                        AfLog.d("RetryPolicy: retry=" + retry + " delay=" + delay + "ms '" + t.getMessage() + "'");
+                        mRetryCount.incrementAndGet();
+                        mAddedDelayMs.addAndGet(delay);
+                        return Observable.timer(delay, TimeUnit.MILLISECONDS, mScheduler);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * @return {@link Stats} of the retry decisions made so far
+     */
+    public Stats getStats() {
+        return new Stats(mRetryCount.get(), mGiveUpCount.get(), mBudgetExhaustedCount.get(), mAddedDelayMs.get());
+    }
+
+    // full jitter: uniform between zero and the exponential bound
+    private long nextDelay(int retry) {
+        final double bound = Math.min(mMaxDelayMs, mInitialDelayMs * Math.pow(mMultiplier, retry - 1));
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * bound);
+        }
+    }
+
+    private TokenBucket getBudget(String accountId) {
+        final String key = accountId != null ? accountId : NO_ACCOUNT;
+        TokenBucket bucket = mBudgets.get(key);
+        if (bucket == null) {
+            mBudgets.putIfAbsent(key, new TokenBucket(mBudgetPerSecond, mBudgetBurst, mScheduler.now()));
+            bucket = mBudgets.get(key);
+        }
+        return bucket;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.client.afero;
+
+/**
+ * Token bucket refilled continuously at a fixed rate, with times in milliseconds supplied by the
+ * caller so that a {@link rx.Scheduler} clock can drive it.
+ */
+final class TokenBucket {
+    private final double mPerMs;
+    private final int mCapacity;
+    private double mTokens;
+    private long mLastRefill;
+
+    TokenBucket(double perSecond, int capacity, long now) {
+        mPerMs = perSecond / 1000;
+        mCapacity = capacity;
+        mTokens = capacity;
+        mLastRefill = now;
+    }
+
+    synchronized boolean tryTake(long now) {
+        refill(now);
+
+        if (mTokens < 1) {
+            return false;
+        }
+
+        mTokens -= 1;
+        return true;
+    }
+
+    /**
+     * @return milliseconds until a token will be available, zero if one is now, or
+     *         {@link Long#MAX_VALUE} if the bucket never refills
+     */
+    synchronized long millisUntilAvailable(long now) {
+        refill(now);
+
+        if (mTokens >= 1) {
+            return 0;
+        }
+
+        return mPerMs > 0 ? (long) Math.ceil((1 - mTokens) / mPerMs) : Long.MAX_VALUE;
+    }
+
+    private void refill(long now) {
+        mTokens = Math.min(mCapacity, mTokens + (now - mLastRefill) * mPerMs);
+        mLastRefill = now;
+    }
+}
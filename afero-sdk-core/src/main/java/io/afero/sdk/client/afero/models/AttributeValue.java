@@ -13,6 +13,17 @@ import java.nio.charset.StandardCharsets;
 import io.afero.sdk.log.AfLog;
 import io.afero.sdk.utils.HexUtils;
 
+/**
+ * The value of a device attribute, typed by its {@link DataType}.
+ *
+ * <p>
+ * Values created with a constructor can be changed with {@code setValue}. Values returned by
+ * {@link #valueOf(String, DataType)} can't be, and nor can the current and pending values returned
+ * by {@link io.afero.sdk.device.DeviceModel}, which are shared: their {@code setValue} methods throw
+ * {@link UnsupportedOperationException}. To edit such a value, copy it first, e.g.
+ * {@code new AttributeValue(value.toString(), value.getDataType())}.
+ * </p>
+ */
 public class AttributeValue implements Comparable<AttributeValue> {
 
     public enum DataType {
@@ -40,13 +51,85 @@ public class AttributeValue implements Comparable<AttributeValue> {
     private static final BigDecimal Q_16_FACTOR = BigDecimal.valueOf(65536);
     private static final BigDecimal Q_32_FACTOR = BigDecimal.valueOf(4294967296L);
 
+    // How a numeric value is held. Only NUMERIC_BIG_DECIMAL keeps a BigDecimal from the start; the
+    // others hold primitives and create one only if numericValue() is called.
+    private static final byte NUMERIC_NONE = 0;
+    private static final byte NUMERIC_BIG_DECIMAL = 1;
+    private static final byte NUMERIC_SCALED_LONG = 2;   // mLongValue * 10^-mScale
+    private static final byte NUMERIC_DOUBLE = 3;        // mDoubleValue
+    private static final byte NUMERIC_FIXED_16 = 4;      // mLongValue / 2^16
+    private static final byte NUMERIC_FIXED_32 = 5;      // mLongValue / 2^32
+
+    // longest run of digits that always fits in a long
+    private static final int MAX_SCALED_LONG_DIGITS = 18;
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_SCALED_LONG_DIGITS + 1];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; ++i) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
     private Boolean mBooleanValue;
     private BigDecimal mNumericValue;
     private String mStringValue;
     private byte[] mByteArrayValue;
 
+    private byte mNumericKind;
+    private long mLongValue;
+    private int mScale;
+    private double mDoubleValue;
+
     private DataType mDataType;
 
+    // per DataType; see valueOf()
+    private static final int INTERN_CACHE_SIZE = 256;
+    private static final int INTERN_MAX_LENGTH = 24;
+    private static final InternEntry[][] sInternCache = new InternEntry[DataType.values().length][];
+
+    /**
+     * Returns an {@code AttributeValue} for the specified value and type that may be shared with
+     * other callers and so cannot be changed; its {@code setValue} methods throw
+     * {@link UnsupportedOperationException}. Short values are served from a small cache for each
+     * {@link DataType}, so the handful of values most attributes take, such as booleans, small
+     * numbers and enum values, are created once rather than on every update.
+     *
+     * @param value the value as a string, as the Afero Cloud sends it
+     * @param dataType type of the value
+     * @return an immutable {@code AttributeValue}
+     */
+    public static AttributeValue valueOf(String value, DataType dataType) {
+        if (value == null || value.length() > INTERN_MAX_LENGTH || dataType == DataType.BYTES) {
+            // BYTES exposes its array through getByteValue(), so it can't be shared
+            return new ImmutableAttributeValue(value, dataType);
+        }
+
+        InternEntry[] cache = sInternCache[dataType.ordinal()];
+        if (cache == null) {
+            cache = new InternEntry[INTERN_CACHE_SIZE];
+            sInternCache[dataType.ordinal()] = cache;
+        }
+
+        // direct-mapped: a colliding value simply replaces the one in its slot
+        final int slot = (value.hashCode() * 0x9E3779B9 >>> 24) & (INTERN_CACHE_SIZE - 1);
+        final InternEntry entry = cache[slot];
+        if (entry != null && entry.key.equals(value)) {
+            return entry.value;
+        }
+
+        final AttributeValue attributeValue = new ImmutableAttributeValue(value, dataType);
+        cache[slot] = new InternEntry(value, attributeValue);
+        return attributeValue;
+    }
+
+    /**
+     * @return true if this value was returned by {@link #valueOf(String, DataType)} and can't be changed
+     */
+    public boolean isImmutable() {
+        return false;
+    }
+
     public AttributeValue(DataType dataType) {
         mDataType = dataType;
     }
@@ -60,8 +143,8 @@ public class AttributeValue implements Comparable<AttributeValue> {
                 break;
 
             case BOOLEAN:
-                if (value.matches("\\d+")) {
-                    mBooleanValue = new BigDecimal(value).compareTo(BigDecimal.ZERO) != 0;
+                if (isDigits(value)) {
+                    mBooleanValue = !isAllZeros(value);
                 } else {
                     mBooleanValue = Boolean.valueOf(value);
                 }
@@ -81,11 +164,15 @@ public class AttributeValue implements Comparable<AttributeValue> {
             case FIXED_32_32:
             case Q_15_16:
             case Q_31_32:
+                if (parseScaledLong(value)) {
+                    break;
+                }
+
                 try {
                     if (value.startsWith("0x")) {
-                        mNumericValue = new BigDecimal(Long.decode(value));
+                        setScaledLong(Long.decode(value), 0);
                     } else {
-                        mNumericValue = new BigDecimal(value);
+                        setBigDecimal(new BigDecimal(value));
                     }
                 } catch (NumberFormatException e) {
                     mStringValue = value;
@@ -121,40 +208,42 @@ public class AttributeValue implements Comparable<AttributeValue> {
 
             case UINT8:
             case SINT8:
-                mNumericValue = new BigDecimal(bb.get());
+                setScaledLong(bb.get(), 0);
                 break;
 
             case UINT16:
             case SINT16:
-                mNumericValue = new BigDecimal(bb.getShort());
+                setScaledLong(bb.getShort(), 0);
                 break;
 
             case UINT32:
             case SINT32:
-                mNumericValue = new BigDecimal(bb.getInt());
+                setScaledLong(bb.getInt(), 0);
                 break;
 
             case UINT64:
             case SINT64:
-                mNumericValue = new BigDecimal(bb.getLong());
+                setScaledLong(bb.getLong(), 0);
                 break;
 
             case FLOAT32:
-                mNumericValue = new BigDecimal(bb.getFloat());
+                setDouble(bb.getFloat());
                 break;
 
             case FLOAT64:
-                mNumericValue = new BigDecimal(bb.getDouble());
+                setDouble(bb.getDouble());
                 break;
 
             case FIXED_16_16:
             case Q_15_16:
-                mNumericValue = BigDecimal.valueOf(bb.getInt()).divide(Q_16_FACTOR, MathContext.DECIMAL64);
+                mNumericKind = NUMERIC_FIXED_16;
+                mLongValue = bb.getInt();
                 break;
 
             case FIXED_32_32:
             case Q_31_32:
-                mNumericValue = BigDecimal.valueOf(bb.getLong()).divide(Q_32_FACTOR, MathContext.DECIMAL128);
+                mNumericKind = NUMERIC_FIXED_32;
+                mLongValue = bb.getLong();
                 break;
 
             case UTF8S:
@@ -178,7 +267,12 @@ public class AttributeValue implements Comparable<AttributeValue> {
     }
 
     public void setValue(BigDecimal value) {
-        mNumericValue = value;
+        if (value != null) {
+            setBigDecimal(value);
+        } else {
+            mNumericKind = NUMERIC_NONE;
+            mNumericValue = null;
+        }
     }
 
     public void setValue(String value) {
@@ -189,8 +283,8 @@ public class AttributeValue implements Comparable<AttributeValue> {
         if (mBooleanValue != null) {
             return mBooleanValue;
         }
-        else if (mNumericValue != null) {
-            return mNumericValue.compareTo(BigDecimal.ZERO) != 0;
+        else if (mNumericKind != NUMERIC_NONE) {
+            return signum() != 0;
         }
         else if (mStringValue != null) {
             try {
@@ -228,7 +322,7 @@ public class AttributeValue implements Comparable<AttributeValue> {
             case FIXED_32_32:
             case Q_15_16:
             case Q_31_32:
-                return mNumericValue.compareTo(value.numericValue());
+                return compareNumeric(value);
 
             case UTF8S:
                 return mStringValue.compareTo(value.toString());
@@ -241,6 +335,10 @@ public class AttributeValue implements Comparable<AttributeValue> {
     }
 
     public BigDecimal numericValue() {
+        if (mNumericValue == null && mNumericKind != NUMERIC_NONE) {
+            mNumericValue = toBigDecimal();
+        }
+
         if (mNumericValue == null) {
             if (mStringValue != null && !mStringValue.isEmpty()) {
                 try {
@@ -267,8 +365,11 @@ public class AttributeValue implements Comparable<AttributeValue> {
         if (mStringValue != null) {
             s = mStringValue;
         }
-        else if (mNumericValue != null) {
-            s = mNumericValue.toString();
+        else if (mNumericKind == NUMERIC_SCALED_LONG) {
+            s = scaledLongToString(mLongValue, mScale);
+        }
+        else if (mNumericKind != NUMERIC_NONE) {
+            s = numericValue().toString();
         }
         else if (mBooleanValue != null) {
             s = mBooleanValue.toString();
@@ -290,8 +391,6 @@ public class AttributeValue implements Comparable<AttributeValue> {
             bb.order(ByteOrder.LITTLE_ENDIAN);
         }
 
-        BigDecimal value = numericValue();
-
         switch (mDataType) {
             case BOOLEAN:
                 bb.put((byte)(booleanValue() ? 1 : 0));
@@ -299,40 +398,40 @@ public class AttributeValue implements Comparable<AttributeValue> {
 
             case UINT8:
             case SINT8:
-                bb.put(value.byteValue());
+                bb.put((byte) truncatedLongValue());
                 break;
 
             case UINT16:
             case SINT16:
-                bb.putShort(value.shortValue());
+                bb.putShort((short) truncatedLongValue());
                 break;
 
             case UINT32:
             case SINT32:
-                bb.putInt(value.intValue());
+                bb.putInt((int) truncatedLongValue());
                 break;
 
             case FLOAT32:
-                bb.putFloat(value.floatValue());
+                bb.putFloat(floatValue());
                 break;
 
             case UINT64:
             case SINT64:
-                bb.putLong(value.longValue());
+                bb.putLong(truncatedLongValue());
                 break;
 
             case FLOAT64:
-                bb.putDouble(value.doubleValue());
+                bb.putDouble(doubleValue());
                 break;
 
             case FIXED_16_16:
             case Q_15_16:
-                bb.putInt(value.multiply(Q_16_FACTOR).intValue());
+                bb.putInt((int) fixedValue(NUMERIC_FIXED_16, 16, Q_16_FACTOR));
                 break;
 
             case FIXED_32_32:
             case Q_31_32:
-                bb.putLong(value.multiply(Q_32_FACTOR).longValue());
+                bb.putLong(fixedValue(NUMERIC_FIXED_32, 32, Q_32_FACTOR));
                 break;
 
             case UTF8S:
@@ -395,6 +494,363 @@ public class AttributeValue implements Comparable<AttributeValue> {
         return -1;
     }
 
+    private void setBigDecimal(BigDecimal value) {
+        mNumericKind = NUMERIC_BIG_DECIMAL;
+        mNumericValue = value;
+    }
+
+    private void setScaledLong(long unscaled, int scale) {
+        mNumericKind = NUMERIC_SCALED_LONG;
+        mNumericValue = null;
+        mLongValue = unscaled;
+        mScale = scale;
+    }
+
+    private void setDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            // no BigDecimal for these; fail the way we always have
+            setBigDecimal(new BigDecimal(value));
+            return;
+        }
+
+        mNumericKind = NUMERIC_DOUBLE;
+        mNumericValue = null;
+        mDoubleValue = value;
+    }
+
+    /**
+     * Parses plain decimal strings, which is nearly all of them, without going through BigDecimal.
+     *
+     * @return false if the string has to be parsed by BigDecimal
+     */
+    private boolean parseScaledLong(String value) {
+        final int length = value.length();
+        int i = 0;
+        boolean isNegative = false;
+
+        if (length > 0 && value.charAt(0) == '-') {
+            isNegative = true;
+            i = 1;
+        }
+
+        long unscaled = 0;
+        int digitCount = 0;
+        int scale = 0;
+        boolean hasPoint = false;
+
+        for (; i < length; ++i) {
+            final char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digitCount > MAX_SCALED_LONG_DIGITS) {
+                    return false;
+                }
+                unscaled = unscaled * 10 + (c - '0');
+                if (hasPoint) {
+                    ++scale;
+                }
+            } else if (c == '.' && !hasPoint && digitCount > 0) {
+                hasPoint = true;
+            } else {
+                return false;
+            }
+        }
+
+        if (digitCount == 0 || (hasPoint && scale == 0)) {
+            return false;
+        }
+
+        // BigDecimal switches to exponential notation for very small values; leave those to it
+        if (scale > 0 && precision(unscaled) - 1 - scale < -6) {
+            return false;
+        }
+
+        setScaledLong(isNegative ? -unscaled : unscaled, scale);
+        return true;
+    }
+
+    private static int precision(long unscaled) {
+        final long abs = Math.abs(unscaled);
+        int digits = 1;
+        while (digits < POWERS_OF_TEN.length && abs >= POWERS_OF_TEN[digits]) {
+            ++digits;
+        }
+        return digits;
+    }
+
+    // matches what BigDecimal.toString() produces for the values parseScaledLong accepts
+    private static String scaledLongToString(long unscaled, int scale) {
+        if (scale == 0) {
+            return Long.toString(unscaled);
+        }
+
+        final String digits = Long.toString(Math.abs(unscaled));
+        final StringBuilder sb = new StringBuilder(digits.length() + scale + 3);
+        if (unscaled < 0) {
+            sb.append('-');
+        }
+
+        final int integerDigits = digits.length() - scale;
+        if (integerDigits > 0) {
+            sb.append(digits, 0, integerDigits).append('.').append(digits, integerDigits, digits.length());
+        } else {
+            sb.append("0.");
+            for (int i = integerDigits; i < 0; ++i) {
+                sb.append('0');
+            }
+            sb.append(digits);
+        }
+
+        return sb.toString();
+    }
+
+    private BigDecimal toBigDecimal() {
+        switch (mNumericKind) {
+            case NUMERIC_SCALED_LONG:
+                return BigDecimal.valueOf(mLongValue, mScale);
+
+            case NUMERIC_DOUBLE:
+                return new BigDecimal(mDoubleValue);
+
+            case NUMERIC_FIXED_16:
+                return BigDecimal.valueOf(mLongValue).divide(Q_16_FACTOR, MathContext.DECIMAL64);
+
+            case NUMERIC_FIXED_32:
+                return BigDecimal.valueOf(mLongValue).divide(Q_32_FACTOR, MathContext.DECIMAL128);
+        }
+
+        return mNumericValue;
+    }
+
+    private int signum() {
+        switch (mNumericKind) {
+            case NUMERIC_SCALED_LONG:
+            case NUMERIC_FIXED_16:
+            case NUMERIC_FIXED_32:
+                return Long.signum(mLongValue);
+
+            case NUMERIC_DOUBLE:
+                return mDoubleValue > 0 ? 1 : (mDoubleValue < 0 ? -1 : 0);
+
+            case NUMERIC_BIG_DECIMAL:
+                return mNumericValue.signum();
+        }
+
+        return 0;
+    }
+
+    private int compareNumeric(AttributeValue other) {
+        if (mNumericKind == other.mNumericKind) {
+            switch (mNumericKind) {
+                case NUMERIC_SCALED_LONG: {
+                    // bring both to the larger scale
+                    final long a = rescale(mLongValue, other.mScale - mScale);
+                    final long b = rescale(other.mLongValue, mScale - other.mScale);
+                    if (a != Long.MIN_VALUE && b != Long.MIN_VALUE) {
+                        return a < b ? -1 : (a == b ? 0 : 1);
+                    }
+                    break;
+                }
+
+                case NUMERIC_DOUBLE: {
+                    final double a = mDoubleValue;
+                    final double b = other.mDoubleValue;
+                    return a < b ? -1 : (a > b ? 1 : 0);
+                }
+
+                case NUMERIC_FIXED_16:
+                case NUMERIC_FIXED_32:
+                    return mLongValue < other.mLongValue ? -1 : (mLongValue == other.mLongValue ? 0 : 1);
+            }
+        }
+
+        return numericValue().compareTo(other.numericValue());
+    }
+
+    // value * 10^power if power is positive, otherwise value; Long.MIN_VALUE if that doesn't fit
+    private static long rescale(long value, int power) {
+        if (power <= 0) {
+            return value;
+        }
+        if (power >= POWERS_OF_TEN.length) {
+            return Long.MIN_VALUE;
+        }
+
+        final long factor = POWERS_OF_TEN[power];
+        final long limit = Long.MAX_VALUE / factor;
+        if (value > limit || value < -limit) {
+            return Long.MIN_VALUE;
+        }
+
+        return value * factor;
+    }
+
+    // the integer part, truncated toward zero, as BigDecimal.longValue() returns it
+    private long truncatedLongValue() {
+        switch (mNumericKind) {
+            case NUMERIC_SCALED_LONG:
+                return mScale == 0 ? mLongValue : mLongValue / POWERS_OF_TEN[mScale];
+
+            case NUMERIC_DOUBLE:
+                if (Math.abs(mDoubleValue) < 0x1p63) {
+                    return (long) mDoubleValue;
+                }
+                break;
+
+            case NUMERIC_FIXED_16:
+                return mLongValue / 65536;
+
+            case NUMERIC_FIXED_32:
+                return mLongValue / 4294967296L;
+
+            case NUMERIC_NONE:
+                if (mBooleanValue != null && mStringValue == null) {
+                    return mBooleanValue ? 1 : 0;
+                }
+                break;
+        }
+
+        return numericValue().longValue();
+    }
+
+    private float floatValue() {
+        switch (mNumericKind) {
+            case NUMERIC_SCALED_LONG:
+                if (mScale == 0) {
+                    return (float) mLongValue;
+                }
+                break;
+
+            case NUMERIC_DOUBLE:
+                return (float) mDoubleValue;
+        }
+
+        return numericValue().floatValue();
+    }
+
+    /**
+     * @return the value as the closest {@code double}, without creating a {@link BigDecimal} for
+     * the values the Afero Cloud usually sends; booleans are 1 or 0
+     */
+    public double doubleValue() {
+        switch (mNumericKind) {
+            case NUMERIC_SCALED_LONG:
+                if (mScale == 0) {
+                    return (double) mLongValue;
+                }
+                // both operands are exact, so the quotient is correctly rounded
+                if (Math.abs(mLongValue) <= (1L << 53)) {
+                    return (double) mLongValue / POWERS_OF_TEN[mScale];
+                }
+                break;
+
+            case NUMERIC_DOUBLE:
+                return mDoubleValue;
+
+            case NUMERIC_FIXED_16:
+                return mLongValue / 0x1p16;
+
+            case NUMERIC_FIXED_32:
+                return mLongValue / 0x1p32;
+        }
+
+        if (mBooleanValue != null) {
+            return mBooleanValue ? 1 : 0;
+        }
+
+        return numericValue().doubleValue();
+    }
+
+    // the value in fixed point with the specified number of fraction bits, truncated toward zero
+    private long fixedValue(byte fixedKind, int fractionBits, BigDecimal factor) {
+        switch (mNumericKind) {
+            case NUMERIC_SCALED_LONG:
+                if (Math.abs(mLongValue) < (1L << (62 - fractionBits))) {
+                    return (mLongValue << fractionBits) / POWERS_OF_TEN[mScale];
+                }
+                break;
+
+            case NUMERIC_DOUBLE: {
+                final double scaled = mDoubleValue * (1L << fractionBits);
+                if (Math.abs(scaled) < 0x1p63) {
+                    return (long) scaled;
+                }
+                break;
+            }
+
+            case NUMERIC_FIXED_16:
+            case NUMERIC_FIXED_32:
+                if (mNumericKind == fixedKind) {
+                    return mLongValue;
+                }
+                break;
+        }
+
+        return numericValue().multiply(factor).longValue();
+    }
+
+    private static boolean isDigits(String value) {
+        final int length = value.length();
+        if (length == 0) {
+            return false;
+        }
+
+        for (int i = 0; i < length; ++i) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isAllZeros(String value) {
+        for (int i = 0, n = value.length(); i < n; ++i) {
+            if (value.charAt(i) != '0') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static final class ImmutableAttributeValue extends AttributeValue {
+
+        ImmutableAttributeValue(String value, DataType dataType) {
+            super(value, dataType);
+        }
+
+        @Override
+        public boolean isImmutable() {
+            return true;
+        }
+
+        @Override
+        public void setValue(Boolean value) {
+            throw new UnsupportedOperationException("AttributeValue is immutable");
+        }
+
+        @Override
+        public void setValue(BigDecimal value) {
+            throw new UnsupportedOperationException("AttributeValue is immutable");
+        }
+
+        @Override
+        public void setValue(String value) {
+            throw new UnsupportedOperationException("AttributeValue is immutable");
+        }
+    }
+
+    private static final class InternEntry {
+        final String key;
+        final AttributeValue value;
+
+        InternEntry(String key, AttributeValue value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
     public static boolean isNumericType(DataType type) {
         switch (type) {
             case UNKNOWN:
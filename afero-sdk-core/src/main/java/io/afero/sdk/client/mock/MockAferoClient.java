@@ -11,6 +11,7 @@ import java.util.UUID;
 import java.util.concurrent.Callable;
 
 import io.afero.sdk.client.afero.AferoClient;
+import io.afero.sdk.client.afero.ProfileJsonSource;
 import io.afero.sdk.client.afero.models.AccountDescriptionBody;
 import io.afero.sdk.client.afero.models.AccountUserSummary;
 import io.afero.sdk.client.afero.models.ActionResponse;
@@ -36,7 +37,7 @@ import rx.Observable;
 import rx.subjects.PublishSubject;
 
 
-public class MockAferoClient implements AferoClient {
+public class MockAferoClient implements AferoClient, ProfileJsonSource {
 
     private final ResourceLoader mLoader;
     private DeviceAssociateResponse mDeviceAssociateResponse;
@@ -136,6 +137,33 @@ public class MockAferoClient implements AferoClient {
         });
     }
 
+    @Override
+    public Observable<byte[]> getDeviceProfileJson(String profileId) {
+        if (hasNextCallFailure()) {
+            return nextCallFailObservable();
+        }
+
+        try {
+            return Observable.just(mLoader.readResource("getDeviceProfile/" + profileId + ".json"));
+        } catch (IOException e) {
+            return Observable.error(e);
+        }
+    }
+
+    @Override
+    public Observable<byte[]> getAccountDeviceProfilesJson() {
+        if (hasNextCallFailure()) {
+            return nextCallFailObservable();
+        }
+
+        return Observable.fromCallable(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return mLoader.readResource("getAccountDeviceProfiles.json");
+            }
+        });
+    }
+
     @Override
     public Observable<DeviceProfile> getDeviceProfilePreAssociation(String associationId, int version) {
         return null;
@@ -6,6 +6,8 @@ package io.afero.sdk.client.mock;
 
 import io.afero.sdk.conclave.ConclaveMessage;
 import io.afero.sdk.conclave.DeviceEventSource;
+import io.afero.sdk.conclave.SyncState;
+import io.afero.sdk.conclave.SyncStateSource;
 import io.afero.sdk.conclave.models.DeviceError;
 import io.afero.sdk.conclave.models.DeviceMute;
 import io.afero.sdk.conclave.models.DeviceState;
@@ -16,7 +18,7 @@ import rx.Observable;
 import rx.functions.Action0;
 import rx.subjects.PublishSubject;
 
-public class MockDeviceEventSource implements DeviceEventSource {
+public class MockDeviceEventSource implements DeviceEventSource, SyncStateSource {
 
     public final PublishSubject<DeviceSync[]> mSnapshotSubject = PublishSubject.create();
     public final PublishSubject<DeviceSync> mAttributeChangeSubject = PublishSubject.create();
@@ -25,6 +27,7 @@ public class MockDeviceEventSource implements DeviceEventSource {
     public final PublishSubject<DeviceMute> mDeviceMuteSubject = PublishSubject.create();
     public final PublishSubject<OTAInfo> mOTAInfoSubject = PublishSubject.create();
     public final PublishSubject<InvalidateMessage> mInvalidateMessageSubject = PublishSubject.create();
+    public final PublishSubject<SyncState> mSyncStateSubject = PublishSubject.create();
 
     public int mSnapshotSubscriptionCount;
     public int mInvalidateMessageSubscriptionCount;
@@ -62,6 +65,10 @@ public class MockDeviceEventSource implements DeviceEventSource {
         mInvalidateMessageSubject.onNext(im);
     }
 
+    public void putSyncState(SyncState state) {
+        mSyncStateSubject.onNext(state);
+    }
+
     @Override
     public Observable<DeviceSync[]> observeSnapshot() {
         return mSnapshotSubject
@@ -182,6 +189,11 @@ public class MockDeviceEventSource implements DeviceEventSource {
                 });
     }
 
+    @Override
+    public Observable<SyncState> observeSyncState() {
+        return mSyncStateSubject;
+    }
+
     @Override
     public void sendMetrics(ConclaveMessage.Metric metric) {
 
@@ -7,6 +7,8 @@ package io.afero.sdk.client.mock;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -28,4 +30,23 @@ public class ResourceLoader {
         InputStream is = getClass().getClassLoader().getResourceAsStream(pathPrefix + path);
         return objectMapper.readValue(is, valueType);
     }
+
+    public byte[] readResource(String path) throws IOException {
+        InputStream is = getClass().getClassLoader().getResourceAsStream(pathPrefix + path);
+        if (is == null) {
+            throw new FileNotFoundException(pathPrefix + path);
+        }
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
 }
@@ -0,0 +1,713 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.conclave;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+
+import io.afero.sdk.log.AfLog;
+import io.afero.sdk.utils.Clock;
+import rx.Observable;
+import rx.subjects.AsyncSubject;
+
+/**
+ * Non-blocking transport for a single {@link ConclaveClient} session. All methods other than
+ * {@link #writeLine}, {@link #getOutputStream}, {@link #getExecutor}, {@link #setReadTimeout},
+ * {@link #isConnected} and {@link #close} must be called on the owning {@link ConclaveEventLoop.Worker} thread.
+ */
+final class ConclaveChannel {
+
+    private static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    private final ConclaveEventLoop mEventLoop;
+    private final ConclaveEventLoop.Worker mWorker;
+    private final ConclaveClient mClient;
+    private final String mHost;
+    private final int mPort;
+    private final boolean mUseSSL;
+    private final boolean mUseCompression;
+
+    private final AsyncSubject<ConclaveChannel> mConnectSubject = AsyncSubject.create();
+    private final ConcurrentLinkedQueue<byte[]> mPendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mIsFlushScheduled = new AtomicBoolean();
+
+    private volatile boolean mIsOpen;
+    private volatile boolean mIsClosed;
+    private volatile long mReadTimeoutMillis;
+
+    private boolean mHasConnected;
+    private boolean mIsAttached;
+    private boolean mIsResolving;
+    private boolean mIsRunningTasks;
+    private int mConnectAttempt;
+    private long mLastReadTime;
+    private long mReconnectTime;
+
+    private SocketChannel mSocketChannel;
+    private SelectionKey mKey;
+    private SSLEngine mEngine;
+    private Inflater mInflater;
+    private Deflater mDeflater;
+
+    private ByteBuffer mNetIn = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+    private ByteBuffer mAppIn = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+    private ByteBuffer mNetOut = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+    private ByteBuffer mPlainOut = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+    private final byte[] mInflateBuf = new byte[DEFAULT_BUFFER_SIZE];
+    private final byte[] mDeflateBuf = new byte[DEFAULT_BUFFER_SIZE];
+
+    private byte[] mLine = new byte[1024];
+    private int mLineLength;
+
+    private final ByteArrayOutputStream mOutputStream = new ByteArrayOutputStream(DEFAULT_BUFFER_SIZE) {
+        @Override
+        public void flush() {
+            if (count > 0) {
+                queueWrite(toByteArray());
+                reset();
+            }
+        }
+    };
+
+    ConclaveChannel(ConclaveEventLoop eventLoop, ConclaveEventLoop.Worker worker, ConclaveClient client,
+                    String host, int port, boolean useSSL, boolean useCompression) {
+        mEventLoop = eventLoop;
+        mWorker = worker;
+        mClient = client;
+        mHost = host;
+        mPort = port;
+        mUseSSL = useSSL;
+        mUseCompression = useCompression;
+    }
+
+    Observable<ConclaveChannel> observeConnect() {
+        return mConnectSubject;
+    }
+
+    boolean isConnected() {
+        return mIsOpen;
+    }
+
+    void setReadTimeout(long timeoutMillis) {
+        mReadTimeoutMillis = timeoutMillis;
+    }
+
+    void writeLine(String line) {
+        queueWrite((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return stream that queues everything written to it as a single write when flushed;
+     *         must only be used by one thread at a time
+     */
+    OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * @return {@link Executor} that runs tasks on the owning event loop thread
+     */
+    Executor getExecutor() {
+        return mWorker;
+    }
+
+    private void queueWrite(byte[] bytes) {
+        if (mIsClosed) {
+            return;
+        }
+
+        mPendingWrites.add(bytes);
+
+        if (mIsFlushScheduled.compareAndSet(false, true)) {
+            mWorker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mIsFlushScheduled.set(false);
+                    if (mIsOpen) {
+                        try {
+                            drainWrites();
+                        } catch (Exception e) {
+                            fail(e);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    void open() {
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mIsClosed) {
+                    mIsAttached = true;
+                    mWorker.attach(ConclaveChannel.this);
+                    mEventLoop.onSessionAttached();
+                    connect();
+                }
+            }
+        });
+    }
+
+    void close() {
+        mIsClosed = true;
+        mIsOpen = false;
+
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                shutdown();
+            }
+        });
+    }
+
+    void shutdown() {
+        mIsClosed = true;
+        mIsOpen = false;
+        closeSocket();
+        mPendingWrites.clear();
+
+        if (mIsAttached) {
+            mIsAttached = false;
+            mWorker.detach(this);
+            mEventLoop.onSessionDetached();
+        }
+
+        if (!mHasConnected) {
+            mHasConnected = true;
+            mConnectSubject.onError(new IOException("ConclaveChannel: closed before connecting"));
+        }
+    }
+
+    void onSelected(SelectionKey key) {
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+
+            if (key.isConnectable()) {
+                if (mSocketChannel.finishConnect()) {
+                    onConnected();
+                }
+            }
+
+            if (key.isValid() && key.isReadable()) {
+                onReadable();
+            }
+
+            if (key.isValid() && key.isWritable()) {
+                flushNetOut();
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    void onTick(long now) {
+        if (mIsClosed) {
+            return;
+        }
+
+        if (mReconnectTime != 0 && now >= mReconnectTime) {
+            mReconnectTime = 0;
+            AfLog.i("ConclaveChannel: reconnecting to " + mHost + ":" + mPort);
+            connect();
+            return;
+        }
+
+        final long timeout = mReadTimeoutMillis;
+        if ((mSocketChannel != null || mIsResolving) && timeout > 0 && now - mLastReadTime > timeout) {
+            fail(new SocketTimeoutException("ConclaveChannel: heartbeat timeout"));
+        }
+    }
+
+    private void connect() {
+        try {
+            mClient.onChannelConnecting();
+
+            if (mUseSSL) {
+                AfLog.i("ConclaveChannel: Starting SSL connection to " + mHost + ":" + mPort);
+                mEngine = mEventLoop.createSSLEngine(mHost, mPort);
+            } else {
+                AfLog.i("ConclaveChannel: Starting non-SSL connection to " + mHost + ":" + mPort);
+                mEngine = null;
+            }
+
+            if (mUseCompression) {
+                mInflater = new Inflater();
+                mDeflater = new Deflater();
+            }
+
+            mNetIn.clear();
+            mAppIn.clear();
+            mNetOut.clear();
+            mPlainOut.clear();
+            mLineLength = 0;
+            mLastReadTime = Clock.getElapsedMillis();
+
+            resolve();
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    // the lookup may block, so it runs off the event loop and the connect resumes back on it
+    private void resolve() {
+        final int attempt = mConnectAttempt;
+        mIsResolving = true;
+
+        mEventLoop.runBlocking(new Runnable() {
+            @Override
+            public void run() {
+                final InetSocketAddress address = new InetSocketAddress(mHost, mPort);
+
+                mWorker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (attempt != mConnectAttempt || mIsClosed) {
+                            return;
+                        }
+
+                        mIsResolving = false;
+                        try {
+                            if (address.isUnresolved()) {
+                                throw new UnknownHostException("ConclaveChannel: unable to resolve " + mHost);
+                            }
+                            openSocket(address);
+                        } catch (Exception e) {
+                            fail(e);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void openSocket(InetSocketAddress address) throws IOException {
+        mSocketChannel = SocketChannel.open();
+        mSocketChannel.configureBlocking(false);
+        mSocketChannel.socket().setTcpNoDelay(true);
+        mKey = mSocketChannel.register(mWorker.getSelector(), SelectionKey.OP_CONNECT, this);
+
+        if (mSocketChannel.connect(address)) {
+            onConnected();
+        }
+    }
+
+    private void onConnected() throws IOException {
+        mLastReadTime = Clock.getElapsedMillis();
+        mKey.interestOps(SelectionKey.OP_READ);
+
+        if (mEngine != null) {
+            mEngine.beginHandshake();
+            handshake();
+        } else {
+            onOpen();
+        }
+    }
+
+    private void onOpen() throws IOException {
+        mIsOpen = true;
+        mClient.onChannelOpen(this);
+
+        if (!mHasConnected) {
+            mHasConnected = true;
+            mConnectSubject.onNext(this);
+            mConnectSubject.onCompleted();
+        }
+
+        drainWrites();
+    }
+
+    private void fail(Throwable t) {
+        final boolean wasConnecting = !mHasConnected;
+
+        AfLog.i("ConclaveChannel: connection died - " + t);
+
+        mIsOpen = false;
+        closeSocket();
+        mPendingWrites.clear();
+
+        if (mIsClosed) {
+            return;
+        }
+
+        if (wasConnecting) {
+            // the initial connect failed; report it to the caller rather than retrying
+            mIsClosed = true;
+            mHasConnected = true;
+            mConnectSubject.onError(t);
+            shutdown();
+            return;
+        }
+
+        int retryDelaySeconds = mClient.onChannelClosed();
+        AfLog.i("ConclaveChannel: reconnecting in " + retryDelaySeconds + "s");
+        mReconnectTime = Clock.getElapsedMillis() + retryDelaySeconds * 1000L;
+    }
+
+    private void closeSocket() {
+        // anything still resolving or running handshake tasks belongs to this attempt
+        mConnectAttempt++;
+        mIsResolving = false;
+        mIsRunningTasks = false;
+
+        if (mKey != null) {
+            mKey.cancel();
+            mKey = null;
+        }
+
+        if (mSocketChannel != null) {
+            try {
+                mSocketChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            mSocketChannel = null;
+        }
+
+        if (mInflater != null) {
+            mInflater.end();
+            mInflater = null;
+        }
+
+        if (mDeflater != null) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+
+        mEngine = null;
+    }
+
+    // inbound ----------------------------------------------------------------
+
+    private void onReadable() throws IOException {
+        if (mIsRunningTasks) {
+            return;
+        }
+
+        if (mNetIn.remaining() == 0) {
+            mNetIn = grow(mNetIn, DEFAULT_BUFFER_SIZE);
+        }
+
+        int count = mSocketChannel.read(mNetIn);
+        if (count < 0) {
+            throw new EOFException("ConclaveChannel: connection closed by peer");
+        }
+
+        mLastReadTime = Clock.getElapsedMillis();
+
+        if (mEngine == null) {
+            mNetIn.flip();
+            onPlaintext(mNetIn);
+            mNetIn.clear();
+        } else if (!mIsOpen) {
+            handshake();
+        } else {
+            unwrapAll();
+        }
+    }
+
+    private void handshake() throws IOException {
+        while (mSocketChannel != null) {
+            switch (mEngine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    return;
+
+                case NEED_WRAP:
+                    wrap(EMPTY_BUFFER);
+                    flushNetOut();
+                    break;
+
+                case NEED_UNWRAP:
+                    if (!unwrap()) {
+                        return;
+                    }
+                    break;
+
+                default:
+                    onOpen();
+                    unwrapAll();
+                    return;
+            }
+        }
+    }
+
+    private void unwrapAll() throws IOException {
+        while (mSocketChannel != null && mNetIn.position() > 0 && unwrap()) {
+            switch (mEngine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    return;
+
+                case NEED_WRAP:
+                    wrap(EMPTY_BUFFER);
+                    flushNetOut();
+                    break;
+            }
+        }
+    }
+
+    // returns false when more data must be read from the network before continuing
+    private boolean unwrap() throws IOException {
+        SSLEngineResult result;
+
+        mNetIn.flip();
+        try {
+            result = mEngine.unwrap(mNetIn, mAppIn);
+        } finally {
+            mNetIn.compact();
+        }
+
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                mNetIn = ensureRemaining(mNetIn, mEngine.getSession().getPacketBufferSize());
+                return false;
+
+            case BUFFER_OVERFLOW:
+                mAppIn = ensureRemaining(mAppIn, mEngine.getSession().getApplicationBufferSize());
+                return true;
+
+            case CLOSED:
+                throw new EOFException("ConclaveChannel: TLS session closed by peer");
+
+            default:
+                if (mAppIn.position() > 0) {
+                    mAppIn.flip();
+                    onPlaintext(mAppIn);
+                    mAppIn.clear();
+                }
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    private void onPlaintext(ByteBuffer src) throws IOException {
+        if (mInflater == null) {
+            frame(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+            return;
+        }
+
+        mInflater.setInput(src.array(), src.arrayOffset() + src.position(), src.remaining());
+        src.position(src.limit());
+
+        try {
+            int count;
+            while ((count = mInflater.inflate(mInflateBuf)) > 0) {
+                frame(mInflateBuf, 0, count);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void frame(byte[] b, int offset, int length) throws IOException {
+        final int end = offset + length;
+
+        for (int i = offset; i < end; ++i) {
+            final byte c = b[i];
+
+            if (c == '\n') {
+                int lineLength = mLineLength;
+                if (lineLength > 0 && mLine[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+
+                mLineLength = 0;
+                mClient.onChannelLine(this, new String(mLine, 0, lineLength, StandardCharsets.UTF_8));
+
+                if (mSocketChannel == null) {
+                    // the client closed us while handling the line
+                    return;
+                }
+            } else {
+                if (mLineLength == mLine.length) {
+                    byte[] line = new byte[mLine.length * 2];
+                    System.arraycopy(mLine, 0, line, 0, mLineLength);
+                    mLine = line;
+                }
+                mLine[mLineLength++] = c;
+            }
+        }
+    }
+
+    // outbound ---------------------------------------------------------------
+
+    private void drainWrites() throws IOException {
+        if (mIsRunningTasks) {
+            // the engine can't wrap until its tasks are done, which drains again
+            return;
+        }
+
+        boolean hasWritten = false;
+        byte[] bytes;
+
+        while ((bytes = mPendingWrites.poll()) != null) {
+            if (mDeflater != null) {
+                mDeflater.setInput(bytes);
+                deflate(Deflater.NO_FLUSH);
+            } else {
+                mPlainOut = ensureRemaining(mPlainOut, bytes.length);
+                mPlainOut.put(bytes);
+            }
+            hasWritten = true;
+        }
+
+        if (!hasWritten) {
+            return;
+        }
+
+        // one compression flush for everything that was queued
+        if (mDeflater != null) {
+            deflate(Deflater.SYNC_FLUSH);
+        }
+
+        if (mEngine != null) {
+            mPlainOut.flip();
+            try {
+                while (mPlainOut.hasRemaining()) {
+                    wrap(mPlainOut);
+                }
+            } finally {
+                mPlainOut.compact();
+            }
+        }
+
+        flushNetOut();
+    }
+
+    private void deflate(int flushMode) {
+        int count;
+        do {
+            count = mDeflater.deflate(mDeflateBuf, 0, mDeflateBuf.length, flushMode);
+            mPlainOut = ensureRemaining(mPlainOut, count);
+            mPlainOut.put(mDeflateBuf, 0, count);
+        } while (flushMode == Deflater.NO_FLUSH ? !mDeflater.needsInput() : count == mDeflateBuf.length);
+    }
+
+    private void wrap(ByteBuffer src) throws IOException {
+        while (true) {
+            SSLEngineResult result = mEngine.wrap(src, mNetOut);
+
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    mNetOut = ensureRemaining(mNetOut, mEngine.getSession().getPacketBufferSize());
+                    break;
+
+                case CLOSED:
+                    throw new EOFException("ConclaveChannel: TLS session closed");
+
+                default:
+                    return;
+            }
+        }
+    }
+
+    private void flushNetOut() throws IOException {
+        if (mSocketChannel == null) {
+            return;
+        }
+
+        final ByteBuffer out = mEngine != null ? mNetOut : mPlainOut;
+
+        out.flip();
+        try {
+            while (out.hasRemaining()) {
+                if (mSocketChannel.write(out) == 0) {
+                    break;
+                }
+            }
+        } finally {
+            out.compact();
+        }
+
+        if (mKey != null && mKey.isValid()) {
+            // reads stay disarmed while the engine's tasks run
+            mKey.interestOps((mIsRunningTasks ? 0 : SelectionKey.OP_READ)
+                    | (out.position() > 0 ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    // The engine's tasks may be slow (certificate checks, key generation), so they run off the
+    // event loop. Reads are disarmed until they finish, then the handshake or unwrap resumes.
+    private void runDelegatedTasks() throws IOException {
+        final SSLEngine engine = mEngine;
+        final int attempt = mConnectAttempt;
+
+        mIsRunningTasks = true;
+        flushNetOut();
+
+        mEventLoop.runBlocking(new Runnable() {
+            @Override
+            public void run() {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+
+                mWorker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (attempt == mConnectAttempt) {
+                            onDelegatedTasksDone();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void onDelegatedTasksDone() {
+        mIsRunningTasks = false;
+
+        try {
+            flushNetOut();
+
+            if (!mIsOpen) {
+                handshake();
+            } else {
+                unwrapAll();
+                drainWrites();
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        }
+
+        return grow(buffer, needed);
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        buffer.flip();
+        newBuffer.put(buffer);
+        return newBuffer;
+    }
+}
@@ -6,24 +6,20 @@ package io.afero.sdk.conclave;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
 import java.security.cert.Certificate;
-import java.util.Locale;
-import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.zip.DeflaterOutputStream;
 
 import javax.net.ssl.SSLPeerUnverifiedException;
@@ -35,6 +31,10 @@ import io.afero.sdk.client.afero.models.ConclaveAccessDetails;
 import io.afero.sdk.log.AfLog;
 import io.afero.sdk.utils.JSONUtils;
 import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.functions.Func0;
+import rx.functions.Func1;
 import rx.schedulers.Schedulers;
 import rx.subjects.PublishSubject;
 
@@ -48,6 +48,25 @@ public class ConclaveClient {
     private static final int RETRY_MAX = 20;
     private static final int HEARBEAT_TIMEOUT_DEFAULT = 270;
     private static final int HEARTBEAT_TIMEOUT_EXTRA = 15;
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+
+    // runs ConclaveWriter batches for connections that use a dedicated reader thread
+    private static final Executor IO_EXECUTOR = new Executor() {
+        @Override
+        public void execute(final Runnable task) {
+            final Scheduler.Worker worker = Schedulers.io().createWorker();
+            worker.schedule(new Action0() {
+                @Override
+                public void call() {
+                    try {
+                        task.run();
+                    } finally {
+                        worker.unsubscribe();
+                    }
+                }
+            });
+        }
+    };
 
     public enum Status {
         CONNECTING,
@@ -67,13 +86,42 @@ public class ConclaveClient {
 
     private Socket mSocket;
     private final Object mSocketLock = new Object();
-    private PrintWriter mWriter;
+    private final ConclaveWriter mWriter = new ConclaveWriter();
     private BufferedReader mReader;
     private ReaderThread mReaderThread;
     private PublishSubject<JsonNode> mMessageSubject = PublishSubject.create();
+    private PublishSubject<ConclaveMessageDecoder.Message> mDecodedMessageSubject = PublishSubject.create();
+    private final ConclaveMessageDecoder mDecoder = new ConclaveMessageDecoder();
     private PublishSubject<Status> mStatusSubject = PublishSubject.create();
     private final Object mConnectLock = new Object();
 
+    private final ConclaveEventLoop mEventLoop;
+    private volatile ConclaveChannel mChannel;
+
+    /**
+     * Constructs a ConclaveClient that uses a dedicated blocking reader thread for its connection.
+     */
+    public ConclaveClient() {
+        this(null);
+    }
+
+    /**
+     * Constructs a ConclaveClient whose connection is multiplexed on a shared {@link ConclaveEventLoop}.
+     *
+     * @param eventLoop {@link ConclaveEventLoop} that drives the connection, or null to use a
+     *                  dedicated reader thread
+     */
+    public ConclaveClient(ConclaveEventLoop eventLoop) {
+        mEventLoop = eventLoop;
+    }
+
+    // used for unit testing
+    ConclaveClient(ConclaveEventLoop eventLoop, boolean useSSL, boolean useCompression) {
+        mEventLoop = eventLoop;
+        mUseSSL = useSSL;
+        mUseCompression = useCompression;
+    }
+
     public synchronized Observable<ConclaveClient> connect(ConclaveAccessDetails cad) {
         mRetryDelay = 0;
 
@@ -87,10 +135,30 @@ public class ConclaveClient {
             }
         }
 
-        if (mReaderThread != null) {
+        if (mReaderThread != null || mChannel != null) {
             close();
         }
 
+        if (mEventLoop != null) {
+            return Observable.defer(new Func0<Observable<ConclaveClient>>() {
+                @Override
+                public Observable<ConclaveClient> call() {
+                    synchronized (ConclaveClient.this) {
+                        if (mChannel == null) {
+                            mChannel = mEventLoop.open(ConclaveClient.this, mHost, mPort, mUseSSL, mUseCompression);
+                        }
+                        return mChannel.observeConnect()
+                                .map(new Func1<ConclaveChannel, ConclaveClient>() {
+                                    @Override
+                                    public ConclaveClient call(ConclaveChannel channel) {
+                                        return ConclaveClient.this;
+                                    }
+                                });
+                    }
+                }
+            });
+        }
+
         return Observable.fromCallable(new Callable<ConclaveClient>() {
             @Override
             public ConclaveClient call() throws Exception {
@@ -107,14 +175,20 @@ public class ConclaveClient {
         }).subscribeOn(Schedulers.io());
     }
 
-    public synchronized void write(Object message) {
-        try {
-            String s = JSONUtils.writeValueAsString(message);
-            AfLog.i("ConclaveClient.write: " + s);
-            mWriter.println(s);
-        } catch (JsonProcessingException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Queues a message to be written. Never blocks; messages written while there is no open
+     * connection are dropped.
+     */
+    public void write(Object message) {
+        mWriter.enqueue(message);
+    }
+
+    /**
+     * @return the {@link ConclaveWriter} that batches outbound messages, for its queue depth
+     *         and flush metrics
+     */
+    public ConclaveWriter getWriter() {
+        return mWriter;
     }
 
     public void login(String accountId, String userId, String mobileDeviceId, String token, String type, boolean trace) {
@@ -127,8 +201,7 @@ public class ConclaveClient {
 
     public Observable<ConclaveMessage.Say> sayAsync(String event, Object data) {
         ConclaveMessage.Say say = new ConclaveMessage.Say(event, data);
-        return Observable.fromCallable(new SayCallable(say))
-            .subscribeOn(Schedulers.io());
+        return Observable.fromCallable(new SayCallable(say));
     }
 
     public void whisper(int sessionId, String event, Object data) {
@@ -141,12 +214,21 @@ public class ConclaveClient {
 
     public synchronized void close() {
         try {
+            mWriter.close();
+
             if (mReaderThread != null) {
                 mReaderThread.stopRunning();
                 mReaderThread = null;
             }
 
             boolean isSocketClosing = false;
+
+            if (mChannel != null) {
+                mChannel.close();
+                mChannel = null;
+                isSocketClosing = true;
+            }
+
             synchronized (mSocketLock) {
                 if (mSocket != null) {
                     Observable.fromCallable(new CloseSocketCallable(mSocket))
@@ -180,7 +262,7 @@ public class ConclaveClient {
                 mSocket = new Socket(address, mPort);
             }
 
-            OutputStream os = mSocket.getOutputStream();
+            OutputStream os = new BufferedOutputStream(mSocket.getOutputStream(), WRITE_BUFFER_SIZE);
             InputStream is = mSocket.getInputStream();
 
             if (mUseCompression) {
@@ -189,7 +271,7 @@ public class ConclaveClient {
             }
 
             mReader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-            mWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(os)), true);
+            mWriter.open(os, IO_EXECUTOR);
         }
 
         setHeartbeatTimeout(HEARBEAT_TIMEOUT_DEFAULT);
@@ -199,6 +281,8 @@ public class ConclaveClient {
 
         mStatusSubject.onNext(Status.DISCONNECTING);
 
+        mWriter.close();
+
         synchronized (mSocketLock) {
             if (mSocket != null) {
                 try {
@@ -215,6 +299,11 @@ public class ConclaveClient {
     }
 
     public boolean isConnected() {
+        ConclaveChannel channel = mChannel;
+        if (channel != null) {
+            return channel.isConnected();
+        }
+
         synchronized (mSocketLock) {
             return mSocket != null && mSocket.isConnected();
         }
@@ -224,10 +313,21 @@ public class ConclaveClient {
         return mStatusSubject;
     }
 
+    /**
+     * Emits each message as a {@link JsonNode} tree. Trees are only built while this has
+     * subscribers; prefer {@link #decodedMessageObservable()}.
+     */
     public Observable<JsonNode> messageObservable() {
         return mMessageSubject;
     }
 
+    /**
+     * Emits each message decoded in a single streaming pass by {@link ConclaveMessageDecoder}.
+     */
+    public Observable<ConclaveMessageDecoder.Message> decodedMessageObservable() {
+        return mDecodedMessageSubject;
+    }
+
     private class ReaderThread extends Thread {
 
         public boolean mIsRunning = true;
@@ -270,13 +370,10 @@ public class ConclaveClient {
                     String line = mReader.readLine();
                     if (line != null) {
                         if (line.length() > 0) {
-                            AfLog.i("ConclaveClient: readLine=" + line);
-
-                            JsonNode node = JSONUtils.getObjectMapper().readTree(line);
-                            readEvent(node);
+                            readLine(line);
                         } else {
                             AfLog.i("ConclaveClient: readLine=<empty> (heartbeat)");
-                            mWriter.println();
+                            mWriter.enqueueHeartbeat();
                         }
                     } else {
                         throw new IOException("readLine returned null");
@@ -296,6 +393,57 @@ public class ConclaveClient {
         }
     }
 
+    private void readLine(String line) throws IOException {
+        AfLog.i("ConclaveClient: readLine=" + line);
+
+        if (mMessageSubject.hasObservers()) {
+            JsonNode node = JSONUtils.getObjectMapper().readTree(line);
+            mMessageSubject.onNext(node);
+        }
+
+        ConclaveMessageDecoder.Message message;
+        try {
+            message = mDecoder.decode(line);
+        } catch (JsonProcessingException e) {
+            AfLog.i("ConclaveClient.readLine: failed to decode message");
+            AfLog.e(e);
+            return;
+        }
+
+        if (message != null) {
+            readEvent(message);
+        }
+    }
+
+    // ConclaveChannel callbacks, called on the event loop thread
+
+    void onChannelConnecting() {
+        mStatusSubject.onNext(Status.CONNECTING);
+    }
+
+    void onChannelOpen(ConclaveChannel channel) {
+        channel.setReadTimeout((HEARBEAT_TIMEOUT_DEFAULT + HEARTBEAT_TIMEOUT_EXTRA) * 1000L);
+        mWriter.open(channel.getOutputStream(), channel.getExecutor());
+    }
+
+    void onChannelLine(ConclaveChannel channel, String line) throws IOException {
+        if (line.length() > 0) {
+            readLine(line);
+        } else {
+            AfLog.i("ConclaveClient: readLine=<empty> (heartbeat)");
+            channel.writeLine("");
+        }
+    }
+
+    int onChannelClosed() {
+        mWriter.close();
+        mStatusSubject.onNext(Status.DISCONNECTING);
+        mStatusSubject.onNext(Status.DISCONNECTED);
+
+        mRetryDelay = Math.max(1, Math.min(mRetryDelay * 2, RETRY_MAX));
+        return mRetryDelay;
+    }
+
     private void readloop() {
         mReaderThread = new ReaderThread();
         mReaderThread.start();
@@ -308,6 +456,12 @@ public class ConclaveClient {
             timeoutInSeconds += HEARTBEAT_TIMEOUT_EXTRA;
         }
 
+        ConclaveChannel channel = mChannel;
+        if (channel != null) {
+            channel.setReadTimeout(timeoutInSeconds * 1000L);
+            return;
+        }
+
         try {
             synchronized (mSocketLock) {
                 mSocket.setSoTimeout(timeoutInSeconds * 1000);
@@ -317,37 +471,24 @@ public class ConclaveClient {
         }
     }
 
-    private void readEvent(JsonNode node) {
-        mMessageSubject.onNext(node);
+    private void readEvent(ConclaveMessageDecoder.Message message) {
+        mDecodedMessageSubject.onNext(message);
 
         try {
-            ObjectMapper mapper = JSONUtils.getObjectMapper();
-            Map.Entry<String,JsonNode> entry = node.fields().next();
-            String key = entry.getKey().toLowerCase(Locale.ROOT);
-
-            if (key.equals("hello")) {
-                ConclaveMessage.HelloFields hello = mapper.treeToValue(node.get("hello"), ConclaveMessage.HelloFields.class);
-                mServerVersion = hello.version;
-                setHeartbeatTimeout(hello.heartbeat);
-            } else if (key.equals("welcome")) {
-                ConclaveMessage.WelcomeFields welcome = mapper.treeToValue(node.get("welcome"), ConclaveMessage.WelcomeFields.class);
-                mSessionId = welcome.sessionId;
+            if (ConclaveMessageDecoder.KEY_HELLO.equals(message.key)) {
+                ConclaveMessage.HelloFields hello = (ConclaveMessage.HelloFields)message.data;
+                if (hello != null) {
+                    mServerVersion = hello.version;
+                    setHeartbeatTimeout(hello.heartbeat);
+                }
+            } else if (ConclaveMessageDecoder.KEY_WELCOME.equals(message.key)) {
+                ConclaveMessage.WelcomeFields welcome = (ConclaveMessage.WelcomeFields)message.data;
+                if (welcome != null) {
+                    mSessionId = welcome.sessionId;
+                }
                 mRetryDelay = 0;
                 mStatusSubject.onNext(Status.CONNECTED);
-//            } else if (key.equals("join")) {
-//                ConclaveMessage.JoinFields join = mapper.treeToValue(node.get("join"), ConclaveMessage.JoinFields.class);
-//                handler.onJoin(join);
-//            } else if (key.equals("leave")) {
-//                ConclaveMessage.LeaveFields leave = mapper.treeToValue(node.get("leave"), ConclaveMessage.LeaveFields.class);
-//                handler.onLeave(leave);
-//            } else if (key.equals("public")) {
-//                ConclaveMessage.MessageFields message = mapper.treeToValue(node.get("public"), ConclaveMessage.MessageFields.class);
-//                handler.onPublic(message);
-//            } else if (key.equals("private")) {
-//                ConclaveMessage.MessageFields message = mapper.treeToValue(node.get("private"), ConclaveMessage.MessageFields.class);
-//                handler.onPrivate(message);
             }
-
         } catch (Exception e) {
             AfLog.i("ConclaveClient.readEvent: failed to unpack message");
             AfLog.e(e);
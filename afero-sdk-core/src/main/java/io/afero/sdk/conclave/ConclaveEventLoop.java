@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.conclave;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import io.afero.sdk.log.AfLog;
+import io.afero.sdk.utils.Clock;
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
+
+/**
+ * The ConclaveEventLoop drives the connections of many {@link ConclaveClient}s from a small fixed
+ * pool of threads. Each thread multiplexes its sessions on a single {@link Selector} and takes care
+ * of connect, TLS handshake, streaming compression, line framing, heartbeat and reconnect, so the
+ * thread count no longer grows with the number of open sessions.
+ *
+ * <p>
+ * Example:
+ * <pre><code>
+ *     ConclaveEventLoop eventLoop = new ConclaveEventLoop(2);
+ *     ConclaveDeviceEventSource eventSource = new ConclaveDeviceEventSource(conclaveAccessManager, eventLoop);
+ * </code></pre>
+ * </p>
+ *
+ * Messages are delivered on the event loop thread that owns the session, so subscribers to
+ * {@link ConclaveClient#messageObservable()} should not block.
+ */
+public class ConclaveEventLoop {
+
+    private static final long TICK_MILLIS = 1000;
+    private static final String[] ENABLED_PROTOCOLS = { "TLSv1.1", "TLSv1.2" };
+
+    private final Worker[] mWorkers;
+    private final SSLContext mSSLContext;
+    private final AtomicInteger mNextWorker = new AtomicInteger();
+    private final AtomicInteger mSessionCount = new AtomicInteger();
+
+    /**
+     * Constructs a ConclaveEventLoop that uses the default {@link SSLContext}.
+     *
+     * @param threadCount number of event loop threads
+     * @throws IOException if a {@link Selector} could not be opened
+     */
+    public ConclaveEventLoop(int threadCount) throws IOException {
+        this(threadCount, null);
+    }
+
+    /**
+     * @param threadCount number of event loop threads
+     * @param sslContext {@link SSLContext} used to create the TLS engine of each session, or null
+     *                   to use {@link SSLContext#getDefault()}
+     * @throws IOException if a {@link Selector} could not be opened
+     */
+    public ConclaveEventLoop(int threadCount, SSLContext sslContext) throws IOException {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be at least 1");
+        }
+
+        mSSLContext = sslContext;
+        mWorkers = new Worker[threadCount];
+
+        for (int i = 0; i < threadCount; ++i) {
+            mWorkers[i] = new Worker(i);
+        }
+
+        for (Worker worker : mWorkers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * @return number of sessions currently attached to this event loop
+     */
+    public int getSessionCount() {
+        return mSessionCount.get();
+    }
+
+    /**
+     * @return number of event loop threads
+     */
+    public int getThreadCount() {
+        return mWorkers.length;
+    }
+
+    /**
+     * Closes every session and stops all event loop threads.
+     */
+    public void shutdown() {
+        for (Worker worker : mWorkers) {
+            worker.stopRunning();
+        }
+    }
+
+    ConclaveChannel open(ConclaveClient client, String host, int port, boolean useSSL, boolean useCompression) {
+        final int index = (mNextWorker.getAndIncrement() & Integer.MAX_VALUE) % mWorkers.length;
+        final ConclaveChannel channel = new ConclaveChannel(this, mWorkers[index], client, host, port, useSSL, useCompression);
+        channel.open();
+        return channel;
+    }
+
+    SSLEngine createSSLEngine(String host, int port) throws IOException {
+        SSLContext context = mSSLContext;
+        if (context == null) {
+            try {
+                context = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        engine.setEnabledProtocols(ENABLED_PROTOCOLS);
+        return engine;
+    }
+
+    /**
+     * Runs a task that may block, such as a DNS lookup or a TLS handshake computation, off the
+     * event loop threads so that it can't stall the other sessions.
+     */
+    void runBlocking(final Runnable task) {
+        final Scheduler.Worker worker = Schedulers.io().createWorker();
+        worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                try {
+                    task.run();
+                } finally {
+                    worker.unsubscribe();
+                }
+            }
+        });
+    }
+
+    void onSessionAttached() {
+        mSessionCount.incrementAndGet();
+    }
+
+    void onSessionDetached() {
+        mSessionCount.decrementAndGet();
+    }
+
+    static final class Worker extends Thread implements Executor {
+
+        private final Selector mSelector;
+        private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+        private final ArrayList<ConclaveChannel> mChannels = new ArrayList<>();
+        private volatile boolean mIsRunning = true;
+        private long mNextTick;
+
+        Worker(int index) throws IOException {
+            super("ConclaveEventLoop-" + index);
+            setDaemon(true);
+            mSelector = Selector.open();
+        }
+
+        Selector getSelector() {
+            return mSelector;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            mTasks.add(task);
+            mSelector.wakeup();
+        }
+
+        void attach(ConclaveChannel channel) {
+            mChannels.add(channel);
+        }
+
+        void detach(ConclaveChannel channel) {
+            mChannels.remove(channel);
+        }
+
+        void stopRunning() {
+            mIsRunning = false;
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            AfLog.i("ConclaveEventLoop: " + getName() + " started");
+
+            while (mIsRunning) {
+                try {
+                    mSelector.select(TICK_MILLIS);
+
+                    runTasks();
+
+                    Iterator<SelectionKey> iter = mSelector.selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+
+                        ConclaveChannel channel = (ConclaveChannel)key.attachment();
+                        if (channel != null) {
+                            channel.onSelected(key);
+                        }
+                    }
+
+                    final long now = Clock.getElapsedMillis();
+                    if (now >= mNextTick) {
+                        mNextTick = now + TICK_MILLIS;
+
+                        // iterate over a copy since a tick may detach the channel
+                        for (ConclaveChannel channel : mChannels.toArray(new ConclaveChannel[mChannels.size()])) {
+                            channel.onTick(now);
+                        }
+                    }
+                } catch (Exception e) {
+                    // eat all exceptions - one bad session shouldn't take down the others
+                    AfLog.e(e);
+                }
+            }
+
+            for (ConclaveChannel channel : mChannels.toArray(new ConclaveChannel[mChannels.size()])) {
+                channel.shutdown();
+            }
+
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+
+            AfLog.i("ConclaveEventLoop: " + getName() + " exiting");
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    AfLog.e(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.conclave;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import io.afero.sdk.conclave.models.DeviceError;
+import io.afero.sdk.conclave.models.DeviceMute;
+import io.afero.sdk.conclave.models.DeviceState;
+import io.afero.sdk.conclave.models.DeviceSync;
+import io.afero.sdk.conclave.models.InvalidateMessage;
+import io.afero.sdk.conclave.models.OTAInfo;
+import io.afero.sdk.utils.JSONUtils;
+
+/**
+ * Decodes Conclave lines in a single pass over the {@link JsonParser} token stream. The envelope
+ * key, event name, seq and device id are picked out as they go by, and the event data is bound
+ * directly to its model class without building an intermediate {@link com.fasterxml.jackson.databind.JsonNode} tree.
+ */
+public class ConclaveMessageDecoder {
+
+    public static final String KEY_HELLO = "hello";
+    public static final String KEY_WELCOME = "welcome";
+    public static final String KEY_PUBLIC = "public";
+    public static final String KEY_PRIVATE = "private";
+    public static final String KEY_ERROR = "error";
+
+    public static final String EVENT_ATTR_CHANGE = "attr_change";
+    public static final String EVENT_PERIPHERAL_LIST = "peripherallist";
+    public static final String EVENT_INVALIDATE = "invalidate";
+    public static final String EVENT_STATUS_CHANGE = "status_change";
+    public static final String EVENT_DEVICE_ERROR = "device:error";
+    public static final String EVENT_DEVICE_MUTE = "device:mute";
+    public static final String EVENT_OTA_PROGRESS = "device:ota_progress";
+
+    private static final String FIELD_EVENT = "event";
+    private static final String FIELD_DATA = "data";
+    private static final String FIELD_SEQ = "seq";
+    private static final String FIELD_SESSION_ID = "sessionId";
+
+    /**
+     * A decoded Conclave message. Only the fields relevant to {@link #key} are filled in.
+     */
+    public static class Message {
+
+        /** lower case envelope key, e.g. {@link #KEY_PUBLIC} or {@link #KEY_WELCOME} */
+        public String key;
+
+        /** lower case event name of a public or private message */
+        public String event;
+
+        /** seq of a public or private message, null if the message had none */
+        public Integer seq;
+
+        public int sessionId;
+
+        /** id of the device the event refers to, if any */
+        public String deviceId;
+
+        /**
+         * Bound payload. For public and private messages this is the model class of the event
+         * (e.g. {@link DeviceSync} for {@link #EVENT_ATTR_CHANGE}), or null for unknown events.
+         * For envelope keys it is {@link ConclaveMessage.HelloFields}, {@link ConclaveMessage.WelcomeFields}
+         * or {@link ErrorFields}.
+         */
+        public Object data;
+
+        public boolean isEvent() {
+            return event != null;
+        }
+
+        @Override
+        public String toString() {
+            return "{ " +
+                    "key='" + key + '\'' +
+                    ", event='" + event + '\'' +
+                    ", seq=" + seq +
+                    ", sessionId=" + sessionId +
+                    ", deviceId='" + deviceId + '\'' +
+                    " }";
+        }
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class ErrorFields {
+        public int code;
+        public String message;
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class PeripheralList {
+        public Integer currentSeq;
+        public DeviceSync[] peripherals;
+    }
+
+    private final JsonFactory mFactory;
+    private final Map<String, ObjectReader> mEnvelopeReaders = new HashMap<>();
+    private final Map<String, ObjectReader> mEventReaders = new HashMap<>();
+
+    public ConclaveMessageDecoder() {
+        this(JSONUtils.getObjectMapper());
+    }
+
+    public ConclaveMessageDecoder(ObjectMapper mapper) {
+        mFactory = mapper.getFactory();
+
+        mEnvelopeReaders.put(KEY_HELLO, mapper.readerFor(ConclaveMessage.HelloFields.class));
+        mEnvelopeReaders.put(KEY_WELCOME, mapper.readerFor(ConclaveMessage.WelcomeFields.class));
+        mEnvelopeReaders.put(KEY_ERROR, mapper.readerFor(ErrorFields.class));
+
+        mEventReaders.put(EVENT_ATTR_CHANGE, mapper.readerFor(DeviceSync.class));
+        mEventReaders.put(EVENT_PERIPHERAL_LIST, mapper.readerFor(PeripheralList.class));
+        mEventReaders.put(EVENT_INVALIDATE, mapper.readerFor(InvalidateMessage.class));
+        mEventReaders.put(EVENT_STATUS_CHANGE, mapper.readerFor(DeviceState.class));
+        mEventReaders.put(EVENT_DEVICE_ERROR, mapper.readerFor(DeviceError.class));
+        mEventReaders.put(EVENT_DEVICE_MUTE, mapper.readerFor(DeviceMute.class));
+        mEventReaders.put(EVENT_OTA_PROGRESS, mapper.readerFor(OTAInfo.class));
+    }
+
+    /**
+     * Decodes a single Conclave line.
+     *
+     * @param line JSON text of the message
+     * @return the decoded {@link Message}, or null if the line does not contain a JSON object
+     * @throws IOException if the line is malformed or the data can't be bound to its model class
+     */
+    public Message decode(String line) throws IOException {
+        JsonParser parser = mFactory.createParser(line);
+        try {
+            return decode(parser);
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Decodes a single Conclave message from bytes containing UTF-8 JSON.
+     */
+    public Message decode(byte[] b, int offset, int length) throws IOException {
+        JsonParser parser = mFactory.createParser(b, offset, length);
+        try {
+            return decode(parser);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private Message decode(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return null;
+        }
+
+        if (parser.nextToken() != JsonToken.FIELD_NAME) {
+            return null;
+        }
+
+        Message message = new Message();
+        message.key = canonicalKey(parser.getCurrentName());
+
+        JsonToken token = parser.nextToken();
+
+        if (KEY_PUBLIC.equals(message.key) || KEY_PRIVATE.equals(message.key)) {
+            if (token == JsonToken.START_OBJECT) {
+                readEvent(parser, message);
+            } else {
+                parser.skipChildren();
+            }
+        } else {
+            ObjectReader reader = mEnvelopeReaders.get(message.key);
+            if (reader != null && token == JsonToken.START_OBJECT) {
+                message.data = reader.readValue(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return message;
+    }
+
+    private void readEvent(JsonParser parser, Message message) throws IOException {
+        TokenBuffer pendingData = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+
+            if (FIELD_DATA.equals(field)) {
+                if (message.event != null) {
+                    message.data = readData(parser, token, message.event);
+                } else {
+                    // event name hasn't been seen yet so hang on to the tokens until it is
+                    pendingData = new TokenBuffer(parser);
+                    pendingData.copyCurrentStructure(parser);
+                }
+            } else if (!token.isScalarValue()) {
+                // an object or array where a scalar belongs is treated as absent
+                parser.skipChildren();
+            } else if (FIELD_EVENT.equals(field)) {
+                message.event = canonicalEvent(parser.getText());
+            } else if (FIELD_SEQ.equals(field)) {
+                message.seq = parser.getValueAsInt();
+            } else if (FIELD_SESSION_ID.equals(field)) {
+                message.sessionId = parser.getValueAsInt();
+            }
+        }
+
+        if (pendingData != null && message.event != null) {
+            JsonParser dataParser = pendingData.asParser(parser.getCodec());
+            try {
+                message.data = readData(dataParser, dataParser.nextToken(), message.event);
+            } finally {
+                dataParser.close();
+            }
+        }
+
+        message.deviceId = getDeviceId(message.data);
+    }
+
+    private Object readData(JsonParser parser, JsonToken token, String event) throws IOException {
+        ObjectReader reader = mEventReaders.get(event);
+        if (reader == null || token == JsonToken.VALUE_NULL) {
+            parser.skipChildren();
+            return null;
+        }
+
+        return reader.readValue(parser);
+    }
+
+    private String canonicalKey(String key) {
+        switch (key) {
+            case KEY_PUBLIC:
+            case KEY_PRIVATE:
+            case KEY_HELLO:
+            case KEY_WELCOME:
+            case KEY_ERROR:
+                return key;
+        }
+
+        return key.toLowerCase(Locale.ROOT);
+    }
+
+    private String canonicalEvent(String event) {
+        if (event == null || mEventReaders.containsKey(event)) {
+            return event;
+        }
+
+        return event.toLowerCase(Locale.ROOT);
+    }
+
+    private static String getDeviceId(Object data) {
+        if (data instanceof DeviceSync) {
+            return ((DeviceSync)data).deviceId;
+        }
+        if (data instanceof DeviceState) {
+            return ((DeviceState)data).id;
+        }
+        if (data instanceof OTAInfo) {
+            return ((OTAInfo)data).id;
+        }
+        if (data instanceof DeviceError) {
+            return ((DeviceError)data).id;
+        }
+        if (data instanceof DeviceMute) {
+            return ((DeviceMute)data).id;
+        }
+        if (data instanceof InvalidateMessage) {
+            return ((InvalidateMessage)data).deviceId;
+        }
+
+        return null;
+    }
+}
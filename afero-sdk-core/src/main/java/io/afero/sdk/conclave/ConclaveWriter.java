@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.conclave;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.afero.sdk.log.AfLog;
+import io.afero.sdk.utils.JSONUtils;
+
+/**
+ * Outbound message stage for a {@link ConclaveClient}. Any thread may {@link #enqueue} a message;
+ * enqueuing never blocks and never takes a lock. A single drain task at a time serializes everything
+ * that is queued straight into the connection's {@link OutputStream} and flushes it once per batch,
+ * so a burst of messages costs one compression flush and one socket write instead of one each.
+ *
+ * <p>
+ * Messages enqueued while there is no open connection are dropped, as they were before; Conclave
+ * requires login to be the first message on a new connection.
+ * </p>
+ */
+public class ConclaveWriter {
+
+    private static final Object HEARTBEAT = new Object();
+    private static final int NEWLINE = '\n';
+
+    private final ConcurrentLinkedQueue<Object> mQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicBoolean mIsDrainScheduled = new AtomicBoolean();
+    private final ObjectWriter mObjectWriter;
+
+    private final AtomicLong mMessageCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mFlushCount = new AtomicLong();
+    private final AtomicLong mByteCount = new AtomicLong();
+    private volatile int mLastFlushSize;
+    private volatile int mMaxFlushSize;
+
+    private volatile Output mOutput;
+
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    ConclaveWriter() {
+        this(JSONUtils.getObjectMapper());
+    }
+
+    ConclaveWriter(ObjectMapper mapper) {
+        mObjectWriter = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    /**
+     * @return number of messages waiting to be written
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * @return total number of messages written
+     */
+    public long getMessageCount() {
+        return mMessageCount.get();
+    }
+
+    /**
+     * @return total number of messages dropped because there was no open connection or the write failed
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * @return total number of flushes, i.e. written batches
+     */
+    public long getFlushCount() {
+        return mFlushCount.get();
+    }
+
+    /**
+     * @return total number of uncompressed bytes written
+     */
+    public long getByteCount() {
+        return mByteCount.get();
+    }
+
+    /**
+     * @return number of messages in the most recent flush
+     */
+    public int getLastFlushSize() {
+        return mLastFlushSize;
+    }
+
+    /**
+     * @return largest number of messages written in a single flush
+     */
+    public int getMaxFlushSize() {
+        return mMaxFlushSize;
+    }
+
+    /**
+     * @return average number of messages per flush
+     */
+    public double getAverageFlushSize() {
+        final long flushCount = mFlushCount.get();
+        return flushCount > 0 ? (double)mMessageCount.get() / flushCount : 0;
+    }
+
+    void enqueue(Object message) {
+        mQueue.add(message);
+        mQueueDepth.incrementAndGet();
+        scheduleDrain();
+    }
+
+    void enqueueHeartbeat() {
+        enqueue(HEARTBEAT);
+    }
+
+    /**
+     * Directs subsequent batches to a new connection.
+     *
+     * @param out stream the messages are written to; flushed once per batch
+     * @param executor runs the drain task, which must not run concurrently with itself
+     */
+    void open(OutputStream out, Executor executor) {
+        mOutput = new Output(out, executor);
+        scheduleDrain();
+    }
+
+    /**
+     * Detaches the current connection. Messages queued from now on are dropped until the next {@link #open}.
+     */
+    void close() {
+        mOutput = null;
+    }
+
+    private void scheduleDrain() {
+        final Output output = mOutput;
+
+        if (output == null) {
+            discard();
+            return;
+        }
+
+        if (mIsDrainScheduled.compareAndSet(false, true)) {
+            output.executor.execute(mDrainTask);
+        }
+    }
+
+    private void drain() {
+        final Output output = mOutput;
+
+        try {
+            if (output == null) {
+                discard();
+            } else {
+                writeBatch(output);
+            }
+        } finally {
+            mIsDrainScheduled.set(false);
+        }
+
+        // pick up anything that was enqueued after the last poll
+        if (!mQueue.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    private void writeBatch(Output output) {
+        int count = 0;
+
+        try {
+            Object message;
+            while ((message = mQueue.poll()) != null) {
+                mQueueDepth.decrementAndGet();
+                count++;
+
+                if (message != HEARTBEAT) {
+                    mObjectWriter.writeValue(output.generator, message);
+                }
+                output.generator.writeRaw((char)NEWLINE);
+            }
+
+            if (count == 0) {
+                return;
+            }
+
+            // one flush for the whole batch
+            output.generator.flush();
+
+            mMessageCount.addAndGet(count);
+            mFlushCount.incrementAndGet();
+            mLastFlushSize = count;
+            if (count > mMaxFlushSize) {
+                mMaxFlushSize = count;
+            }
+        } catch (IOException e) {
+            AfLog.i("ConclaveWriter: write failed - " + e);
+            mDroppedCount.addAndGet(count);
+            if (mOutput == output) {
+                mOutput = null;
+            }
+        }
+    }
+
+    private void discard() {
+        while (mQueue.poll() != null) {
+            mQueueDepth.decrementAndGet();
+            mDroppedCount.incrementAndGet();
+        }
+    }
+
+    private final class Output {
+        final JsonGenerator generator;
+        final Executor executor;
+
+        Output(OutputStream out, Executor executor) {
+            this.executor = executor;
+
+            try {
+                generator = mObjectWriter.getFactory().createGenerator(new CountingOutputStream(out));
+            } catch (IOException e) {
+                // creating a generator over an OutputStream does no I/O
+                throw new IllegalStateException(e);
+            }
+
+            generator.setRootValueSeparator(null);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        }
+    }
+
+    private final class CountingOutputStream extends FilterOutputStream {
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mByteCount.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mByteCount.addAndGet(len);
+        }
+    }
+}
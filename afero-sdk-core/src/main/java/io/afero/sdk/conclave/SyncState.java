@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.conclave;
+
+/**
+ * Describes how a {@link SyncStateSource} stands with respect to the server's event stream,
+ * as tracked by its generation and sequence number.
+ */
+public class SyncState {
+
+    public enum Status {
+        /**
+         * A reconnect picked up exactly where the previous session left off. Nothing was missed
+         * so the snapshot that follows login is not reprocessed.
+         */
+        RESUMED,
+
+        /**
+         * The server's generation changed, e.g. on first connect or after a server restart.
+         * The next snapshot is processed in full.
+         */
+        GENERATION_CHANGED,
+
+        /**
+         * One or more messages were missed. When the gap is seen during a session a snapshot is
+         * requested; when it's seen at login the snapshot the server sends after login is used.
+         * Either way the snapshot is processed in full.
+         */
+        GAP,
+
+        /**
+         * A snapshot was processed and the local state is current as of {@link #sequenceNum}.
+         */
+        SYNCED
+    }
+
+    public final Status status;
+    public final long generation;
+    public final int sequenceNum;
+
+    /**
+     * Number of messages known to have been missed, or zero if unknown or not applicable.
+     */
+    public final int missedCount;
+
+    public SyncState(Status status, long generation, int sequenceNum, int missedCount) {
+        this.status = status;
+        this.generation = generation;
+        this.sequenceNum = sequenceNum;
+        this.missedCount = missedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "SyncState { " +
+                "status=" + status +
+                ", generation=" + generation +
+                ", sequenceNum=" + sequenceNum +
+                ", missedCount=" + missedCount +
+                " }";
+    }
+}
@@ -0,0 +1,17 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.conclave;
+
+import rx.Observable;
+
+/**
+ * Implemented by a {@link DeviceEventSource} that tracks the server's generation and sequence
+ * number, so that {@link io.afero.sdk.device.DeviceCollection} can report its {@link SyncState}.
+ * Sources that don't track the stream simply don't implement it.
+ */
+public interface SyncStateSource {
+
+    Observable<SyncState> observeSyncState();
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import io.afero.sdk.client.afero.models.AttributeValue;
+
+/**
+ * The most recent values reported for a numeric or boolean {@link DeviceProfile.Attribute}, with
+ * the time each was reported. Enable it for one device with
+ * {@link DeviceModel#setAttributeHistoryCapacity}, or for every device with a given profile with
+ * {@link DeviceCollection#setAttributeHistoryCapacity}.
+ *
+ * <p>
+ * Samples live in parallel {@code long} and {@code double} arrays used as a ring buffer, so
+ * recording a sample allocates nothing, and the memory used is fixed at 16 bytes per sample of
+ * capacity. Booleans are recorded as 1 and 0. Each aggregate visits only the samples in the
+ * requested window, newest first, and allocates nothing.
+ * </p>
+ *
+ * <p>
+ * Timestamps are the milliseconds since the epoch at which the Afero Cloud reports the value
+ * was updated, when it says, otherwise the time the value arrived.
+ * </p>
+ */
+public final class AttributeHistory {
+
+    private final long[] mTimestamps;
+    private final double[] mValues;
+    private int mNext;
+    private int mSize;
+
+    AttributeHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mTimestamps = new long[capacity];
+        mValues = new double[capacity];
+    }
+
+    static int checkCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative");
+        }
+        return capacity;
+    }
+
+    static DeviceProfile.Attribute checkAttribute(DeviceProfile.Attribute attribute) {
+        final AttributeValue.DataType dataType = attribute.getDataType();
+        if (!AttributeValue.isNumericType(dataType) && dataType != AttributeValue.DataType.BOOLEAN) {
+            throw new IllegalArgumentException("history needs a numeric or boolean attribute, not " + dataType);
+        }
+        return attribute;
+    }
+
+    public int getCapacity() {
+        return mValues.length;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @param index zero for the oldest sample, up to {@link #size()} - 1 for the newest
+     */
+    public synchronized long getTimestamp(int index) {
+        return mTimestamps[slot(index)];
+    }
+
+    /**
+     * @param index zero for the oldest sample, up to {@link #size()} - 1 for the newest
+     */
+    public synchronized double getValue(int index) {
+        return mValues[slot(index)];
+    }
+
+    /**
+     * @return the smallest value recorded at or after {@code since}, or {@link Double#NaN} if there is none
+     */
+    public synchronized double min(long since) {
+        double result = Double.NaN;
+        for (int i = 0, slot = newest(); i < mSize && mTimestamps[slot] >= since; ++i, slot = previous(slot)) {
+            final double value = mValues[slot];
+            if (!(value >= result)) {
+                result = value;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the largest value recorded at or after {@code since}, or {@link Double#NaN} if there is none
+     */
+    public synchronized double max(long since) {
+        double result = Double.NaN;
+        for (int i = 0, slot = newest(); i < mSize && mTimestamps[slot] >= since; ++i, slot = previous(slot)) {
+            final double value = mValues[slot];
+            if (!(value <= result)) {
+                result = value;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the mean of the values recorded at or after {@code since}, or {@link Double#NaN} if there are none
+     */
+    public synchronized double mean(long since) {
+        double sum = 0;
+        int count = 0;
+        for (int slot = newest(); count < mSize && mTimestamps[slot] >= since; slot = previous(slot)) {
+            sum += mValues[slot];
+            ++count;
+        }
+        return count > 0 ? sum / count : Double.NaN;
+    }
+
+    /**
+     * @return the timestamp of the oldest sample in the unbroken run of samples equal to the newest
+     * one, which is when the current value was first seen; or zero if nothing has been recorded
+     */
+    public synchronized long getLastChangeTime() {
+        if (mSize == 0) {
+            return 0;
+        }
+
+        int slot = newest();
+        final double value = mValues[slot];
+        for (int i = 1; i < mSize; ++i) {
+            final int previous = previous(slot);
+            if (Double.compare(mValues[previous], value) != 0) {
+                break;
+            }
+            slot = previous;
+        }
+        return mTimestamps[slot];
+    }
+
+    synchronized void record(long timestamp, double value) {
+        mTimestamps[mNext] = timestamp;
+        mValues[mNext] = value;
+        mNext = mNext + 1 < mValues.length ? mNext + 1 : 0;
+        if (mSize < mValues.length) {
+            ++mSize;
+        }
+    }
+
+    private int slot(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+        final int slot = mNext - mSize + index;
+        return slot >= 0 ? slot : slot + mValues.length;
+    }
+
+    private int newest() {
+        return previous(mNext);
+    }
+
+    private int previous(int slot) {
+        return slot > 0 ? slot - 1 : mValues.length - 1;
+    }
+}
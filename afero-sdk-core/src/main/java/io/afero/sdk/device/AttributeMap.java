@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A map from attribute id to value that stores the ids as primitive ints in an open-addressed
+ * table, so neither lookups nor insertions box the id.
+ *
+ * <p>
+ * Attribute ids are clustered, 1..N for the device plus the schedule and Wi-Fi ranges, so they are
+ * scrambled before probing. Entries are never removed.
+ * </p>
+ *
+ * <p>
+ * Writers must be serialized, e.g. by {@link DeviceModel}'s lock, but readers may run alongside a
+ * writer. Each slot's key is written before its value, and values are written and read with
+ * volatile semantics, so a reader that sees a value also sees its key. The table is replaced as a
+ * whole when it grows, through a volatile field, after it has been filled.
+ * </p>
+ */
+final class AttributeMap<V> {
+
+    interface Visitor<V> {
+        void visit(int key, V value);
+    }
+
+    private static final int MIN_CAPACITY = 8;
+
+    private static final class Table {
+        final int[] keys;
+        final AtomicReferenceArray<Object> values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    private volatile Table mTable;
+    private volatile int mSize;
+
+    AttributeMap() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     * @param expectedSize number of entries the map should hold without growing
+     */
+    AttributeMap(int expectedSize) {
+        mTable = new Table(capacityFor(expectedSize));
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        final Table table = mTable;
+        final int[] keys = table.keys;
+        final AtomicReferenceArray<Object> values = table.values;
+
+        for (int i = hash(key) & table.mask; ; i = (i + 1) & table.mask) {
+            final Object value = values.get(i);
+            if (value == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                return (V) value;
+            }
+        }
+    }
+
+    /**
+     * @return the value previously held for {@code key}, or null
+     */
+    @SuppressWarnings("unchecked")
+    V put(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+
+        Table table = mTable;
+        for (int i = hash(key) & table.mask; ; i = (i + 1) & table.mask) {
+            final Object existing = table.values.get(i);
+            if (existing == null) {
+                break;
+            }
+            if (table.keys[i] == key) {
+                table.values.set(i, value);
+                return (V) existing;
+            }
+        }
+
+        if ((mSize + 1) * 4 > table.keys.length * 3) {
+            table = grow(table);
+        }
+
+        insert(table, key, value);
+        ++mSize;
+        return null;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Calls the visitor with each entry, in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(Visitor<? super V> visitor) {
+        final Table table = mTable;
+        for (int i = 0; i < table.keys.length; ++i) {
+            final Object value = table.values.get(i);
+            if (value != null) {
+                visitor.visit(table.keys[i], (V) value);
+            }
+        }
+    }
+
+    private Table grow(Table table) {
+        final Table newTable = new Table(table.keys.length * 2);
+        for (int i = 0; i < table.keys.length; ++i) {
+            final Object value = table.values.get(i);
+            if (value != null) {
+                insert(newTable, table.keys[i], value);
+            }
+        }
+        mTable = newTable;
+        return newTable;
+    }
+
+    private static void insert(Table table, int key, Object value) {
+        int i = hash(key) & table.mask;
+        while (table.values.get(i) != null) {
+            i = (i + 1) & table.mask;
+        }
+        // the volatile write of the value publishes the key written before it
+        table.keys[i] = key;
+        table.values.set(i, value);
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (expectedSize * 4 > capacity * 3) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    private static int hash(int key) {
+        // spread clustered ids across the table
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import java.lang.ref.WeakReference;
+import java.util.TreeMap;
+
+import io.afero.sdk.client.afero.models.AttributeValue;
+import io.afero.sdk.log.AfLog;
+import rx.Emitter;
+import rx.Observable;
+import rx.Observer;
+import rx.functions.Action1;
+
+/**
+ * Writes attributes of one device with at most one batch in flight, keeping only the latest
+ * value for each attribute while it waits. Meant for interactive controls such as a dimmer
+ * slider that write many values in quick succession, where only the last one matters.
+ *
+ * <p>
+ * A value written while a batch is in flight waits until the batch finishes, then goes out with
+ * whatever else is waiting in one {@link AttributeWriter}. A waiting value replaced by a newer
+ * one for the same attribute is never sent, and its {@link Observable} emits a
+ * {@link AttributeWriter.Result.Status#SUPERSEDED} result.
+ * </p>
+ *
+ * @see DeviceModel#getAttributeWriteChannel()
+ */
+public final class AttributeWriteChannel {
+
+    private final WeakReference<DeviceModel> mDeviceModelRef;
+    private final long mTimeoutSeconds;
+
+    private final Object mLock = new Object();
+    private TreeMap<Integer, PendingWrite> mWaiting = new TreeMap<>();
+    private TreeMap<Integer, PendingWrite> mInFlight;
+    private long mWriteCount;
+    private long mSupersededCount;
+    private long mBatchCount;
+
+    /**
+     * Counts of the writes made through an {@link AttributeWriteChannel}.
+     *
+     * @see #getStats()
+     */
+    public static final class Stats {
+
+        /**
+         * Number of values written to the channel.
+         */
+        public final long writeCount;
+
+        /**
+         * Number of values replaced by a newer value before they were sent.
+         */
+        public final long supersededCount;
+
+        /**
+         * Number of batches sent to the Afero Cloud.
+         */
+        public final long batchCount;
+
+        Stats(long writeCount, long supersededCount, long batchCount) {
+            this.writeCount = writeCount;
+            this.supersededCount = supersededCount;
+            this.batchCount = batchCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats { " +
+                    "writeCount=" + writeCount +
+                    ", supersededCount=" + supersededCount +
+                    ", batchCount=" + batchCount +
+                    " }";
+        }
+    }
+
+    AttributeWriteChannel(DeviceModel deviceModel, long timeoutSeconds) {
+        mDeviceModelRef = new WeakReference<>(deviceModel);
+        mTimeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * Writes a value to an attribute when this Observable is subscribed, superseding any value for
+     * the same attribute that has not been sent yet. Unsubscribing does not cancel the write.
+     *
+     * @param attrId Id of the attribute
+     * @param value  {@link AttributeValue} to write to the specified attribute
+     * @return {@link Observable} that emits one {@link AttributeWriter.Result} for this value, then
+     * completes when the batch it was sent in does, or emits the batch's error
+     */
+    public Observable<AttributeWriter.Result> write(final int attrId, AttributeValue value) {
+        // the caller may go on to change a mutable value before it's sent
+        final AttributeValue sharedValue = AttributeValue.valueOf(value.toString(), value.getDataType());
+
+        return Observable.create(
+            new Action1<Emitter<AttributeWriter.Result>>() {
+                @Override
+                public void call(Emitter<AttributeWriter.Result> emitter) {
+                    enqueue(new PendingWrite(attrId, sharedValue, emitter));
+                }
+            }, Emitter.BackpressureMode.BUFFER);
+    }
+
+    /**
+     * @return {@link Stats} of the writes made so far
+     */
+    public Stats getStats() {
+        synchronized (mLock) {
+            return new Stats(mWriteCount, mSupersededCount, mBatchCount);
+        }
+    }
+
+    private void enqueue(PendingWrite write) {
+        final PendingWrite superseded;
+        final boolean send;
+
+        synchronized (mLock) {
+            ++mWriteCount;
+            superseded = mWaiting.put(write.attrId, write);
+            if (superseded != null) {
+                ++mSupersededCount;
+            }
+            send = mInFlight == null;
+        }
+
+        if (superseded != null) {
+            superseded.emitter.onNext(new AttributeWriter.Result(superseded.attrId, AttributeWriter.Result.Status.SUPERSEDED));
+            superseded.emitter.onCompleted();
+        }
+
+        if (send) {
+            sendWaiting();
+        }
+    }
+
+    private void sendWaiting() {
+        final TreeMap<Integer, PendingWrite> batch;
+
+        synchronized (mLock) {
+            if (mInFlight != null || mWaiting.isEmpty()) {
+                return;
+            }
+            batch = mWaiting;
+            mWaiting = new TreeMap<>();
+            mInFlight = batch;
+            ++mBatchCount;
+        }
+
+        final DeviceModel deviceModel = mDeviceModelRef.get();
+        if (deviceModel == null) {
+            onBatchTerminated(batch, new IllegalStateException("DeviceModel is gone"));
+            return;
+        }
+
+        final AttributeWriter writer = new AttributeWriter(deviceModel, mTimeoutSeconds);
+        for (PendingWrite write : batch.values()) {
+            writer.put(write.attrId, write.value);
+        }
+
+        writer.commit().subscribe(new Observer<AttributeWriter.Result>() {
+            @Override
+            public void onNext(AttributeWriter.Result result) {
+                final PendingWrite write = batch.get(result.attributeId);
+                if (write != null) {
+                    write.hasResult = true;
+                    write.emitter.onNext(result);
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+                onBatchTerminated(batch, null);
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                AfLog.d("AttributeWriteChannel: " + deviceModel.getId() + ": " + e);
+                onBatchTerminated(batch, e);
+            }
+        });
+    }
+
+    // like AttributeWriter, a batch that fails reports the error to each of its writes
+    private void onBatchTerminated(TreeMap<Integer, PendingWrite> batch, Throwable e) {
+        synchronized (mLock) {
+            mInFlight = null;
+        }
+
+        for (PendingWrite write : batch.values()) {
+            if (!write.hasResult) {
+                write.emitter.onNext(new AttributeWriter.Result(write.attrId));
+            }
+            if (e != null) {
+                write.emitter.onError(e);
+            } else {
+                write.emitter.onCompleted();
+            }
+        }
+
+        sendWaiting();
+    }
+
+    private static class PendingWrite {
+        final int attrId;
+        final AttributeValue value;
+        final Emitter<AttributeWriter.Result> emitter;
+        boolean hasResult;
+
+        PendingWrite(int attrId, AttributeValue value, Emitter<AttributeWriter.Result> emitter) {
+            this.attrId = attrId;
+            this.value = value;
+            this.emitter = emitter;
+        }
+    }
+}
@@ -5,25 +5,22 @@
 package io.afero.sdk.device;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
-import io.afero.sdk.client.afero.models.AferoError;
 import io.afero.sdk.client.afero.models.AttributeValue;
 import io.afero.sdk.client.afero.models.WriteRequest;
 import io.afero.sdk.client.afero.models.WriteResponse;
-import io.afero.sdk.conclave.models.DeviceError;
-import io.afero.sdk.conclave.models.DeviceSync;
 import io.afero.sdk.utils.Clock;
-import io.afero.sdk.utils.RxUtils;
 import rx.Emitter;
 import rx.Observable;
-import rx.Subscription;
 import rx.functions.Action0;
 import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
 import rx.functions.Func2;
 
@@ -35,20 +32,34 @@ import rx.functions.Func2;
 public final class AttributeWriter {
 
     private static final int WRITE_ATTRIBUTE_RETRY_COUNT = 4;
-    private static final long DEFAULT_TIMEOUT = 30;
+    static final long DEFAULT_TIMEOUT = 30;
     private static final int HTTP_LOCKED = 423; // https://tools.ietf.org/html/rfc4918#section-11.3
-    private static final int REQUEST_BATCH_SIZE = 5;
+    static final int REQUEST_BATCH_SIZE = 5;
+    static final int PIPELINE_DEPTH = 1;
+
+    // most requests the hub and device are asked to queue at once, across all batches in flight
+    static final int MAX_REQUESTS_IN_FLIGHT = 15;
 
     private final WeakReference<DeviceModel> mDeviceModelRef;
     private final TreeMap<Integer, WriteRequest> mWriteRequests = new TreeMap<>();
     private final TreeMap<Integer, WriteRequestResponsePair> mPendingResponses = new TreeMap<>();
     private final HashMap<Integer, Result> mResultsNotAttempted = new HashMap<>();
     private final long mTimeoutSeconds;
+    private int mBatchSize;
+    private int mPipelineDepth;
+
+    private final Object mLock = new Object();
+    private int mBatchesOutstanding;
+    private boolean mBatchFailed;
 
     private final Observable<Result> mDeviceResultObservable = deviceResultObservable();
     private Emitter<Result> mResultEmitter;
-    private Subscription mDeviceSyncSubscription;
-    private Subscription mDeviceErrorSubscription;
+    private final WriteAckCorrelator.Listener mAckListener = new WriteAckCorrelator.Listener() {
+        @Override
+        public void onAck(int requestId, Result.Status status) {
+            emitResult(requestId, status);
+        }
+    };
 
     /**
      * Class that represents the final status of a write to a particular device attribute.
@@ -74,7 +85,13 @@ public final class AttributeWriter {
             /**
              * The attribute write was not attempted due to an earlier failure.
              */
-            NOT_ATTEMPTED
+            NOT_ATTEMPTED,
+
+            /**
+             * The attribute write was not attempted because a newer value for the same attribute
+             * replaced it in an {@link AttributeWriteChannel}.
+             */
+            SUPERSEDED
         }
 
         public final int attributeId;
@@ -100,9 +117,13 @@ public final class AttributeWriter {
             requestId = r.requestId;
         }
 
-        private Result(int attrId) {
+        Result(int attrId) {
+            this(attrId, Status.NOT_ATTEMPTED);
+        }
+
+        Result(int attrId, Status s) {
             attributeId = attrId;
-            status = Status.NOT_ATTEMPTED;
+            status = s;
             roundTripTimeMs = 0;
             statusCode = 0;
             requestId = 0;
@@ -147,6 +168,8 @@ public final class AttributeWriter {
     AttributeWriter(DeviceModel deviceModel, long timeoutSeconds) {
         mDeviceModelRef = new WeakReference<>(deviceModel);
         mTimeoutSeconds = timeoutSeconds;
+        mBatchSize = deviceModel.getWriteBatchSize();
+        mPipelineDepth = deviceModel.getWritePipelineDepth();
     }
 
     /**
@@ -169,6 +192,46 @@ public final class AttributeWriter {
         return this;
     }
 
+    /**
+     * Sets how many attributes are sent in each request. Defaults to the device's
+     * {@link DeviceModel#setWritePipeline setting}, or {@value #REQUEST_BATCH_SIZE}.
+     *
+     * @param batchSize number of attributes per request, at most {@value #MAX_REQUESTS_IN_FLIGHT}
+     * @return this AttributeWriter instance
+     */
+    public AttributeWriter batchSize(int batchSize) {
+        mBatchSize = checkBatchSize(batchSize);
+        return this;
+    }
+
+    /**
+     * Sets how many requests may be issued before the earlier ones have returned. Defaults to the
+     * device's {@link DeviceModel#setWritePipeline setting}, or {@value #PIPELINE_DEPTH}, which
+     * issues each request after the previous one returns. The depth is lowered if needed so that
+     * no more than {@value #MAX_REQUESTS_IN_FLIGHT} attributes are in flight at once.
+     *
+     * @param pipelineDepth number of requests in flight at once
+     * @return this AttributeWriter instance
+     */
+    public AttributeWriter pipelineDepth(int pipelineDepth) {
+        mPipelineDepth = checkPipelineDepth(pipelineDepth);
+        return this;
+    }
+
+    static int checkBatchSize(int batchSize) {
+        if (batchSize <= 0 || batchSize > MAX_REQUESTS_IN_FLIGHT) {
+            throw new IllegalArgumentException("batchSize must be between 1 and " + MAX_REQUESTS_IN_FLIGHT);
+        }
+        return batchSize;
+    }
+
+    static int checkPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth <= 0) {
+            throw new IllegalArgumentException("pipelineDepth must be positive");
+        }
+        return pipelineDepth;
+    }
+
     /**
      * @return {@code true} if this AttributeWriter contains no attributes; false otherwise.
      */
@@ -199,12 +262,14 @@ public final class AttributeWriter {
             .doOnNext(new Action1<WriteRequest>() {
                 @Override
                 public void call(WriteRequest writeRequest) {
-                    mResultsNotAttempted.put(writeRequest.attrId, new Result(writeRequest.attrId));
+                    synchronized (mLock) {
+                        mResultsNotAttempted.put(writeRequest.attrId, new Result(writeRequest.attrId));
+                    }
                 }
             })
 
             // Issue requests in chunks so we don't overwhelm the device with attribute spray
-            .buffer(REQUEST_BATCH_SIZE)
+            .buffer(mBatchSize)
 
             // Map each chunk of requests to an Observable that will execute that chunk
             .map(new Func1<List<WriteRequest>, Observable<Result>>() {
@@ -214,19 +279,13 @@ public final class AttributeWriter {
                 }
             })
 
-            // Concat each batch together so they execute serially
-            .reduce(new Func2<Observable<Result>, Observable<Result>, Observable<Result>>() {
-                @Override
-                public Observable<Result> call(Observable<Result> resultObservable, Observable<Result> resultObservable2) {
-                    return resultObservable.concatWith(resultObservable2);
-                }
-            })
-
-            // Execute the Observable chain
-            .flatMap(new Func1<Observable<Result>, Observable<Result>>() {
+            // Execute up to the pipeline depth of batches at once. Errors are delayed so that
+            // batches already in flight when another fails still have their responses processed.
+            .compose(new Observable.Transformer<Observable<Result>, Result>() {
                 @Override
-                public Observable<Result> call(Observable<Result> resultObservable) {
-                    return Observable.mergeDelayError(mDeviceResultObservable, resultObservable);
+                public Observable<Result> call(Observable<Observable<Result>> batches) {
+                    return Observable.mergeDelayError(mDeviceResultObservable,
+                            Observable.mergeDelayError(batches, getEffectivePipelineDepth()));
                 }
             })
 
@@ -235,11 +294,48 @@ public final class AttributeWriter {
             .onErrorResumeNext(emitNotYetAttemptedResultsAlongWithError())
             .doOnSubscribe(onSubscribeAction())
             .doOnTerminate(onTerminateAction())
+            .doOnUnsubscribe(onTerminateAction())
             .doOnError(notifyDeviceOfError())
             ;
     }
 
+    int getEffectivePipelineDepth() {
+        return Math.max(1, Math.min(mPipelineDepth, MAX_REQUESTS_IN_FLIGHT / mBatchSize));
+    }
+
     private Observable<Result> deviceBatchWrite(final List<WriteRequest> writeRequests) {
+        return Observable.defer(new Func0<Observable<Result>>() {
+                @Override
+                public Observable<Result> call() {
+                    // once a batch fails the rest are left NOT_ATTEMPTED
+                    synchronized (mLock) {
+                        if (mBatchFailed) {
+                            return Observable.empty();
+                        }
+                    }
+                    return deviceBatchWriteNow(writeRequests);
+                }
+            })
+            .doOnError(new Action1<Throwable>() {
+                @Override
+                public void call(Throwable t) {
+                    synchronized (mLock) {
+                        mBatchFailed = true;
+                    }
+                }
+            })
+            .doOnTerminate(new Action0() {
+                @Override
+                public void call() {
+                    synchronized (mLock) {
+                        --mBatchesOutstanding;
+                        completeIfDone();
+                    }
+                }
+            });
+    }
+
+    private Observable<Result> deviceBatchWriteNow(final List<WriteRequest> writeRequests) {
 
         DeviceModel deviceModel = getDevice();
         if (deviceModel == null) {
@@ -301,20 +397,23 @@ public final class AttributeWriter {
         return new Action1<WriteRequestResponsePair>() {
             @Override
             public void call(WriteRequestResponsePair wrrp) {
-                mResultsNotAttempted.remove(wrrp.writeRequest.attrId);
-
-                final long now = Clock.getElapsedMillis();
-
-                if (wrrp.writeResponse.isSuccess()) {
-                    mPendingResponses.put(wrrp.writeResponse.requestId, wrrp);
-                } else {
-                    mResultEmitter.onNext(new Result(wrrp, Result.Status.FAILURE, now));
-
-                    if (mPendingResponses.isEmpty()) {
-                        mResultEmitter.onCompleted();
+                synchronized (mLock) {
+                    mResultsNotAttempted.remove(wrrp.writeRequest.attrId);
+
+                    final long now = Clock.getElapsedMillis();
+
+                    if (wrrp.writeResponse.isSuccess()) {
+                        mPendingResponses.put(wrrp.writeResponse.requestId, wrrp);
+
+                        DeviceModel deviceModel = getDevice();
+                        if (deviceModel != null) {
+                            deviceModel.getWriteAckCorrelator().register(wrrp.writeResponse.requestId, mAckListener);
+                        }
+                    } else {
+                        // the result stream completes once this batch terminates, in deviceBatchWrite
+                        mResultEmitter.onNext(new Result(wrrp, Result.Status.FAILURE, now));
+                        throw new AttributeWriteRequestFailure(wrrp.writeRequest.attrId);
                     }
-
-                    throw new AttributeWriteRequestFailure(wrrp.writeRequest.attrId);
                 }
             }
         };
@@ -361,19 +460,24 @@ public final class AttributeWriter {
         return new Func1<Throwable, Observable<Result>>() {
             @Override
             public Observable<Result> call(Throwable throwable) {
-                if (!mResultsNotAttempted.isEmpty()) {
-                    Result[] results = new Result[mResultsNotAttempted.size()];
-                    mResultsNotAttempted.values().toArray(results);
+                final ArrayList<Result> notAttempted;
+                final ArrayList<WriteRequestResponsePair> pending;
+                synchronized (mLock) {
+                    notAttempted = new ArrayList<>(mResultsNotAttempted.values());
                     mResultsNotAttempted.clear();
-                    return Observable.from(results)
+                    pending = new ArrayList<>(mPendingResponses.values());
+                }
+
+                if (!notAttempted.isEmpty()) {
+                    return Observable.from(notAttempted)
                             .concatWith(Observable.<Result>error(throwable));
                 }
 
                 final long now = Clock.getElapsedMillis();
 
                 if (throwable instanceof TimeoutException) {
-                    if (!mPendingResponses.isEmpty()) {
-                        return Observable.from(mPendingResponses.values())
+                    if (!pending.isEmpty()) {
+                        return Observable.from(pending)
                             .map(new Func1<WriteRequestResponsePair, Result>() {
                                 @Override
                                 public Result call(WriteRequestResponsePair wrrp) {
@@ -408,67 +512,57 @@ public final class AttributeWriter {
                     return;
                 }
 
-                deviceModel.onWriteStart(mWriteRequests.values());
-
-                mDeviceSyncSubscription = deviceModel.getDeviceSyncPostUpdateObservable()
-                        .subscribe(new Action1<DeviceSync>() {
-                            @Override
-                            public void call(DeviceSync deviceSync) {
-                                if (deviceSync.hasRequestId()) {
-                                    emitResult(deviceSync.requestId, Result.Status.SUCCESS);
-                                }
-                            }
-                        });
+                synchronized (mLock) {
+                    mBatchesOutstanding = (mWriteRequests.size() + mBatchSize - 1) / mBatchSize;
+                    mBatchFailed = false;
+                }
 
-                mDeviceErrorSubscription = deviceModel.getErrorObservable()
-                        .subscribe(new Action1<AferoError>() {
-                            @Override
-                            public void call(AferoError error) {
-                                WriteRequestResponsePair wrrp = getResponseFromError(error);
-                                if (wrrp != null) {
-                                    emitResult(wrrp.writeResponse.requestId, Result.Status.FAILURE);
-                                }
-                            }
-                        });
+                deviceModel.onWriteStart(mWriteRequests.values());
             }
         };
     }
 
+    // stop waiting for acks that will never be emitted
     private Action0 onTerminateAction() {
         return new Action0() {
             @Override
             public void call() {
-                mDeviceSyncSubscription = RxUtils.safeUnSubscribe(mDeviceSyncSubscription);
-                mDeviceErrorSubscription = RxUtils.safeUnSubscribe(mDeviceErrorSubscription);
+                DeviceModel deviceModel = getDevice();
+                if (deviceModel == null) {
+                    return;
+                }
+
+                synchronized (mLock) {
+                    for (Integer requestId : mPendingResponses.keySet()) {
+                        deviceModel.getWriteAckCorrelator().unregister(requestId, mAckListener);
+                    }
+                }
             }
         };
     }
 
     private void emitResult(int requestId, Result.Status status) {
-        if (mResultEmitter == null) {
-            return;
-        }
+        synchronized (mLock) {
+            if (mResultEmitter == null) {
+                return;
+            }
 
-        // if this deviceSync matches one of our requestIds, emit it
-        WriteRequestResponsePair wrrp = mPendingResponses.remove(requestId);
-        if (wrrp != null) {
-            final long now = Clock.getElapsedMillis();
-            mResultEmitter.onNext(new Result(wrrp, status, now));
-        }
+            // the correlator only routes our own requestIds here
+            WriteRequestResponsePair wrrp = mPendingResponses.remove(requestId);
+            if (wrrp != null) {
+                final long now = Clock.getElapsedMillis();
+                mResultEmitter.onNext(new Result(wrrp, status, now));
+            }
 
-        // no more responses left means we're done
-        if (mPendingResponses.isEmpty()) {
-            mResultEmitter.onCompleted();
+            completeIfDone();
         }
     }
 
-    private WriteRequestResponsePair getResponseFromError(AferoError error) {
-        if (error instanceof DeviceError) {
-            int reqId = ((DeviceError) error).requestId;
-            return mPendingResponses.get(reqId);
+    // no more responses left and no more batches to issue means we're done
+    private void completeIfDone() {
+        if (mResultEmitter != null && mPendingResponses.isEmpty() && mBatchesOutstanding <= 0) {
+            mResultEmitter.onCompleted();
         }
-
-        return null;
     }
 
     private DeviceModel getDevice() {
@@ -4,17 +4,15 @@
 
 package io.afero.sdk.device;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
-import java.util.Locale;
-import java.util.Map;
-
 import io.afero.sdk.client.afero.models.ConclaveAccessDetails;
 import io.afero.sdk.conclave.ConclaveAccessManager;
 import io.afero.sdk.conclave.ConclaveClient;
+import io.afero.sdk.conclave.ConclaveEventLoop;
 import io.afero.sdk.conclave.ConclaveMessage;
+import io.afero.sdk.conclave.ConclaveMessageDecoder;
 import io.afero.sdk.conclave.DeviceEventSource;
+import io.afero.sdk.conclave.SyncState;
+import io.afero.sdk.conclave.SyncStateSource;
 import io.afero.sdk.conclave.models.DeviceError;
 import io.afero.sdk.conclave.models.DeviceMute;
 import io.afero.sdk.conclave.models.DeviceState;
@@ -22,7 +20,6 @@ import io.afero.sdk.conclave.models.DeviceSync;
 import io.afero.sdk.conclave.models.InvalidateMessage;
 import io.afero.sdk.conclave.models.OTAInfo;
 import io.afero.sdk.log.AfLog;
-import io.afero.sdk.utils.JSONUtils;
 import io.afero.sdk.utils.RxUtils;
 import rx.Observable;
 import rx.Observer;
@@ -30,9 +27,9 @@ import rx.Subscription;
 import rx.functions.Func1;
 import rx.subjects.PublishSubject;
 
-public class ConclaveDeviceEventSource implements DeviceEventSource {
+public class ConclaveDeviceEventSource implements DeviceEventSource, SyncStateSource {
 
-    private ConclaveClient mConclaveClient = new ConclaveClient();
+    private final ConclaveClient mConclaveClient;
     private ConclaveAccessManager mConclaveAccessManager;
 
     private PublishSubject<DeviceSync[]> mSnapshotSubject = PublishSubject.create();
@@ -42,9 +39,7 @@ public class ConclaveDeviceEventSource implements DeviceEventSource {
     private PublishSubject<DeviceMute> mDeviceMuteSubject = PublishSubject.create();
     private PublishSubject<OTAInfo> mOTASubject = PublishSubject.create();
     private PublishSubject<InvalidateMessage> mInvalidateSubject = PublishSubject.create();
-
-    private static final String KEY_EVENT = "event";
-    private static final String KEY_DATA = "data";
+    private PublishSubject<SyncState> mSyncStateSubject = PublishSubject.create();
 
     private String mAccountId;
     private String mUserId;
@@ -57,10 +52,13 @@ public class ConclaveDeviceEventSource implements DeviceEventSource {
 
     private long mGeneration;
     private int mSequenceNum;
+    private boolean mHasSequence;
+    private boolean mIsResumed;
+    private boolean mIsSnapshotRequested;
 
     private Subscription mConclaveSubscription;
 
-    private Observer<JsonNode> mConclaveObserver = new Observer<JsonNode>() {
+    private Observer<ConclaveMessageDecoder.Message> mConclaveObserver = new Observer<ConclaveMessageDecoder.Message>() {
         @Override
         public void onCompleted() {
 
@@ -74,9 +72,9 @@ public class ConclaveDeviceEventSource implements DeviceEventSource {
         }
 
         @Override
-        public void onNext(JsonNode node) {
+        public void onNext(ConclaveMessageDecoder.Message message) {
             try {
-                onNextConclave(node);
+                onNextConclave(message);
             } catch (Exception e) {
                 // eat all exceptions - the spice must flow
                 AfLog.e(e);
@@ -85,6 +83,21 @@ public class ConclaveDeviceEventSource implements DeviceEventSource {
     };
 
     public ConclaveDeviceEventSource(ConclaveAccessManager cam) {
+        this(cam, (ConclaveEventLoop) null);
+    }
+
+    /**
+     * @param cam {@link ConclaveAccessManager} that supplies the Conclave access token
+     * @param eventLoop shared {@link ConclaveEventLoop} used to drive the connection, or null to
+     *                  use a dedicated reader thread
+     */
+    public ConclaveDeviceEventSource(ConclaveAccessManager cam, ConclaveEventLoop eventLoop) {
+        this(cam, new ConclaveClient(eventLoop));
+    }
+
+    // used for unit testing
+    ConclaveDeviceEventSource(ConclaveAccessManager cam, ConclaveClient client) {
+        mConclaveClient = client;
         mConclaveAccessManager = cam;
 
         cam.getObservable().subscribe(mConclaveAccessObserver);
@@ -99,8 +112,7 @@ public class ConclaveDeviceEventSource implements DeviceEventSource {
         mUserId = userId;
         mClientId = clientId;
         mType = type;
-        mGeneration = 0;
-        mSequenceNum = 0;
+        resetSequence();
 
         return reconnect();
     }
@@ -128,9 +140,15 @@ public class ConclaveDeviceEventSource implements DeviceEventSource {
             .subscribe(new RxUtils.IgnoreResponseObserver<ConclaveMessage.Say>());
     }
 
+    /**
+     * Forgets the generation and sequence number so the next connection processes a full snapshot.
+     */
     public void resetSequence() {
         mGeneration = 0;
         mSequenceNum = 0;
+        mHasSequence = false;
+        mIsResumed = false;
+        mIsSnapshotRequested = false;
     }
 
     public void stop() {
@@ -153,7 +171,7 @@ public class ConclaveDeviceEventSource implements DeviceEventSource {
             mConclaveSubscription.unsubscribe();
         }
 
-        mConclaveSubscription = mConclaveClient.messageObservable()
+        mConclaveSubscription = mConclaveClient.decodedMessageObservable()
             .subscribe(mConclaveObserver);
 
         rx.Observable<ConclaveDeviceEventSource> connectObservable;
@@ -224,103 +242,174 @@ public class ConclaveDeviceEventSource implements DeviceEventSource {
         return mInvalidateSubject;
     }
 
-    private void onNextConclave(JsonNode node) {
-        Map.Entry<String,JsonNode> entry = node.fields().next();
-        String key = entry.getKey().toLowerCase(Locale.ROOT);
+    /**
+     * @return Observable that emits a {@link SyncState} whenever a reconnect resumes the stream,
+     * a gap or generation change is detected, or a snapshot brings the devices back in sync.
+     */
+    @Override
+    public Observable<SyncState> observeSyncState() {
+        return mSyncStateSubject;
+    }
+
+    private void onNextConclave(ConclaveMessageDecoder.Message message) {
+        final String key = message.key;
 
-        if (key.equals("public") || key.equals("private")) {
-            onMessage(entry.getValue());
+        if (key.equals(ConclaveMessageDecoder.KEY_PUBLIC) || key.equals(ConclaveMessageDecoder.KEY_PRIVATE)) {
+            onMessage(message);
         }
-        else if (key.equals("hello")) {
+        else if (key.equals(ConclaveMessageDecoder.KEY_HELLO)) {
             mConclaveClient.login(mAccountId, mUserId, mClientId, mToken, mType, mSessionTrace);
         }
-        else if (key.equals("welcome")) {
+        else if (key.equals(ConclaveMessageDecoder.KEY_WELCOME)) {
             long generation = mGeneration;
-            JsonNode genNode = entry.getValue().get("generation");
-            if (genNode != null) {
-                generation = genNode.asLong();
-            }
-
             int seq = mSequenceNum;
-            JsonNode seqNode = entry.getValue().get("seq");
-            if (seqNode != null) {
-                seq = seqNode.asInt();
+
+            ConclaveMessage.WelcomeFields welcome = (ConclaveMessage.WelcomeFields)message.data;
+            if (welcome != null) {
+                generation = welcome.generation;
+                seq = welcome.seq;
             }
 
-            if (mGeneration != generation || mSequenceNum != seq) {
+            if (!mHasSequence || mGeneration != generation || mSequenceNum != seq) {
                 AfLog.i("ConclaveDeviceEventSource: generation/sequence # mismatch " + mGeneration + " != " + generation + " || " + mSequenceNum + " != " + seq);
+
+                // the snapshot the server sends after login brings us back in sync
+                final boolean isSameGeneration = mHasSequence && mGeneration == generation;
+                final SyncState.Status status = isSameGeneration ? SyncState.Status.GAP : SyncState.Status.GENERATION_CHANGED;
+                final int missedCount = isSameGeneration ? Math.max(0, seq - mSequenceNum) : 0;
+
                 mGeneration = generation;
                 mSequenceNum = seq;
-//                mConclaveClient.say("snapshot?", null);
+                mHasSequence = true;
+                mIsResumed = false;
+                mSyncStateSubject.onNext(new SyncState(status, mGeneration, mSequenceNum, missedCount));
             } else {
                 AfLog.i("ConclaveDeviceEventSource: generation/sequence # match " + mGeneration + "/" + mSequenceNum);
+                mIsResumed = true;
+                mSyncStateSubject.onNext(new SyncState(SyncState.Status.RESUMED, mGeneration, mSequenceNum, 0));
             }
         }
-        else if (key.equals("error")) {
-            JsonNode errNode = entry.getValue().get("code");
-            if (errNode != null) {
-                int err = errNode.asInt();
-                if (err == ConclaveClient.ERROR_CODE_INVALID_TOKEN) {
-                    mConclaveAccessManager.updateAccess();
-                }
+        else if (key.equals(ConclaveMessageDecoder.KEY_ERROR)) {
+            ConclaveMessageDecoder.ErrorFields error = (ConclaveMessageDecoder.ErrorFields)message.data;
+            if (error != null && error.code == ConclaveClient.ERROR_CODE_INVALID_TOKEN) {
+                mConclaveAccessManager.updateAccess();
             }
         }
     }
 
-    private void onMessage(JsonNode node) {
+    private void onMessage(ConclaveMessageDecoder.Message message) {
         try {
-            String event = node.get(KEY_EVENT).asText().toLowerCase(Locale.ROOT);
-            JsonNode data = node.get(KEY_DATA);
-            final ObjectMapper mapper = JSONUtils.getObjectMapper();
+            final String event = message.event;
+            final Object data = message.data;
+
+            final boolean isSnapshot = ConclaveMessageDecoder.EVENT_PERIPHERAL_LIST.equals(event);
 
+            // a snapshot carries its own currentSeq which onSnapshot picks up
             int seq = 0;
-            JsonNode seqNode = node.get("seq");
-            if (seqNode != null) {
-                mSequenceNum = seqNode.asInt();
+            if (message.seq != null) {
+                seq = message.seq;
+                if (!isSnapshot) {
+                    trackSequence(seq);
+                }
+            }
+
+            if (event == null || data == null) {
+                return;
             }
 
-            if (event.equals("attr_change")) {
-                DeviceSync deviceSync = mapper.treeToValue(data, DeviceSync.class);
+            if (event.equals(ConclaveMessageDecoder.EVENT_ATTR_CHANGE)) {
+                DeviceSync deviceSync = (DeviceSync)data;
                 deviceSync.seq = seq;
                 mAttributeChangeSubject.onNext(deviceSync);
             }
-            else if (event.equals("peripherallist")) {
-                if (data.has("currentSeq")) {
-                    seq = data.get("currentSeq").asInt();
-                }
-
-                DeviceSync[] deviceSync = mapper.treeToValue(data.get("peripherals"), DeviceSync[].class);
-                for (DeviceSync ds : deviceSync) {
-                    ds.seq = seq;
-                }
-
-                mSnapshotSubject.onNext(deviceSync);
+            else if (isSnapshot) {
+                onSnapshot((ConclaveMessageDecoder.PeripheralList)data);
             }
-            else if (event.equals("invalidate")) {
-                InvalidateMessage invalidateMessage = mapper.treeToValue(data, InvalidateMessage.class);
-                mInvalidateSubject.onNext(invalidateMessage);
+            else if (event.equals(ConclaveMessageDecoder.EVENT_INVALIDATE)) {
+                mInvalidateSubject.onNext((InvalidateMessage)data);
             }
-            else if (event.equals("status_change")) {
-                DeviceState state = mapper.treeToValue(data, DeviceState.class);
-                mStatusChange.onNext(state);
+            else if (event.equals(ConclaveMessageDecoder.EVENT_STATUS_CHANGE)) {
+                mStatusChange.onNext((DeviceState)data);
             }
-            else if (event.equals("device:error")) {
-                DeviceError err = mapper.treeToValue(data, DeviceError.class);
-                mDeviceErrorSubject.onNext(err);
+            else if (event.equals(ConclaveMessageDecoder.EVENT_DEVICE_ERROR)) {
+                mDeviceErrorSubject.onNext((DeviceError)data);
             }
-            else if (event.equals("device:mute")) {
-                DeviceMute mute = mapper.treeToValue(data, DeviceMute.class);
-                mDeviceMuteSubject.onNext(mute);
+            else if (event.equals(ConclaveMessageDecoder.EVENT_DEVICE_MUTE)) {
+                mDeviceMuteSubject.onNext((DeviceMute)data);
             }
-            else if (event.equals("device:ota_progress")) {
-                OTAInfo otaInfo = mapper.treeToValue(data, OTAInfo.class);
-                mOTASubject.onNext(otaInfo);
+            else if (event.equals(ConclaveMessageDecoder.EVENT_OTA_PROGRESS)) {
+                mOTASubject.onNext((OTAInfo)data);
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    private void trackSequence(int seq) {
+        if (!mHasSequence) {
+            mSequenceNum = seq;
+            mHasSequence = true;
+            return;
+        }
+
+        if (seq <= mSequenceNum) {
+            // duplicate or out of date, nothing to track
+            return;
+        }
+
+        final int missedCount = seq - mSequenceNum - 1;
+        mSequenceNum = seq;
+
+        if (missedCount > 0) {
+            AfLog.i("ConclaveDeviceEventSource: missed " + missedCount + " message(s) before seq " + seq);
+            mIsResumed = false;
+            mSyncStateSubject.onNext(new SyncState(SyncState.Status.GAP, mGeneration, mSequenceNum, missedCount));
+            requestSnapshot();
+        }
+    }
+
+    private void requestSnapshot() {
+        if (mIsSnapshotRequested) {
+            return;
+        }
+
+        mIsSnapshotRequested = true;
+        mConclaveClient.say("snapshot?", null);
+    }
+
+    private void onSnapshot(ConclaveMessageDecoder.PeripheralList peripheralList) {
+        final Integer currentSeq = peripheralList.currentSeq;
+
+        if (mIsResumed && !mIsSnapshotRequested && (currentSeq == null || currentSeq == mSequenceNum)) {
+            // reconnected without missing anything; the devices haven't changed since we last saw them
+            AfLog.i("ConclaveDeviceEventSource: skipping snapshot, already in sync at " + mGeneration + "/" + mSequenceNum);
+            mIsResumed = false;
+            return;
+        }
+
+        mIsResumed = false;
+        mIsSnapshotRequested = false;
+
+        int seq = 0;
+        if (currentSeq != null) {
+            seq = currentSeq;
+            mSequenceNum = seq;
+            mHasSequence = true;
+        }
+
+        DeviceSync[] deviceSync = peripheralList.peripherals;
+        if (deviceSync == null) {
+            deviceSync = new DeviceSync[0];
+        }
+
+        for (DeviceSync ds : deviceSync) {
+            ds.seq = seq;
+        }
+
+        mSnapshotSubject.onNext(deviceSync);
+        mSyncStateSubject.onNext(new SyncState(SyncState.Status.SYNCED, mGeneration, mSequenceNum, 0));
+    }
+
     private void setConclaveAccessDetails(ConclaveAccessDetails cad) {
         mConclaveAccessDetails = cad;
         mToken = null;
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import java.util.Arrays;
+
+/**
+ * Describes what changed in a {@link DeviceModel} as the result of a single update, so that
+ * subscribers can refresh only the state that depends on it rather than the whole device.
+ *
+ * <pre><code>
+ *     deviceModel.getChangeObservable()
+ *         .subscribe(new Action1&lt;DeviceChange&gt;() {
+ *             public void call(DeviceChange change) {
+ *                 if (change.isAttributeChanged(POWER_ATTRIBUTE_ID)) {
+ *                     updatePowerSwitch(change.getDeviceModel());
+ *                 }
+ *             }
+ *         });
+ * </code></pre>
+ *
+ * @see DeviceModel#getChangeObservable()
+ * @see DeviceCollection#observeChanges()
+ */
+public final class DeviceChange {
+
+    /**
+     * Current values of the attributes returned by {@link #getChangedAttributeIds()} were updated
+     * by the device.
+     */
+    public static final int ATTRIBUTES = 1;
+
+    /**
+     * Pending values of the attributes returned by {@link #getChangedAttributeIds()} were set by a
+     * write, or their writes timed out.
+     */
+    public static final int PENDING = 1 << 1;
+
+    /**
+     * Availability, RSSI, link or direct connection state changed.
+     */
+    public static final int STATUS = 1 << 2;
+
+    /**
+     * The device was renamed.
+     */
+    public static final int NAME = 1 << 3;
+
+    /**
+     * The device's {@link DeviceProfile} was replaced.
+     */
+    public static final int PROFILE = 1 << 4;
+
+    /**
+     * Tags were added, updated or removed.
+     */
+    public static final int TAGS = 1 << 5;
+
+    /**
+     * Anything else, such as OTA progress, the time zone, location or last error.
+     */
+    public static final int OTHER = 1 << 6;
+
+    private static final int[] NO_ATTRIBUTES = new int[0];
+
+    private final DeviceModel mDeviceModel;
+    private final int[] mAttributeIds;
+    private final int mFlags;
+
+    private DeviceChange(DeviceModel deviceModel, int[] attributeIds, int flags) {
+        mDeviceModel = deviceModel;
+        mAttributeIds = attributeIds;
+        mFlags = flags;
+    }
+
+    public DeviceModel getDeviceModel() {
+        return mDeviceModel;
+    }
+
+    /**
+     * @return combination of {@link #ATTRIBUTES}, {@link #PENDING}, {@link #STATUS}, {@link #NAME},
+     * {@link #PROFILE}, {@link #TAGS} and {@link #OTHER}
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * @return true if any of the specified flags are set
+     */
+    public boolean hasAny(int flags) {
+        return (mFlags & flags) != 0;
+    }
+
+    public boolean isStatusChanged() {
+        return hasAny(STATUS);
+    }
+
+    public boolean isNameChanged() {
+        return hasAny(NAME);
+    }
+
+    public boolean isProfileChanged() {
+        return hasAny(PROFILE);
+    }
+
+    public boolean isTagsChanged() {
+        return hasAny(TAGS);
+    }
+
+    /**
+     * @return ids of the attributes whose current or pending values changed, in ascending order
+     */
+    public int[] getChangedAttributeIds() {
+        return mAttributeIds.clone();
+    }
+
+    /**
+     * With {@link #getChangedAttributeId(int)}, walks the changed attribute ids without copying them.
+     */
+    public int getChangedAttributeCount() {
+        return mAttributeIds.length;
+    }
+
+    public int getChangedAttributeId(int index) {
+        return mAttributeIds[index];
+    }
+
+    public boolean isAttributeChanged(int attributeId) {
+        return Arrays.binarySearch(mAttributeIds, attributeId) >= 0;
+    }
+
+    public boolean isAttributeChanged(DeviceProfile.Attribute attribute) {
+        return isAttributeChanged(attribute.getId());
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceChange { " +
+                "deviceId=" + mDeviceModel.getId() +
+                ", flags=0x" + Integer.toHexString(mFlags) +
+                ", attributeIds=" + Arrays.toString(mAttributeIds) +
+                " }";
+    }
+
+    /**
+     * Accumulates a {@link DeviceChange} while an update is applied.
+     */
+    static final class Builder {
+        private final DeviceModel mDeviceModel;
+        private int[] mAttributeIds = NO_ATTRIBUTES;
+        private int mAttributeCount;
+        private int mFlags;
+
+        Builder(DeviceModel deviceModel) {
+            mDeviceModel = deviceModel;
+        }
+
+        Builder set(int flags) {
+            mFlags |= flags;
+            return this;
+        }
+
+        /**
+         * @param flag {@link #ATTRIBUTES} or {@link #PENDING}
+         */
+        Builder attribute(int attributeId, int flag) {
+            if (mAttributeCount == mAttributeIds.length) {
+                mAttributeIds = Arrays.copyOf(mAttributeIds, Math.max(4, mAttributeCount * 2));
+            }
+            mAttributeIds[mAttributeCount++] = attributeId;
+            mFlags |= flag;
+            return this;
+        }
+
+        boolean isEmpty() {
+            return mFlags == 0;
+        }
+
+        /**
+         * @return the change, or null if nothing changed
+         */
+        DeviceChange build() {
+            if (mFlags == 0) {
+                return null;
+            }
+
+            int[] ids = NO_ATTRIBUTES;
+            if (mAttributeCount > 0) {
+                ids = Arrays.copyOf(mAttributeIds, mAttributeCount);
+                Arrays.sort(ids);
+
+                // snapshots can repeat an id
+                int n = 1;
+                for (int i = 1; i < ids.length; ++i) {
+                    if (ids[i] != ids[n - 1]) {
+                        ids[n++] = ids[i];
+                    }
+                }
+                if (n < ids.length) {
+                    ids = Arrays.copyOf(ids, n);
+                }
+            }
+
+            return new DeviceChange(mDeviceModel, ids, mFlags);
+        }
+    }
+}
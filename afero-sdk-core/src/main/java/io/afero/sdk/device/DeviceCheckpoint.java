@@ -0,0 +1,491 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import io.afero.sdk.client.afero.models.DeviceStatus;
+import io.afero.sdk.client.afero.models.DeviceTag;
+import io.afero.sdk.conclave.models.DeviceSync;
+
+/**
+ * Compact binary checkpoint of a {@link DeviceCollection}'s device state, used to rehydrate the
+ * collection on startup before the device list has been fetched from the Afero Cloud.
+ *
+ * <p>
+ * The checkpoint is a deflated stream of a short header followed by one record per device: id,
+ * profile, name, status, attribute values with their update timestamps, tags and timezone.
+ * Integers are written as varints and timestamps as the difference from the previous one.
+ * Strings that repeat across devices (profile ids, tag keys and types, timezones) are written
+ * once and referred to by index after that.
+ * </p>
+ */
+final class DeviceCheckpoint {
+
+    private static final int MAGIC = 0x41464443; // "AFDC"
+    private static final int FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int FLAG_VIRTUAL = 1;
+    private static final int FLAG_AVAILABLE = 1 << 1;
+    private static final int FLAG_UNAVAILABLE = 1 << 2;
+    private static final int FLAG_LINKED = 1 << 3;
+    private static final int FLAG_DIRECT = 1 << 4;
+    private static final int FLAG_HAS_RSSI = 1 << 5;
+
+    private DeviceCheckpoint() {
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file next to {@code file} and renames it into place,
+     * so a crash mid-write leaves the previous checkpoint intact.
+     */
+    static void write(File file, DeviceSync[] devices) throws IOException {
+        final File tempFile = new File(file.getPath() + ".tmp");
+
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            write(out, devices);
+            out.getFD().sync();
+        } catch (IOException e) {
+            out.close();
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw e;
+        }
+        out.close();
+
+        if (!tempFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+                throw new IOException("Unable to rename checkpoint to " + file);
+            }
+        }
+    }
+
+    /**
+     * @return the devices in the checkpoint, or null if there is no checkpoint file
+     */
+    static DeviceSync[] read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the checkpoint to {@code os}, which is not closed.
+     */
+    static void write(OutputStream os, DeviceSync[] devices) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream deflaterStream = new DeflaterOutputStream(os, deflater, BUFFER_SIZE);
+            Encoder out = new Encoder(deflaterStream);
+
+            out.writeInt(MAGIC);
+            out.writeVarInt(FORMAT_VERSION);
+            out.writeVarInt(devices.length);
+
+            for (DeviceSync ds : devices) {
+                writeDevice(out, ds);
+            }
+
+            out.flush();
+            deflaterStream.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static DeviceSync[] read(InputStream is) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            Decoder in = new Decoder(new InflaterInputStream(is, inflater, BUFFER_SIZE));
+
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a device checkpoint");
+            }
+
+            final int version = in.readVarInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported device checkpoint version " + version);
+            }
+
+            final int count = in.readCount();
+            DeviceSync[] devices = new DeviceSync[count];
+
+            for (int i = 0; i < count; ++i) {
+                devices[i] = readDevice(in);
+            }
+
+            return devices;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeDevice(Encoder out, DeviceSync ds) throws IOException {
+        out.writeString(ds.deviceId);
+        out.writeSharedString(ds.profileId);
+        out.writeString(ds.friendlyName);
+
+        final DeviceStatus status = ds.status;
+        int flags = ds.virtual ? FLAG_VIRTUAL : 0;
+        if (status != null) {
+            if (status.available != null) {
+                flags |= status.available ? FLAG_AVAILABLE : FLAG_UNAVAILABLE;
+            }
+            if (status.linked != null && status.linked) {
+                flags |= FLAG_LINKED;
+            }
+            if (status.direct != null && status.direct) {
+                flags |= FLAG_DIRECT;
+            }
+            if (status.rssi != null) {
+                flags |= FLAG_HAS_RSSI;
+            }
+        }
+        out.writeByte(flags);
+        if ((flags & FLAG_HAS_RSSI) != 0) {
+            out.writeSignedVarLong(status.rssi);
+        }
+
+        final DeviceSync.AttributeEntry[] attributes = ds.attributes;
+        final int attributeCount = attributes != null ? attributes.length : 0;
+        out.writeVarInt(attributeCount);
+        for (int i = 0; i < attributeCount; ++i) {
+            DeviceSync.AttributeEntry ae = attributes[i];
+            out.writeVarInt(ae.id);
+            out.writeString(ae.value);
+            out.writeTimestamp(ae.updatedTimestamp);
+        }
+
+        // zero for no tags at all, otherwise count + 1
+        final DeviceTag[] tags = ds.deviceTags;
+        out.writeVarInt(tags != null ? tags.length + 1 : 0);
+        if (tags != null) {
+            for (DeviceTag tag : tags) {
+                out.writeString(tag.deviceTagId);
+                out.writeSharedString(tag.key);
+                out.writeString(tag.value);
+                out.writeSharedString(tag.deviceTagType);
+                out.writeSharedString(tag.localizationKey);
+            }
+        }
+
+        out.writeSharedString(ds.timezone != null ? ds.timezone.timezone : null);
+    }
+
+    private static DeviceSync readDevice(Decoder in) throws IOException {
+        DeviceSync ds = new DeviceSync();
+        ds.deviceId = in.readString();
+        ds.profileId = in.readSharedString();
+        ds.friendlyName = in.readString();
+
+        final int flags = in.readByte();
+        ds.virtual = (flags & FLAG_VIRTUAL) != 0;
+        ds.status = new DeviceStatus();
+        if ((flags & (FLAG_AVAILABLE | FLAG_UNAVAILABLE)) != 0) {
+            ds.status.available = (flags & FLAG_AVAILABLE) != 0;
+        }
+        ds.status.linked = (flags & FLAG_LINKED) != 0;
+        ds.status.direct = (flags & FLAG_DIRECT) != 0;
+        if ((flags & FLAG_HAS_RSSI) != 0) {
+            ds.status.rssi = (int)in.readSignedVarLong();
+        }
+
+        final int attributeCount = in.readCount();
+        ds.attributes = new DeviceSync.AttributeEntry[attributeCount];
+        for (int i = 0; i < attributeCount; ++i) {
+            DeviceSync.AttributeEntry ae = new DeviceSync.AttributeEntry();
+            ae.id = in.readVarInt();
+            ae.value = in.readString();
+            ae.updatedTimestamp = in.readTimestamp();
+            ds.attributes[i] = ae;
+        }
+
+        final int tagCount = in.readCount() - 1;
+        if (tagCount >= 0) {
+            ds.deviceTags = new DeviceTag[tagCount];
+            for (int i = 0; i < tagCount; ++i) {
+                DeviceTag tag = new DeviceTag();
+                tag.deviceTagId = in.readString();
+                tag.key = in.readSharedString();
+                tag.value = in.readString();
+                tag.deviceTagType = in.readSharedString();
+                tag.localizationKey = in.readSharedString();
+                ds.deviceTags[i] = tag;
+            }
+        }
+
+        final String timezone = in.readSharedString();
+        if (timezone != null) {
+            ds.timezone = ds.new DeviceTimeZone();
+            ds.timezone.timezone = timezone;
+        }
+
+        return ds;
+    }
+
+    // DataOutputStream over a BufferedOutputStream takes a lock for every byte; this doesn't
+    private static final class Encoder {
+        private final OutputStream mOut;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mPosition;
+        private final HashMap<String, Integer> mSharedStrings = new HashMap<>();
+        private long mLastTimestamp;
+
+        Encoder(OutputStream out) {
+            mOut = out;
+        }
+
+        void flush() throws IOException {
+            mOut.write(mBuffer, 0, mPosition);
+            mPosition = 0;
+        }
+
+        private void ensure(int count) throws IOException {
+            if (mPosition + count > mBuffer.length) {
+                flush();
+            }
+        }
+
+        void writeByte(int b) throws IOException {
+            ensure(1);
+            mBuffer[mPosition++] = (byte)b;
+        }
+
+        void writeInt(int v) throws IOException {
+            ensure(4);
+            mBuffer[mPosition++] = (byte)(v >>> 24);
+            mBuffer[mPosition++] = (byte)(v >>> 16);
+            mBuffer[mPosition++] = (byte)(v >>> 8);
+            mBuffer[mPosition++] = (byte)v;
+        }
+
+        void writeVarInt(int v) throws IOException {
+            writeVarLong(v & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long v) throws IOException {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                mBuffer[mPosition++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            mBuffer[mPosition++] = (byte)v;
+        }
+
+        void writeSignedVarLong(long v) throws IOException {
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        void writeTimestamp(long timestamp) throws IOException {
+            writeSignedVarLong(timestamp - mLastTimestamp);
+            mLastTimestamp = timestamp;
+        }
+
+        // zero for null, otherwise the length in bytes + 1
+        void writeString(String s) throws IOException {
+            if (s == null) {
+                writeVarInt(0);
+                return;
+            }
+
+            final int length = s.length();
+            boolean isAscii = true;
+            for (int i = 0; i < length && isAscii; ++i) {
+                isAscii = s.charAt(i) < 0x80;
+            }
+
+            if (!isAscii) {
+                byte[] bytes = s.getBytes(UTF_8);
+                writeVarInt(bytes.length + 1);
+                writeBytes(bytes);
+                return;
+            }
+
+            writeVarInt(length + 1);
+            if (length > mBuffer.length) {
+                writeBytes(s.getBytes(UTF_8));
+                return;
+            }
+
+            ensure(length);
+            for (int i = 0; i < length; ++i) {
+                mBuffer[mPosition++] = (byte)s.charAt(i);
+            }
+        }
+
+        // zero for null, otherwise the string's index in the table + 1, followed by the string itself the first time
+        void writeSharedString(String s) throws IOException {
+            if (s == null) {
+                writeVarInt(0);
+                return;
+            }
+
+            Integer index = mSharedStrings.get(s);
+            if (index != null) {
+                writeVarInt(index + 1);
+                return;
+            }
+
+            index = mSharedStrings.size();
+            mSharedStrings.put(s, index);
+            writeVarInt(index + 1);
+            writeString(s);
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            flush();
+            mOut.write(bytes);
+        }
+    }
+
+    private static final class Decoder {
+        private final InputStream mIn;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mPosition;
+        private int mLimit;
+        private final ArrayList<String> mSharedStrings = new ArrayList<>();
+        private long mLastTimestamp;
+
+        Decoder(InputStream in) {
+            mIn = in;
+        }
+
+        // makes at least count bytes available in the buffer, count must not exceed BUFFER_SIZE
+        private void require(int count) throws IOException {
+            if (mLimit - mPosition >= count) {
+                return;
+            }
+
+            System.arraycopy(mBuffer, mPosition, mBuffer, 0, mLimit - mPosition);
+            mLimit -= mPosition;
+            mPosition = 0;
+
+            while (mLimit < count) {
+                int n = mIn.read(mBuffer, mLimit, mBuffer.length - mLimit);
+                if (n < 0) {
+                    throw new EOFException("Truncated device checkpoint");
+                }
+                mLimit += n;
+            }
+        }
+
+        int readByte() throws IOException {
+            require(1);
+            return mBuffer[mPosition++] & 0xFF;
+        }
+
+        int readInt() throws IOException {
+            require(4);
+            return ((mBuffer[mPosition++] & 0xFF) << 24)
+                    | ((mBuffer[mPosition++] & 0xFF) << 16)
+                    | ((mBuffer[mPosition++] & 0xFF) << 8)
+                    | (mBuffer[mPosition++] & 0xFF);
+        }
+
+        int readVarInt() throws IOException {
+            return (int)readVarLong();
+        }
+
+        long readVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readByte();
+                v |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("Malformed varint in device checkpoint");
+        }
+
+        int readCount() throws IOException {
+            final int count = readVarInt();
+            if (count < 0) {
+                throw new IOException("Malformed count in device checkpoint");
+            }
+            return count;
+        }
+
+        long readSignedVarLong() throws IOException {
+            final long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        long readTimestamp() throws IOException {
+            mLastTimestamp += readSignedVarLong();
+            return mLastTimestamp;
+        }
+
+        String readString() throws IOException {
+            final int length = readVarInt() - 1;
+            if (length < 0) {
+                return null;
+            }
+
+            if (length > mBuffer.length) {
+                byte[] bytes = new byte[length];
+                int offset = mLimit - mPosition;
+                System.arraycopy(mBuffer, mPosition, bytes, 0, offset);
+                mPosition = mLimit;
+                while (offset < length) {
+                    int n = mIn.read(bytes, offset, length - offset);
+                    if (n < 0) {
+                        throw new EOFException("Truncated device checkpoint");
+                    }
+                    offset += n;
+                }
+                return new String(bytes, UTF_8);
+            }
+
+            require(length);
+            String s = new String(mBuffer, mPosition, length, UTF_8);
+            mPosition += length;
+            return s;
+        }
+
+        String readSharedString() throws IOException {
+            final int index = readVarInt() - 1;
+            if (index < 0) {
+                return null;
+            }
+
+            if (index == mSharedStrings.size()) {
+                mSharedStrings.add(readString());
+            } else if (index > mSharedStrings.size()) {
+                throw new IOException("Malformed string reference in device checkpoint");
+            }
+
+            return mSharedStrings.get(index);
+        }
+    }
+}
@@ -4,13 +4,20 @@
 
 package io.afero.sdk.device;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.afero.sdk.client.afero.AferoClient;
 import io.afero.sdk.client.afero.models.DeviceAssociateResponse;
@@ -18,6 +25,8 @@ import io.afero.sdk.client.afero.models.DeviceStatus;
 import io.afero.sdk.conclave.ConclaveAccessManager;
 import io.afero.sdk.conclave.ConclaveMessage;
 import io.afero.sdk.conclave.DeviceEventSource;
+import io.afero.sdk.conclave.SyncState;
+import io.afero.sdk.conclave.SyncStateSource;
 import io.afero.sdk.conclave.models.DeviceError;
 import io.afero.sdk.conclave.models.DeviceMute;
 import io.afero.sdk.conclave.models.DeviceState;
@@ -29,12 +38,17 @@ import io.afero.sdk.utils.MetricUtil;
 import io.afero.sdk.utils.RxUtils;
 import rx.Observable;
 import rx.Observer;
+import rx.Scheduler;
 import rx.Subscription;
 import rx.functions.Action0;
 import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
 import rx.functions.Func2;
+import rx.schedulers.Schedulers;
 import rx.subjects.PublishSubject;
+import rx.subjects.SerializedSubject;
+import rx.subjects.Subject;
 
 /**
  * The DeviceCollection class manages the collection of {@link DeviceModel}s associated with the
@@ -43,25 +57,285 @@ import rx.subjects.PublishSubject;
  */
 public class DeviceCollection {
 
+    /**
+     * Describes the effect a "snapshot" of devices had on the collection.
+     *
+     * @see #observeSnapshotSummaries()
+     */
+    public static class SnapshotSummary {
+
+        /**
+         * Number of {@link DeviceModel}s created and added to the collection.
+         */
+        public final int created;
+
+        /**
+         * Number of existing {@link DeviceModel}s whose state differed from the snapshot and were updated.
+         */
+        public final int updated;
+
+        /**
+         * Number of {@link DeviceModel}s that were absent from the snapshot and removed from the collection.
+         */
+        public final int removed;
+
+        /**
+         * Number of existing {@link DeviceModel}s that already matched the snapshot and were left untouched.
+         */
+        public final int unchanged;
+
+        SnapshotSummary(int created, int updated, int removed, int unchanged) {
+            this.created = created;
+            this.updated = updated;
+            this.removed = removed;
+            this.unchanged = unchanged;
+        }
+
+        @Override
+        public String toString() {
+            return "SnapshotSummary { " +
+                    "created=" + created +
+                    ", updated=" + updated +
+                    ", removed=" + removed +
+                    ", unchanged=" + unchanged +
+                    " }";
+        }
+    }
+
+    /**
+     * Counters describing how {@link DeviceProfile} requests made by the collection were satisfied.
+     *
+     * @see #getProfileFetchStats()
+     */
+    public static class ProfileFetchStats {
+
+        /**
+         * Number of requests served from profiles already held by the collection.
+         */
+        public final long hits;
+
+        /**
+         * Number of requests that joined a fetch of the same profile already in flight.
+         */
+        public final long coalesced;
+
+        /**
+         * Number of requests sent to the service.
+         */
+        public final long fetches;
+
+        ProfileFetchStats(long hits, long coalesced, long fetches) {
+            this.hits = hits;
+            this.coalesced = coalesced;
+            this.fetches = fetches;
+        }
+
+        @Override
+        public String toString() {
+            return "ProfileFetchStats { " +
+                    "hits=" + hits +
+                    ", coalesced=" + coalesced +
+                    ", fetches=" + fetches +
+                    " }";
+        }
+    }
+
+    /**
+     * Counts for the streams returned by {@link #observeConflatedUpdates(long, TimeUnit)}.
+     *
+     * @see #getUpdateConflationStats()
+     */
+    public static class UpdateConflationStats {
+
+        /**
+         * Number of updates delivered to conflated streams.
+         */
+        public final long received;
+
+        /**
+         * Number of devices the conflated streams emitted.
+         */
+        public final long emitted;
+
+        /**
+         * Number of updates folded into an emission already pending for the same device.
+         */
+        public final long droppedDuplicates;
+
+        UpdateConflationStats(long received, long emitted, long droppedDuplicates) {
+            this.received = received;
+            this.emitted = emitted;
+            this.droppedDuplicates = droppedDuplicates;
+        }
+
+        /**
+         * @return updates received per device emitted, or zero if nothing has been emitted
+         */
+        public double getConflationRatio() {
+            return emitted > 0 ? (double) received / emitted : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "UpdateConflationStats { " +
+                    "received=" + received +
+                    ", emitted=" + emitted +
+                    ", droppedDuplicates=" + droppedDuplicates +
+                    ", conflationRatio=" + getConflationRatio() +
+                    " }";
+        }
+    }
+
+    /**
+     * Counts of the attribute and status change events received from the {@link DeviceEventSource}.
+     * An event is suppressed when it re-reports values the device already has, in which case
+     * nothing is emitted for it.
+     *
+     * @see #getUpdateSuppressionStats()
+     */
+    public static class UpdateSuppressionStats {
+
+        public final long attributeUpdatesApplied;
+        public final long attributeUpdatesSuppressed;
+        public final long statusUpdatesApplied;
+        public final long statusUpdatesSuppressed;
+
+        UpdateSuppressionStats(long attributeUpdatesApplied, long attributeUpdatesSuppressed,
+                               long statusUpdatesApplied, long statusUpdatesSuppressed) {
+            this.attributeUpdatesApplied = attributeUpdatesApplied;
+            this.attributeUpdatesSuppressed = attributeUpdatesSuppressed;
+            this.statusUpdatesApplied = statusUpdatesApplied;
+            this.statusUpdatesSuppressed = statusUpdatesSuppressed;
+        }
+
+        @Override
+        public String toString() {
+            return "UpdateSuppressionStats { " +
+                    "attributeUpdatesApplied=" + attributeUpdatesApplied +
+                    ", attributeUpdatesSuppressed=" + attributeUpdatesSuppressed +
+                    ", statusUpdatesApplied=" + statusUpdatesApplied +
+                    ", statusUpdatesSuppressed=" + statusUpdatesSuppressed +
+                    " }";
+        }
+    }
+
+    /**
+     * Describes where the time went during {@link #start()}. Phases that run concurrently overlap,
+     * so {@link #totalMillis} is usually less than the sum of the phases.
+     *
+     * @see #getStartupTimings()
+     */
+    public static class StartupTimings {
+
+        /**
+         * Milliseconds spent fetching the account's {@link DeviceProfile}s, or loading the profiles
+         * the devices need from the {@link ProfileStore}; -1 if the phase didn't run.
+         */
+        public final long profilesMillis;
+
+        /**
+         * Milliseconds spent fetching the account's devices, or reading them from the checkpoint;
+         * -1 if the phase didn't run.
+         */
+        public final long devicesMillis;
+
+        /**
+         * Milliseconds spent connecting the {@link DeviceEventSource}; -1 if it was connected
+         * separately from {@link #start(Observable)}.
+         */
+        public final long connectMillis;
+
+        /**
+         * Milliseconds spent adding the devices to the collection and replaying the events
+         * received while they were being fetched.
+         */
+        public final long applyMillis;
+
+        /**
+         * Milliseconds from subscribing to {@link #start()} until it completed.
+         */
+        public final long totalMillis;
+
+        /**
+         * Number of {@link DeviceEventSource} events received during startup and replayed once the
+         * devices had been added.
+         */
+        public final int replayedEventCount;
+
+        StartupTimings(long profilesMillis, long devicesMillis, long connectMillis, long applyMillis, long totalMillis, int replayedEventCount) {
+            this.profilesMillis = profilesMillis;
+            this.devicesMillis = devicesMillis;
+            this.connectMillis = connectMillis;
+            this.applyMillis = applyMillis;
+            this.totalMillis = totalMillis;
+            this.replayedEventCount = replayedEventCount;
+        }
+
+        @Override
+        public String toString() {
+            return "StartupTimings { " +
+                    "profilesMillis=" + profilesMillis +
+                    ", devicesMillis=" + devicesMillis +
+                    ", connectMillis=" + connectMillis +
+                    ", applyMillis=" + applyMillis +
+                    ", totalMillis=" + totalMillis +
+                    ", replayedEventCount=" + replayedEventCount +
+                    " }";
+        }
+    }
+
+    /**
+     * Default interval at which the device checkpoint is written while the collection is running.
+     *
+     * @see #setCheckpointFile(File)
+     */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MINUTES = 5;
+
     private final DeviceEventSource mDeviceEventSource;
     private final DeviceProfileCollection mDeviceProfileCollection;
     private final AferoClient mAferoClient;
-    private final TreeMap<String,DeviceModel> mModelMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
-
-    private PublishSubject<DeviceModel> mModelCreateSubject = PublishSubject.create();
-    private PublishSubject<DeviceModel> mModelUpdateSubject = PublishSubject.create();
-    private PublishSubject<DeviceCollection> mModelSnapshotSubject = PublishSubject.create();
-    private PublishSubject<DeviceModel> mModelDeleteSubject = PublishSubject.create();
-    private PublishSubject<DeviceModel> mModelProfileChangeSubject = PublishSubject.create();
+    private final DeviceRegistry mDevices = new DeviceRegistry();
+    private final DeviceIndex mIndex = new DeviceIndex();
+
+    // profile id -> attribute id -> history capacity
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Integer>> mHistoryCapacities = new ConcurrentHashMap<>();
+
+    // profile id -> { batch size, pipeline depth }
+    private final ConcurrentHashMap<String, int[]> mWritePipelines = new ConcurrentHashMap<>();
+
+    private final Subject<DeviceModel, DeviceModel> mModelCreateSubject = new SerializedSubject<>(PublishSubject.<DeviceModel>create());
+    private final Subject<DeviceModel, DeviceModel> mModelUpdateSubject = new SerializedSubject<>(PublishSubject.<DeviceModel>create());
+    private final Subject<DeviceChange, DeviceChange> mModelChangeSubject = new SerializedSubject<>(PublishSubject.<DeviceChange>create());
+    private final UpdateConflator mUpdateConflator = new UpdateConflator();
+    private final AtomicLong mAttributeUpdatesApplied = new AtomicLong();
+    private final AtomicLong mAttributeUpdatesSuppressed = new AtomicLong();
+    private final AtomicLong mStatusUpdatesApplied = new AtomicLong();
+    private final AtomicLong mStatusUpdatesSuppressed = new AtomicLong();
+    private final Subject<DeviceCollection, DeviceCollection> mModelSnapshotSubject = new SerializedSubject<>(PublishSubject.<DeviceCollection>create());
+    private final Subject<DeviceModel, DeviceModel> mModelDeleteSubject = new SerializedSubject<>(PublishSubject.<DeviceModel>create());
+    private final Subject<DeviceModel, DeviceModel> mModelProfileChangeSubject = new SerializedSubject<>(PublishSubject.<DeviceModel>create());
+    private final Subject<SnapshotSummary, SnapshotSummary> mSnapshotSummarySubject = new SerializedSubject<>(PublishSubject.<SnapshotSummary>create());
+    private PublishSubject<DeviceSync[]> mSnapshotQueue = PublishSubject.create();
+
+    private final StartupEventBuffer mStartupEvents = new StartupEventBuffer();
+    private volatile StartupTimings mStartupTimings;
 
     private Subscription mInvalidateSubscription;
     private Subscription mMetricSubscription;
     private Subscription mDeviceErrorSubscription;
     private Subscription mOTASubscription;
     private Subscription mSnapshotSubscription;
+    private Subscription mSnapshotSourceSubscription;
     private Subscription mAttributeChangeSubscription;
     private Subscription mStatusChangeSubscription;
     private Subscription mMuteSubscription;
+    private Subscription mProfileUpdateSubscription;
+    private Subscription mProfileRevalidateSubscription;
+    private Subscription mRefreshSubscription;
+    private Subscription mCheckpointSubscription;
+
+    private File mCheckpointFile;
+    private long mCheckpointIntervalMillis;
 
     private boolean mIsStarted;
 
@@ -75,8 +349,23 @@ public class DeviceCollection {
      *                    and disassociate devices with the active account
      */
     public DeviceCollection(DeviceEventSource deviceEventSource, AferoClient aferoClient) {
+        this(deviceEventSource, aferoClient, DeviceProfileCollection.DEFAULT_MAX_CONCURRENT_FETCHES);
+    }
+
+    /**
+     * Constructs a {@code DeviceCollection}. The contents of the collection are managed dynamically
+     * in response to messages received from the specified deviceEventSource.
+     *
+     * @param deviceEventSource {@link DeviceEventSource} to which the {@code DeviceCollection} subscribes
+     *                          for all device messages
+     * @param aferoClient The {@link AferoClient} used by the {@code DeviceCollection} to associate
+     *                    and disassociate devices with the active account
+     * @param maxConcurrentProfileFetches The maximum number of {@link DeviceProfile} requests the
+     *                                    {@code DeviceCollection} will have outstanding at once
+     */
+    public DeviceCollection(DeviceEventSource deviceEventSource, AferoClient aferoClient, int maxConcurrentProfileFetches) {
         mDeviceEventSource = deviceEventSource;
-        mDeviceProfileCollection = new DeviceProfileCollection(aferoClient);
+        mDeviceProfileCollection = new DeviceProfileCollection(aferoClient, maxConcurrentProfileFetches);
         mAferoClient = aferoClient;
     }
 
@@ -95,6 +384,61 @@ public class DeviceCollection {
         mAferoClient = aferoClient;
     }
 
+    /**
+     * Sets the {@link ProfileStore} used to persist {@link DeviceProfile}s across runs. When the store
+     * holds profiles, {@link #start()} no longer waits for the account's profiles to download; it
+     * loads them from the store as devices need them and revalidates them in the background. Must
+     * be called before {@link #start()}.
+     *
+     * Profiles are stored only if the {@link AferoClient} implements
+     * {@link io.afero.sdk.client.afero.ProfileJsonSource}, as the store keeps the profile JSON.
+     *
+     * @param store {@link ProfileStore} to use, or null for none
+     * @throws IllegalStateException if called after {@link DeviceCollection#start()}
+     */
+    public void setProfileStore(ProfileStore store) {
+        if (isStarted()) {
+            throw new IllegalStateException("DeviceCollection has already been started");
+        }
+
+        mDeviceProfileCollection.setProfileStore(store);
+    }
+
+    /**
+     * Sets the file to which the state of every {@link DeviceModel} in the collection is checkpointed,
+     * every {@link #DEFAULT_CHECKPOINT_INTERVAL_MINUTES} minutes while running and on {@link #stop()}.
+     * Must be called before {@link #start()}.
+     *
+     * @param file checkpoint file, or null to disable checkpointing
+     * @throws IllegalStateException if called after {@link DeviceCollection#start()}
+     * @see #setCheckpointFile(File, long, TimeUnit)
+     */
+    public void setCheckpointFile(File file) {
+        setCheckpointFile(file, DEFAULT_CHECKPOINT_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Sets the file to which the state of every {@link DeviceModel} in the collection is checkpointed,
+     * periodically while running and on {@link #stop()}. When the file holds a checkpoint,
+     * {@link #start()} completes as soon as the checkpointed devices have been restored, with each
+     * {@link DeviceModel} marked {@link DeviceModel#isStale() stale}, and then reconciles them with
+     * the devices fetched from the Afero Cloud in the background. {@link #observeSnapshots()} emits
+     * once that reconciliation is done. Must be called before {@link #start()}.
+     *
+     * @param file checkpoint file, or null to disable checkpointing
+     * @param interval interval between checkpoints while running, or zero to only checkpoint on {@link #stop()}
+     * @param unit {@link TimeUnit} of {@code interval}
+     * @throws IllegalStateException if called after {@link DeviceCollection#start()}
+     */
+    public void setCheckpointFile(File file, long interval, TimeUnit unit) {
+        if (isStarted()) {
+            throw new IllegalStateException("DeviceCollection has already been started");
+        }
+
+        mCheckpointFile = file;
+        mCheckpointIntervalMillis = unit.toMillis(interval);
+    }
+
     /**
      * Starts {@code DeviceCollection} operations. When the Observable returned from {@code start}
      * completes the {@code DeviceCollection} will contain all the {@link DeviceModel}s associated
@@ -103,55 +447,165 @@ public class DeviceCollection {
      * @return {@link Observable} that returns this DeviceCollection instance.
      */
     public Observable<DeviceCollection> start() {
+        return start(null);
+    }
 
-        // Startup sequence:
-        // 1. Fetch account profiles
-        // 2. Fetch devices and add them to the collection
-        // 3. Subscribe to DeviceEventSource
-        return mDeviceProfileCollection
-                .fetchAccountProfiles()
-                .flatMap(new Func1<DeviceProfile[], Observable<DeviceCollection>>() {
-                    @Override
-                    public Observable<DeviceCollection> call(DeviceProfile[] deviceProfiles) {
-                        return mAferoClient.getDevicesWithState()
-                            .flatMap(new Func1<DeviceSync[], Observable<DeviceCollection>>() {
-                                @Override
-                                public Observable<DeviceCollection> call(DeviceSync[] deviceSyncs) {
-
-                                    for (DeviceSync ds : deviceSyncs) {
-                                        AfLog.i("DeviceCollection.start: deviceSync=" + ds.toString());
-                                        addOrUpdate(ds);
-                                    }
+    /**
+     * Starts {@code DeviceCollection} operations, connecting the {@link DeviceEventSource} at the
+     * same time. The account's profiles, its devices and the connection are all requested at once;
+     * events the {@link DeviceEventSource} delivers before the devices have been added are held and
+     * applied in sequence order afterwards. When the Observable returned from {@code start}
+     * completes the {@code DeviceCollection} will contain all the {@link DeviceModel}s associated
+     * with the active account and {@code eventSourceConnect} will have completed. With a checkpoint
+     * file or {@link ProfileStore} set, those are read on {@link Schedulers#io()}, so the result may
+     * be emitted on that scheduler.
+     *
+     * <pre><code>
+     *     deviceCollection.start(conclaveDeviceEventSource.start(accountId, userId, clientId, type))
+     * </code></pre>
+     *
+     * @param eventSourceConnect {@link Observable} that connects the {@link DeviceEventSource}, or
+     *                           null if the caller connects it separately
+     * @return {@link Observable} that returns this DeviceCollection instance.
+     * @see #getStartupTimings()
+     */
+    public Observable<DeviceCollection> start(final Observable<?> eventSourceConnect) {
+        return Observable.defer(new Func0<Observable<DeviceCollection>>() {
+                @Override
+                public Observable<DeviceCollection> call() {
+                    return startPhases(eventSourceConnect);
+                }
+            })
+            .compose(new StartTransformer());
+    }
 
-                                    return Observable.just(subscribeToDeviceEventSource());
-                                }
-                            });
-                    }
-                })
-                .doOnSubscribe(new Action0() {
+    private Observable<DeviceCollection> startPhases(final Observable<?> eventSourceConnect) {
+        final long startTime = System.nanoTime();
+        final StartupTimer profilesTimer = new StartupTimer();
+        final StartupTimer devicesTimer = new StartupTimer();
+        final StartupTimer connectTimer = new StartupTimer();
+
+        // Subscribe first so that nothing the DeviceEventSource delivers while the devices are
+        // being fetched is lost; it's held until the devices have been added.
+        mStartupEvents.open();
+        subscribeToDeviceEventSource();
+
+        devicesTimer.begin();
+
+        // The checkpoint and the ProfileStore are on disk, so they're read on the io scheduler
+        // rather than the subscribing thread, which is usually the main thread.
+        final Observable<StoredState> storedStateObservable;
+        if (mCheckpointFile == null && !mDeviceProfileCollection.hasProfileStore()) {
+            storedStateObservable = Observable.just(new StoredState(null, false));
+        } else {
+            storedStateObservable = Observable.defer(new Func0<Observable<StoredState>>() {
                     @Override
-                    public void call() {
-                        if (isStarted()) {
-                            throw new IllegalStateException("DeviceCollection has already been started");
-                        }
+                    public Observable<StoredState> call() {
+                        return Observable.just(new StoredState(readCheckpoint(), mDeviceProfileCollection.hasStoredProfiles()));
                     }
                 })
-                .doOnUnsubscribe(new Action0() {
+                .subscribeOn(Schedulers.io());
+        }
+
+        return storedStateObservable.flatMap(new Func1<StoredState, Observable<DeviceCollection>>() {
+            @Override
+            public Observable<DeviceCollection> call(StoredState storedState) {
+                return startPhases(eventSourceConnect, storedState, startTime, profilesTimer, devicesTimer, connectTimer);
+            }
+        });
+    }
+
+    private Observable<DeviceCollection> startPhases(Observable<?> eventSourceConnect, final StoredState storedState,
+            final long startTime, final StartupTimer profilesTimer, final StartupTimer devicesTimer, final StartupTimer connectTimer) {
+
+        final Observable<?> connectObservable = eventSourceConnect != null
+                ? connectTimer.time(eventSourceConnect.toList())
+                : Observable.just(null);
+
+        final Observable<DeviceSync[]> devicesObservable;
+        final DeviceSync[] checkpoint = storedState.checkpoint;
+
+        if (checkpoint != null) {
+            // Checkpoint startup sequence:
+            // 1. Load the profiles of the checkpointed devices (from the ProfileStore if there is one)
+            // 2. Restore the devices to the collection, marked stale
+            // 3. Fetch devices and reconcile them with the collection in the background, and
+            //    revalidate any stored profiles
+            devicesTimer.end();
+            devicesObservable = profilesTimer.time(fetchMissingProfiles(checkpoint));
+
+        } else if (storedState.hasStoredProfiles) {
+            // Warm startup sequence:
+            // 1. Fetch devices, loading their profiles from the ProfileStore (or fetching any it lacks)
+            // 2. Add the devices to the collection
+            // 3. Revalidate the account profiles in the background
+            devicesObservable = devicesTimer.time(mAferoClient.getDevicesWithState())
+                .flatMap(new Func1<DeviceSync[], Observable<DeviceSync[]>>() {
                     @Override
-                    public void call() {
-                        //unsubscribeFromDeviceEventSource();
+                    public Observable<DeviceSync[]> call(DeviceSync[] deviceSyncs) {
+                        return profilesTimer.time(fetchMissingProfiles(deviceSyncs));
                     }
-                })
-                .doOnError(new Action1<Throwable>() {
+                });
+
+        } else {
+            // Startup sequence:
+            // 1. Fetch account profiles and devices at the same time
+            // 2. Fetch the profiles of any devices the account profiles didn't cover
+            // 3. Add the devices to the collection
+            devicesObservable = Observable.zip(
+                    profilesTimer.time(mDeviceProfileCollection.fetchAccountProfiles()),
+                    devicesTimer.time(mAferoClient.getDevicesWithState()),
+                    new Func2<DeviceProfile[], DeviceSync[], DeviceSync[]>() {
+                        @Override
+                        public DeviceSync[] call(DeviceProfile[] deviceProfiles, DeviceSync[] deviceSyncs) {
+                            return deviceSyncs;
+                        }
+                    })
+                .flatMap(new Func1<DeviceSync[], Observable<DeviceSync[]>>() {
                     @Override
-                    public void call(Throwable t) {
-                        unsubscribeFromDeviceEventSource();
+                    public Observable<DeviceSync[]> call(DeviceSync[] deviceSyncs) {
+                        return fetchMissingProfiles(deviceSyncs);
                     }
-                })
-                .doOnCompleted(new Action0() {
+                });
+        }
+
+        return Observable.zip(devicesObservable, connectObservable,
+                new Func2<DeviceSync[], Object, DeviceCollection>() {
                     @Override
-                    public void call() {
-                        mIsStarted = true;
+                    public DeviceCollection call(DeviceSync[] deviceSyncs, Object connected) {
+                        final long applyStartTime = System.nanoTime();
+
+                        if (checkpoint != null) {
+                            restoreCheckpoint(deviceSyncs);
+                        } else {
+                            for (DeviceSync ds : deviceSyncs) {
+                                AfLog.i("DeviceCollection.start: deviceSync=" + ds.toString());
+                                addOrUpdate(ds);
+                            }
+                        }
+
+                        final int replayedEventCount = mStartupEvents.drain();
+
+                        final long now = System.nanoTime();
+                        mStartupTimings = new StartupTimings(
+                                profilesTimer.getMillis(),
+                                devicesTimer.getMillis(),
+                                connectTimer.getMillis(),
+                                TimeUnit.NANOSECONDS.toMillis(now - applyStartTime),
+                                TimeUnit.NANOSECONDS.toMillis(now - startTime),
+                                replayedEventCount);
+                        AfLog.i("DeviceCollection.start: " + mStartupTimings);
+
+                        // background work starts only once the start has succeeded
+                        if (storedState.hasStoredProfiles) {
+                            revalidateProfiles();
+                        }
+
+                        if (checkpoint != null) {
+                            refreshDevices();
+                        }
+
+                        return DeviceCollection.this;
                     }
                 });
     }
@@ -166,6 +620,7 @@ public class DeviceCollection {
         throwIfNotStarted();
 
         unsubscribeFromDeviceEventSource();
+        writeCheckpoint();
         mIsStarted = false;
     }
 
@@ -223,12 +678,8 @@ public class DeviceCollection {
      * @return {@link Observable} containing a snapshot of all devices in the {@code DeviceCollection}
      */
     public Observable<DeviceModel> getDevices() {
-        // Make a copy of the map since the original could change while the Observable is iterating.
-        Map<String,DeviceModel> mapCopy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
-        synchronized (mModelMap) {
-            mapCopy.putAll(mModelMap);
-            return Observable.from(mapCopy.values());
-        }
+        // The registry's list is immutable, so it's safe to iterate while devices come and go.
+        return Observable.from(mDevices.values());
     }
 
     /**
@@ -237,8 +688,114 @@ public class DeviceCollection {
      * {@link DeviceModel} exists.
      */
     public DeviceModel getDevice(String deviceId) {
-        synchronized (mModelMap) {
-            return mModelMap.get(deviceId);
+        return mDevices.get(deviceId);
+    }
+
+    /**
+     * Finds the devices matching a {@link DeviceQuery} using indexes maintained as devices are
+     * added, updated and removed, so the cost depends on the number of candidates rather than the
+     * size of the collection. Tag changes made through {@link DeviceModel} are reflected once the
+     * service's invalidate for them has been received.
+     *
+     * @param query criteria the devices must match
+     * @return a new list of the matching {@link DeviceModel}s, in no particular order
+     */
+    public List<DeviceModel> findDevices(DeviceQuery query) {
+        return mIndex.find(query, mDevices.values());
+    }
+
+    /**
+     * Writes attribute values to every device matching a query. The query is run when the write
+     * is committed.
+     *
+     * @param query criteria the devices must match
+     * @return {@link FleetWriter} to which the values are added
+     */
+    public FleetWriter writeAttributes(final DeviceQuery query) {
+        return new FleetWriter(new Func0<Collection<DeviceModel>>() {
+            @Override
+            public Collection<DeviceModel> call() {
+                return findDevices(query);
+            }
+        });
+    }
+
+    /**
+     * Writes attribute values to each of the specified devices.
+     *
+     * @param devices {@link DeviceModel}s to write
+     * @return {@link FleetWriter} to which the values are added
+     */
+    public FleetWriter writeAttributes(Collection<DeviceModel> devices) {
+        final List<DeviceModel> list = new ArrayList<>(devices);
+        return new FleetWriter(new Func0<Collection<DeviceModel>>() {
+            @Override
+            public Collection<DeviceModel> call() {
+                return list;
+            }
+        });
+    }
+
+    /**
+     * Keeps an {@link AttributeHistory} of the specified attribute for every device with the
+     * specified profile, including devices added later.
+     *
+     * @param profileId id of the {@link DeviceProfile}
+     * @param attributeId id of a numeric or boolean {@link DeviceProfile.Attribute} in the profile
+     * @param capacity number of samples to keep for each device, or zero to stop keeping history
+     * @throws IllegalArgumentException if the capacity is negative, or the profile is known and
+     * the attribute isn't in it or is neither numeric nor boolean; nothing is changed
+     * @see DeviceModel#setAttributeHistoryCapacity(DeviceProfile.Attribute, int)
+     */
+    public void setAttributeHistoryCapacity(String profileId, int attributeId, int capacity) {
+        AttributeHistory.checkCapacity(capacity);
+
+        // a profile that hasn't been loaded yet is checked when its first device is added
+        final DeviceProfile profile = mDeviceProfileCollection.getProfileFromID(profileId);
+        if (profile != null) {
+            final DeviceProfile.Attribute attribute = profile.getAttributeById(attributeId);
+            if (attribute == null) {
+                throw new IllegalArgumentException("profile " + profileId + " has no attribute " + attributeId);
+            }
+            AttributeHistory.checkAttribute(attribute);
+        }
+
+        ConcurrentHashMap<Integer, Integer> capacities = mHistoryCapacities.get(profileId);
+        if (capacities == null) {
+            mHistoryCapacities.putIfAbsent(profileId, new ConcurrentHashMap<Integer, Integer>());
+            capacities = mHistoryCapacities.get(profileId);
+        }
+
+        if (capacity != 0) {
+            capacities.put(attributeId, capacity);
+        } else {
+            capacities.remove(attributeId);
+        }
+
+        for (DeviceModel deviceModel : findDevices(new DeviceQuery().profileId(profileId))) {
+            DeviceProfile.Attribute attribute = deviceModel.getAttributeById(attributeId);
+            if (attribute != null) {
+                deviceModel.setAttributeHistoryCapacity(attribute, capacity);
+            }
+        }
+    }
+
+    /**
+     * Sets how attribute writes are split into requests and pipelined for every device with the
+     * specified profile, including devices added later.
+     *
+     * @param profileId id of the {@link DeviceProfile}
+     * @param batchSize number of attributes per request
+     * @param pipelineDepth number of requests in flight at once
+     * @see DeviceModel#setWritePipeline(int, int)
+     */
+    public void setWritePipeline(String profileId, int batchSize, int pipelineDepth) {
+        AttributeWriter.checkBatchSize(batchSize);
+        AttributeWriter.checkPipelineDepth(pipelineDepth);
+        mWritePipelines.put(profileId, new int[] { batchSize, pipelineDepth });
+
+        for (DeviceModel deviceModel : findDevices(new DeviceQuery().profileId(profileId))) {
+            deviceModel.setWritePipeline(batchSize, pipelineDepth);
         }
     }
 
@@ -258,6 +815,38 @@ public class DeviceCollection {
         return mModelUpdateSubject;
     }
 
+    /**
+     * Like {@link #observeUpdates()}, but emits a {@link DeviceChange} saying what changed in the
+     * updated {@link DeviceModel}, so subscribers can skip updates to attributes they don't use.
+     * Also emits when a device's tags change.
+     *
+     * @return Observable that emits a {@link DeviceChange} for each update to an existing device
+     */
+    public Observable<DeviceChange> observeChanges() {
+        return mModelChangeSubject;
+    }
+
+    /**
+     * Like {@link #observeUpdates()}, but emits each updated {@link DeviceModel} at most once per
+     * {@code window}, however many updates it received in that time. Devices are emitted on the
+     * computation scheduler in the order they were first updated during the window.
+     *
+     * @param window time between emissions
+     * @param unit unit of {@code window}
+     * @return Observable that emits {@link DeviceModel}s updated during the previous window
+     * @see #getUpdateConflationStats()
+     */
+    public Observable<DeviceModel> observeConflatedUpdates(long window, TimeUnit unit) {
+        return observeConflatedUpdates(window, unit, Schedulers.computation());
+    }
+
+    /**
+     * Like {@link #observeConflatedUpdates(long, TimeUnit)}, emitting on the specified {@link Scheduler}.
+     */
+    public Observable<DeviceModel> observeConflatedUpdates(long window, TimeUnit unit, Scheduler scheduler) {
+        return mUpdateConflator.conflate(mModelUpdateSubject, window, unit, scheduler);
+    }
+
     /**
      * @return Observable that emits {@link DeviceModel}s as they are removed from the collection
      * either as the result of events from {@link DeviceEventSource} or a call to
@@ -283,13 +872,69 @@ public class DeviceCollection {
         return mModelSnapshotSubject;
     }
 
+    /**
+     * @return Observable that emits a {@link SnapshotSummary} whenever a new "snapshot" of devices
+     * has been processed. Emits immediately after {@link #observeSnapshots()}.
+     */
+    public Observable<SnapshotSummary> observeSnapshotSummaries() {
+        return mSnapshotSummarySubject;
+    }
+
+    /**
+     * @return Observable that emits the {@link SyncState} of the {@link DeviceEventSource} as it
+     * tracks the server's event stream, or an empty Observable if the source doesn't implement
+     * {@link SyncStateSource}.
+     */
+    public Observable<SyncState> observeSyncState() {
+        return mDeviceEventSource instanceof SyncStateSource
+                ? ((SyncStateSource) mDeviceEventSource).observeSyncState()
+                : Observable.<SyncState>empty();
+    }
+
     /**
      * @return The current count of {@link DeviceModel}s in the collection.
      */
     public int getCount() {
-        synchronized (mModelMap) {
-            return mModelMap.size();
-        }
+        return mDevices.size();
+    }
+
+    /**
+     * @return {@link UpdateConflationStats} for all streams returned by
+     * {@link #observeConflatedUpdates(long, TimeUnit)} so far.
+     */
+    public UpdateConflationStats getUpdateConflationStats() {
+        return new UpdateConflationStats(
+                mUpdateConflator.getReceivedCount(),
+                mUpdateConflator.getEmittedCount(),
+                mUpdateConflator.getDroppedDuplicateCount());
+    }
+
+    /**
+     * @return {@link UpdateSuppressionStats} for the events received so far.
+     */
+    public UpdateSuppressionStats getUpdateSuppressionStats() {
+        return new UpdateSuppressionStats(
+                mAttributeUpdatesApplied.get(),
+                mAttributeUpdatesSuppressed.get(),
+                mStatusUpdatesApplied.get(),
+                mStatusUpdatesSuppressed.get());
+    }
+
+    /**
+     * @return {@link ProfileFetchStats} describing the {@link DeviceProfile} requests made so far.
+     */
+    public ProfileFetchStats getProfileFetchStats() {
+        return new ProfileFetchStats(
+                mDeviceProfileCollection.getHitCount(),
+                mDeviceProfileCollection.getCoalescedCount(),
+                mDeviceProfileCollection.getFetchCount());
+    }
+
+    /**
+     * @return {@link StartupTimings} for the most recent {@link #start()}, or null if it hasn't completed.
+     */
+    public StartupTimings getStartupTimings() {
+        return mStartupTimings;
     }
 
     /**
@@ -311,122 +956,61 @@ public class DeviceCollection {
      * or switching active accounts.
      */
     public void reset() {
-        Observable<DeviceModel> devices = getDevices();
+        List<DeviceModel> removed = mDevices.clear();
+        mIndex.clear();
 
-        synchronized (mModelMap) {
-            mModelMap.clear();
+        for (DeviceModel deviceModel : removed) {
+            mModelDeleteSubject.onNext(deviceModel);
         }
-
-        devices.forEach(new Action1<DeviceModel>() {
-            @Override
-            public void call(DeviceModel deviceModel) {
-                mModelDeleteSubject.onNext(deviceModel);
-            }
-        });
     }
 
     private DeviceCollection subscribeToDeviceEventSource() {
 
-        mSnapshotSubscription = mDeviceEventSource.observeSnapshot()
+        mSnapshotSubscription = mSnapshotQueue
                 .flatMap(new Func1<DeviceSync[], Observable<DeviceSync[]>>() {
-                    // Make sure we have a profile for any new devices in our local registry
-                    // If not, fetch it before passing it on...
                     @Override
-                    public Observable<DeviceSync[]> call(final DeviceSync[] deviceSyncs) {
+                    public Observable<DeviceSync[]> call(DeviceSync[] deviceSyncs) {
                         AfLog.i("DeviceCollection.flatMap('snapshot'): deviceSync[].length=" + deviceSyncs.length);
 
-                        return Observable.from(deviceSyncs)
-                            .map(new Func1<DeviceSync, Observable<DeviceSync>>() {
-                                @Override
-                                public Observable<DeviceSync> call(DeviceSync ds) {
-                                    if (mDeviceProfileCollection.getProfileFromID(ds.profileId) == null) {
-                                        return mDeviceProfileCollection.fetchDeviceProfile(ds.profileId)
-                                                .onErrorResumeNext(Observable.<DeviceProfile>empty())
-                                                .flatMap(new RxUtils.FlatMapper<DeviceProfile, DeviceSync>(Observable.just(ds)));
-                                    }
-
-                                    return Observable.just(ds);
-                                }
-                            })
-                            .reduce(new ArrayList<Observable<DeviceSync>>(deviceSyncs.length), new Func2<ArrayList<Observable<DeviceSync>>, Observable<DeviceSync>, ArrayList<Observable<DeviceSync>>>() {
-                                @Override
-                                public ArrayList<Observable<DeviceSync>> call(ArrayList<Observable<DeviceSync>> list, Observable<DeviceSync> deviceSyncObservable) {
-                                    list.add(deviceSyncObservable);
-                                    return list;
-                                }
-                            })
-                            .flatMap(new Func1<ArrayList<Observable<DeviceSync>>, Observable<DeviceSync[]>>() {
-                                @Override
-                                public Observable<DeviceSync[]> call(ArrayList<Observable<DeviceSync>> observables) {
-                                    return Observable.mergeDelayError(observables)
-                                            .reduce(new ArrayList<DeviceSync>(), new Func2<ArrayList<DeviceSync>, DeviceSync, ArrayList<DeviceSync>>() {
-                                                @Override
-                                                public ArrayList<DeviceSync> call(ArrayList<DeviceSync> list, DeviceSync deviceSync) {
-                                                    list.add(deviceSync);
-                                                    return list;
-                                                }
-                                            })
-                                            .map(new Func1<ArrayList<DeviceSync>, DeviceSync[]>() {
-                                                @Override
-                                                public DeviceSync[] call(ArrayList<DeviceSync> list) {
-                                                    return list.toArray(new DeviceSync[list.size()]);
-                                                }
-                                            });
-                                }
-                            })
-                            ;
+                        return fetchMissingProfiles(deviceSyncs);
                     }
                 })
-                .doOnNext(new Action1<DeviceSync[]>() {
+                .map(new Func1<DeviceSync[], SnapshotSummary>() {
                     @Override
-                    public void call(DeviceSync[] deviceSyncs) {
-
-                        AfLog.i("DeviceCollection.onNext('snapshot'): deviceSync[].length=" + deviceSyncs.length);
-
-                        TreeSet<String> deviceSet = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
-                        for (DeviceSync ds : deviceSyncs) {
-                            deviceSet.add(ds.getDeviceId());
-                        }
-
-                        for (DeviceSync ds : deviceSyncs) {
-                            AfLog.i("DeviceCollection.onNext('snapshot'): deviceSync=" + ds.toString());
-                            addOrUpdate(ds);
-                        }
-
-                        ArrayList<DeviceModel> removedDevices;
-                        synchronized (mModelMap) {
-                            removedDevices = new ArrayList<>(mModelMap.size());
-                            Iterator<DeviceModel> iter = mModelMap.values().iterator();
+                    public SnapshotSummary call(DeviceSync[] deviceSyncs) {
+                        return reconcileSnapshot(deviceSyncs);
+                    }
+                })
+                .subscribe(
+                        new Action1<SnapshotSummary>() {    // onNext
+                            @Override
+                            public void call(SnapshotSummary summary) {
+                                AfLog.i("DeviceCollection.onNext('snapshot'): " + summary);
 
-                            while (iter.hasNext()) {
-                                DeviceModel dm = iter.next();
-                                if (!deviceSet.contains(dm.getId())) {
-                                    iter.remove();
-                                    removedDevices.add(dm);
-                                }
+                                mModelSnapshotSubject.onNext(DeviceCollection.this);
+                                mSnapshotSummarySubject.onNext(summary);
                             }
-                        }
+                        },
+                        new Action1<Throwable>() {   // onError
+                            @Override
+                            public void call(Throwable t) {
+                                AfLog.i("DeviceCollection.observeSnapshot.onError: e=" + t.toString());
+                                AfLog.e(t);
+                            }
+                        });
 
-                        // publish the deletes outside the synchronized block to avoid badness
-                        for (DeviceModel dm : removedDevices) {
-                            mModelDeleteSubject.onNext(dm);
-                        }
-                    }
-                })
+        mSnapshotSourceSubscription = mDeviceEventSource.observeSnapshot()
                 .subscribe(
                         new Action1<DeviceSync[]>() {    // onNext
                             @Override
-                            public void call(DeviceSync[] deviceSync) {
-
-                                for (DeviceSync ds : deviceSync) {
-                                    DeviceModel deviceModel = getDevice(ds.getDeviceId());
-                                    DeviceProfile profile = mDeviceProfileCollection.getProfileFromID(ds.profileId);
-                                    if (profile != null) {
-                                        deviceModel.setProfile(profile);
+                            public void call(DeviceSync[] deviceSyncs) {
+                                final int seq = deviceSyncs.length > 0 ? deviceSyncs[0].seq : 0;
+                                dispatch(seq, deviceSyncs, new Action1<DeviceSync[]>() {
+                                    @Override
+                                    public void call(DeviceSync[] deviceSyncs) {
+                                        mSnapshotQueue.onNext(deviceSyncs);
                                     }
-                                }
-
-                                mModelSnapshotSubject.onNext(DeviceCollection.this);
+                                });
                             }
                         },
                         new Action1<Throwable>() {   // onError
@@ -437,17 +1021,14 @@ public class DeviceCollection {
                             }
                         });
 
-        mAttributeChangeSubscription = mDeviceEventSource.observeAttributeChange().onBackpressureBuffer()
+        // These are subscribed without a buffer, whose drain would hand every event to one thread
+        // at a time; a StripedDeviceEventSource calls the handlers from each of its lanes at once.
+        mAttributeChangeSubscription = mDeviceEventSource.observeAttributeChange()
                 .subscribe(
                         new Action1<DeviceSync>() {    // onNext
                             @Override
                             public void call(DeviceSync deviceSync) {
-                                AfLog.i("DeviceCollection.observeUpdate.onNext: deviceSync=" + deviceSync.toString());
-                                DeviceModel deviceModel = getDevice(deviceSync.getDeviceId());
-                                if (deviceModel != null) {
-                                    deviceModel.update(deviceSync);
-                                    mModelUpdateSubject.onNext(deviceModel);
-                                }
+                                dispatch(deviceSync.seq, deviceSync, mAttributeChangeHandler);
                             }
                         },
                         new Action1<Throwable>() {   // onError
@@ -458,17 +1039,12 @@ public class DeviceCollection {
                             }
                         });
 
-        mStatusChangeSubscription = mDeviceEventSource.observeStatusChange().onBackpressureBuffer()
+        mStatusChangeSubscription = mDeviceEventSource.observeStatusChange()
                 .subscribe(
                         new Action1<DeviceState>() {    // onNext
                             @Override
                             public void call(DeviceState deviceState) {
-                            AfLog.i("DeviceCollection.observeState.onNext: deviceState=" + deviceState.toString());
-                                DeviceModel deviceModel = getDevice(deviceState.id);
-                                if (deviceModel != null) {
-                                    deviceModel.update(deviceState.status);
-                                    mModelUpdateSubject.onNext(deviceModel);
-                                }
+                                dispatch(0, deviceState, mStatusChangeHandler);
                             }
                         },
                         new Action1<Throwable>() {   // onError
@@ -479,16 +1055,12 @@ public class DeviceCollection {
                             }
                         });
 
-        mMuteSubscription = mDeviceEventSource.observeMute().onBackpressureBuffer()
+        mMuteSubscription = mDeviceEventSource.observeMute()
                 .subscribe(
                         new Action1<DeviceMute>() {    // onNext
                             @Override
                             public void call(DeviceMute deviceMute) {
-//                            AfLog.i("DeviceCollection.observeMute.onNext: deviceMute=" + deviceMute.toString());
-                                DeviceModel deviceModel = getDevice(deviceMute.id);
-                                if (deviceModel != null) {
-                                    deviceModel.onMute(deviceMute);
-                                }
+                                dispatch(0, deviceMute, mMuteHandler);
                             }
                         },
                         new Action1<Throwable>() {   // onError
@@ -499,15 +1071,12 @@ public class DeviceCollection {
                             }
                         });
 
-        mDeviceErrorSubscription = mDeviceEventSource.observeError().onBackpressureBuffer()
+        mDeviceErrorSubscription = mDeviceEventSource.observeError()
                 .subscribe(
                         new Action1<DeviceError>() {    // onNext
                             @Override
                             public void call(DeviceError deviceError) {
-                                DeviceModel deviceModel = getDevice(deviceError.id);
-                                if (deviceModel != null) {
-                                    deviceModel.onError(deviceError);
-                                }
+                                dispatch(0, deviceError, mDeviceErrorHandler);
                             }
                         },
                         new Action1<Throwable>() {   // onError
@@ -522,48 +1091,14 @@ public class DeviceCollection {
                 .subscribe(new Action1<InvalidateMessage>() {
                     @Override
                     public void call(InvalidateMessage im) {
-                        try {
-                            if (im.deviceId == null) {
-                                AfLog.e("Got invalidate without deviceId");
-                                return;
-                            }
-                            DeviceModel deviceModel = getDevice(im.deviceId);
-                            if (deviceModel == null) {
-                                AfLog.e("Got invalidate on unknown deviceId: " + im.deviceId);
-                                return;
-                            }
-
-                            switch (im.kind.toLowerCase(Locale.ROOT)) {
-                                case "profiles":
-                                    updateDeviceProfile(deviceModel, im.profileId);
-                                    break;
-
-                                case "location":
-                                    deviceModel.invalidateLocationState();
-                                    break;
-
-                                case "timezone":
-                                    deviceModel.invalidateTimeZone();
-                                    break;
-
-                                case "tags":
-                                    deviceModel.invalidateTag(im.deviceTagAction, im.deviceTag);
-                                    break;
-                            }
-                        } catch (Exception e) {
-                            AfLog.e("Unable to parse invalidate json: " + e);
-                        }
+                        dispatch(0, im, mInvalidateHandler);
                     }
                 });
 
         mOTASubscription = mDeviceEventSource.observeOTA().subscribe(new Action1<OTAInfo>() {
             @Override
             public void call(OTAInfo otaInfo) {
-                DeviceModel deviceModel = getDevice(otaInfo.id);
-                if (deviceModel != null) {
-                    AfLog.d("mDeviceEventSource.observeOTA state="+otaInfo.getState());
-                    deviceModel.onOTA(otaInfo);
-                }
+                dispatch(0, otaInfo, mOTAHandler);
             }
         });
 
@@ -583,7 +1118,119 @@ public class DeviceCollection {
         return this;
     }
 
+    // holds the event while start() is in progress, otherwise handles it right away
+    private <T> void dispatch(int seq, T event, Action1<T> handler) {
+        if (!mStartupEvents.offer(seq, event, handler)) {
+            handler.call(event);
+        }
+    }
+
+    private final Action1<DeviceSync> mAttributeChangeHandler = new Action1<DeviceSync>() {
+        @Override
+        public void call(DeviceSync deviceSync) {
+            AfLog.i("DeviceCollection.observeUpdate.onNext: deviceSync=" + deviceSync.toString());
+            DeviceModel deviceModel = getDevice(deviceSync.getDeviceId());
+            if (deviceModel != null) {
+                DeviceChange change = deviceModel.update(deviceSync);
+                (change != null ? mAttributeUpdatesApplied : mAttributeUpdatesSuppressed).incrementAndGet();
+                onUpdateDevice(deviceModel, change);
+            }
+        }
+    };
+
+    private final Action1<DeviceState> mStatusChangeHandler = new Action1<DeviceState>() {
+        @Override
+        public void call(DeviceState deviceState) {
+            AfLog.i("DeviceCollection.observeState.onNext: deviceState=" + deviceState.toString());
+            DeviceModel deviceModel = getDevice(deviceState.id);
+            if (deviceModel != null) {
+                DeviceChange change = deviceModel.update(deviceState.status);
+                (change != null ? mStatusUpdatesApplied : mStatusUpdatesSuppressed).incrementAndGet();
+                onUpdateDevice(deviceModel, change);
+            }
+        }
+    };
+
+    private final Action1<DeviceMute> mMuteHandler = new Action1<DeviceMute>() {
+        @Override
+        public void call(DeviceMute deviceMute) {
+            DeviceModel deviceModel = getDevice(deviceMute.id);
+            if (deviceModel != null) {
+                deviceModel.onMute(deviceMute);
+            }
+        }
+    };
+
+    private final Action1<DeviceError> mDeviceErrorHandler = new Action1<DeviceError>() {
+        @Override
+        public void call(DeviceError deviceError) {
+            DeviceModel deviceModel = getDevice(deviceError.id);
+            if (deviceModel != null) {
+                deviceModel.onError(deviceError);
+            }
+        }
+    };
+
+    private final Action1<InvalidateMessage> mInvalidateHandler = new Action1<InvalidateMessage>() {
+        @Override
+        public void call(InvalidateMessage im) {
+            try {
+                if (im.deviceId == null) {
+                    AfLog.e("Got invalidate without deviceId");
+                    return;
+                }
+                DeviceModel deviceModel = getDevice(im.deviceId);
+                if (deviceModel == null) {
+                    AfLog.e("Got invalidate on unknown deviceId: " + im.deviceId);
+                    return;
+                }
+
+                switch (im.kind.toLowerCase(Locale.ROOT)) {
+                    case "profiles":
+                        mDeviceProfileCollection.invalidateProfile(im.profileId);
+                        updateDeviceProfile(deviceModel, im.profileId);
+                        break;
+
+                    case "location":
+                        deviceModel.invalidateLocationState();
+                        break;
+
+                    case "timezone":
+                        deviceModel.invalidateTimeZone();
+                        break;
+
+                    case "tags":
+                        DeviceChange change = deviceModel.invalidateTag(im.deviceTagAction, im.deviceTag);
+                        mIndex.update(deviceModel);
+                        if (change != null) {
+                            mModelChangeSubject.onNext(change);
+                        }
+                        break;
+                }
+            } catch (Exception e) {
+                AfLog.e("Unable to parse invalidate json: " + e);
+            }
+        }
+    };
+
+    private final Action1<OTAInfo> mOTAHandler = new Action1<OTAInfo>() {
+        @Override
+        public void call(OTAInfo otaInfo) {
+            DeviceModel deviceModel = getDevice(otaInfo.id);
+            if (deviceModel != null) {
+                AfLog.d("mDeviceEventSource.observeOTA state="+otaInfo.getState());
+                deviceModel.onOTA(otaInfo);
+            }
+        }
+    };
+
     private void unsubscribeFromDeviceEventSource() {
+        mStartupEvents.close();
+        mCheckpointSubscription = RxUtils.safeUnSubscribe(mCheckpointSubscription);
+        mRefreshSubscription = RxUtils.safeUnSubscribe(mRefreshSubscription);
+        mProfileUpdateSubscription = RxUtils.safeUnSubscribe(mProfileUpdateSubscription);
+        mProfileRevalidateSubscription = RxUtils.safeUnSubscribe(mProfileRevalidateSubscription);
+        mSnapshotSourceSubscription = RxUtils.safeUnSubscribe(mSnapshotSourceSubscription);
         mSnapshotSubscription = RxUtils.safeUnSubscribe(mSnapshotSubscription);
         mAttributeChangeSubscription = RxUtils.safeUnSubscribe(mAttributeChangeSubscription);
         mStatusChangeSubscription = RxUtils.safeUnSubscribe(mStatusChangeSubscription);
@@ -595,28 +1242,263 @@ public class DeviceCollection {
     }
 
     private DeviceModel addOrUpdate(String deviceId, DeviceStatus ds, DeviceProfile deviceProfile) {
-        synchronized (mModelMap) {
-            DeviceModel deviceModel = mModelMap.get(deviceId);
-            if (deviceModel != null) {
-                deviceModel.update(ds);
-                mModelUpdateSubject.onNext(deviceModel);
+        DeviceModel deviceModel = mDevices.get(deviceId);
+        if (deviceModel != null) {
+            onUpdateDevice(deviceModel, deviceModel.update(ds));
+        } else {
+            deviceModel = add(deviceId, ds, deviceProfile);
+        }
+        return deviceModel;
+    }
+
+    private DeviceModel addOrUpdate(DeviceSync ds) {
+        DeviceModel deviceModel = mDevices.get(ds.getDeviceId());
+        if (deviceModel != null) {
+            onUpdateDevice(deviceModel, deviceModel.update(ds));
+        } else {
+            add(ds);
+        }
+        return deviceModel;
+    }
+
+    /**
+     * Brings the collection in line with a "snapshot" of devices. Each existing {@link DeviceModel}
+     * is compared against its snapshot entry and updated with only the attributes and state that
+     * actually differ; models that already match the snapshot are left alone and no update is
+     * emitted for them.
+     */
+    SnapshotSummary reconcileSnapshot(DeviceSync[] deviceSyncs) {
+        int created = 0;
+        int updated = 0;
+        int unchanged = 0;
+
+        // models seen in this snapshot; anything else in the collection is removed
+        Set<DeviceModel> seenModels = Collections.newSetFromMap(new IdentityHashMap<DeviceModel, Boolean>(deviceSyncs.length * 2));
+
+        for (DeviceSync ds : deviceSyncs) {
+            DeviceModel deviceModel = getDevice(ds.getDeviceId());
+            if (deviceModel == null) {
+                deviceModel = add(ds);
+                if (deviceModel != null) {
+                    seenModels.add(deviceModel);
+                    created++;
+                }
+                continue;
+            }
+
+            seenModels.add(deviceModel);
+            deviceModel.setStale(false);
+
+            DeviceSync delta = deviceModel.getSnapshotDelta(ds);
+            DeviceChange change = null;
+            if (delta != null) {
+                change = deviceModel.update(delta);
+            }
+
+            DeviceProfile profile = mDeviceProfileCollection.getProfileFromID(ds.profileId);
+            if (profile != null) {
+                deviceModel.setProfile(profile);
+            }
+
+            // a delta can still turn out to change nothing, e.g. a newer timestamp on the same value
+            if (change != null) {
+                onUpdateDevice(deviceModel, change);
+                updated++;
             } else {
-                deviceModel = add(deviceId, ds, deviceProfile);
+                // the profile may still have changed
+                mIndex.update(deviceModel);
+                unchanged++;
             }
-            return deviceModel;
         }
+
+        List<DeviceModel> removedDevices = mDevices.retainAll(seenModels);
+
+        // publish the deletes outside the registry lock to avoid badness
+        for (DeviceModel dm : removedDevices) {
+            mIndex.remove(dm);
+            mModelDeleteSubject.onNext(dm);
+        }
+
+        return new SnapshotSummary(created, updated, removedDevices.size(), unchanged);
     }
 
-    private DeviceModel addOrUpdate(DeviceSync ds) {
-        synchronized (mModelMap) {
-            DeviceModel deviceModel = mModelMap.get(ds.getDeviceId());
-            if (deviceModel != null) {
+    // Make sure we have a profile for any new devices in our local registry
+    // If not, fetch it before passing it on...
+    private Observable<DeviceSync[]> fetchMissingProfiles(final DeviceSync[] deviceSyncs) {
+        return Observable.from(deviceSyncs)
+            .map(new Func1<DeviceSync, Observable<DeviceSync>>() {
+                @Override
+                public Observable<DeviceSync> call(DeviceSync ds) {
+                    if (!mDeviceProfileCollection.hasProfile(ds.profileId)) {
+                        // devices sharing a profile share a single fetch
+                        return mDeviceProfileCollection.getDeviceProfile(ds.profileId)
+                                .onErrorResumeNext(Observable.<DeviceProfile>empty())
+                                .flatMap(new RxUtils.FlatMapper<DeviceProfile, DeviceSync>(Observable.just(ds)));
+                    }
+
+                    return Observable.just(ds);
+                }
+            })
+            .reduce(new ArrayList<Observable<DeviceSync>>(deviceSyncs.length), new Func2<ArrayList<Observable<DeviceSync>>, Observable<DeviceSync>, ArrayList<Observable<DeviceSync>>>() {
+                @Override
+                public ArrayList<Observable<DeviceSync>> call(ArrayList<Observable<DeviceSync>> list, Observable<DeviceSync> deviceSyncObservable) {
+                    list.add(deviceSyncObservable);
+                    return list;
+                }
+            })
+            .flatMap(new Func1<ArrayList<Observable<DeviceSync>>, Observable<DeviceSync[]>>() {
+                @Override
+                public Observable<DeviceSync[]> call(ArrayList<Observable<DeviceSync>> observables) {
+                    return Observable.mergeDelayError(observables)
+                            .reduce(new ArrayList<DeviceSync>(), new Func2<ArrayList<DeviceSync>, DeviceSync, ArrayList<DeviceSync>>() {
+                                @Override
+                                public ArrayList<DeviceSync> call(ArrayList<DeviceSync> list, DeviceSync deviceSync) {
+                                    list.add(deviceSync);
+                                    return list;
+                                }
+                            })
+                            .map(new Func1<ArrayList<DeviceSync>, DeviceSync[]>() {
+                                @Override
+                                public DeviceSync[] call(ArrayList<DeviceSync> list) {
+                                    return list.toArray(new DeviceSync[list.size()]);
+                                }
+                            });
+                }
+            });
+    }
+
+    /**
+     * Writes the state of every {@link DeviceModel} in the collection to the checkpoint file, if any.
+     */
+    void writeCheckpoint() {
+        final File file = mCheckpointFile;
+        if (file == null) {
+            return;
+        }
+
+        List<DeviceModel> models = mDevices.values();
+
+        // each model is copied under its own lock, so only immutable copies reach the encoder
+        ArrayList<DeviceSync> deviceSyncs = new ArrayList<>(models.size());
+        for (DeviceModel deviceModel : models) {
+            deviceSyncs.add(deviceModel.toDeviceSync());
+        }
+
+        try {
+            DeviceCheckpoint.write(file, deviceSyncs.toArray(new DeviceSync[deviceSyncs.size()]));
+        } catch (IOException e) {
+            AfLog.e("DeviceCollection.writeCheckpoint: " + e);
+        }
+    }
+
+    private DeviceSync[] readCheckpoint() {
+        final File file = mCheckpointFile;
+        if (file == null) {
+            return null;
+        }
+
+        try {
+            return DeviceCheckpoint.read(file);
+        } catch (IOException e) {
+            AfLog.e("DeviceCollection.readCheckpoint: discarding unreadable checkpoint: " + e);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    private void restoreCheckpoint(DeviceSync[] deviceSyncs) {
+        AfLog.i("DeviceCollection.restoreCheckpoint: deviceSync[].length=" + deviceSyncs.length);
+
+        for (DeviceSync ds : deviceSyncs) {
+            DeviceModel deviceModel = getDevice(ds.getDeviceId());
+            if (deviceModel == null) {
+                DeviceProfile profile = mDeviceProfileCollection.getProfileFromID(ds.profileId);
+                if (profile == null) {
+                    continue;
+                }
+
+                deviceModel = new DeviceModel(ds.getDeviceId(), profile, false, mAferoClient);
                 deviceModel.update(ds);
-                mModelUpdateSubject.onNext(deviceModel);
-            } else {
-                add(ds);
+                deviceModel.setStale(true);
+                add(deviceModel);
             }
-            return deviceModel;
+        }
+    }
+
+    private void refreshDevices() {
+        mRefreshSubscription = mAferoClient.getDevicesWithState()
+            .flatMap(new Func1<DeviceSync[], Observable<DeviceSync[]>>() {
+                @Override
+                public Observable<DeviceSync[]> call(DeviceSync[] deviceSyncs) {
+                    return fetchMissingProfiles(deviceSyncs);
+                }
+            })
+            .map(new Func1<DeviceSync[], SnapshotSummary>() {
+                @Override
+                public SnapshotSummary call(DeviceSync[] deviceSyncs) {
+                    return reconcileSnapshot(deviceSyncs);
+                }
+            })
+            .subscribe(
+                new Action1<SnapshotSummary>() {
+                    @Override
+                    public void call(SnapshotSummary summary) {
+                        AfLog.i("DeviceCollection.refreshDevices: " + summary);
+
+                        mModelSnapshotSubject.onNext(DeviceCollection.this);
+                        mSnapshotSummarySubject.onNext(summary);
+                    }
+                },
+                new Action1<Throwable>() {
+                    @Override
+                    public void call(Throwable t) {
+                        // devices stay stale until the DeviceEventSource delivers a snapshot
+                        AfLog.i("DeviceCollection.refreshDevices.onError: e=" + t.toString());
+                        AfLog.e(t);
+                    }
+                });
+    }
+
+    private void startCheckpointing() {
+        if (mCheckpointFile == null || mCheckpointIntervalMillis <= 0) {
+            return;
+        }
+
+        mCheckpointSubscription = Observable.interval(mCheckpointIntervalMillis, TimeUnit.MILLISECONDS, Schedulers.io())
+            .subscribe(new Action1<Long>() {
+                @Override
+                public void call(Long tick) {
+                    writeCheckpoint();
+                }
+            });
+    }
+
+    private void revalidateProfiles() {
+        mProfileUpdateSubscription = mDeviceProfileCollection.observeProfileUpdates()
+            .subscribe(new Action1<DeviceProfile>() {
+                @Override
+                public void call(DeviceProfile profile) {
+                    onProfileUpdate(profile);
+                }
+            });
+
+        mProfileRevalidateSubscription = mDeviceProfileCollection.fetchAccountProfiles()
+            .subscribe(new RxUtils.IgnoreResponseObserver<DeviceProfile[]>());
+    }
+
+    private void onProfileUpdate(DeviceProfile profile) {
+        ArrayList<DeviceModel> models = new ArrayList<>();
+        for (DeviceModel deviceModel : mDevices.values()) {
+            if (profile.getId().equals(deviceModel.getProfileID())) {
+                models.add(deviceModel);
+            }
+        }
+
+        for (DeviceModel deviceModel : models) {
+            DeviceChange change = deviceModel.setProfile(profile);
+            mModelProfileChangeSubject.onNext(deviceModel);
+            onUpdateDevice(deviceModel, change);
         }
     }
 
@@ -635,9 +1517,9 @@ public class DeviceCollection {
 
                 @Override
                 public void onNext(DeviceProfile profile) {
-                    deviceModel.setProfile(profile);
+                    DeviceChange change = deviceModel.setProfile(profile);
                     mModelProfileChangeSubject.onNext(deviceModel);
-                    mModelUpdateSubject.onNext(deviceModel);
+                    onUpdateDevice(deviceModel, change);
                 }
             });
     }
@@ -668,21 +1550,79 @@ public class DeviceCollection {
     }
 
     private DeviceModel add(DeviceModel deviceModel) {
-        synchronized (mModelMap) {
-            mModelMap.put(deviceModel.getId(), deviceModel);
+        DeviceModel existing = mDevices.putIfAbsent(deviceModel);
+        if (existing != null) {
+            // lost a race with another thread adding the same device
+            return existing;
         }
 
+        mIndex.update(deviceModel);
+        applyProfileSettings(deviceModel);
         mModelCreateSubject.onNext(deviceModel);
 
         return deviceModel;
     }
 
+    private void applyProfileSettings(DeviceModel deviceModel) {
+        final String profileId = deviceModel.getProfileID();
+        if (profileId == null) {
+            return;
+        }
+
+        final int[] pipeline = mWritePipelines.get(profileId);
+        if (pipeline != null) {
+            deviceModel.setWritePipeline(pipeline[0], pipeline[1]);
+        }
+
+        applyAttributeHistoryCapacities(deviceModel, profileId);
+    }
+
+    private void applyAttributeHistoryCapacities(DeviceModel deviceModel, String profileId) {
+        final Map<Integer, Integer> capacities = mHistoryCapacities.get(profileId);
+        if (capacities == null) {
+            return;
+        }
+
+        for (Map.Entry<Integer, Integer> entry : capacities.entrySet()) {
+            DeviceProfile.Attribute attribute = deviceModel.getAttributeById(entry.getKey());
+            if (attribute == null) {
+                continue;
+            }
+
+            try {
+                deviceModel.setAttributeHistoryCapacity(attribute, entry.getValue());
+            } catch (IllegalArgumentException e) {
+                // only possible if it was set before the profile was loaded; drop it so it's reported once
+                AfLog.w("DeviceCollection.setAttributeHistoryCapacity: profile " + profileId + ": " + e.getMessage());
+                capacities.remove(entry.getKey());
+            }
+        }
+    }
+
     private void onDeleteDevice(DeviceModel deviceModel) {
-        synchronized (mModelMap) {
-            mModelMap.remove(deviceModel.getId());
+        if (mDevices.remove(deviceModel)) {
+            mIndex.remove(deviceModel);
+            mModelDeleteSubject.onNext(deviceModel);
+        }
+    }
+
+    /**
+     * @param change what changed, or null if nothing did, in which case nothing is emitted
+     */
+    private void onUpdateDevice(DeviceModel deviceModel, DeviceChange change) {
+        if (change == null) {
+            return;
         }
 
-        mModelDeleteSubject.onNext(deviceModel);
+        // the model may have been removed while a profile fetch was in flight
+        if (mDevices.get(deviceModel.getId()) == deviceModel) {
+            mIndex.update(deviceModel);
+            if (change.isProfileChanged()) {
+                applyProfileSettings(deviceModel);
+            }
+        }
+        mModelUpdateSubject.onNext(deviceModel);
+        mModelChangeSubject.onNext(change);
     }
 
     private void throwIfNotStarted() {
@@ -691,6 +1631,85 @@ public class DeviceCollection {
         }
     }
 
+    private static final class StoredState {
+        final DeviceSync[] checkpoint;
+        final boolean hasStoredProfiles;
+
+        StoredState(DeviceSync[] checkpoint, boolean hasStoredProfiles) {
+            this.checkpoint = checkpoint;
+            this.hasStoredProfiles = hasStoredProfiles;
+        }
+    }
+
+    private static class StartupTimer {
+        private long mStartTime;
+        private volatile long mElapsedMillis = -1;
+
+        void begin() {
+            mStartTime = System.nanoTime();
+        }
+
+        void end() {
+            if (mElapsedMillis < 0) {
+                mElapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartTime);
+            }
+        }
+
+        long getMillis() {
+            return mElapsedMillis;
+        }
+
+        // times the phase up to its first item, which is when anything waiting on it can proceed
+        <T> Observable<T> time(final Observable<T> phase) {
+            return Observable.defer(new Func0<Observable<T>>() {
+                @Override
+                public Observable<T> call() {
+                    begin();
+                    return phase.doOnEach(new Action1<rx.Notification<? super T>>() {
+                        @Override
+                        public void call(rx.Notification<? super T> notification) {
+                            end();
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    private class StartTransformer implements Observable.Transformer<DeviceCollection, DeviceCollection> {
+        @Override
+        public Observable<DeviceCollection> call(Observable<DeviceCollection> observable) {
+            return observable
+                .doOnSubscribe(new Action0() {
+                    @Override
+                    public void call() {
+                        if (isStarted()) {
+                            throw new IllegalStateException("DeviceCollection has already been started");
+                        }
+                    }
+                })
+                .doOnUnsubscribe(new Action0() {
+                    @Override
+                    public void call() {
+                        //unsubscribeFromDeviceEventSource();
+                    }
+                })
+                .doOnError(new Action1<Throwable>() {
+                    @Override
+                    public void call(Throwable t) {
+                        unsubscribeFromDeviceEventSource();
+                    }
+                })
+                .doOnCompleted(new Action0() {
+                    @Override
+                    public void call() {
+                        mIsStarted = true;
+                        startCheckpointing();
+                    }
+                });
+        }
+    }
+
     private static class DeviceDisassociateAction extends RxUtils.WeakAction1<DeviceModel, DeviceCollection> {
 
         DeviceDisassociateAction(DeviceCollection dc) {
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Secondary indexes over the {@link DeviceModel}s in a {@link DeviceCollection}: by profile id,
+ * device type, tag key/value, availability and direct connection.
+ *
+ * <p>
+ * {@link #update(DeviceModel)} compares the model against what was last indexed for it and moves
+ * it between only the buckets that changed, so it costs a handful of field comparisons when
+ * nothing relevant changed, as with most attribute updates. Tags are only re-read when the
+ * model's {@link DeviceModel#getTagModificationCount() tag modification count} moves.
+ * An update that changes nothing indexed returns without taking the index's lock, so the event
+ * lanes don't contend on it; the rest are serialized. Lookups don't block.
+ * </p>
+ */
+final class DeviceIndex {
+
+    private static final String[] NO_TAGS = new String[0];
+
+    // buckets holding more than 1/SCAN_RATIO of the collection are scanned past
+    private static final int SCAN_RATIO = 4;
+
+    private final ConcurrentHashMap<String, Set<DeviceModel>> mByProfileId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<DeviceModel>> mByDeviceType = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<DeviceModel>> mByTag = new ConcurrentHashMap<>();
+    private final Set<DeviceModel> mAvailable = newBucket();
+    private final Set<DeviceModel> mUnavailable = newBucket();
+    private final Set<DeviceModel> mDirect = newBucket();
+    private final Set<DeviceModel> mNotDirect = newBucket();
+
+    // what each model was last indexed under; written under the index's lock
+    private final ConcurrentHashMap<DeviceModel, Entry> mEntries = new ConcurrentHashMap<>();
+
+    static String tagKey(String key, String value) {
+        return (key != null ? key : "") + '\u0000' + (value != null ? value : "");
+    }
+
+    /**
+     * Indexes a model for the first time, or re-indexes it after it has changed.
+     */
+    void update(DeviceModel deviceModel) {
+        final Entry entry = mEntries.get(deviceModel);
+        if (entry != null && entry.matches(deviceModel)) {
+            return;
+        }
+
+        reindex(deviceModel);
+    }
+
+    private synchronized void reindex(DeviceModel deviceModel) {
+        Entry entry = mEntries.get(deviceModel);
+        final boolean isNew = entry == null;
+        if (isNew) {
+            entry = new Entry();
+        }
+
+        final String profileId = deviceModel.getProfileID();
+        if (isNew || !equals(profileId, entry.profileId)) {
+            move(mByProfileId, entry.profileId, profileId, deviceModel, isNew);
+            entry.profileId = profileId;
+        }
+
+        final DeviceProfile profile = deviceModel.getProfile();
+        final String deviceType = profile != null ? profile.getDeviceType() : null;
+        if (isNew || !equals(deviceType, entry.deviceType)) {
+            move(mByDeviceType, entry.deviceType, deviceType, deviceModel, isNew);
+            entry.deviceType = deviceType;
+        }
+
+        final boolean isAvailable = deviceModel.isAvailable();
+        if (isNew || isAvailable != entry.isAvailable) {
+            (isAvailable ? mUnavailable : mAvailable).remove(deviceModel);
+            (isAvailable ? mAvailable : mUnavailable).add(deviceModel);
+            entry.isAvailable = isAvailable;
+        }
+
+        final boolean isDirect = deviceModel.isDirect();
+        if (isNew || isDirect != entry.isDirect) {
+            (isDirect ? mNotDirect : mDirect).remove(deviceModel);
+            (isDirect ? mDirect : mNotDirect).add(deviceModel);
+            entry.isDirect = isDirect;
+        }
+
+        final int tagModificationCount = deviceModel.getTagModificationCount();
+        if (isNew || tagModificationCount != entry.tagModificationCount) {
+            final String[] tagKeys = readTagKeys(deviceModel);
+            for (String tagKey : entry.tagKeys) {
+                if (!contains(tagKeys, tagKey)) {
+                    removeFromBucket(mByTag, tagKey, deviceModel);
+                }
+            }
+            for (String tagKey : tagKeys) {
+                if (!contains(entry.tagKeys, tagKey)) {
+                    bucket(mByTag, tagKey).add(deviceModel);
+                }
+            }
+            entry.tagKeys = tagKeys;
+            entry.tagModificationCount = tagModificationCount;
+        }
+
+        // a new entry is only published once it's complete
+        if (isNew) {
+            mEntries.put(deviceModel, entry);
+        }
+    }
+
+    synchronized void remove(DeviceModel deviceModel) {
+        final Entry entry = mEntries.remove(deviceModel);
+        if (entry == null) {
+            return;
+        }
+
+        removeFromBucket(mByProfileId, entry.profileId, deviceModel);
+        removeFromBucket(mByDeviceType, entry.deviceType, deviceModel);
+        (entry.isAvailable ? mAvailable : mUnavailable).remove(deviceModel);
+        (entry.isDirect ? mDirect : mNotDirect).remove(deviceModel);
+        for (String tagKey : entry.tagKeys) {
+            removeFromBucket(mByTag, tagKey, deviceModel);
+        }
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mByProfileId.clear();
+        mByDeviceType.clear();
+        mByTag.clear();
+        mAvailable.clear();
+        mUnavailable.clear();
+        mDirect.clear();
+        mNotDirect.clear();
+    }
+
+    /**
+     * @param all every model in the collection, scanned instead of the buckets when the query
+     *            isn't selective enough for them to help
+     * @return a new list of the models matching every criterion in the query
+     */
+    List<DeviceModel> find(DeviceQuery query, List<DeviceModel> all) {
+        Collection<DeviceModel> smallest = null;
+
+        if (query.mProfileId != null) {
+            smallest = smaller(smallest, lookup(mByProfileId, query.mProfileId));
+        }
+        if (query.mDeviceType != null) {
+            smallest = smaller(smallest, lookup(mByDeviceType, query.mDeviceType));
+        }
+        if (query.mIsAvailable != null) {
+            smallest = smaller(smallest, query.mIsAvailable ? mAvailable : mUnavailable);
+        }
+        if (query.mIsDirect != null) {
+            smallest = smaller(smallest, query.mIsDirect ? mDirect : mNotDirect);
+        }
+        for (String tagKey : query.getTagKeys()) {
+            smallest = smaller(smallest, lookup(mByTag, tagKey));
+        }
+
+        // walking a hash set costs several times what walking a list does, so past a point
+        // it's cheaper to scan everything
+        if (smallest == null || smallest.size() > all.size() / SCAN_RATIO) {
+            smallest = all;
+        }
+
+        // check the remaining criteria against each candidate, which is cheaper than probing
+        // the other buckets
+        ArrayList<DeviceModel> result = new ArrayList<>(smallest.size());
+        for (DeviceModel deviceModel : smallest) {
+            if (matches(deviceModel, query)) {
+                result.add(deviceModel);
+            }
+        }
+
+        return result;
+    }
+
+    private static Collection<DeviceModel> smaller(Collection<DeviceModel> a, Collection<DeviceModel> b) {
+        return a == null || b.size() < a.size() ? b : a;
+    }
+
+    private boolean matches(DeviceModel deviceModel, DeviceQuery query) {
+        if (query.mProfileId != null && !query.mProfileId.equals(deviceModel.getProfileID())) {
+            return false;
+        }
+        if (query.mDeviceType != null) {
+            final DeviceProfile profile = deviceModel.getProfile();
+            if (profile == null || !query.mDeviceType.equals(profile.getDeviceType())) {
+                return false;
+            }
+        }
+        if (query.mIsAvailable != null && query.mIsAvailable != deviceModel.isAvailable()) {
+            return false;
+        }
+        if (query.mIsDirect != null && query.mIsDirect != deviceModel.isDirect()) {
+            return false;
+        }
+        for (String tagKey : query.getTagKeys()) {
+            if (!lookup(mByTag, tagKey).contains(deviceModel)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Set<DeviceModel> newBucket() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<DeviceModel, Boolean>());
+    }
+
+    private static Set<DeviceModel> lookup(ConcurrentHashMap<String, Set<DeviceModel>> index, String key) {
+        Set<DeviceModel> bucket = index.get(key);
+        return bucket != null ? bucket : Collections.<DeviceModel>emptySet();
+    }
+
+    private static Set<DeviceModel> bucket(ConcurrentHashMap<String, Set<DeviceModel>> index, String key) {
+        Set<DeviceModel> bucket = index.get(key);
+        if (bucket == null) {
+            bucket = newBucket();
+            index.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    private static void removeFromBucket(ConcurrentHashMap<String, Set<DeviceModel>> index, String key, DeviceModel deviceModel) {
+        if (key == null) {
+            return;
+        }
+
+        Set<DeviceModel> bucket = index.get(key);
+        if (bucket != null) {
+            bucket.remove(deviceModel);
+            if (bucket.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static void move(ConcurrentHashMap<String, Set<DeviceModel>> index, String oldKey, String newKey, DeviceModel deviceModel, boolean isNew) {
+        if (!isNew) {
+            removeFromBucket(index, oldKey, deviceModel);
+        }
+        if (newKey != null) {
+            bucket(index, newKey).add(deviceModel);
+        }
+    }
+
+    private static String[] readTagKeys(DeviceModel deviceModel) {
+        final List<DeviceTagCollection.Tag> tags = deviceModel.getTagSnapshot();
+        if (tags.isEmpty()) {
+            return NO_TAGS;
+        }
+
+        final String[] tagKeys = new String[tags.size()];
+        for (int i = 0; i < tagKeys.length; ++i) {
+            final DeviceTagCollection.Tag tag = tags.get(i);
+            tagKeys[i] = tagKey(tag.getKey(), tag.getValue());
+        }
+        return tagKeys;
+    }
+
+    private static boolean contains(String[] keys, String key) {
+        // a device has only a few tags, so a scan beats hashing
+        for (String k : keys) {
+            if (k.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    // Each field is written after the buckets it describes, so a reader that finds the entry
+    // matching the model knows the buckets already do.
+    private static class Entry {
+        volatile String profileId;
+        volatile String deviceType;
+        volatile boolean isAvailable;
+        volatile boolean isDirect;
+        volatile int tagModificationCount;
+        String[] tagKeys = NO_TAGS;
+
+        boolean matches(DeviceModel deviceModel) {
+            final DeviceProfile profile = deviceModel.getProfile();
+            return deviceModel.getTagModificationCount() == tagModificationCount
+                    && deviceModel.isAvailable() == isAvailable
+                    && deviceModel.isDirect() == isDirect
+                    && DeviceIndex.equals(deviceModel.getProfileID(), profileId)
+                    && DeviceIndex.equals(profile != null ? profile.getDeviceType() : null, deviceType);
+        }
+    }
+}
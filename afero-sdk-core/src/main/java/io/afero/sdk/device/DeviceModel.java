@@ -10,8 +10,11 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
@@ -75,8 +78,10 @@ public final class DeviceModel {
     private class AttributeData {
         public AttributeValue mCurrentValue;
         public AttributeValue mPendingValue;
+        String mRawValue;
         long mExpectedUpdateTime;
         long mUpdatedTimeStamp;
+        volatile AttributeHistory mHistory;
     }
 
     @SuppressWarnings("WeakerAccess")
@@ -92,7 +97,7 @@ public final class DeviceModel {
 
     private final String mId;
     private final AferoClient mAferoClient;
-    private final HashMap<Integer,AttributeData> mAttributes = new HashMap<>();
+    private final AttributeMap<AttributeData> mAttributes = new AttributeMap<>();
 
     private String mName;
 
@@ -107,6 +112,8 @@ public final class DeviceModel {
     private final PublishSubject<DeviceModel> mProfileUpdateSubject = PublishSubject.create();
     private final PublishSubject<DeviceModel> mUpdateSubject = PublishSubject.create();
     private final Observable<DeviceModel> mUpdateObservable;
+    private final PublishSubject<DeviceChange> mChangeSubject = PublishSubject.create();
+    private final Observable<DeviceChange> mChangeObservable;
 
     private OTAWatcher mOTAWatcher;
     private Subscription mOTASubscription;
@@ -118,6 +125,7 @@ public final class DeviceModel {
     private boolean mIsLinked;
     private boolean mDirect;
     private boolean mIsVirtual;
+    private volatile boolean mIsStale;
     private final boolean mIsDeveloperDevice;
 
     private LocationState mLocationState = new LocationState(LocationState.State.INVALID);
@@ -125,16 +133,22 @@ public final class DeviceModel {
 
     private AferoError mLastError;
 
-    private DeviceTagCollection mTags;
+    private volatile DeviceTagCollection mTags;
 
     private ViewingDeviceNotifier mViewingDeviceNotifier;
 
+    private AttributeWriteChannel mWriteChannel;
+    private final WriteAckCorrelator mWriteAckCorrelator = new WriteAckCorrelator();
+    private volatile int mWriteBatchSize = AttributeWriter.REQUEST_BATCH_SIZE;
+    private volatile int mWritePipelineDepth = AttributeWriter.PIPELINE_DEPTH;
+
 
     private DeviceModel() {
         mId = null;
         mAferoClient = null;
         mIsDeveloperDevice = false;
         mUpdateObservable = null;
+        mChangeObservable = null;
     }
 
     DeviceModel(String deviceId, DeviceProfile profile, boolean isDeveloperDevice, AferoClient aferoClient) {
@@ -143,6 +157,7 @@ public final class DeviceModel {
         mIsDeveloperDevice = isDeveloperDevice;
         setProfile(profile);
         mUpdateObservable = mUpdateSubject.onBackpressureBuffer();
+        mChangeObservable = mChangeSubject.onBackpressureBuffer();
     }
 
     /**
@@ -215,6 +230,17 @@ public final class DeviceModel {
         return mIsVirtual;
     }
 
+    /**
+     * @return {@code true} if the device's state was restored from a local checkpoint and has not
+     * yet been confirmed by the Afero Cloud.
+     *
+     * @see DeviceCollection#setCheckpointFile(java.io.File, long, java.util.concurrent.TimeUnit)
+     */
+    @JsonProperty
+    public boolean isStale() {
+        return mIsStale;
+    }
+
     /**
      * @return {@code true} if the device is a development version such as Modulo-1 or Modulo-2
      */
@@ -391,6 +417,18 @@ public final class DeviceModel {
         return mUpdateObservable;
     }
 
+    /**
+     * Gets an {@link Observable} that emits a {@link DeviceChange} describing what changed whenever
+     * {@link #getUpdateObservable()} emits, and also when the device's tags or
+     * {@link DeviceProfile} change.
+     *
+     * @return {@link Observable}
+     */
+    @JsonIgnore
+    public Observable<DeviceChange> getChangeObservable() {
+        return mChangeObservable;
+    }
+
     /**
      * Gets an {@link Observable} that emits a {@link DeviceSync} whenever this device receives
      * one via the {@link DeviceEventSource}. {@link Observer#onNext(Object)} will be called *before*
@@ -451,21 +489,19 @@ public final class DeviceModel {
      */
     @JsonProperty
     public UpdateState getState() {
-        UpdateState updateState = UpdateState.NORMAL;
-        long now = Clock.getElapsedMillis();
-
-        for (AttributeData data : mAttributes.values()) {
-            if (data.mExpectedUpdateTime != 0) {
-                if (now > data.mExpectedUpdateTime) {
-                    updateState = UpdateState.UPDATE_TIMED_OUT;
-                } else {
-                    updateState = UpdateState.WAITING_FOR_UPDATE;
-                    break;
+        final long now = Clock.getElapsedMillis();
+        final UpdateState[] result = { UpdateState.NORMAL };
+
+        mAttributes.forEach(new AttributeMap.Visitor<AttributeData>() {
+            @Override
+            public void visit(int attrId, AttributeData data) {
+                if (data.mExpectedUpdateTime != 0 && result[0] != UpdateState.WAITING_FOR_UPDATE) {
+                    result[0] = now > data.mExpectedUpdateTime ? UpdateState.UPDATE_TIMED_OUT : UpdateState.WAITING_FOR_UPDATE;
                 }
             }
-        }
+        });
 
-        return updateState;
+        return result[0];
     }
 
     /**
@@ -499,7 +535,7 @@ public final class DeviceModel {
     public void clearLastError() {
         if (mLastError != null) {
             mLastError = null;
-            mUpdateSubject.onNext(this);
+            onChanged(DeviceChange.OTHER);
         }
     }
 
@@ -547,7 +583,54 @@ public final class DeviceModel {
     }
 
     /**
-     * Gets the local cached attribute value last received from the Afero Cloud.
+     * Sets how the {@link AttributeWriter}s of this device split their writes into requests and
+     * how many of those requests they issue at once. A device that accepts deeper pipelines
+     * writes many attributes, such as a full offline schedule, in fewer round trips.
+     *
+     * @param batchSize number of attributes per request
+     * @param pipelineDepth number of requests in flight at once
+     * @see AttributeWriter#batchSize(int)
+     * @see AttributeWriter#pipelineDepth(int)
+     * @see DeviceCollection#setWritePipeline(String, int, int)
+     */
+    public void setWritePipeline(int batchSize, int pipelineDepth) {
+        mWriteBatchSize = AttributeWriter.checkBatchSize(batchSize);
+        mWritePipelineDepth = AttributeWriter.checkPipelineDepth(pipelineDepth);
+    }
+
+    WriteAckCorrelator getWriteAckCorrelator() {
+        return mWriteAckCorrelator;
+    }
+
+    int getWriteBatchSize() {
+        return mWriteBatchSize;
+    }
+
+    int getWritePipelineDepth() {
+        return mWritePipelineDepth;
+    }
+
+    /**
+     * Gets the channel used to write this device's attributes from interactive controls, where
+     * each new value makes any not yet sent obsolete. Only the latest value for each attribute
+     * is sent once the write in flight finishes.
+     *
+     * @return {@link AttributeWriteChannel} for this device
+     * @see AttributeWriteChannel
+     */
+    public AttributeWriteChannel getAttributeWriteChannel() {
+        synchronized (this) {
+            if (mWriteChannel == null) {
+                mWriteChannel = new AttributeWriteChannel(this, AttributeWriter.DEFAULT_TIMEOUT);
+            }
+            return mWriteChannel;
+        }
+    }
+
+    /**
+     * Gets the local cached attribute value last received from the Afero Cloud, or the zero value
+     * of the attribute's type until the device first reports it. The value may be shared with the
+     * pending value and with other devices, so it can't be changed.
      *
      * @param attribute {@link DeviceProfile.Attribute}
      * @return {@link AttributeValue} of the specified Attribute.
@@ -559,7 +642,8 @@ public final class DeviceModel {
 
     /**
      * Gets the local cached attribute value that is in the process of being written to the physical
-     * device as a result of a call to {@link #writeAttributes()}.
+     * device as a result of a call to {@link #writeAttributes()}. Like the current value, it can't
+     * be changed.
      *
      * @param attribute {@link DeviceProfile.Attribute}
      * @return {@link AttributeValue} of the specified Attribute.
@@ -575,7 +659,9 @@ public final class DeviceModel {
     public void cancelAttributePendingValue(DeviceProfile.Attribute attribute) {
         AttributeData ad = getAttributeData(attribute);
         if (ad != null && ad.mCurrentValue != null) {
-            ad.mPendingValue = new AttributeValue(ad.mCurrentValue.toString(), attribute.getDataType());
+            ad.mPendingValue = ad.mCurrentValue.isImmutable()
+                    ? ad.mCurrentValue
+                    : new AttributeValue(ad.mCurrentValue.toString(), attribute.getDataType());
             ad.mExpectedUpdateTime = 0;
         }
     }
@@ -592,6 +678,52 @@ public final class DeviceModel {
         return ad != null ? ad.mUpdatedTimeStamp : 0;
     }
 
+    /**
+     * Starts, resizes or stops keeping the recent values of a numeric or boolean attribute. A new
+     * history starts with the current value; resizing discards the samples already recorded.
+     *
+     * @param attribute {@link DeviceProfile.Attribute} to keep history for
+     * @param capacity number of samples to keep, or zero to stop keeping history
+     * @return the {@link AttributeHistory}, or null if {@code capacity} is zero
+     * @throws IllegalArgumentException if the capacity is negative or the attribute is neither
+     * numeric nor boolean
+     * @see #getAttributeHistory(DeviceProfile.Attribute)
+     */
+    public AttributeHistory setAttributeHistoryCapacity(DeviceProfile.Attribute attribute, int capacity) {
+        AttributeHistory.checkCapacity(capacity);
+        AttributeHistory.checkAttribute(attribute);
+
+        synchronized (this) {
+            AttributeData ad = getAttributeData(attribute);
+            AttributeHistory history = ad.mHistory;
+            if (capacity == 0) {
+                ad.mHistory = null;
+                return null;
+            }
+            if (history != null && history.getCapacity() == capacity) {
+                return history;
+            }
+
+            history = new AttributeHistory(capacity);
+            if (ad.mRawValue != null) {
+                history.record(ad.mUpdatedTimeStamp != 0 ? ad.mUpdatedTimeStamp : System.currentTimeMillis(),
+                        ad.mCurrentValue.doubleValue());
+            }
+            ad.mHistory = history;
+            return history;
+        }
+    }
+
+    /**
+     * @param attribute {@link DeviceProfile.Attribute}
+     * @return the {@link AttributeHistory} of the attribute, or null if history isn't being kept for it
+     * @see #setAttributeHistoryCapacity(DeviceProfile.Attribute, int)
+     */
+    public AttributeHistory getAttributeHistory(DeviceProfile.Attribute attribute) {
+        AttributeData ad = attribute != null ? mAttributes.get(attribute.getId()) : null;
+        return ad != null ? ad.mHistory : null;
+    }
+
     /**
      * @return {@link ViewingDeviceNotifier} used to managed the viewing state of this DeviceModel
      */
@@ -720,14 +852,16 @@ public final class DeviceModel {
 
     @JsonProperty("attributes")
     public HashMap<Integer,AttributeDebug> getAttributeValues() {
-        HashMap<Integer,AttributeDebug> result = new HashMap<>();
-        for (Map.Entry<Integer, AttributeData> attrEntry : mAttributes.entrySet()) {
-            AttributeData data = attrEntry.getValue();
-            AttributeDebug ad = new AttributeDebug();
-            ad.current = data.mCurrentValue != null ? data.mCurrentValue.toString() : null;
-            ad.pending = data.mPendingValue != null ? data.mPendingValue.toString() : null;
-            result.put(attrEntry.getKey(), ad);
-        }
+        final HashMap<Integer,AttributeDebug> result = new HashMap<>();
+        mAttributes.forEach(new AttributeMap.Visitor<AttributeData>() {
+            @Override
+            public void visit(int attrId, AttributeData data) {
+                AttributeDebug ad = new AttributeDebug();
+                ad.current = data.mCurrentValue != null ? data.mCurrentValue.toString() : null;
+                ad.pending = data.mPendingValue != null ? data.mPendingValue.toString() : null;
+                result.put(attrId, ad);
+            }
+        });
         return result;
     }
 
@@ -781,7 +915,10 @@ public final class DeviceModel {
         return getDeviceTagCollection().getTagById(deviceTagId);
     }
 
-    synchronized void setProfile(DeviceProfile newProfile) {
+    /**
+     * @return the change, or null if the profile was already in use
+     */
+    synchronized DeviceChange setProfile(DeviceProfile newProfile) {
         DeviceProfile oldProfile = mProfile;
         mProfile = newProfile;
         mProfileId = newProfile.getId();
@@ -790,24 +927,36 @@ public final class DeviceModel {
         // tell if this is just a presentation update
         if (oldProfile != newProfile) {
             mProfileUpdateSubject.onNext(this);
+
+            DeviceChange change = new DeviceChange.Builder(this).set(DeviceChange.PROFILE).build();
+            mChangeSubject.onNext(change);
+            return change;
         }
+
+        return null;
     }
 
     void onWriteStart(Collection<WriteRequest> requests) {
         mLastError = null;
 
+        DeviceChange.Builder change = new DeviceChange.Builder(this);
         for (WriteRequest dr : requests) {
             AttributeData data = mAttributes.get(dr.attrId);
             DeviceProfile.Attribute attribute = getAttributeById(dr.attrId);
             if (data != null && attribute != null) {
-                data.mPendingValue = new AttributeValue(dr.value, attribute.getDataType());
+                data.mPendingValue = AttributeValue.valueOf(dr.value, attribute.getDataType());
                 data.mExpectedUpdateTime = Clock.getElapsedMillis() + WRITE_TIMEOUT_INTERVAL;
+                change.attribute(dr.attrId, DeviceChange.PENDING);
 
                 startWaitingForUpdate();
             }
         }
 
-        mUpdateSubject.onNext(this);
+        if (change.isEmpty()) {
+            // still reports the cleared error
+            change.set(DeviceChange.OTHER);
+        }
+        onChanged(change);
     }
 
     void onWriteResult(AttributeWriter.Result writeResult) {
@@ -833,72 +982,233 @@ public final class DeviceModel {
         return mAferoClient.postBatchAttributeWrite(this, reqArray, retryCount, statusCode);
     }
 
-    void update(DeviceSync deviceSync) {
+    /**
+     * @return what changed, or null if nothing did
+     */
+    DeviceChange update(DeviceSync deviceSync) {
 
         mDeviceSyncPreUpdateSubject.onNext(deviceSync);
 
         final boolean hasValidValues = deviceSync.hasValidAttributeValues();
-        boolean hasChanged = false;
+        final DeviceChange.Builder change = new DeviceChange.Builder(this);
+        final boolean hasChanged;
 
-        if (hasValidValues && deviceSync.attributes != null) {
-            hasChanged = true;
-            for (DeviceSync.AttributeEntry ae : deviceSync.attributes) {
-                updateAttributeValues(ae);
+        // the state is changed under the lock so toDeviceSync() never sees half an update
+        synchronized (this) {
+            // values equal to what we already have are not changes
+            if (hasValidValues && deviceSync.attributes != null) {
+                for (DeviceSync.AttributeEntry ae : deviceSync.attributes) {
+                    updateAttributeValues(ae, change);
+                }
+            }
+
+            if (hasValidValues && deviceSync.attribute != null) {
+                updateAttributeValues(deviceSync.attribute, change);
+            }
+
+            if (deviceSync.profileId != null && !deviceSync.profileId.equals(mProfileId)) {
+                change.set(DeviceChange.PROFILE);
+                mProfileId = deviceSync.profileId;
+            }
+
+            if (deviceSync.friendlyName != null && !deviceSync.friendlyName.equals(mName)) {
+                change.set(DeviceChange.NAME);
+                mName = deviceSync.friendlyName;
+            }
+
+            if (deviceSync.status != null && updateStatus(deviceSync.status)) {
+                change.set(DeviceChange.STATUS);
+            }
+
+            if (deviceSync.virtual != mIsVirtual) {
+                change.set(DeviceChange.OTHER);
+                mIsVirtual = deviceSync.virtual;
+            }
+
+            // tags and time zone have their own observables, so they don't count as an update
+            hasChanged = !change.isEmpty();
+
+            if (deviceSync.deviceTags != null) {
+                final int tagModificationCount = getTagModificationCount();
+                setDeviceTags(deviceSync.deviceTags);
+                if (getTagModificationCount() != tagModificationCount) {
+                    change.set(DeviceChange.TAGS);
+                }
+            }
+
+            if (deviceSync.timezone != null && deviceSync.timezone.timezone != null) {
+                mTimeZoneValue.setTimeZone(TimeZone.getTimeZone(deviceSync.timezone.timezone));
             }
         }
 
-        if (hasValidValues && deviceSync.attribute != null) {
-            hasChanged = true;
-            updateAttributeValues(deviceSync.attribute);
+        mDeviceSyncPostUpdateSubject.onNext(deviceSync);
+
+        if (deviceSync.hasRequestId()) {
+            mWriteAckCorrelator.onAck(deviceSync.requestId, AttributeWriter.Result.Status.SUCCESS);
         }
 
-        if (deviceSync.profileId != null) {
-            hasChanged = true;
-            mProfileId = deviceSync.profileId;
+        final DeviceChange result;
+        if (hasChanged) {
+            result = onChanged(change);
+
+            runDataMigrations();
+        } else {
+            result = change.build();
+            if (result != null) {
+                mChangeSubject.onNext(result);
+            }
         }
 
-        if (deviceSync.friendlyName != null) {
-            hasChanged = true;
-            mName = deviceSync.friendlyName;
+        return result;
+    }
+
+    void setStale(boolean isStale) {
+        mIsStale = isStale;
+    }
+
+    /**
+     * Safe to call from any thread: the model's state is only changed under its lock, so the
+     * result is a consistent copy that shares nothing mutable with the model.
+     *
+     * @return a {@link DeviceSync} describing the current state of the model, from which an
+     * equivalent model can be rebuilt via {@link #update(DeviceSync)}.
+     */
+    synchronized DeviceSync toDeviceSync() {
+        DeviceSync ds = new DeviceSync();
+        ds.deviceId = mId;
+        ds.profileId = mProfileId;
+        ds.friendlyName = mName;
+        ds.virtual = mIsVirtual;
+
+        ds.status = new DeviceStatus();
+        ds.status.rssi = mRSSI;
+        ds.status.linked = mIsLinked;
+        ds.status.direct = mDirect;
+        if (mAvailableState != AvailableState.NONE) {
+            ds.status.available = mAvailableState == AvailableState.AVAILABLE;
         }
 
-        if (deviceSync.status != null) {
-            hasChanged = updateStatus(deviceSync.status) || hasChanged;
+        final ArrayList<DeviceSync.AttributeEntry> attributes = new ArrayList<>(mAttributes.size());
+        mAttributes.forEach(new AttributeMap.Visitor<AttributeData>() {
+            @Override
+            public void visit(int attrId, AttributeData data) {
+                // only values that came from the cloud; placeholders created for reads have no raw value
+                if (data.mRawValue != null) {
+                    DeviceSync.AttributeEntry ae = new DeviceSync.AttributeEntry(attrId, data.mRawValue);
+                    ae.updatedTimestamp = data.mUpdatedTimeStamp;
+                    attributes.add(ae);
+                }
+            }
+        });
+        ds.attributes = attributes.toArray(new DeviceSync.AttributeEntry[attributes.size()]);
+
+        if (mTags != null) {
+            ArrayList<DeviceTag> tags = new ArrayList<>();
+            for (DeviceTagCollection.Tag tag : mTags.getTagSnapshot()) {
+                tags.add(new DeviceTag(tag.getDeviceTag()));
+            }
+            ds.deviceTags = tags.toArray(new DeviceTag[tags.size()]);
         }
 
-        if (deviceSync.virtual != mIsVirtual) {
-            hasChanged = true;
-            mIsVirtual = deviceSync.virtual;
+        if (mTimeZoneValue.getState() == TimeZoneValue.State.SET && mTimeZoneValue.getTimeZone() != null) {
+            ds.timezone = ds.new DeviceTimeZone();
+            ds.timezone.timezone = mTimeZoneValue.getTimeZone().getID();
         }
 
-        if (deviceSync.deviceTags != null) {
-            setDeviceTags(deviceSync.deviceTags);
+        return ds;
+    }
+
+    /**
+     * Compares a snapshot entry for this device against the current state of the model.
+     *
+     * @param snapshot {@link DeviceSync} for this device taken from a peripheral list snapshot
+     * @return a {@link DeviceSync} containing only the parts of the snapshot that differ from the
+     * current state, suitable for passing to {@link #update(DeviceSync)}; or null if the snapshot
+     * would not change anything
+     */
+    DeviceSync getSnapshotDelta(DeviceSync snapshot) {
+        DeviceSync delta = null;
+
+        if (snapshot.hasValidAttributeValues() && snapshot.attributes != null) {
+            ArrayList<DeviceSync.AttributeEntry> changedAttributes = null;
+
+            for (DeviceSync.AttributeEntry ae : snapshot.attributes) {
+                if (isAttributeChanged(ae)) {
+                    if (changedAttributes == null) {
+                        changedAttributes = new ArrayList<>();
+                    }
+                    changedAttributes.add(ae);
+                }
+            }
+
+            if (changedAttributes != null) {
+                delta = newSnapshotDelta(snapshot);
+                delta.attributes = changedAttributes.toArray(new DeviceSync.AttributeEntry[changedAttributes.size()]);
+            }
         }
 
-        if (deviceSync.timezone != null && deviceSync.timezone.timezone != null) {
-            mTimeZoneValue.setTimeZone(TimeZone.getTimeZone(deviceSync.timezone.timezone));
+        if (snapshot.profileId != null && !snapshot.profileId.equals(mProfileId)) {
+            delta = delta != null ? delta : newSnapshotDelta(snapshot);
+            delta.profileId = snapshot.profileId;
         }
 
-        mDeviceSyncPostUpdateSubject.onNext(deviceSync);
+        if (snapshot.friendlyName != null && !snapshot.friendlyName.equals(mName)) {
+            delta = delta != null ? delta : newSnapshotDelta(snapshot);
+            delta.friendlyName = snapshot.friendlyName;
+        }
 
-        if (hasChanged) {
-            mUpdateSubject.onNext(this);
+        if (snapshot.status != null) {
+            DeviceStatus status = getStatusDelta(snapshot.status);
+            if (status != null) {
+                delta = delta != null ? delta : newSnapshotDelta(snapshot);
+                delta.status = status;
+            }
+        }
+
+        if (snapshot.virtual != mIsVirtual) {
+            delta = delta != null ? delta : newSnapshotDelta(snapshot);
+        }
+
+        if (snapshot.deviceTags != null && !getDeviceTagCollection().matches(snapshot.deviceTags)) {
+            delta = delta != null ? delta : newSnapshotDelta(snapshot);
+            delta.deviceTags = snapshot.deviceTags;
         }
 
-        runDataMigrations();
+        if (snapshot.timezone != null && snapshot.timezone.timezone != null) {
+            TimeZone timeZone = mTimeZoneValue.getState() == TimeZoneValue.State.SET ? mTimeZoneValue.getTimeZone() : null;
+            if (timeZone == null || !timeZone.getID().equals(snapshot.timezone.timezone)) {
+                delta = delta != null ? delta : newSnapshotDelta(snapshot);
+                delta.timezone = snapshot.timezone;
+            }
+        }
+
+        return delta;
     }
 
-    void update(DeviceStatus deviceStatus) {
-        if (updateStatus(deviceStatus)) {
-            mUpdateSubject.onNext(this);
+    /**
+     * @return what changed, or null if nothing did
+     */
+    DeviceChange update(DeviceStatus deviceStatus) {
+        final boolean hasChanged;
+        synchronized (this) {
+            hasChanged = updateStatus(deviceStatus);
+        }
+
+        if (hasChanged) {
+            DeviceChange change = onChanged(DeviceChange.STATUS);
 
             runDataMigrations();
+
+            return change;
         }
+
+        return null;
     }
 
     void onError(DeviceError deviceError) {
         mLastError = deviceError;
         mErrorSubject.onNext(deviceError);
+        mWriteAckCorrelator.onAck(deviceError.requestId, AttributeWriter.Result.Status.FAILURE);
     }
 
     void onMute(DeviceMute deviceMute) {
@@ -912,11 +1222,38 @@ public final class DeviceModel {
 
     void invalidateTimeZone() {
         mTimeZoneValue.invalidate();
-        mUpdateSubject.onNext(this);
+        onChanged(DeviceChange.OTHER);
     }
 
-    void invalidateTag(String deviceTagAction, DeviceTag deviceTag) {
+    /**
+     * @return the change to the tags, or null if there was none
+     */
+    DeviceChange invalidateTag(String deviceTagAction, DeviceTag deviceTag) {
+        final int tagModificationCount = getTagModificationCount();
         getDeviceTagCollection().invalidateTag(deviceTagAction, deviceTag);
+        if (getTagModificationCount() == tagModificationCount) {
+            return null;
+        }
+
+        DeviceChange change = new DeviceChange.Builder(this).set(DeviceChange.TAGS).build();
+        mChangeSubject.onNext(change);
+        return change;
+    }
+
+    /**
+     * @see DeviceTagCollection#getTagSnapshot()
+     */
+    List<DeviceTagCollection.Tag> getTagSnapshot() {
+        final DeviceTagCollection tags = mTags;
+        return tags != null ? tags.getTagSnapshot() : Collections.<DeviceTagCollection.Tag>emptyList();
+    }
+
+    /**
+     * @see DeviceTagCollection#getModificationCount()
+     */
+    int getTagModificationCount() {
+        final DeviceTagCollection tags = mTags;
+        return tags != null ? tags.getModificationCount() : 0;
     }
 
     void onOTA(OTAInfo otaInfo) {
@@ -932,7 +1269,7 @@ public final class DeviceModel {
                         }
                     })
                     .subscribe();
-            mUpdateSubject.onNext(this);
+            onChanged(DeviceChange.OTHER);
         }
 
         if (mOTAWatcher != null) {
@@ -947,7 +1284,7 @@ public final class DeviceModel {
 
         if (mOTAWatcher != null) {
             mOTAWatcher = null;
-            mUpdateSubject.onNext(this);
+            onChanged(DeviceChange.OTHER);
         }
     }
 
@@ -986,11 +1323,11 @@ public final class DeviceModel {
     private void setLocationState(LocationState locationState) {
         mLocationState = locationState;
         if (mLocationState.getState().equals(LocationState.State.VALID)) {
-            mUpdateSubject.onNext(this);
+            onChanged(DeviceChange.OTHER);
         }
     }
 
-    private void updateAttributeValues(DeviceSync.AttributeEntry ae) {
+    private void updateAttributeValues(DeviceSync.AttributeEntry ae, DeviceChange.Builder change) {
         try {
             AttributeData data = mAttributes.get(ae.id);
             if (data == null) {
@@ -1000,21 +1337,113 @@ public final class DeviceModel {
 
             DeviceProfile.Attribute attribute = getAttributeById(ae.id);
             if (attribute != null && ae.value != null) {
-                data.mCurrentValue = new AttributeValue(ae.value, attribute.getDataType());
-                data.mPendingValue = new AttributeValue(ae.value, attribute.getDataType());
-
                 if (ae.updatedTimestamp != 0) {
                     data.mUpdatedTimeStamp = ae.updatedTimestamp;
                 }
+
+                if (ae.value.equals(data.mRawValue)) {
+                    // a re-report of the value we have, which only matters if it settles a write
+                    if (data.mExpectedUpdateTime != 0 || data.mPendingValue != data.mCurrentValue) {
+                        data.mPendingValue = data.mCurrentValue;
+                        change.attribute(ae.id, DeviceChange.PENDING);
+                    }
+                } else {
+                    // shared and immutable; pending only diverges from current when a write starts
+                    final AttributeValue value = AttributeValue.valueOf(ae.value, attribute.getDataType());
+                    data.mCurrentValue = value;
+                    data.mPendingValue = value;
+                    data.mRawValue = ae.value;
+                    change.attribute(ae.id, DeviceChange.ATTRIBUTES);
+                }
+
+                // every report is a sample, even one that doesn't change the value
+                final AttributeHistory history = data.mHistory;
+                if (history != null) {
+                    history.record(ae.updatedTimestamp != 0 ? ae.updatedTimestamp : System.currentTimeMillis(),
+                            data.mCurrentValue.doubleValue());
+                }
             }
             data.mExpectedUpdateTime = 0;
 
-            mLastError = null;
+            if (mLastError != null) {
+                mLastError = null;
+                change.set(DeviceChange.OTHER);
+            }
         } catch (Exception e) {
             AfLog.e(e);
         }
     }
 
+    private boolean isAttributeChanged(DeviceSync.AttributeEntry ae) {
+        if (ae.value == null) {
+            return false;
+        }
+
+        DeviceProfile.Attribute attribute = getAttributeById(ae.id);
+        if (attribute == null) {
+            return false;
+        }
+
+        // never reported; the current value is at most a placeholder
+        AttributeData data = mAttributes.get(ae.id);
+        if (data == null || data.mRawValue == null) {
+            return true;
+        }
+
+        // a write is in flight; let the snapshot settle it
+        if (data.mExpectedUpdateTime != 0) {
+            return true;
+        }
+
+        if (ae.updatedTimestamp != 0 && ae.updatedTimestamp != data.mUpdatedTimeStamp) {
+            return true;
+        }
+
+        if (ae.value.equals(data.mRawValue)) {
+            return false;
+        }
+
+        // same value in a different encoding, e.g. "0x0A" vs "10"
+        return !AttributeValue.valueOf(ae.value, attribute.getDataType()).toString().equals(data.mCurrentValue.toString());
+    }
+
+    private DeviceStatus getStatusDelta(DeviceStatus deviceStatus) {
+        DeviceStatus delta = null;
+
+        if (deviceStatus.rssi != null && deviceStatus.rssi != mRSSI) {
+            delta = new DeviceStatus();
+            delta.rssi = deviceStatus.rssi;
+        }
+
+        if (deviceStatus.linked != null && deviceStatus.linked != mIsLinked) {
+            delta = delta != null ? delta : new DeviceStatus();
+            delta.linked = deviceStatus.linked;
+        }
+
+        if (deviceStatus.available != null &&
+                mAvailableState != (deviceStatus.available ? AvailableState.AVAILABLE : AvailableState.UNAVAILABLE)) {
+            delta = delta != null ? delta : new DeviceStatus();
+            delta.available = deviceStatus.available;
+        }
+
+        if (deviceStatus.direct != null && deviceStatus.direct != mDirect) {
+            delta = delta != null ? delta : new DeviceStatus();
+            delta.direct = deviceStatus.direct;
+        }
+
+        return delta;
+    }
+
+    private static DeviceSync newSnapshotDelta(DeviceSync snapshot) {
+        DeviceSync delta = new DeviceSync();
+        delta.deviceId = snapshot.deviceId;
+        delta.seq = snapshot.seq;
+        delta.createdTimestamp = snapshot.createdTimestamp;
+        delta.virtual = snapshot.virtual;
+        delta.state = snapshot.state;
+        return delta;
+    }
+
     private void startWaitingForUpdate() {
         mPendingWriteSubscription = Observable.just(this)
             .delay(WRITE_TIMEOUT_INTERVAL, TimeUnit.MILLISECONDS)
@@ -1023,28 +1452,57 @@ public final class DeviceModel {
 
     private void onUpdateTimeout() {
         MetricUtil.getInstance().purgeTimedOutWrites();
+
+        final long now = Clock.getElapsedMillis();
+        final DeviceChange.Builder change = new DeviceChange.Builder(this);
+        mAttributes.forEach(new AttributeMap.Visitor<AttributeData>() {
+            @Override
+            public void visit(int attrId, AttributeData data) {
+                if (data.mExpectedUpdateTime != 0 && now > data.mExpectedUpdateTime) {
+                    change.attribute(attrId, DeviceChange.PENDING);
+                }
+            }
+        });
+
+        if (change.isEmpty()) {
+            change.set(DeviceChange.PENDING);
+        }
+        onChanged(change);
+    }
+
+    private DeviceChange onChanged(int flags) {
+        return onChanged(new DeviceChange.Builder(this).set(flags));
+    }
+
+    private DeviceChange onChanged(DeviceChange.Builder change) {
+        DeviceChange result = change.build();
         mUpdateSubject.onNext(this);
+        mChangeSubject.onNext(result);
+        return result;
     }
 
     private boolean updateStatus(DeviceStatus deviceStatus) {
         boolean hasChanged = false;
 
-        if (deviceStatus.rssi != null) {
+        if (deviceStatus.rssi != null && deviceStatus.rssi != mRSSI) {
             mRSSI = deviceStatus.rssi;
             hasChanged = true;
         }
 
-        if (deviceStatus.linked != null) {
+        if (deviceStatus.linked != null && deviceStatus.linked != mIsLinked) {
             mIsLinked = deviceStatus.linked;
             hasChanged = true;
         }
 
         if (deviceStatus.available != null) {
-            mAvailableState = deviceStatus.available ? AvailableState.AVAILABLE : AvailableState.UNAVAILABLE;
-            hasChanged = true;
+            AvailableState availableState = deviceStatus.available ? AvailableState.AVAILABLE : AvailableState.UNAVAILABLE;
+            if (availableState != mAvailableState) {
+                mAvailableState = availableState;
+                hasChanged = true;
+            }
         }
 
-        if (deviceStatus.direct != null) {
+        if (deviceStatus.direct != null && deviceStatus.direct != mDirect) {
             mDirect = deviceStatus.direct;
             hasChanged = true;
         }
@@ -1060,21 +1518,41 @@ public final class DeviceModel {
         final int attrId = attribute.getId();
         AttributeData data = mAttributes.get(attrId);
         if (data == null) {
-            data = new AttributeData();
-            data.mCurrentValue = new AttributeValue(attribute.getDataType());
-            data.mPendingValue = new AttributeValue(attribute.getDataType());
-            mAttributes.put(attrId, data);
+            synchronized (this) {
+                data = mAttributes.get(attrId);
+                if (data == null) {
+                    data = new AttributeData();
+                    data.mCurrentValue = zeroValueOf(attribute.getDataType());
+                    data.mPendingValue = data.mCurrentValue;
+                    mAttributes.put(attrId, data);
+                }
+            }
         }
 
         return data;
     }
 
-    private DeviceTagCollection getDeviceTagCollection() {
-        if (mTags == null) {
-            mTags = new DeviceTagCollection(this);
+    // stands in, shared and immutable like any reported value, until the device first reports
+    private static AttributeValue zeroValueOf(AttributeValue.DataType dataType) {
+        switch (dataType) {
+            case UNKNOWN:
+            case UTF8S:
+            case BYTES:
+                return AttributeValue.valueOf("", dataType);
+
+            default:
+                return AttributeValue.valueOf("0", dataType);
         }
+    }
+
+    private DeviceTagCollection getDeviceTagCollection() {
+        synchronized (this) {
+            if (mTags == null) {
+                mTags = new DeviceTagCollection(this);
+            }
 
-        return mTags;
+            return mTags;
+        }
     }
 
     private static class UpdateTimeoutAction extends RxUtils.WeakAction1<DeviceModel, DeviceModel> {
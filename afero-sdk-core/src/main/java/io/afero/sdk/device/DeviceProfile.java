@@ -37,7 +37,7 @@ public class DeviceProfile {
 
     private Service[] mServices;
 
-    private final HashMap<Integer,Attribute> mAttributeMap = new HashMap<>();
+    private final AttributeMap<Attribute> mAttributeMap = new AttributeMap<>();
 
     private HashMap<String, Presentation> mPresentationOverrides;
 
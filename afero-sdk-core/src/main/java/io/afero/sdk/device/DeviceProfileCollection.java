@@ -4,62 +4,341 @@
 
 package io.afero.sdk.device;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.afero.sdk.client.afero.AferoClient;
+import io.afero.sdk.client.afero.ProfileJsonSource;
+import io.afero.sdk.log.AfLog;
+import io.afero.sdk.utils.JSONUtils;
+import io.afero.sdk.utils.RxUtils;
 import rx.Observable;
+import rx.functions.Action0;
 import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.subjects.AsyncSubject;
 import rx.subjects.PublishSubject;
+import rx.subjects.SerializedSubject;
+import rx.subjects.Subject;
 
 class DeviceProfileCollection {
 
+    static final int DEFAULT_MAX_CONCURRENT_FETCHES = 4;
+
     private final AferoClient mAferoClient;
     private final HashMap<String, DeviceProfile> mProfiles = new HashMap<>();
+    private final HashMap<String, Observable<DeviceProfile>> mInFlightFetches = new HashMap<>();
     private final PublishSubject<DeviceProfile> mProfileSubject = PublishSubject.create();
+    private final PublishSubject<DeviceProfile> mProfileUpdateSubject = PublishSubject.create();
+    private volatile ProfileStore mProfileStore;
+
+    private final Subject<Observable<DeviceProfile>, Observable<DeviceProfile>> mFetchQueue =
+            new SerializedSubject<>(PublishSubject.<Observable<DeviceProfile>>create());
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+    private final AtomicLong mFetchCount = new AtomicLong();
 
     DeviceProfileCollection(AferoClient aferoClient) {
+        this(aferoClient, DEFAULT_MAX_CONCURRENT_FETCHES);
+    }
+
+    DeviceProfileCollection(AferoClient aferoClient, int maxConcurrentFetches) {
         mAferoClient = aferoClient;
+
+        // every network fetch goes through this queue, which runs at most maxConcurrentFetches at once
+        mFetchQueue
+            .onBackpressureBuffer()
+            .flatMap(new Func1<Observable<DeviceProfile>, Observable<DeviceProfile>>() {
+                @Override
+                public Observable<DeviceProfile> call(Observable<DeviceProfile> fetch) {
+                    return fetch;
+                }
+            }, maxConcurrentFetches)
+            .subscribe(new RxUtils.IgnoreResponseObserver<DeviceProfile>());
+    }
+
+    void setProfileStore(ProfileStore store) {
+        mProfileStore = store;
     }
 
-    private DeviceProfile addProfile(DeviceProfile profile) {
+    boolean hasProfileStore() {
+        return mProfileStore != null;
+    }
+
+    boolean hasStoredProfiles() {
+        final ProfileStore store = mProfileStore;
+        return store != null && !store.isEmpty();
+    }
+
+    // json is the profile's source JSON if it was fetched for the ProfileStore, otherwise null
+    private DeviceProfile addProfile(DeviceProfile profile, byte[] json) {
+        final String profileId = profile.getId();
+        final ProfileStore store = json != null ? mProfileStore : null;
+        boolean isChanged = true;
+        if (store != null) {
+            try {
+                isChanged = store.save(profile, json);
+            } catch (IOException e) {
+                // can't tell whether it changed, so take the fetched profile
+                AfLog.w("DeviceProfileCollection.addProfile: unable to store " + profileId + " - " + e);
+            }
+        }
+
+        DeviceProfile oldProfile;
         synchronized (mProfiles) {
-            mProfiles.put(profile.getId(), profile);
+            oldProfile = mProfiles.get(profileId);
+            if (oldProfile != null && !isChanged) {
+                // identical to what we already have; keep the instance devices are using
+                profile = oldProfile;
+            } else {
+                mProfiles.put(profileId, profile);
+            }
         }
 
         mProfileSubject.onNext(profile);
 
+        if (oldProfile != null && oldProfile != profile && store != null) {
+            mProfileUpdateSubject.onNext(profile);
+        }
+
         return profile;
     }
 
     DeviceProfile getProfileFromID(String profileId) {
         synchronized (mProfiles) {
-            return mProfiles.get(profileId);
+            DeviceProfile profile = mProfiles.get(profileId);
+            if (profile != null || mProfileStore == null) {
+                return profile;
+            }
+        }
+
+        return loadStoredProfile(profileId);
+    }
+
+    /**
+     * Drops the profile from the collection and the {@link ProfileStore}, e.g. when the service
+     * reports that it has changed.
+     */
+    void invalidateProfile(String profileId) {
+        synchronized (mProfiles) {
+            mProfiles.remove(profileId);
+        }
+
+        final ProfileStore store = mProfileStore;
+        if (store != null) {
+            store.remove(profileId);
         }
     }
 
     Observable<DeviceProfile[]> fetchAccountProfiles() {
+        final ProfileJsonSource jsonSource = getJsonSource();
+        if (jsonSource != null) {
+            return jsonSource.getAccountDeviceProfilesJson()
+                .flatMap(new Func1<byte[], Observable<DeviceProfile[]>>() {
+                    @Override
+                    public Observable<DeviceProfile[]> call(byte[] json) {
+                        try {
+                            return Observable.just(addProfiles(json));
+                        } catch (IOException e) {
+                            return Observable.error(e);
+                        }
+                    }
+                });
+        }
+
         return mAferoClient.getAccountDeviceProfiles()
             .doOnNext(new Action1<DeviceProfile[]>() {
                 @Override
                 public void call(DeviceProfile[] deviceProfiles) {
                     for (DeviceProfile dp : deviceProfiles) {
-                        addProfile(dp);
+                        addProfile(dp, null);
                     }
                 }
             });
     }
 
-    Observable<DeviceProfile> fetchDeviceProfile(String profileId) {
+    /**
+     * Returns the profile from the collection or the {@link ProfileStore} if present. Otherwise
+     * fetches it, sharing a single request among all callers asking for the same profile while
+     * the fetch is in flight.
+     */
+    Observable<DeviceProfile> getDeviceProfile(final String profileId) {
+        return Observable.defer(new Func0<Observable<DeviceProfile>>() {
+            @Override
+            public Observable<DeviceProfile> call() {
+                DeviceProfile profile = getProfileFromID(profileId);
+                if (profile != null) {
+                    mHitCount.incrementAndGet();
+                    return Observable.just(profile);
+                }
+
+                return sharedFetch(profileId);
+            }
+        });
+    }
+
+    /**
+     * Fetches the profile from the service even if it is already in the collection, e.g. after
+     * the profile has been invalidated. A fetch of the profile already in flight is joined rather
+     * than repeated, so the devices that share a profile share one request.
+     */
+    Observable<DeviceProfile> fetchDeviceProfile(final String profileId) {
+        return Observable.defer(new Func0<Observable<DeviceProfile>>() {
+            @Override
+            public Observable<DeviceProfile> call() {
+                return sharedFetch(profileId);
+            }
+        });
+    }
+
+    /**
+     * Checks for the profile the way {@link #getDeviceProfile} does, counting a hit if it's
+     * already in the collection or the {@link ProfileStore}.
+     */
+    boolean hasProfile(String profileId) {
+        if (getProfileFromID(profileId) != null) {
+            mHitCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    Observable<DeviceProfile> getObservable() {
+        return mProfileSubject;
+    }
+
+    /**
+     * @return Observable that emits a {@link DeviceProfile} when a fetch replaces a profile
+     * already in the collection with different content, e.g. when a stored profile is revalidated.
+     */
+    Observable<DeviceProfile> observeProfileUpdates() {
+        return mProfileUpdateSubject;
+    }
+
+    long getHitCount() {
+        return mHitCount.get();
+    }
+
+    long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    long getFetchCount() {
+        return mFetchCount.get();
+    }
+
+    private DeviceProfile loadStoredProfile(String profileId) {
+        final ProfileStore store = mProfileStore;
+        final DeviceProfile stored = store != null ? store.load(profileId) : null;
+        if (stored == null) {
+            return null;
+        }
+
+        synchronized (mProfiles) {
+            // another thread may have loaded or fetched it in the meantime
+            DeviceProfile profile = mProfiles.get(profileId);
+            if (profile == null) {
+                profile = stored;
+                mProfiles.put(profileId, profile);
+            }
+            return profile;
+        }
+    }
+
+    // Profiles are fetched as JSON only if there's a ProfileStore to persist it, and the client can
+    // provide it; otherwise they're bound by the client as usual.
+    private ProfileJsonSource getJsonSource() {
+        return mProfileStore != null && mAferoClient instanceof ProfileJsonSource
+                ? (ProfileJsonSource) mAferoClient : null;
+    }
+
+    private DeviceProfile[] addProfiles(byte[] json) throws IOException {
+        final ObjectMapper mapper = JSONUtils.getObjectMapper();
+        final JsonNode array = mapper.readTree(json);
+        final DeviceProfile[] profiles = new DeviceProfile[array.size()];
+
+        for (int i = 0; i < profiles.length; ++i) {
+            final JsonNode node = array.get(i);
+            profiles[i] = mapper.treeToValue(node, DeviceProfile.class);
+            addProfile(profiles[i], mapper.writeValueAsBytes(node));
+        }
+
+        return profiles;
+    }
+
+    private Observable<DeviceProfile> fetchProfile(String profileId) {
+        final ProfileJsonSource jsonSource = getJsonSource();
+        if (jsonSource != null) {
+            return jsonSource.getDeviceProfileJson(profileId)
+                .flatMap(new Func1<byte[], Observable<DeviceProfile>>() {
+                    @Override
+                    public Observable<DeviceProfile> call(byte[] json) {
+                        try {
+                            DeviceProfile profile = JSONUtils.readValue(json, DeviceProfile.class);
+                            addProfile(profile, json);
+                            return Observable.just(profile);
+                        } catch (IOException e) {
+                            return Observable.error(e);
+                        }
+                    }
+                });
+        }
+
         return mAferoClient.getDeviceProfile(profileId)
             .doOnNext(new Action1<DeviceProfile>() {
                 @Override
                 public void call(DeviceProfile dp) {
-                    addProfile(dp);
+                    addProfile(dp, null);
                 }
             });
     }
 
-    Observable<DeviceProfile> getObservable() {
-        return mProfileSubject;
+    // every fetch goes through here: it joins the fetch of the profile in flight, if any
+    private Observable<DeviceProfile> sharedFetch(String profileId) {
+        final AsyncSubject<DeviceProfile> result;
+
+        synchronized (mProfiles) {
+            Observable<DeviceProfile> inFlight = mInFlightFetches.get(profileId);
+            if (inFlight != null) {
+                mCoalescedCount.incrementAndGet();
+                return inFlight;
+            }
+
+            result = AsyncSubject.create();
+            mInFlightFetches.put(profileId, result);
+        }
+
+        return startFetch(profileId, result);
+    }
+
+    private Observable<DeviceProfile> startFetch(final String profileId, final AsyncSubject<DeviceProfile> result) {
+        mFetchCount.incrementAndGet();
+
+        mFetchQueue.onNext(Observable.defer(new Func0<Observable<DeviceProfile>>() {
+                @Override
+                public Observable<DeviceProfile> call() {
+                    return fetchProfile(profileId);
+                }
+            })
+            .doOnTerminate(new Action0() {
+                @Override
+                public void call() {
+                    synchronized (mProfiles) {
+                        if (mInFlightFetches.get(profileId) == result) {
+                            mInFlightFetches.remove(profileId);
+                        }
+                    }
+                }
+            })
+            .doOnEach(result)
+            .onErrorResumeNext(Observable.<DeviceProfile>empty()));
+
+        return result;
     }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes a set of {@link DeviceModel}s to be found with {@link DeviceCollection#findDevices(DeviceQuery)}.
+ * Each criterion narrows the set; a query with no criteria matches every device.
+ *
+ * <pre><code>
+ *     List&lt;DeviceModel&gt; devices = deviceCollection.findDevices(
+ *         new DeviceQuery()
+ *             .profileId(profileId)
+ *             .tag("site", "42")
+ *             .available(true));
+ * </code></pre>
+ */
+public class DeviceQuery {
+
+    String mProfileId;
+    String mDeviceType;
+    Boolean mIsAvailable;
+    Boolean mIsDirect;
+    final ArrayList<String> mTagKeys = new ArrayList<>();
+
+    /**
+     * Matches devices with the specified {@link DeviceProfile} id.
+     */
+    public DeviceQuery profileId(String profileId) {
+        mProfileId = profileId;
+        return this;
+    }
+
+    /**
+     * Matches devices whose {@link DeviceProfile#getDeviceType()} is the specified type.
+     */
+    public DeviceQuery deviceType(String deviceType) {
+        mDeviceType = deviceType;
+        return this;
+    }
+
+    /**
+     * Matches devices whose {@link DeviceModel#isAvailable()} is the specified value.
+     */
+    public DeviceQuery available(boolean isAvailable) {
+        mIsAvailable = isAvailable;
+        return this;
+    }
+
+    /**
+     * Matches devices whose {@link DeviceModel#isDirect()} is the specified value.
+     */
+    public DeviceQuery direct(boolean isDirect) {
+        mIsDirect = isDirect;
+        return this;
+    }
+
+    /**
+     * Matches devices that have a {@link DeviceTagCollection.Tag} with the specified key and value.
+     * May be called more than once to require several tags.
+     */
+    public DeviceQuery tag(String key, String value) {
+        mTagKeys.add(DeviceIndex.tagKey(key, value));
+        return this;
+    }
+
+    List<String> getTagKeys() {
+        return Collections.unmodifiableList(mTagKeys);
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceQuery { " +
+                "profileId=" + mProfileId +
+                ", deviceType=" + mDeviceType +
+                ", available=" + mIsAvailable +
+                ", direct=" + mIsDirect +
+                ", tags=" + mTagKeys.size() +
+                " }";
+    }
+}
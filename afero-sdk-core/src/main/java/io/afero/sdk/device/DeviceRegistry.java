@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The set of {@link DeviceModel}s held by a {@link DeviceCollection}, keyed by device id without
+ * regard to case.
+ *
+ * <p>
+ * Lookups never block. Changes to membership are serialized and invalidate an immutable,
+ * id-ordered list of the models, which {@link #values()} rebuilds the next time it is asked for;
+ * between membership changes every caller shares the same list.
+ * </p>
+ */
+final class DeviceRegistry {
+
+    private static final Comparator<DeviceModel> ID_ORDER = new Comparator<DeviceModel>() {
+        @Override
+        public int compare(DeviceModel a, DeviceModel b) {
+            return String.CASE_INSENSITIVE_ORDER.compare(a.getId(), b.getId());
+        }
+    };
+
+    private final ConcurrentHashMap<String, DeviceModel> mModels = new ConcurrentHashMap<>();
+    private final Object mWriteLock = new Object();
+
+    // null when membership has changed since it was last built
+    private volatile List<DeviceModel> mValues = Collections.emptyList();
+
+    /**
+     * @return the key under which the device with {@code deviceId} is held
+     */
+    static String normalizeId(String deviceId) {
+        // device ids are almost always lower case already, so avoid the copy when we can
+        for (int i = 0, n = deviceId.length(); i < n; ++i) {
+            final char c = deviceId.charAt(i);
+            if (c >= 'A' && c <= 'Z' || c >= 0x80) {
+                return deviceId.toLowerCase(Locale.ROOT);
+            }
+        }
+        return deviceId;
+    }
+
+    DeviceModel get(String deviceId) {
+        return deviceId != null ? mModels.get(normalizeId(deviceId)) : null;
+    }
+
+    int size() {
+        return mModels.size();
+    }
+
+    /**
+     * Adds the model unless a model with the same id is already present.
+     *
+     * @return the model already present, or null if {@code deviceModel} was added
+     */
+    DeviceModel putIfAbsent(DeviceModel deviceModel) {
+        final String key = normalizeId(deviceModel.getId());
+
+        synchronized (mWriteLock) {
+            DeviceModel existing = mModels.putIfAbsent(key, deviceModel);
+            if (existing == null) {
+                mValues = null;
+            }
+            return existing;
+        }
+    }
+
+    /**
+     * Removes the model if it is the one held for its id.
+     *
+     * @return true if the model was removed
+     */
+    boolean remove(DeviceModel deviceModel) {
+        final String key = normalizeId(deviceModel.getId());
+
+        synchronized (mWriteLock) {
+            if (mModels.remove(key, deviceModel)) {
+                mValues = null;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Removes every model not in {@code models}.
+     *
+     * @return the models removed
+     */
+    List<DeviceModel> retainAll(Set<DeviceModel> models) {
+        ArrayList<DeviceModel> removed = new ArrayList<>();
+
+        synchronized (mWriteLock) {
+            Iterator<DeviceModel> iter = mModels.values().iterator();
+            while (iter.hasNext()) {
+                DeviceModel dm = iter.next();
+                if (!models.contains(dm)) {
+                    iter.remove();
+                    removed.add(dm);
+                }
+            }
+
+            if (!removed.isEmpty()) {
+                mValues = null;
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Removes every model.
+     *
+     * @return the models removed
+     */
+    List<DeviceModel> clear() {
+        synchronized (mWriteLock) {
+            List<DeviceModel> removed = values();
+            mModels.clear();
+            mValues = Collections.emptyList();
+            return removed;
+        }
+    }
+
+    /**
+     * @return an unmodifiable list of the models ordered by id, unaffected by later changes to the registry
+     */
+    List<DeviceModel> values() {
+        List<DeviceModel> values = mValues;
+        if (values != null) {
+            return values;
+        }
+
+        synchronized (mWriteLock) {
+            values = mValues;
+            if (values == null) {
+                ArrayList<DeviceModel> list = new ArrayList<>(mModels.values());
+                Collections.sort(list, ID_ORDER);
+                values = Collections.unmodifiableList(list);
+                mValues = values;
+            }
+            return values;
+        }
+    }
+}
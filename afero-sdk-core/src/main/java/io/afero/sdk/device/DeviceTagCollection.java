@@ -7,9 +7,11 @@ package io.afero.sdk.device;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 import java.util.Vector;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.afero.sdk.client.afero.AferoClient;
 import io.afero.sdk.client.afero.models.DeviceTag;
@@ -121,6 +123,8 @@ public class DeviceTagCollection {
 
     private final PublishSubject<TagEvent> mTagEventSubject = PublishSubject.create();
 
+    private final AtomicInteger mModificationCount = new AtomicInteger();
+
 
     DeviceTagCollection(DeviceModel deviceModel) {
         mDeviceModel = deviceModel;
@@ -162,7 +166,10 @@ public class DeviceTagCollection {
                     public Observable<Tag> call(DeviceTag deviceTag) {
                         final Tag tag = getTagById(deviceTag.deviceTagId);
                         if (tag != null) {
-                            tag.update(deviceTag);
+                            synchronized (mTags) {
+                                tag.update(deviceTag);
+                                mModificationCount.incrementAndGet();
+                            }
                             mTagEventSubject.onNext(new TagEvent(TagAction.UPDATE, tag));
                             return Observable.just(tag);
                         }
@@ -190,6 +197,7 @@ public class DeviceTagCollection {
                     @Override
                     public Tag call() throws Exception {
                         mTags.remove(mTag);
+                        mModificationCount.incrementAndGet();
                         return mTag;
                     }
                 }.init(tag));
@@ -228,6 +236,16 @@ public class DeviceTagCollection {
         return mTags;
     }
 
+    /**
+     * @return a copy of the tags currently attached to the device, taken under the collection's
+     * lock so that it never holds half of a change.
+     */
+    List<Tag> getTagSnapshot() {
+        synchronized (mTags) {
+            return Collections.unmodifiableList(new ArrayList<>(mTags));
+        }
+    }
+
     /**
      * @return true if at least one tag exists matching the specified key; false otherwise.
      */
@@ -241,11 +259,41 @@ public class DeviceTagCollection {
      * @param deviceTags Array of {@link DeviceTag} objects attached to this DeviceModel
      */
     void setDeviceTags(DeviceTag[] deviceTags) {
-        mTags.clear();
+        synchronized (mTags) {
+            mTags.clear();
+            mModificationCount.incrementAndGet();
+
+            for (DeviceTag dt : deviceTags) {
+                addTagInternal(new Tag(dt));
+            }
+        }
+    }
+
+    /**
+     * @param deviceTags Array of {@link DeviceTag} objects, in any order
+     * @return true if the collection holds exactly the specified tags; false otherwise.
+     */
+    boolean matches(DeviceTag[] deviceTags) {
+        if (deviceTags.length != mTags.size()) {
+            return false;
+        }
 
         for (DeviceTag dt : deviceTags) {
-            addTagInternal(new Tag(dt));
+            Tag tag = dt.deviceTagId != null ? getTagById(dt.deviceTagId) : getTagInternal(dt.key);
+            if (tag == null || !equals(tag.getKey(), dt.key) || !equals(tag.getValue(), dt.value)) {
+                return false;
+            }
         }
+
+        return true;
+    }
+
+    /**
+     * @return a count that changes whenever a tag is added, updated or removed, so that observers
+     * can tell cheaply whether the tags have changed since they last looked.
+     */
+    int getModificationCount() {
+        return mModificationCount.get();
     }
 
     void invalidateTag(String deviceTagAction, DeviceTag deviceTag) {
@@ -279,9 +327,11 @@ public class DeviceTagCollection {
 
     Tag getTagById(String deviceTagId) {
 
-        for (Tag tag : mTags) {
-            if (tag.getId() != null && tag.getId().equals(deviceTagId)) {
-                return tag;
+        synchronized (mTags) {
+            for (Tag tag : mTags) {
+                if (tag.getId() != null && tag.getId().equals(deviceTagId)) {
+                    return tag;
+                }
             }
         }
 
@@ -298,14 +348,21 @@ public class DeviceTagCollection {
         return newTag;
     }
 
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
     private Tag addTagInternal(Tag tag) {
 
-        int tagIndex = Collections.binarySearch(mTags, tag);
-        if (tagIndex < 0) {
-            tagIndex = -tagIndex - 1;
-        }
+        synchronized (mTags) {
+            int tagIndex = Collections.binarySearch(mTags, tag);
+            if (tagIndex < 0) {
+                tagIndex = -tagIndex - 1;
+            }
 
-        mTags.add(tagIndex, tag);
+            mTags.add(tagIndex, tag);
+            mModificationCount.incrementAndGet();
+        }
 
         return tag;
     }
@@ -313,14 +370,17 @@ public class DeviceTagCollection {
     private Tag updateTag(DeviceTag deviceTag) {
         Tag tag = new Tag(deviceTag);
 
-        if (deviceTag.deviceTagId != null) {
-            Tag oldTag = getTagById(deviceTag.deviceTagId);
-            if (oldTag != null) {
-                mTags.remove(oldTag);
+        synchronized (mTags) {
+            if (deviceTag.deviceTagId != null) {
+                Tag oldTag = getTagById(deviceTag.deviceTagId);
+                if (oldTag != null) {
+                    mTags.remove(oldTag);
+                    mModificationCount.incrementAndGet();
+                }
             }
-        }
 
-        addTagInternal(tag);
+            addTagInternal(tag);
+        }
 
         mTagEventSubject.onNext(new TagEvent(TagAction.UPDATE, tag));
 
@@ -328,9 +388,13 @@ public class DeviceTagCollection {
     }
 
     private Tag deleteTagById(String deviceTagId) {
-        Tag tag = getTagById(deviceTagId);
-        if (tag != null) {
-            mTags.remove(tag);
+        Tag tag;
+        synchronized (mTags) {
+            tag = getTagById(deviceTagId);
+            if (tag != null) {
+                mTags.remove(tag);
+                mModificationCount.incrementAndGet();
+            }
         }
 
         mTagEventSubject.onNext(new TagEvent(TagAction.DELETE, tag));
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import io.afero.sdk.log.AfLog;
+import io.afero.sdk.utils.JSONUtils;
+
+/**
+ * {@link ProfileStore} that keeps one file per profile in a directory. Each file holds a small
+ * header (format version, length and CRC32 of the profile JSON) followed by the deflated JSON,
+ * so {@link #save} can tell whether a profile changed by reading just the header, and
+ * {@link #load} only touches the one profile it is asked for.
+ */
+public class FileProfileStore implements ProfileStore {
+
+    private static final int MAGIC = 0x41465053; // "AFPS"
+    private static final int FORMAT_VERSION = 1;
+    private static final String FILE_SUFFIX = ".profile";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+
+    /**
+     * @param directory directory in which profiles are stored; created if it doesn't exist. The
+     *                  store assumes it has the directory to itself.
+     */
+    public FileProfileStore(File directory) {
+        mDirectory = directory;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        String[] names = mDirectory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(FILE_SUFFIX);
+            }
+        });
+
+        return names == null || names.length == 0;
+    }
+
+    @Override
+    public synchronized DeviceProfile load(String profileId) {
+        final File file = getFile(profileId);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                Header header = Header.read(in);
+                if (header == null) {
+                    throw new IOException("unrecognized header");
+                }
+
+                byte[] json = new byte[header.length];
+                new DataInputStream(new InflaterInputStream(in)).readFully(json);
+
+                CRC32 crc = new CRC32();
+                crc.update(json);
+                if (crc.getValue() != header.crc) {
+                    throw new IOException("checksum mismatch");
+                }
+
+                DeviceProfile profile = JSONUtils.readValue(json, DeviceProfile.class);
+                if (!profileId.equals(profile.getId())) {
+                    throw new IOException("holds profile " + profile.getId());
+                }
+
+                return profile;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            AfLog.w("FileProfileStore.load: discarding " + file.getName() + " - " + e);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+
+        return null;
+    }
+
+    @Override
+    public synchronized boolean save(DeviceProfile profile, byte[] json) throws IOException {
+        if (json == null || profile.getId() == null) {
+            throw new IOException("nothing to store");
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(json);
+        final Header header = new Header(json.length, crc.getValue());
+
+        final File file = getFile(profile.getId());
+        if (header.equals(readHeader(file))) {
+            return false;
+        }
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("unable to create " + mDirectory);
+        }
+
+        final File tempFile = new File(mDirectory, file.getName() + TEMP_SUFFIX);
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length / 4 + 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            header.write(out);
+
+            DeflaterOutputStream deflater = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_COMPRESSION));
+            deflater.write(json);
+            deflater.finish();
+            deflater.close();
+
+            FileOutputStream fileOut = new FileOutputStream(tempFile);
+            try {
+                bytes.writeTo(fileOut);
+                fileOut.getFD().sync();
+            } finally {
+                fileOut.close();
+            }
+
+            if (!tempFile.renameTo(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("rename failed");
+                }
+            }
+
+            return true;
+
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void remove(String profileId) {
+        //noinspection ResultOfMethodCallIgnored
+        getFile(profileId).delete();
+    }
+
+    private File getFile(String profileId) {
+        StringBuilder name = new StringBuilder(profileId.length() + FILE_SUFFIX.length());
+        for (int i = 0, n = profileId.length(); i < n; ++i) {
+            char c = profileId.charAt(i);
+            boolean isSafe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+            name.append(isSafe ? c : '_');
+        }
+        name.append(FILE_SUFFIX);
+
+        return new File(mDirectory, name.toString());
+    }
+
+    private static Header readHeader(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return Header.read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static class Header {
+        final int length;
+        final long crc;
+
+        Header(int length, long crc) {
+            this.length = length;
+            this.crc = crc;
+        }
+
+        static Header read(InputStream is) throws IOException {
+            DataInputStream in = new DataInputStream(is);
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    return null;
+                }
+                return new Header(in.readInt(), in.readLong());
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(length);
+            out.writeLong(crc);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Header)) {
+                return false;
+            }
+
+            Header that = (Header)o;
+            return length == that.length && crc == that.crc;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int)(crc ^ (crc >>> 32)) * 31 + length;
+        }
+    }
+}
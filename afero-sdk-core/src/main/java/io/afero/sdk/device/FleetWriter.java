@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import io.afero.sdk.client.afero.models.AttributeValue;
+import io.afero.sdk.log.AfLog;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+/**
+ * Writes the same attribute values to many devices, for instance to turn off every light at a
+ * site, with a limit on how many devices are written at once and how quickly writes are started.
+ *
+ * <pre><code>
+ *     deviceCollection.writeAttributes(new DeviceQuery().tag("site", "42"))
+ *         .put(POWER_ATTRIBUTE_ID, new AttributeValue("0", AttributeValue.DataType.BOOLEAN))
+ *         .maxConcurrency(32)
+ *         .maxDevicesPerSecond(50)
+ *         .commit()
+ *         .subscribe(...);
+ * </code></pre>
+ *
+ * Each device is written with an {@link AttributeWriter}. A device whose profile lacks one of the
+ * attributes is written the others, and gets a {@link AttributeWriter.Result.Status#NOT_ATTEMPTED}
+ * result for the missing one. A failure on one device doesn't stop the others.
+ *
+ * @see DeviceCollection#writeAttributes(DeviceQuery)
+ * @see DeviceCollection#writeAttributes(Collection)
+ */
+public final class FleetWriter {
+
+    private static final int DEFAULT_MAX_CONCURRENCY = 16;
+    private static final long DEFAULT_TIMEOUT = 30;
+
+    private final Func0<Collection<DeviceModel>> mDeviceSelector;
+    private final TreeMap<Integer, AttributeValue> mValues = new TreeMap<>();
+    private int mMaxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private long mStartIntervalNanos;
+    private long mTimeoutSeconds = DEFAULT_TIMEOUT;
+    private Scheduler mScheduler = Schedulers.computation();
+
+    private final Object mLock = new Object();
+    private long mNextStartNanos;
+    private int mDeviceCount;
+    private int mSuccessCount;
+    private int mFailureCount;
+    private int mTimeoutCount;
+    private int mNotAttemptedCount;
+    private long[] mLatencies = new long[64];
+    private int mLatencyCount;
+
+    /**
+     * The result of writing one attribute of one device.
+     */
+    public static final class DeviceResult {
+        public final DeviceModel deviceModel;
+        public final AttributeWriter.Result result;
+
+        DeviceResult(DeviceModel deviceModel, AttributeWriter.Result result) {
+            this.deviceModel = deviceModel;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Totals of the {@link DeviceResult}s emitted so far.
+     *
+     * @see #getSummary()
+     */
+    public static final class Summary {
+
+        /**
+         * Number of devices whose writes have finished.
+         */
+        public final int deviceCount;
+
+        public final int successCount;
+        public final int failureCount;
+        public final int timeoutCount;
+        public final int notAttemptedCount;
+
+        /**
+         * Round trip times in milliseconds of the attempted writes, or zero if there are none.
+         */
+        public final long latencyP50Ms;
+        public final long latencyP90Ms;
+        public final long latencyP99Ms;
+        public final long latencyMaxMs;
+
+        Summary(int deviceCount, int successCount, int failureCount, int timeoutCount, int notAttemptedCount,
+                long[] sortedLatencies) {
+            this.deviceCount = deviceCount;
+            this.successCount = successCount;
+            this.failureCount = failureCount;
+            this.timeoutCount = timeoutCount;
+            this.notAttemptedCount = notAttemptedCount;
+            latencyP50Ms = percentile(sortedLatencies, 50);
+            latencyP90Ms = percentile(sortedLatencies, 90);
+            latencyP99Ms = percentile(sortedLatencies, 99);
+            latencyMaxMs = sortedLatencies.length > 0 ? sortedLatencies[sortedLatencies.length - 1] : 0;
+        }
+
+        // nearest rank
+        private static long percentile(long[] sorted, int percent) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            final int rank = (sorted.length * percent + 99) / 100;
+            return sorted[Math.max(rank, 1) - 1];
+        }
+
+        @Override
+        public String toString() {
+            return "Summary { " +
+                    "deviceCount=" + deviceCount +
+                    ", successCount=" + successCount +
+                    ", failureCount=" + failureCount +
+                    ", timeoutCount=" + timeoutCount +
+                    ", notAttemptedCount=" + notAttemptedCount +
+                    ", latencyP50Ms=" + latencyP50Ms +
+                    ", latencyP90Ms=" + latencyP90Ms +
+                    ", latencyP99Ms=" + latencyP99Ms +
+                    ", latencyMaxMs=" + latencyMaxMs +
+                    " }";
+        }
+    }
+
+    /**
+     * @param deviceSelector called when the write is committed to choose the devices to write
+     */
+    FleetWriter(Func0<Collection<DeviceModel>> deviceSelector) {
+        mDeviceSelector = deviceSelector;
+    }
+
+    /**
+     * Adds an attribute value to be written to every device.
+     *
+     * @param attrId Id of the attribute
+     * @param value  {@link AttributeValue} to write to the specified attribute
+     * @return this FleetWriter instance
+     */
+    public FleetWriter put(int attrId, AttributeValue value) {
+        mValues.put(attrId, value);
+        return this;
+    }
+
+    /**
+     * @param maxConcurrency most devices to write at the same time; defaults to {@value #DEFAULT_MAX_CONCURRENCY}
+     * @return this FleetWriter instance
+     */
+    public FleetWriter maxConcurrency(int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be positive");
+        }
+        mMaxConcurrency = maxConcurrency;
+        return this;
+    }
+
+    /**
+     * Limits the rate at which writes are sent to the Afero Cloud, which every write goes through.
+     *
+     * @param devicesPerSecond most device writes to start each second, or zero for no limit, the default
+     * @return this FleetWriter instance
+     */
+    public FleetWriter maxDevicesPerSecond(double devicesPerSecond) {
+        if (devicesPerSecond < 0) {
+            throw new IllegalArgumentException("devicesPerSecond must not be negative");
+        }
+        mStartIntervalNanos = devicesPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / devicesPerSecond) : 0;
+        return this;
+    }
+
+    /**
+     * @param timeoutSeconds how long to wait for each device to confirm its writes; defaults to {@value #DEFAULT_TIMEOUT}
+     * @return this FleetWriter instance
+     */
+    public FleetWriter timeout(long timeoutSeconds) {
+        mTimeoutSeconds = timeoutSeconds;
+        return this;
+    }
+
+    FleetWriter scheduler(Scheduler scheduler) {
+        mScheduler = scheduler;
+        return this;
+    }
+
+    /**
+     * Starts writing the devices.
+     *
+     * @return {@link Observable} that emits a {@link DeviceResult} for each attribute of each
+     * device as its write finishes, and completes when every device has finished
+     */
+    public Observable<DeviceResult> commit() {
+        if (mValues.isEmpty()) {
+            throw new IllegalArgumentException("Must put at least one attribute");
+        }
+
+        return Observable.defer(new Func0<Observable<DeviceModel>>() {
+                @Override
+                public Observable<DeviceModel> call() {
+                    return Observable.from(mDeviceSelector.call());
+                }
+            })
+            .flatMap(new Func1<DeviceModel, Observable<DeviceResult>>() {
+                @Override
+                public Observable<DeviceResult> call(DeviceModel deviceModel) {
+                    final long delayNanos = reserveStart();
+                    final Observable<DeviceResult> write = writeDevice(deviceModel);
+                    return delayNanos > 0
+                            ? write.delaySubscription(delayNanos, TimeUnit.NANOSECONDS, mScheduler)
+                            : write;
+                }
+            }, mMaxConcurrency);
+    }
+
+    /**
+     * @return {@link Summary} of the results emitted so far by {@link #commit()}
+     */
+    public Summary getSummary() {
+        synchronized (mLock) {
+            long[] latencies = Arrays.copyOf(mLatencies, mLatencyCount);
+            Arrays.sort(latencies);
+            return new Summary(mDeviceCount, mSuccessCount, mFailureCount, mTimeoutCount, mNotAttemptedCount, latencies);
+        }
+    }
+
+    // the delay before the next device write may start
+    private long reserveStart() {
+        if (mStartIntervalNanos == 0) {
+            return 0;
+        }
+
+        synchronized (mLock) {
+            final long now = TimeUnit.MILLISECONDS.toNanos(mScheduler.now());
+            final long start = Math.max(now, mNextStartNanos);
+            mNextStartNanos = start + mStartIntervalNanos;
+            return start - now;
+        }
+    }
+
+    private Observable<DeviceResult> writeDevice(final DeviceModel deviceModel) {
+        return Observable.defer(new Func0<Observable<AttributeWriter.Result>>() {
+                @Override
+                public Observable<AttributeWriter.Result> call() {
+                    AttributeWriter writer = new AttributeWriter(deviceModel, mTimeoutSeconds);
+                    List<AttributeWriter.Result> missing = null;
+                    final Set<Integer> unanswered = new LinkedHashSet<>();
+
+                    for (Map.Entry<Integer, AttributeValue> entry : mValues.entrySet()) {
+                        if (deviceModel.getAttributeById(entry.getKey()) != null) {
+                            writer.put(entry.getKey(), entry.getValue());
+                            unanswered.add(entry.getKey());
+                        } else {
+                            if (missing == null) {
+                                missing = new ArrayList<>();
+                            }
+                            missing.add(new AttributeWriter.Result(entry.getKey()));
+                        }
+                    }
+
+                    // an error would end the other devices' writes, so it becomes a failure for
+                    // each attribute the writer hadn't answered, e.g. when the request itself fails
+                    Observable<AttributeWriter.Result> results = writer.isEmpty()
+                            ? Observable.<AttributeWriter.Result>empty()
+                            : writer.commit()
+                                .doOnNext(new Action1<AttributeWriter.Result>() {
+                                    @Override
+                                    public void call(AttributeWriter.Result result) {
+                                        unanswered.remove(result.attributeId);
+                                    }
+                                })
+                                .onErrorResumeNext(new Func1<Throwable, Observable<AttributeWriter.Result>>() {
+                                    @Override
+                                    public Observable<AttributeWriter.Result> call(Throwable t) {
+                                        AfLog.d("FleetWriter: " + deviceModel.getId() + ": " + t);
+
+                                        List<AttributeWriter.Result> failures = new ArrayList<>(unanswered.size());
+                                        for (Integer attrId : unanswered) {
+                                            failures.add(new AttributeWriter.Result(attrId, AttributeWriter.Result.Status.FAILURE));
+                                        }
+                                        return Observable.from(failures);
+                                    }
+                                });
+
+                    return missing != null ? results.concatWith(Observable.from(missing)) : results;
+                }
+            })
+            .map(new Func1<AttributeWriter.Result, DeviceResult>() {
+                @Override
+                public DeviceResult call(AttributeWriter.Result result) {
+                    onResult(result);
+                    return new DeviceResult(deviceModel, result);
+                }
+            })
+            .doOnCompleted(new Action0() {
+                @Override
+                public void call() {
+                    synchronized (mLock) {
+                        ++mDeviceCount;
+                    }
+                }
+            });
+    }
+
+    private void onResult(AttributeWriter.Result result) {
+        synchronized (mLock) {
+            switch (result.status) {
+                case SUCCESS:
+                    ++mSuccessCount;
+                    break;
+                case FAILURE:
+                    ++mFailureCount;
+                    break;
+                case TIMEOUT:
+                    ++mTimeoutCount;
+                    break;
+                case NOT_ATTEMPTED:
+                    ++mNotAttemptedCount;
+                    return;
+            }
+
+            if (mLatencyCount == mLatencies.length) {
+                mLatencies = Arrays.copyOf(mLatencies, mLatencyCount * 2);
+            }
+            mLatencies[mLatencyCount++] = result.roundTripTimeMs;
+        }
+    }
+}
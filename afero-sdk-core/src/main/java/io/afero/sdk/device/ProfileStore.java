@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import java.io.IOException;
+
+/**
+ * Persistent cache of {@link DeviceProfile}s, keyed by profile id. A {@link DeviceCollection} with
+ * a non-empty store starts without waiting for the account's profiles to download; profiles are
+ * loaded from the store as devices need them and revalidated against the service in the background.
+ *
+ * @see FileProfileStore
+ * @see DeviceCollection#setProfileStore(ProfileStore)
+ */
+public interface ProfileStore {
+
+    /**
+     * @return true if the store holds no profiles.
+     */
+    boolean isEmpty();
+
+    /**
+     * @param profileId id of the profile to load
+     * @return the stored {@link DeviceProfile}, or null if there is none or it could not be read.
+     */
+    DeviceProfile load(String profileId);
+
+    /**
+     * @param profile {@link DeviceProfile} to store, replacing any stored profile with the same id
+     * @param json the JSON the profile was parsed from, which is what gets stored;
+     *             {@link DeviceProfile} itself can't be written back out without losing the
+     *             presentation
+     * @return true if the stored content changed; false if the store already held an identical
+     * profile.
+     * @throws IOException if the profile could not be stored, in which case it's not known
+     * whether the profile changed
+     */
+    boolean save(DeviceProfile profile, byte[] json) throws IOException;
+
+    /**
+     * @param profileId id of the profile to remove; does nothing if there is none
+     */
+    void remove(String profileId);
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import rx.functions.Action1;
+
+/**
+ * Holds {@link io.afero.sdk.conclave.DeviceEventSource} events that arrive while
+ * {@link DeviceCollection} is starting, before the devices they refer to are in the collection,
+ * and replays them in sequence number order once the devices have been added.
+ */
+final class StartupEventBuffer {
+
+    private static final Comparator<Entry<?>> SEQ_ORDER = new Comparator<Entry<?>>() {
+        @Override
+        public int compare(Entry<?> a, Entry<?> b) {
+            if (a.seq != b.seq) {
+                return a.seq < b.seq ? -1 : 1;
+            }
+            return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+        }
+    };
+
+    private ArrayList<Entry<?>> mEntries;
+    private volatile boolean mIsOpen;
+    private int mLastSeq;
+    private int mOrder;
+
+    /**
+     * Starts buffering; {@link #offer} accepts events until {@link #drain()} or {@link #close()}.
+     */
+    synchronized void open() {
+        mEntries = new ArrayList<>();
+        mLastSeq = 0;
+        mOrder = 0;
+        mIsOpen = true;
+    }
+
+    /**
+     * Discards any buffered events and stops buffering.
+     */
+    synchronized void close() {
+        mEntries = null;
+        mIsOpen = false;
+    }
+
+    boolean isOpen() {
+        return mIsOpen;
+    }
+
+    /**
+     * @param seq the event's sequence number, or zero if it doesn't carry one, in which case it
+     *            keeps its place after the last sequenced event that preceded it
+     * @return false if the buffer isn't open, in which case the caller should handle the event itself
+     */
+    <T> boolean offer(int seq, T event, Action1<T> handler) {
+        // once started, events from several threads needn't contend for the lock
+        if (!mIsOpen) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (mEntries == null) {
+                return false;
+            }
+
+            if (seq > 0) {
+                mLastSeq = seq;
+            } else {
+                seq = mLastSeq;
+            }
+
+            mEntries.add(new Entry<>(seq, mOrder++, event, handler));
+            return true;
+        }
+    }
+
+    /**
+     * Replays the buffered events in sequence number order and stops buffering. Events that
+     * arrive while the replay is in progress are buffered and replayed after it, so nothing
+     * overtakes an earlier event.
+     *
+     * @return the number of events replayed
+     */
+    int drain() {
+        int count = 0;
+
+        for (;;) {
+            ArrayList<Entry<?>> entries;
+            synchronized (this) {
+                if (mEntries == null || mEntries.isEmpty()) {
+                    mEntries = null;
+                    mIsOpen = false;
+                    return count;
+                }
+
+                entries = mEntries;
+                mEntries = new ArrayList<>();
+            }
+
+            Collections.sort(entries, SEQ_ORDER);
+
+            for (Entry<?> entry : entries) {
+                entry.dispatch();
+            }
+
+            count += entries.size();
+        }
+    }
+
+    private static final class Entry<T> {
+        final int seq;
+        final int order;
+        final T event;
+        final Action1<T> handler;
+
+        Entry(int seq, int order, T event, Action1<T> handler) {
+            this.seq = seq;
+            this.order = order;
+            this.event = event;
+            this.handler = handler;
+        }
+
+        void dispatch() {
+            handler.call(event);
+        }
+    }
+}
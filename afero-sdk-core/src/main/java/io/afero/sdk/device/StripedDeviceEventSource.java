@@ -0,0 +1,493 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.afero.sdk.conclave.ConclaveMessage;
+import io.afero.sdk.conclave.DeviceEventSource;
+import io.afero.sdk.conclave.SyncState;
+import io.afero.sdk.conclave.SyncStateSource;
+import io.afero.sdk.conclave.models.DeviceError;
+import io.afero.sdk.conclave.models.DeviceMute;
+import io.afero.sdk.conclave.models.DeviceState;
+import io.afero.sdk.conclave.models.DeviceSync;
+import io.afero.sdk.conclave.models.InvalidateMessage;
+import io.afero.sdk.conclave.models.OTAInfo;
+import io.afero.sdk.log.AfLog;
+import rx.Observable;
+import rx.functions.Action1;
+import rx.subjects.PublishSubject;
+import rx.subscriptions.CompositeSubscription;
+
+/**
+ * A {@link DeviceEventSource} that moves event handling off the thread of the source it wraps,
+ * typically a {@link ConclaveDeviceEventSource}, onto a fixed number of lanes, each a single
+ * thread with its own bounded queue. Events are assigned to a lane by device id, so events for
+ * different devices are handled in parallel while the events for any one device are handled in
+ * the order they arrived. A slow subscriber holds up only the devices that share its lane.
+ *
+ * <p>
+ * Example:
+ * <pre><code>
+ *     StripedDeviceEventSource eventSource = new StripedDeviceEventSource(conclaveDeviceEventSource, 4, 1024);
+ *     DeviceCollection deviceCollection = new DeviceCollection(eventSource, aferoClient);
+ * </code></pre>
+ * </p>
+ *
+ * Snapshots and {@link SyncState}s concern every device, so they wait until every lane has
+ * handled the events that arrived before them, and events that arrive after them wait until
+ * they have been emitted. When a lane's queue is full the source's thread waits for room, which
+ * pushes back on the connection rather than dropping events.
+ */
+public class StripedDeviceEventSource implements DeviceEventSource, SyncStateSource {
+
+    /**
+     * Describes the state of one lane.
+     *
+     * @see #getLaneStats()
+     */
+    public static class LaneStats {
+
+        /**
+         * Index of the lane.
+         */
+        public final int lane;
+
+        /**
+         * Number of events waiting in the lane's queue.
+         */
+        public final int queueDepth;
+
+        /**
+         * Most events that have waited in the lane's queue at once.
+         */
+        public final int maxQueueDepth;
+
+        /**
+         * Number of events the lane has handled.
+         */
+        public final long dispatched;
+
+        /**
+         * Mean microseconds an event waited in the queue before it was handled.
+         */
+        public final long meanLatencyMicros;
+
+        /**
+         * Longest microseconds an event waited in the queue before it was handled.
+         */
+        public final long maxLatencyMicros;
+
+        LaneStats(int lane, int queueDepth, int maxQueueDepth, long dispatched, long meanLatencyMicros, long maxLatencyMicros) {
+            this.lane = lane;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.dispatched = dispatched;
+            this.meanLatencyMicros = meanLatencyMicros;
+            this.maxLatencyMicros = maxLatencyMicros;
+        }
+
+        @Override
+        public String toString() {
+            return "LaneStats { " +
+                    "lane=" + lane +
+                    ", queueDepth=" + queueDepth +
+                    ", maxQueueDepth=" + maxQueueDepth +
+                    ", dispatched=" + dispatched +
+                    ", meanLatencyMicros=" + meanLatencyMicros +
+                    ", maxLatencyMicros=" + maxLatencyMicros +
+                    " }";
+        }
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private final DeviceEventSource mSource;
+    private final Lane[] mLanes;
+    private final CompositeSubscription mSubscriptions = new CompositeSubscription();
+
+    private final PublishSubject<DeviceSync[]> mSnapshotSubject = PublishSubject.create();
+    private final PublishSubject<DeviceSync> mAttributeChangeSubject = PublishSubject.create();
+    private final PublishSubject<DeviceError> mDeviceErrorSubject = PublishSubject.create();
+    private final PublishSubject<DeviceState> mStatusChangeSubject = PublishSubject.create();
+    private final PublishSubject<DeviceMute> mDeviceMuteSubject = PublishSubject.create();
+    private final PublishSubject<OTAInfo> mOTASubject = PublishSubject.create();
+    private final PublishSubject<InvalidateMessage> mInvalidateSubject = PublishSubject.create();
+    private final PublishSubject<SyncState> mSyncStateSubject = PublishSubject.create();
+
+    /**
+     * @param source {@link DeviceEventSource} whose events are to be dispatched
+     * @param laneCount number of lanes, and so of threads
+     */
+    public StripedDeviceEventSource(DeviceEventSource source, int laneCount) {
+        this(source, laneCount, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param source {@link DeviceEventSource} whose events are to be dispatched
+     * @param laneCount number of lanes, and so of threads
+     * @param queueCapacity number of events each lane holds before the source has to wait
+     */
+    public StripedDeviceEventSource(DeviceEventSource source, int laneCount, int queueCapacity) {
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("laneCount must be at least 1");
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1");
+        }
+
+        mSource = source;
+        mLanes = new Lane[laneCount];
+
+        for (int i = 0; i < laneCount; ++i) {
+            mLanes[i] = new Lane(i, queueCapacity);
+        }
+
+        for (Lane lane : mLanes) {
+            lane.start();
+        }
+
+        mSubscriptions.add(source.observeAttributeChange().subscribe(new Action1<DeviceSync>() {
+            @Override
+            public void call(DeviceSync deviceSync) {
+                post(deviceSync.getDeviceId(), deviceSync, mAttributeChangeSubject);
+            }
+        }));
+        mSubscriptions.add(source.observeStatusChange().subscribe(new Action1<DeviceState>() {
+            @Override
+            public void call(DeviceState deviceState) {
+                post(deviceState.id, deviceState, mStatusChangeSubject);
+            }
+        }));
+        mSubscriptions.add(source.observeError().subscribe(new Action1<DeviceError>() {
+            @Override
+            public void call(DeviceError deviceError) {
+                post(deviceError.id, deviceError, mDeviceErrorSubject);
+            }
+        }));
+        mSubscriptions.add(source.observeMute().subscribe(new Action1<DeviceMute>() {
+            @Override
+            public void call(DeviceMute deviceMute) {
+                post(deviceMute.id, deviceMute, mDeviceMuteSubject);
+            }
+        }));
+        mSubscriptions.add(source.observeOTA().subscribe(new Action1<OTAInfo>() {
+            @Override
+            public void call(OTAInfo otaInfo) {
+                post(otaInfo.id, otaInfo, mOTASubject);
+            }
+        }));
+        mSubscriptions.add(source.observeInvalidate().subscribe(new Action1<InvalidateMessage>() {
+            @Override
+            public void call(InvalidateMessage invalidateMessage) {
+                post(invalidateMessage.deviceId, invalidateMessage, mInvalidateSubject);
+            }
+        }));
+        mSubscriptions.add(source.observeSnapshot().subscribe(new Action1<DeviceSync[]>() {
+            @Override
+            public void call(DeviceSync[] deviceSyncs) {
+                postToAll(deviceSyncs, mSnapshotSubject);
+            }
+        }));
+        if (source instanceof SyncStateSource) {
+            mSubscriptions.add(((SyncStateSource) source).observeSyncState().subscribe(new Action1<SyncState>() {
+                @Override
+                public void call(SyncState syncState) {
+                    postToAll(syncState, mSyncStateSubject);
+                }
+            }));
+        }
+    }
+
+    /**
+     * @return the {@link DeviceEventSource} whose events are dispatched
+     */
+    public DeviceEventSource getSource() {
+        return mSource;
+    }
+
+    /**
+     * @return number of lanes
+     */
+    public int getLaneCount() {
+        return mLanes.length;
+    }
+
+    /**
+     * @return a {@link LaneStats} for each lane, in lane order
+     */
+    public List<LaneStats> getLaneStats() {
+        ArrayList<LaneStats> stats = new ArrayList<>(mLanes.length);
+        for (Lane lane : mLanes) {
+            stats.add(lane.getStats());
+        }
+        return Collections.unmodifiableList(stats);
+    }
+
+    /**
+     * Stops taking events from the source and stops the lanes once they have handled the events
+     * already queued.
+     */
+    public void shutdown() {
+        mSubscriptions.unsubscribe();
+
+        for (Lane lane : mLanes) {
+            lane.stopRunning();
+        }
+    }
+
+    @Override
+    public Observable<DeviceSync[]> observeSnapshot() {
+        return mSnapshotSubject;
+    }
+
+    @Override
+    public Observable<DeviceSync> observeAttributeChange() {
+        return mAttributeChangeSubject;
+    }
+
+    @Override
+    public Observable<DeviceError> observeError() {
+        return mDeviceErrorSubject;
+    }
+
+    @Override
+    public Observable<DeviceState> observeStatusChange() {
+        return mStatusChangeSubject;
+    }
+
+    @Override
+    public Observable<DeviceMute> observeMute() {
+        return mDeviceMuteSubject;
+    }
+
+    @Override
+    public Observable<OTAInfo> observeOTA() {
+        return mOTASubject;
+    }
+
+    @Override
+    public Observable<InvalidateMessage> observeInvalidate() {
+        return mInvalidateSubject;
+    }
+
+    /**
+     * @return Observable that emits the wrapped source's {@link SyncState}s once every lane has
+     * caught up to them; never emits if the wrapped source isn't a {@link SyncStateSource}
+     */
+    @Override
+    public Observable<SyncState> observeSyncState() {
+        return mSyncStateSubject;
+    }
+
+    @Override
+    public void sendMetrics(ConclaveMessage.Metric metric) {
+        mSource.sendMetrics(metric);
+    }
+
+    int laneFor(String deviceId) {
+        if (deviceId == null) {
+            return 0;
+        }
+
+        // ids differ in case now and then, so hash them the way DeviceRegistry keys them
+        int h = DeviceRegistry.normalizeId(deviceId).hashCode();
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % mLanes.length;
+    }
+
+    private <T> void post(String deviceId, T event, PublishSubject<T> subject) {
+        mLanes[laneFor(deviceId)].post(new EventTask<>(event, subject));
+    }
+
+    private <T> void postToAll(T event, PublishSubject<T> subject) {
+        if (mLanes.length == 1) {
+            mLanes[0].post(new EventTask<>(event, subject));
+            return;
+        }
+
+        final Barrier<T> barrier = new Barrier<>(mLanes.length, event, subject);
+        for (Lane lane : mLanes) {
+            if (!lane.post(barrier.newTask())) {
+                // the barrier can't be reached, so don't hold the lanes that already took it
+                barrier.cancel();
+                return;
+            }
+        }
+    }
+
+    // wakes a lane waiting on an empty queue so it can see that it has been stopped
+    private static final Task STOP = new Task() {
+        @Override
+        void run() {
+        }
+    };
+
+    private static abstract class Task {
+        long enqueuedNanos;
+
+        abstract void run();
+    }
+
+    private static final class EventTask<T> extends Task {
+        private final T mEvent;
+        private final PublishSubject<T> mSubject;
+
+        EventTask(T event, PublishSubject<T> subject) {
+            mEvent = event;
+            mSubject = subject;
+        }
+
+        @Override
+        void run() {
+            mSubject.onNext(mEvent);
+        }
+    }
+
+    /**
+     * Emits its event once every lane has reached it, holding each lane there until it has. A
+     * cancelled barrier releases the lanes without emitting.
+     */
+    private static final class Barrier<T> {
+        private final AtomicInteger mRemaining;
+        private final CountDownLatch mEmitted = new CountDownLatch(1);
+        private final T mEvent;
+        private final PublishSubject<T> mSubject;
+        private volatile boolean mIsCancelled;
+
+        Barrier(int laneCount, T event, PublishSubject<T> subject) {
+            mRemaining = new AtomicInteger(laneCount);
+            mEvent = event;
+            mSubject = subject;
+        }
+
+        Task newTask() {
+            return new Task() {
+                @Override
+                void run() {
+                    if (mRemaining.decrementAndGet() == 0) {
+                        try {
+                            if (!mIsCancelled) {
+                                mSubject.onNext(mEvent);
+                            }
+                        } finally {
+                            mEmitted.countDown();
+                        }
+                        return;
+                    }
+
+                    try {
+                        mEmitted.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+        }
+
+        void cancel() {
+            mIsCancelled = true;
+            mEmitted.countDown();
+        }
+    }
+
+    private static final class Lane extends Thread {
+
+        private final int mIndex;
+        private final ArrayBlockingQueue<Task> mQueue;
+        private volatile boolean mIsRunning = true;
+
+        private final AtomicLong mDispatchedCount = new AtomicLong();
+        private final AtomicLong mTotalLatencyNanos = new AtomicLong();
+        private volatile long mMaxLatencyNanos;
+        private volatile int mMaxQueueDepth;
+
+        Lane(int index, int queueCapacity) {
+            super("StripedDeviceEventSource-" + index);
+            setDaemon(true);
+            mIndex = index;
+            mQueue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+
+        // returns false if the task was dropped because the lane is stopped or the wait was interrupted
+        boolean post(Task task) {
+            if (!mIsRunning) {
+                return false;
+            }
+
+            task.enqueuedNanos = System.nanoTime();
+
+            try {
+                mQueue.put(task);
+            } catch (InterruptedException e) {
+                AfLog.e("StripedDeviceEventSource: interrupted while waiting for lane " + mIndex);
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            final int depth = mQueue.size();
+            if (depth > mMaxQueueDepth) {
+                mMaxQueueDepth = depth;
+            }
+
+            return true;
+        }
+
+        void stopRunning() {
+            mIsRunning = false;
+
+            mQueue.offer(STOP);
+        }
+
+        LaneStats getStats() {
+            final long dispatched = mDispatchedCount.get();
+            final long meanLatencyNanos = dispatched > 0 ? mTotalLatencyNanos.get() / dispatched : 0;
+            return new LaneStats(mIndex, mQueue.size(), mMaxQueueDepth, dispatched,
+                    meanLatencyNanos / 1000, mMaxLatencyNanos / 1000);
+        }
+
+        @Override
+        public void run() {
+            AfLog.i("StripedDeviceEventSource: " + getName() + " started");
+
+            while (mIsRunning || !mQueue.isEmpty()) {
+                final Task task;
+                try {
+                    task = mQueue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                if (task == STOP) {
+                    continue;
+                }
+
+                final long latencyNanos = System.nanoTime() - task.enqueuedNanos;
+                mTotalLatencyNanos.addAndGet(latencyNanos);
+                if (latencyNanos > mMaxLatencyNanos) {
+                    mMaxLatencyNanos = latencyNanos;
+                }
+
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    // eat all exceptions - one bad subscriber shouldn't take down the lane
+                    AfLog.e(e);
+                }
+
+                mDispatchedCount.incrementAndGet();
+            }
+
+            AfLog.i("StripedDeviceEventSource: " + getName() + " exiting");
+        }
+    }
+}
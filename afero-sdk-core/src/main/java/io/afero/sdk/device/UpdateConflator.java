@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Emitter;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.subscriptions.CompositeSubscription;
+
+/**
+ * Turns a stream of {@link DeviceModel} updates into one that emits each updated device at most
+ * once per window.
+ *
+ * <p>
+ * Each subscriber gets its own set of dirty devices rather than a queue of updates, so however
+ * fast a device reports, what is held between flushes is bounded by the number of devices.
+ * Counts are shared by every stream the conflator has created.
+ * </p>
+ *
+ * <p>
+ * A subscriber that falls behind has whole flushes buffered for it rather than devices dropped,
+ * since each flush is a distinct set of devices that changed.
+ * </p>
+ */
+final class UpdateConflator {
+
+    private final AtomicLong mReceivedCount = new AtomicLong();
+    private final AtomicLong mEmittedCount = new AtomicLong();
+    private final AtomicLong mDroppedDuplicateCount = new AtomicLong();
+
+    Observable<DeviceModel> conflate(final Observable<DeviceModel> updates, final long window, final TimeUnit unit, final Scheduler scheduler) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+
+        return Observable.create(new Action1<Emitter<DeviceModel>>() {
+            @Override
+            public void call(final Emitter<DeviceModel> emitter) {
+                final DirtySet dirty = new DirtySet();
+                final Scheduler.Worker worker = scheduler.createWorker();
+                final CompositeSubscription subscriptions = new CompositeSubscription(worker);
+                emitter.setSubscription(subscriptions);
+
+                subscriptions.add(updates.subscribe(
+                    new Action1<DeviceModel>() {
+                        @Override
+                        public void call(DeviceModel deviceModel) {
+                            mReceivedCount.incrementAndGet();
+                            if (!dirty.add(deviceModel)) {
+                                mDroppedDuplicateCount.incrementAndGet();
+                            }
+                        }
+                    },
+                    new Action1<Throwable>() {
+                        @Override
+                        public void call(Throwable t) {
+                            emitter.onError(t);
+                        }
+                    }));
+
+                worker.schedulePeriodically(new Action0() {
+                    @Override
+                    public void call() {
+                        for (DeviceModel deviceModel : dirty.drain()) {
+                            if (subscriptions.isUnsubscribed()) {
+                                return;
+                            }
+
+                            mEmittedCount.incrementAndGet();
+                            emitter.onNext(deviceModel);
+                        }
+                    }
+                }, window, window, unit);
+            }
+        }, Emitter.BackpressureMode.BUFFER);
+    }
+
+    long getReceivedCount() {
+        return mReceivedCount.get();
+    }
+
+    long getEmittedCount() {
+        return mEmittedCount.get();
+    }
+
+    long getDroppedDuplicateCount() {
+        return mDroppedDuplicateCount.get();
+    }
+
+    private static final class DirtySet {
+        private LinkedHashSet<DeviceModel> mDevices = new LinkedHashSet<>();
+
+        /**
+         * @return false if the device was already dirty
+         */
+        synchronized boolean add(DeviceModel deviceModel) {
+            return mDevices.add(deviceModel);
+        }
+
+        /**
+         * @return the devices dirtied since the last drain, in the order they were first dirtied
+         */
+        ArrayList<DeviceModel> drain() {
+            LinkedHashSet<DeviceModel> devices;
+            synchronized (this) {
+                if (mDevices.isEmpty()) {
+                    return new ArrayList<>(0);
+                }
+                devices = mDevices;
+                mDevices = new LinkedHashSet<>();
+            }
+            return new ArrayList<>(devices);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import java.util.HashMap;
+
+/**
+ * Routes the acknowledgements of a device's attribute writes to the {@link AttributeWriter}
+ * waiting for each one, keyed by the request id the Afero Cloud returned for the write.
+ *
+ * <p>
+ * Each {@link io.afero.sdk.conclave.models.DeviceSync} or
+ * {@link io.afero.sdk.conclave.models.DeviceError} carrying a request id costs one hash lookup,
+ * however many writers are waiting on the device; writers no longer each filter every update.
+ * </p>
+ */
+final class WriteAckCorrelator {
+
+    interface Listener {
+        void onAck(int requestId, AttributeWriter.Result.Status status);
+    }
+
+    private final HashMap<Integer, Listener> mListeners = new HashMap<>();
+
+    synchronized void register(int requestId, Listener listener) {
+        mListeners.put(requestId, listener);
+    }
+
+    /**
+     * Removes the listener for the request id, unless another listener has taken it since.
+     */
+    synchronized void unregister(int requestId, Listener listener) {
+        if (mListeners.get(requestId) == listener) {
+            mListeners.remove(requestId);
+        }
+    }
+
+    /**
+     * Passes the ack to the listener waiting for it, if any, which then stops waiting.
+     *
+     * @return true if a listener was waiting for the request id
+     */
+    boolean onAck(int requestId, AttributeWriter.Result.Status status) {
+        final Listener listener;
+        synchronized (this) {
+            listener = mListeners.remove(requestId);
+        }
+
+        if (listener != null) {
+            listener.onAck(requestId, status);
+            return true;
+        }
+
+        return false;
+    }
+
+    synchronized int size() {
+        return mListeners.size();
+    }
+}
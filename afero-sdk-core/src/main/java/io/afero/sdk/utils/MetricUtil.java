@@ -5,10 +5,8 @@
 package io.afero.sdk.utils;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
 
 import io.afero.sdk.conclave.ConclaveMessage;
 import io.afero.sdk.conclave.ConclaveMessage.Metric.FailureReason;
@@ -46,11 +44,7 @@ public class MetricUtil {
                     reportError(deviceId, WRITE_TIMEOUT_INTERVAL, FailureReason.SERVICE_API_TIMEOUT);
                 }
                 beginRequestDeviceMetrics.put(requestId, new BeginEvent(time, deviceId));
-                Set<Integer> beginKeys = beginRequestDeviceMetrics.keySet();
-                Set<Integer> endKeys = endRequestDeviceMetrics.keySet();
-                Set<Integer> result = new HashSet<>(beginKeys);
-                result.retainAll(endKeys);
-                reportRequestIds(result);
+                reportRequestId(requestId);
             }
         }
     }
@@ -59,11 +53,7 @@ public class MetricUtil {
         synchronized (beginRequestDeviceMetrics) {
             synchronized (endRequestDeviceMetrics) {
                 endRequestDeviceMetrics.put(requestId, new EndEvent(time, success, reason));
-                Set<Integer> beginKeys = beginRequestDeviceMetrics.keySet();
-                Set<Integer> endKeys = endRequestDeviceMetrics.keySet();
-                Set<Integer> result = new HashSet<>(beginKeys);
-                result.retainAll(endKeys);
-                reportRequestIds(result);
+                reportRequestId(requestId);
             }
         }
     }
@@ -95,33 +85,31 @@ public class MetricUtil {
         mEventSubject.onNext(metric);
     }
 
-    private void reportRequestIds(Set<Integer> requestIds) {
-        if (requestIds.size() > 0 ) {
-            ConclaveMessage.Metric metric = new ConclaveMessage.Metric();
-
-            for (Integer requestId : requestIds) {
-                BeginEvent beginEvent = beginRequestDeviceMetrics.get(requestId);
-                EndEvent endEvent = endRequestDeviceMetrics.get(requestId);
-
-                if (beginEvent != null && endEvent != null && beginEvent.time <= endEvent.time) {
-                    long elapsed = endEvent.time - beginEvent.time;
+    // pairs are reported as soon as they are complete, so only the request
+    // just begun or ended can have become a pair
+    private void reportRequestId(Integer requestId) {
+        BeginEvent beginEvent = beginRequestDeviceMetrics.get(requestId);
+        EndEvent endEvent = endRequestDeviceMetrics.get(requestId);
+        if (beginEvent == null || endEvent == null) {
+            return;
+        }
 
-                    ConclaveMessage.Metric.MetricsFields measurement =
-                        new ConclaveMessage.Metric.MetricsFields(
-                            beginEvent.deviceId,
-                            elapsed,
-                            endEvent.success,
-                            endEvent.reason != null ? endEvent.reason.toString() : null);
-                    metric.addPeripheralMetric(measurement);
-                }
+        beginRequestDeviceMetrics.remove(requestId);
+        endRequestDeviceMetrics.remove(requestId);
 
-                beginRequestDeviceMetrics.remove(requestId);
-                endRequestDeviceMetrics.remove(requestId);
-            }
+        if (beginEvent.time <= endEvent.time) {
+            long elapsed = endEvent.time - beginEvent.time;
 
-            if (!metric.isEmpty()) {
-                mEventSubject.onNext(metric);
-            }
+            ConclaveMessage.Metric metric = new ConclaveMessage.Metric();
+            ConclaveMessage.Metric.MetricsFields measurement =
+                new ConclaveMessage.Metric.MetricsFields(
+                    beginEvent.deviceId,
+                    elapsed,
+                    endEvent.success,
+                    endEvent.reason != null ? endEvent.reason.toString() : null);
+            metric.addPeripheralMetric(measurement);
+
+            mEventSubject.onNext(metric);
         }
     }
 
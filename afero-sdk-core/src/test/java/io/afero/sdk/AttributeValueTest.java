@@ -8,6 +8,7 @@ import org.junit.Test;
 
 import java.math.BigDecimal;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 
 import io.afero.sdk.client.afero.models.AttributeValue;
@@ -15,6 +16,8 @@ import io.afero.sdk.utils.HexUtils;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class AttributeValueTest {
@@ -216,6 +219,29 @@ public class AttributeValueTest {
         assertEquals(testString, HexUtils.hexEncode(bb));
     }
 
+    @Test
+    public void testFixedPointRoundTrip() {
+        ByteBuffer bb = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(0, Integer.MAX_VALUE);
+        AttributeValue av = new AttributeValue(bb, AttributeValue.DataType.Q_15_16);
+
+        bb = av.getValueBytes(null);
+        bb.position(0);
+        assertEquals(Integer.MAX_VALUE, bb.getInt());
+    }
+
+    @Test
+    public void testCompareAcrossScales() {
+        AttributeValue.DataType dataType = AttributeValue.DataType.FLOAT32;
+
+        assertEquals(0, new AttributeValue("1.50", dataType).compareTo(new AttributeValue("1.5", dataType)));
+        assertTrue(new AttributeValue("-2", dataType).compareTo(new AttributeValue("-1.999", dataType)) < 0);
+        assertTrue(new AttributeValue("123456789012345678", dataType).compareTo(new AttributeValue("0.5", dataType)) > 0);
+        assertEquals("1.50", new AttributeValue("1.50", dataType).toString());
+        assertEquals("0.05", new AttributeValue("0.05", dataType).toString());
+        assertEquals("1E-7", new AttributeValue("0.0000001", dataType).toString());
+    }
+
     private ByteBuffer makeAttributeValueBytes(String value, AttributeValue.DataType dataType) {
         AttributeValue av = new AttributeValue(value, dataType);
         ByteBuffer bb = av.getValueBytes(null);
@@ -295,4 +321,33 @@ public class AttributeValueTest {
         assertTrue(AttributeValue.isNumericDecimalType(AttributeValue.DataType.FLOAT64));
     }
 
+    @Test
+    public void testValueOfIsShared() {
+        AttributeValue av = AttributeValue.valueOf("42", AttributeValue.DataType.SINT16);
+
+        assertTrue(av.isImmutable());
+        assertFalse(new AttributeValue("42", AttributeValue.DataType.SINT16).isImmutable());
+        assertSame(av, AttributeValue.valueOf("42", AttributeValue.DataType.SINT16));
+        assertNotSame(av, AttributeValue.valueOf("42", AttributeValue.DataType.SINT32));
+        assertEquals(0, av.compareTo(new AttributeValue("42", AttributeValue.DataType.SINT16)));
+
+        // BYTES hands out its array, so every caller gets its own
+        assertNotSame(AttributeValue.valueOf("0102", AttributeValue.DataType.BYTES),
+                AttributeValue.valueOf("0102", AttributeValue.DataType.BYTES));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testValueOfIsImmutable() {
+        AttributeValue.valueOf("true", AttributeValue.DataType.BOOLEAN).setValue(false);
+    }
+
+    @Test
+    public void testDoubleValue() {
+        assertEquals(12345.12345, new AttributeValue("12345.12345", AttributeValue.DataType.FLOAT64).doubleValue(), 0);
+        assertEquals(-7, new AttributeValue("-7", AttributeValue.DataType.SINT16).doubleValue(), 0);
+        assertEquals(1.5, new AttributeValue("1.5", AttributeValue.DataType.Q_15_16).doubleValue(), 0);
+        assertEquals(1, new AttributeValue("true", AttributeValue.DataType.BOOLEAN).doubleValue(), 0);
+        assertEquals(0, new AttributeValue("0", AttributeValue.DataType.BOOLEAN).doubleValue(), 0);
+    }
+
 }
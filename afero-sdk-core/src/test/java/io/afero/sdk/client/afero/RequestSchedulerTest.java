@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.client.afero;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
+
+import static org.junit.Assert.assertEquals;
+
+public class RequestSchedulerTest {
+
+    private final TestScheduler mScheduler = new TestScheduler();
+    private final ArrayList<String> mStarted = new ArrayList<>();
+
+    @Test
+    public void testLaneRateLimited() {
+        RequestScheduler scheduler = newBuilder()
+                .lane(RequestScheduler.Lane.BULK, 2, 2)
+                .build();
+
+        ArrayList<TestSubscriber<String>> subscribers = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+            subscribers.add(call(scheduler, RequestScheduler.Lane.BULK, "bulk" + i, Observable.just("ok")));
+        }
+
+        // the burst goes at once, then one every 500 ms
+        assertEquals(2, mStarted.size());
+        mScheduler.advanceTimeBy(499, TimeUnit.MILLISECONDS);
+        assertEquals(2, mStarted.size());
+        mScheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+        assertEquals(3, mStarted.size());
+        mScheduler.advanceTimeBy(1000, TimeUnit.MILLISECONDS);
+        assertEquals(5, mStarted.size());
+
+        for (TestSubscriber<String> subscriber : subscribers) {
+            subscriber.assertValue("ok");
+        }
+
+        RequestScheduler.Stats stats = scheduler.getStats(RequestScheduler.Lane.BULK);
+        assertEquals(5, stats.admittedCount);
+        assertEquals(0, stats.waitingCount);
+        assertEquals(1500, stats.maxQueueTimeMs);
+        assertEquals((500 + 1000 + 1500) / 5, stats.getAverageQueueTimeMs());
+    }
+
+    @Test
+    public void testWriteLanePreemptsBulk() {
+        RequestScheduler scheduler = newBuilder().maxInFlight(1).build();
+        PublishSubject<String> inFlight = PublishSubject.create();
+
+        call(scheduler, RequestScheduler.Lane.BULK, "bulk0", inFlight);
+        call(scheduler, RequestScheduler.Lane.BULK, "bulk1", Observable.<String>never());
+        call(scheduler, RequestScheduler.Lane.READ, "read", Observable.<String>never());
+        TestSubscriber<String> write = call(scheduler, RequestScheduler.Lane.WRITE, "write", Observable.just("ok"));
+
+        assertEquals(1, mStarted.size());
+        assertEquals(1, scheduler.getStats(RequestScheduler.Lane.WRITE).waitingCount);
+
+        // the write finishes at once, so the read starts after it
+        inFlight.onCompleted();
+        write.assertValue("ok");
+        assertEquals("write", mStarted.get(1));
+        assertEquals("read", mStarted.get(2));
+        assertEquals(1, scheduler.getStats(RequestScheduler.Lane.BULK).waitingCount);
+    }
+
+    @Test
+    public void testSlotKeptForWriteLane() {
+        RequestScheduler scheduler = newBuilder().maxInFlight(3).build();
+
+        call(scheduler, RequestScheduler.Lane.BULK, "bulk0", Observable.<String>never());
+        call(scheduler, RequestScheduler.Lane.BULK, "bulk1", Observable.<String>never());
+        call(scheduler, RequestScheduler.Lane.BULK, "bulk2", Observable.<String>never());
+        call(scheduler, RequestScheduler.Lane.READ, "read", Observable.<String>never());
+
+        // the bulk calls still in flight leave the last slot free
+        assertEquals(2, mStarted.size());
+        assertEquals(2, scheduler.getInFlightCount());
+
+        TestSubscriber<String> write = call(scheduler, RequestScheduler.Lane.WRITE, "write", Observable.<String>never());
+        assertEquals("write", mStarted.get(2));
+        assertEquals(3, scheduler.getInFlightCount());
+
+        write.unsubscribe();
+        assertEquals(3, mStarted.size());
+        assertEquals(1, scheduler.getStats(RequestScheduler.Lane.READ).waitingCount);
+        assertEquals(1, scheduler.getStats(RequestScheduler.Lane.BULK).waitingCount);
+    }
+
+    @Test
+    public void testUnsubscribedCallsReleaseLane() {
+        RequestScheduler scheduler = newBuilder().maxInFlight(1).build();
+
+        Subscription first = call(scheduler, RequestScheduler.Lane.READ, "first", Observable.<String>never());
+        Subscription second = call(scheduler, RequestScheduler.Lane.READ, "second", Observable.<String>never());
+        call(scheduler, RequestScheduler.Lane.READ, "third", Observable.<String>never());
+
+        second.unsubscribe();
+        first.unsubscribe();
+
+        assertEquals(2, mStarted.size());
+        assertEquals("third", mStarted.get(1));
+        assertEquals(1, scheduler.getInFlightCount());
+
+        RequestScheduler.Stats stats = scheduler.getStats(RequestScheduler.Lane.READ);
+        assertEquals(2, stats.admittedCount);
+        assertEquals(1, stats.cancelledCount);
+        assertEquals(0, stats.waitingCount);
+    }
+
+    @Test
+    public void testEachRetryAdmitted() {
+        RequestScheduler scheduler = newBuilder()
+                .lane(RequestScheduler.Lane.WRITE, 1, 1)
+                .build();
+
+        TestSubscriber<String> subscriber = new TestSubscriber<>();
+        record("write", Observable.<String>error(new IllegalStateException()))
+                .compose(scheduler.<String>schedule(RequestScheduler.Lane.WRITE))
+                .retry(1)
+                .subscribe(subscriber);
+
+        assertEquals(1, mStarted.size());
+        mScheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        assertEquals(2, mStarted.size());
+        subscriber.assertError(IllegalStateException.class);
+        assertEquals(0, scheduler.getInFlightCount());
+    }
+
+    private RequestScheduler.Builder newBuilder() {
+        return new RequestScheduler.Builder().scheduler(mScheduler);
+    }
+
+    private TestSubscriber<String> call(RequestScheduler scheduler, RequestScheduler.Lane lane, String name, Observable<String> response) {
+        TestSubscriber<String> subscriber = new TestSubscriber<>();
+        record(name, response)
+                .compose(scheduler.<String>schedule(lane))
+                .subscribe(subscriber);
+        return subscriber;
+    }
+
+    private Observable<String> record(final String name, Observable<String> response) {
+        return response.doOnSubscribe(new Action0() {
+            @Override
+            public void call() {
+                mStarted.add(name);
+            }
+        });
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.client.afero;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    private final TestScheduler mScheduler = new TestScheduler();
+
+    private static final Func1<Throwable, Boolean> ANY_ERROR = new Func1<Throwable, Boolean>() {
+        @Override
+        public Boolean call(Throwable t) {
+            return true;
+        }
+    };
+
+    private static final Func1<Throwable, Boolean> NO_ERROR = new Func1<Throwable, Boolean>() {
+        @Override
+        public Boolean call(Throwable t) {
+            return false;
+        }
+    };
+
+    @Test
+    public void testBackoffGrowsWithinBounds() {
+        RetryPolicy policy = newBuilder().build();
+        FailingCall call = new FailingCall(3);
+        TestSubscriber<String> subscriber = new TestSubscriber<>();
+
+        call.observable().retryWhen(policy.retryWhen("account", 4, ANY_ERROR)).subscribe(subscriber);
+        assertEquals(1, call.attempts);
+
+        // the n-th retry waits less than 100 * 2^(n - 1) ms
+        long[] bounds = { 100, 200, 400 };
+        for (int i = 0; i < bounds.length; ++i) {
+            mScheduler.advanceTimeBy(bounds[i], TimeUnit.MILLISECONDS);
+            assertEquals(i + 2, call.attempts);
+        }
+
+        subscriber.assertValue("ok");
+        RetryPolicy.Stats stats = policy.getStats();
+        assertEquals(3, stats.retryCount);
+        assertEquals(0, stats.giveUpCount);
+        assertTrue(stats.addedDelayMs < 700);
+    }
+
+    @Test
+    public void testGivesUpAfterMaxRetries() {
+        RetryPolicy policy = newBuilder().build();
+        FailingCall call = new FailingCall(10);
+        TestSubscriber<String> subscriber = new TestSubscriber<>();
+
+        call.observable().retryWhen(policy.retryWhen("account", 2, ANY_ERROR)).subscribe(subscriber);
+        mScheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+
+        assertEquals(3, call.attempts);
+        subscriber.assertError(IllegalStateException.class);
+        assertEquals(2, policy.getStats().retryCount);
+        assertEquals(1, policy.getStats().giveUpCount);
+    }
+
+    @Test
+    public void testGivesUpAfterMaxElapsed() {
+        RetryPolicy policy = newBuilder()
+                .backoff(1000, 1000, 1, TimeUnit.MILLISECONDS)
+                .maxElapsed(1500, TimeUnit.MILLISECONDS)
+                .random(new Random() {
+                    @Override
+                    public double nextDouble() {
+                        return 0.99;
+                    }
+                })
+                .build();
+        FailingCall call = new FailingCall(10);
+        TestSubscriber<String> subscriber = new TestSubscriber<>();
+
+        call.observable().retryWhen(policy.retryWhen("account", 10, ANY_ERROR)).subscribe(subscriber);
+        mScheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+
+        // a second 990 ms wait would end past 1500 ms
+        assertEquals(2, call.attempts);
+        subscriber.assertError(IllegalStateException.class);
+    }
+
+    @Test
+    public void testBudgetIsPerAccount() {
+        RetryPolicy policy = newBuilder().budget(0, 2).build();
+
+        for (int i = 0; i < 3; ++i) {
+            new FailingCall(1).observable()
+                    .retryWhen(policy.retryWhen("busy", 4, ANY_ERROR))
+                    .subscribe(new TestSubscriber<String>());
+        }
+
+        TestSubscriber<String> other = new TestSubscriber<>();
+        new FailingCall(1).observable()
+                .retryWhen(policy.retryWhen("other", 4, ANY_ERROR))
+                .subscribe(other);
+        mScheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+
+        other.assertValue("ok");
+        RetryPolicy.Stats stats = policy.getStats();
+        assertEquals(3, stats.retryCount);
+        assertEquals(1, stats.budgetExhaustedCount);
+        assertEquals(1, stats.giveUpCount);
+    }
+
+    @Test
+    public void testBudgetRefills() {
+        RetryPolicy policy = newBuilder().budget(1, 1).build();
+
+        new FailingCall(1).observable()
+                .retryWhen(policy.retryWhen("account", 4, ANY_ERROR))
+                .subscribe(new TestSubscriber<String>());
+        mScheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+
+        TestSubscriber<String> subscriber = new TestSubscriber<>();
+        new FailingCall(1).observable()
+                .retryWhen(policy.retryWhen("account", 4, ANY_ERROR))
+                .subscribe(subscriber);
+        mScheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+
+        subscriber.assertValue("ok");
+        assertEquals(0, policy.getStats().budgetExhaustedCount);
+    }
+
+    @Test
+    public void testUnretryableErrorPassesThrough() {
+        RetryPolicy policy = newBuilder().build();
+        FailingCall call = new FailingCall(1);
+        TestSubscriber<String> subscriber = new TestSubscriber<>();
+
+        call.observable().retryWhen(policy.retryWhen("account", 4, NO_ERROR)).subscribe(subscriber);
+
+        assertEquals(1, call.attempts);
+        subscriber.assertError(IllegalStateException.class);
+        assertEquals(0, policy.getStats().giveUpCount);
+    }
+
+    private RetryPolicy.Builder newBuilder() {
+        return new RetryPolicy.Builder()
+                .backoff(100, 1000, 2, TimeUnit.MILLISECONDS)
+                .scheduler(mScheduler)
+                .random(new Random(42));
+    }
+
+    private static class FailingCall {
+        private final int mFailures;
+        int attempts;
+
+        FailingCall(int failures) {
+            mFailures = failures;
+        }
+
+        Observable<String> observable() {
+            return Observable.defer(new Func0<Observable<String>>() {
+                @Override
+                public Observable<String> call() {
+                    return ++attempts <= mFailures
+                            ? Observable.<String>error(new IllegalStateException("attempt " + attempts))
+                            : Observable.just("ok");
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.conclave;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+
+import io.afero.sdk.client.afero.models.ConclaveAccessDetails;
+import io.afero.sdk.utils.JSONUtils;
+import rx.observers.TestSubscriber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConclaveEventLoopTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private ConclaveEventLoop eventLoop;
+    private ServerSocket serverSocket;
+
+    @Before
+    public void beforeTests() throws IOException {
+        eventLoop = new ConclaveEventLoop(1);
+        serverSocket = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        serverSocket.setSoTimeout((int)TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+    }
+
+    @After
+    public void afterTests() throws IOException {
+        eventLoop.shutdown();
+        serverSocket.close();
+    }
+
+    @Test
+    public void testConnectAndReceive() throws IOException {
+        ConclaveClient client = new ConclaveClient(eventLoop, false, true);
+        TestSubscriber<JsonNode> messageSubscriber = new TestSubscriber<>();
+        client.messageObservable().subscribe(messageSubscriber);
+
+        connect(client);
+        ServerConnection server = new ServerConnection(serverSocket.accept());
+
+        server.writeLine("{\"hello\":{\"version\":\"1.0\",\"heartbeat\":30}}");
+        server.writeLine("{\"welcome\":{\"sessionId\":5,\"generation\":1,\"seq\":2}}");
+
+        messageSubscriber.awaitValueCount(2, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("1.0", messageSubscriber.getOnNextEvents().get(0).get("hello").get("version").asText());
+        assertEquals(5, messageSubscriber.getOnNextEvents().get(1).get("welcome").get("sessionId").asInt());
+        assertTrue(client.isConnected());
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testWriteAndHeartbeat() throws IOException {
+        ConclaveClient client = new ConclaveClient(eventLoop, false, true);
+
+        connect(client);
+        ServerConnection server = new ServerConnection(serverSocket.accept());
+
+        client.say("device:view", "hi");
+        JsonNode node = server.readTree();
+        assertEquals("device:view", node.get("say").get("event").asText());
+
+        // an empty line from the server is a heartbeat and gets echoed
+        server.writeLine("");
+        assertEquals("", server.reader.readLine());
+
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testManySessionsOneThread() throws IOException {
+        final int count = 4;
+        ConclaveClient[] clients = new ConclaveClient[count];
+        ServerConnection[] servers = new ServerConnection[count];
+        TestSubscriber[] subscribers = new TestSubscriber[count];
+
+        for (int i = 0; i < count; ++i) {
+            clients[i] = new ConclaveClient(eventLoop, false, true);
+            subscribers[i] = new TestSubscriber<JsonNode>();
+            clients[i].messageObservable().subscribe(subscribers[i]);
+            connect(clients[i]);
+            servers[i] = new ServerConnection(serverSocket.accept());
+        }
+
+        assertEquals(1, eventLoop.getThreadCount());
+        assertEquals(count, eventLoop.getSessionCount());
+
+        for (int i = 0; i < count; ++i) {
+            servers[i].writeLine("{\"public\":{\"event\":\"e\",\"data\":" + i + "}}");
+        }
+
+        for (int i = 0; i < count; ++i) {
+            subscribers[i].awaitValueCount(1, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            JsonNode node = (JsonNode)subscribers[i].getOnNextEvents().get(0);
+            assertEquals(i, node.get("public").get("data").asInt());
+        }
+
+        for (int i = 0; i < count; ++i) {
+            clients[i].close();
+            servers[i].close();
+        }
+    }
+
+    @Test
+    public void testUnresolvableHost() {
+        ConclaveClient client = new ConclaveClient(eventLoop, false, true);
+
+        TestSubscriber<ConclaveClient> subscriber = new TestSubscriber<>();
+        client.connect(createAccessDetails("conclave.invalid")).subscribe(subscriber);
+        subscriber.awaitTerminalEvent(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        subscriber.assertError(UnknownHostException.class);
+    }
+
+    private void connect(ConclaveClient client) {
+        TestSubscriber<ConclaveClient> subscriber = new TestSubscriber<>();
+        client.connect(createAccessDetails("127.0.0.1")).subscribe(subscriber);
+        subscriber.awaitTerminalEvent(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        subscriber.assertNoErrors();
+        subscriber.assertValue(client);
+    }
+
+    private ConclaveAccessDetails createAccessDetails(String hostName) {
+        ConclaveAccessDetails.ConclaveHost host = new ConclaveAccessDetails.ConclaveHost();
+        host.type = "socket";
+        host.host = hostName;
+        host.port = serverSocket.getLocalPort();
+
+        ConclaveAccessDetails cad = new ConclaveAccessDetails();
+        cad.conclaveHosts = new ConclaveAccessDetails.ConclaveHost[] { host };
+        return cad;
+    }
+
+    private static class ServerConnection {
+        final Socket socket;
+        final BufferedReader reader;
+        final PrintWriter writer;
+
+        ServerConnection(Socket s) throws IOException {
+            socket = s;
+            socket.setSoTimeout((int)TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            reader = new BufferedReader(new InputStreamReader(
+                    new StreamingInflaterInputStream(socket.getInputStream()), StandardCharsets.UTF_8));
+            writer = new PrintWriter(new OutputStreamWriter(
+                    new DeflaterOutputStream(socket.getOutputStream(), true), StandardCharsets.UTF_8), true);
+        }
+
+        void writeLine(String line) {
+            writer.println(line);
+        }
+
+        JsonNode readTree() throws IOException {
+            return JSONUtils.getObjectMapper().readTree(reader.readLine());
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.conclave;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import io.afero.sdk.conclave.models.DeviceState;
+import io.afero.sdk.conclave.models.DeviceSync;
+import io.afero.sdk.conclave.models.OTAInfo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConclaveMessageDecoderTest {
+
+    private final ConclaveMessageDecoder decoder = new ConclaveMessageDecoder();
+
+    @Test
+    public void testAttributeChange() throws IOException {
+        ConclaveMessageDecoder.Message message = decoder.decode(
+                "{\"public\":{\"sessionId\":3,\"seq\":42,\"event\":\"attr_change\",\"data\":" +
+                "{\"id\":\"device-1\",\"requestId\":7,\"state\":0,\"attribute\":{\"id\":1024,\"value\":\"01\"}}}}");
+
+        assertEquals(ConclaveMessageDecoder.KEY_PUBLIC, message.key);
+        assertEquals(ConclaveMessageDecoder.EVENT_ATTR_CHANGE, message.event);
+        assertEquals(42, message.seq.intValue());
+        assertEquals(3, message.sessionId);
+        assertEquals("device-1", message.deviceId);
+
+        DeviceSync ds = (DeviceSync)message.data;
+        assertEquals("device-1", ds.deviceId);
+        assertEquals(7, ds.requestId.intValue());
+        assertEquals(1024, ds.attribute.id);
+        assertEquals("01", ds.attribute.value);
+    }
+
+    @Test
+    public void testDataBeforeEvent() throws IOException {
+        ConclaveMessageDecoder.Message message = decoder.decode(
+                "{\"private\":{\"data\":{\"id\":\"device-2\",\"status\":{\"available\":true}},\"event\":\"Status_Change\"}}");
+
+        assertEquals(ConclaveMessageDecoder.KEY_PRIVATE, message.key);
+        assertEquals(ConclaveMessageDecoder.EVENT_STATUS_CHANGE, message.event);
+        assertNull(message.seq);
+        assertEquals("device-2", message.deviceId);
+        assertTrue(((DeviceState)message.data).status.available);
+    }
+
+    @Test
+    public void testNonScalarFieldsIgnored() throws IOException {
+        ConclaveMessageDecoder.Message message = decoder.decode(
+                "{\"public\":{\"sessionId\":{\"event\":\"bogus\"},\"seq\":[1,2],\"event\":\"attr_change\",\"data\":" +
+                "{\"id\":\"device-1\",\"attribute\":{\"id\":1024,\"value\":\"01\"}}}}");
+
+        assertEquals(ConclaveMessageDecoder.EVENT_ATTR_CHANGE, message.event);
+        assertNull(message.seq);
+        assertEquals(0, message.sessionId);
+        assertEquals("device-1", message.deviceId);
+        assertEquals(1024, ((DeviceSync)message.data).attribute.id);
+    }
+
+    @Test
+    public void testPeripheralList() throws IOException {
+        ConclaveMessageDecoder.Message message = decoder.decode(
+                "{\"private\":{\"event\":\"peripheralList\",\"data\":{\"currentSeq\":9,\"peripherals\":" +
+                "[{\"id\":\"a\",\"profileId\":\"p\"},{\"id\":\"b\",\"profileId\":\"p\"}]}}}");
+
+        ConclaveMessageDecoder.PeripheralList list = (ConclaveMessageDecoder.PeripheralList)message.data;
+        assertEquals(ConclaveMessageDecoder.EVENT_PERIPHERAL_LIST, message.event);
+        assertEquals(9, list.currentSeq.intValue());
+        assertEquals(2, list.peripherals.length);
+        assertEquals("b", list.peripherals[1].deviceId);
+    }
+
+    @Test
+    public void testOTAProgress() throws IOException {
+        ConclaveMessageDecoder.Message message = decoder.decode(
+                "{\"public\":{\"event\":\"device:ota_progress\",\"data\":{\"id\":\"d\",\"state\":1,\"offset\":10,\"total\":20}}}");
+
+        OTAInfo info = (OTAInfo)message.data;
+        assertEquals("d", message.deviceId);
+        assertEquals(OTAInfo.OtaState.ONGOING, info.getState());
+        assertEquals(10, info.offset);
+    }
+
+    @Test
+    public void testEnvelope() throws IOException {
+        ConclaveMessageDecoder.Message hello = decoder.decode("{\"hello\":{\"version\":\"1.0\",\"heartbeat\":30}}");
+        assertEquals(ConclaveMessageDecoder.KEY_HELLO, hello.key);
+        assertEquals(30, ((ConclaveMessage.HelloFields)hello.data).heartbeat);
+
+        ConclaveMessageDecoder.Message welcome = decoder.decode("{\"Welcome\":{\"sessionId\":5,\"generation\":11,\"seq\":2}}");
+        assertEquals(ConclaveMessageDecoder.KEY_WELCOME, welcome.key);
+        assertEquals(11, ((ConclaveMessage.WelcomeFields)welcome.data).generation);
+
+        ConclaveMessageDecoder.Message error = decoder.decode("{\"error\":{\"code\":906}}");
+        assertEquals(ConclaveClient.ERROR_CODE_INVALID_TOKEN, ((ConclaveMessageDecoder.ErrorFields)error.data).code);
+    }
+
+    @Test
+    public void testUnknownEvent() throws IOException {
+        ConclaveMessageDecoder.Message message = decoder.decode(
+                "{\"public\":{\"event\":\"something:new\",\"data\":{\"x\":[1,2,{\"y\":3}]},\"seq\":5}}");
+
+        assertEquals("something:new", message.event);
+        assertEquals(5, message.seq.intValue());
+        assertNull(message.data);
+        assertNull(message.deviceId);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.conclave;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import io.afero.sdk.utils.JSONUtils;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConclaveWriterTest {
+
+    private ConclaveWriter writer;
+    private FlushCountingOutputStream out;
+    private DeferredExecutor executor;
+
+    @Before
+    public void beforeTests() {
+        writer = new ConclaveWriter();
+        out = new FlushCountingOutputStream();
+        executor = new DeferredExecutor();
+    }
+
+    @Test
+    public void testBurstIsWrittenInOneFlush() throws IOException {
+        writer.open(out, executor);
+
+        final int count = 50;
+        for (int i = 0; i < count; ++i) {
+            writer.enqueue(new ConclaveMessage.Say("metrics", i));
+        }
+
+        assertEquals(count, writer.getQueueDepth());
+        assertEquals(1, executor.tasks.size());
+
+        executor.runAll();
+
+        assertEquals(0, writer.getQueueDepth());
+        assertEquals(1, out.flushCount);
+        assertEquals(1, writer.getFlushCount());
+        assertEquals(count, writer.getMessageCount());
+        assertEquals(count, writer.getLastFlushSize());
+        assertEquals(out.size(), writer.getByteCount());
+
+        String[] lines = out.toString(StandardCharsets.UTF_8.name()).split("\n");
+        assertEquals(count, lines.length);
+        for (int i = 0; i < count; ++i) {
+            JsonNode node = JSONUtils.getObjectMapper().readTree(lines[i]);
+            assertEquals(i, node.get("say").get("data").asInt());
+        }
+    }
+
+    @Test
+    public void testHeartbeat() throws IOException {
+        writer.open(out, executor);
+        writer.enqueueHeartbeat();
+        executor.runAll();
+
+        assertEquals("\n", out.toString(StandardCharsets.UTF_8.name()));
+    }
+
+    @Test
+    public void testDropsWhenClosed() {
+        writer.enqueue(new ConclaveMessage.Bye());
+        assertEquals(0, writer.getQueueDepth());
+        assertEquals(1, writer.getDroppedCount());
+
+        writer.open(out, executor);
+        writer.enqueue(new ConclaveMessage.Bye());
+        writer.close();
+        executor.runAll();
+
+        assertEquals(0, writer.getQueueDepth());
+        assertEquals(2, writer.getDroppedCount());
+        assertEquals(0, out.size());
+    }
+
+    private static class FlushCountingOutputStream extends ByteArrayOutputStream {
+        int flushCount;
+
+        @Override
+        public void flush() {
+            flushCount++;
+        }
+    }
+
+    private static class DeferredExecutor implements Executor {
+        final ArrayList<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+}
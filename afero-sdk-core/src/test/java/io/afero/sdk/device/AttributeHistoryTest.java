@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import io.afero.sdk.AferoTest;
+import io.afero.sdk.conclave.models.DeviceSync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AttributeHistoryTest extends AferoTest {
+
+    @Test
+    public void testRingKeepsNewestSamples() {
+        AttributeHistory history = new AttributeHistory(3);
+        assertEquals(0, history.size());
+        assertTrue(Double.isNaN(history.mean(0)));
+        assertEquals(0, history.getLastChangeTime());
+
+        for (int i = 1; i <= 5; ++i) {
+            history.record(i * 1000, i);
+        }
+
+        assertEquals(3, history.size());
+        assertEquals(3000, history.getTimestamp(0));
+        assertEquals(3, history.getValue(0), 0);
+        assertEquals(5000, history.getTimestamp(2));
+        assertEquals(5, history.getValue(2), 0);
+    }
+
+    @Test
+    public void testWindowedAggregates() {
+        AttributeHistory history = new AttributeHistory(8);
+        double[] values = { 4, 9, 2, 6, 6, 6 };
+        for (int i = 0; i < values.length; ++i) {
+            history.record(i * 1000, values[i]);
+        }
+
+        assertEquals(2, history.min(0), 0);
+        assertEquals(9, history.max(0), 0);
+        assertEquals(33.0 / 6, history.mean(0), 1e-9);
+
+        // the last three samples only
+        assertEquals(6, history.min(3000), 0);
+        assertEquals(6, history.max(3000), 0);
+        assertEquals(6, history.mean(3000), 0);
+
+        assertTrue(Double.isNaN(history.max(6000)));
+        assertEquals(3000, history.getLastChangeTime());
+    }
+
+    @Test
+    public void testDeviceModelRecordsReports() throws IOException {
+        DeviceProfile dp = loadDeviceProfile("deviceModel/deviceModelTestProfile.json");
+        DeviceModel dm = new DeviceModel("device-id", dp, false, null);
+        DeviceProfile.Attribute a100 = dp.getAttributeById(100);
+
+        dm.update(newAttributeChange(100, "10", 1000));
+        AttributeHistory history = dm.setAttributeHistoryCapacity(a100, 4);
+        assertSame(history, dm.getAttributeHistory(a100));
+        assertEquals(1, history.size());
+
+        dm.update(newAttributeChange(100, "20", 2000));
+        dm.update(newAttributeChange(100, "20", 3000));
+
+        assertEquals(3, history.size());
+        assertEquals(20, history.getValue(2), 0);
+        assertEquals(2000, history.getLastChangeTime());
+        assertEquals(50.0 / 3, history.mean(0), 1e-9);
+
+        assertNull(dm.setAttributeHistoryCapacity(a100, 0));
+        assertNull(dm.getAttributeHistory(a100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStringAttributeRejected() throws IOException {
+        DeviceProfile dp = loadDeviceProfile("deviceModel/deviceModelTestProfile.json");
+        DeviceModel dm = new DeviceModel("device-id", dp, false, null);
+
+        dm.setAttributeHistoryCapacity(dp.getAttributeById(700), 4);
+    }
+
+    private static DeviceSync newAttributeChange(int id, String value, long timestamp) {
+        DeviceSync ds = new DeviceSync();
+        ds.attribute = new DeviceSync.AttributeEntry(id, value);
+        ds.attribute.updatedTimestamp = timestamp;
+        return ds;
+    }
+}
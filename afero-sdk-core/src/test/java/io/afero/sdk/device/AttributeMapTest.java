@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class AttributeMapTest {
+
+    @Test
+    public void putAndGetAcrossAttributeRanges() throws Exception {
+        AttributeMap<String> map = new AttributeMap<>();
+        HashMap<Integer, String> expected = new HashMap<>();
+
+        for (int id = 1; id <= 50; ++id) {
+            put(map, expected, id);
+        }
+        for (int id = 59001; id <= 59010; ++id) {
+            put(map, expected, id);
+        }
+        for (int id = 65001; id <= 65010; ++id) {
+            put(map, expected, id);
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (int id : expected.keySet()) {
+            assertEquals(expected.get(id), map.get(id));
+        }
+        assertNull(map.get(0));
+        assertNull(map.get(51));
+        assertNull(map.get(-1));
+
+        assertEquals("1", map.put(1, "one"));
+        assertEquals("one", map.get(1));
+        assertEquals(expected.size(), map.size());
+    }
+
+    @Test
+    public void forEachVisitsEveryEntry() throws Exception {
+        AttributeMap<String> map = new AttributeMap<>();
+        final HashMap<Integer, String> expected = new HashMap<>();
+        for (int id = 1; id <= 100; id += 3) {
+            put(map, expected, id);
+        }
+
+        final HashMap<Integer, String> visited = new HashMap<>();
+        map.forEach(new AttributeMap.Visitor<String>() {
+            @Override
+            public void visit(int key, String value) {
+                visited.put(key, value);
+            }
+        });
+
+        assertEquals(expected, visited);
+    }
+
+    private static void put(AttributeMap<String> map, HashMap<Integer, String> expected, int id) {
+        assertNull(map.put(id, Integer.toString(id)));
+        expected.put(id, Integer.toString(id));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import io.afero.sdk.client.afero.models.AttributeValue;
+import io.afero.sdk.client.afero.models.WriteRequest;
+import io.afero.sdk.client.afero.models.WriteResponse;
+import io.afero.sdk.client.mock.MockAferoClient;
+import io.afero.sdk.client.mock.ResourceLoader;
+import io.afero.sdk.conclave.models.DeviceSync;
+import rx.Observable;
+import rx.observers.TestSubscriber;
+
+import static org.junit.Assert.assertEquals;
+
+public class AttributeWriteChannelTest {
+
+    private static final int ATTR_ID = 100;
+
+    private final ArrayList<WriteRequest[]> mBatches = new ArrayList<>();
+    private final MockAferoClient mAferoClient = new MockAferoClient() {
+        @Override
+        public Observable<WriteResponse[]> postBatchAttributeWrite(DeviceModel deviceModel, WriteRequest[] body, int maxRetryCount, int statusCode) {
+            mBatches.add(body);
+            return super.postBatchAttributeWrite(deviceModel, body, maxRetryCount, statusCode);
+        }
+    };
+    private final DeviceModel mDeviceModel;
+
+    public AttributeWriteChannelTest() throws IOException {
+        DeviceProfile profile = new ResourceLoader("writeAttributeOperation/")
+                .createObjectFromJSONResource("deviceProfile.json", DeviceProfile.class);
+        mDeviceModel = new DeviceModel("device-id", profile, false, mAferoClient);
+    }
+
+    @Test
+    public void testLatestValueSentAfterInFlightWrite() {
+        AttributeWriteChannel channel = new AttributeWriteChannel(mDeviceModel, 30);
+        TestSubscriber<AttributeWriter.Result> first = write(channel, "1");
+        TestSubscriber<AttributeWriter.Result> second = write(channel, "2");
+        TestSubscriber<AttributeWriter.Result> third = write(channel, "3");
+
+        // only the first is sent while it waits for the device
+        assertEquals(1, mBatches.size());
+
+        second.assertCompleted();
+        assertEquals(AttributeWriter.Result.Status.SUPERSEDED, second.getOnNextEvents().get(0).status);
+        third.assertNoTerminalEvent();
+
+        deviceUpdate(1, "1");
+        first.assertCompleted();
+        assertEquals(AttributeWriter.Result.Status.SUCCESS, first.getOnNextEvents().get(0).status);
+
+        assertEquals(2, mBatches.size());
+        assertEquals("3", mBatches.get(1)[0].value);
+
+        deviceUpdate(2, "3");
+        third.assertCompleted();
+        assertEquals(AttributeWriter.Result.Status.SUCCESS, third.getOnNextEvents().get(0).status);
+        assertEquals(2, third.getOnNextEvents().get(0).requestId);
+
+        AttributeWriteChannel.Stats stats = channel.getStats();
+        assertEquals(3, stats.writeCount);
+        assertEquals(1, stats.supersededCount);
+        assertEquals(2, stats.batchCount);
+    }
+
+    @Test
+    public void testCloudFailureReachesWaitingWrite() {
+        AttributeWriteChannel channel = new AttributeWriteChannel(mDeviceModel, 30);
+        TestSubscriber<AttributeWriter.Result> first = write(channel, "1");
+
+        WriteResponse failure = new WriteResponse();
+        failure.status = WriteResponse.STATUS_FAILURE;
+        mAferoClient.setPostBatchAttributeWriteResponse(Observable.just(new WriteResponse[] { failure }));
+        TestSubscriber<AttributeWriter.Result> second = write(channel, "2");
+
+        deviceUpdate(1, "1");
+        first.assertCompleted();
+
+        second.assertError(AttributeWriter.AttributeWriteRequestFailure.class);
+        assertEquals(AttributeWriter.Result.Status.FAILURE, second.getOnNextEvents().get(0).status);
+        assertEquals(2, mBatches.size());
+
+        // the channel is free for the next write
+        mAferoClient.setPostBatchAttributeWriteResponse(null);
+        TestSubscriber<AttributeWriter.Result> third = write(channel, "3");
+        assertEquals(3, mBatches.size());
+        deviceUpdate(2, "3");
+        third.assertCompleted();
+    }
+
+    private static TestSubscriber<AttributeWriter.Result> write(AttributeWriteChannel channel, String value) {
+        TestSubscriber<AttributeWriter.Result> subscriber = new TestSubscriber<>();
+        channel.write(ATTR_ID, new AttributeValue(value, AttributeValue.DataType.SINT8)).subscribe(subscriber);
+        return subscriber;
+    }
+
+    private void deviceUpdate(int requestId, String value) {
+        DeviceSync ds = new DeviceSync();
+        ds.setDeviceId(mDeviceModel.getId());
+        ds.requestId = requestId;
+        ds.attribute = new DeviceSync.AttributeEntry(ATTR_ID, value);
+        mDeviceModel.update(ds);
+    }
+}
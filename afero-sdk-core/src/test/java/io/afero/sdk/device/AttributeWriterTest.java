@@ -22,9 +22,11 @@ import io.afero.sdk.conclave.models.DeviceSync;
 import rx.Observable;
 import rx.Observer;
 import rx.functions.Action0;
+import rx.subjects.PublishSubject;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
@@ -293,6 +295,84 @@ public class AttributeWriterTest {
     }
 
 
+    @Test
+    public void testPipelinedBatches() throws Exception {
+        Tester tester = makeTester()
+                .holdBatchResponses()
+                .batchSize(3)
+                .pipelineDepth(2);
+
+        for (int i = 1; i <= 9; ++i) {
+            tester.putAttribute(i * 100, Integer.toString(i));
+        }
+
+        tester.commit()
+                // the third batch waits for a free slot
+                .verifyRequestCount(2)
+                .releaseBatchResponse(1)
+                .verifyRequestCount(3)
+                .releaseBatchResponse(0)
+                .releaseBatchResponse(2);
+
+        // the first batch's updates arriving before the others' must not end the write
+        for (int i = 1; i <= 3; ++i) {
+            tester.deviceUpdate(i * 100, i, Integer.toString(i));
+        }
+        tester.verifyNoError();
+        assertFalse(tester.isCompleted);
+
+        for (int i = 4; i <= 9; ++i) {
+            tester.deviceUpdate(i * 100, i, Integer.toString(i));
+        }
+        tester.verifyNoError()
+                .verifyIsCompleted();
+
+        for (int i = 1; i <= 9; ++i) {
+            tester.verifyResultStatus(i * 100, AttributeWriter.Result.Status.SUCCESS);
+        }
+    }
+
+    @Test
+    public void testPipelineDepthLimitedByRequestsInFlight() throws Exception {
+        AttributeWriter writer = makeTester().attributeWriter;
+        assertEquals(1, writer.getEffectivePipelineDepth());
+
+        writer.pipelineDepth(10);
+        assertEquals(AttributeWriter.MAX_REQUESTS_IN_FLIGHT / 5, writer.getEffectivePipelineDepth());
+
+        writer.batchSize(AttributeWriter.MAX_REQUESTS_IN_FLIGHT);
+        assertEquals(1, writer.getEffectivePipelineDepth());
+    }
+
+    @Test
+    public void testWritePipelineFromDevice() throws Exception {
+        Tester tester = makeTester();
+        tester.deviceModel.setWritePipeline(3, 4);
+
+        AttributeWriter writer = tester.deviceModel.writeAttributes();
+        assertEquals(4, writer.getEffectivePipelineDepth());
+    }
+
+    @Test
+    public void testAcksRoutedByRequestId() throws Exception {
+        final int ATTR_ID = 100;
+
+        Tester tester = makeTester()
+                .putAttribute(ATTR_ID, "1")
+                .commit();
+        assertEquals(1, tester.deviceModel.getWriteAckCorrelator().size());
+
+        // an ack for some other write
+        tester.deviceUpdate(ATTR_ID, 99, "1");
+        assertFalse(tester.isCompleted);
+
+        tester.deviceUpdate(ATTR_ID, 1, "1")
+                .verifyNoError()
+                .verifyIsCompleted()
+                .verifyResultStatus(ATTR_ID, AttributeWriter.Result.Status.SUCCESS);
+        assertEquals(0, tester.deviceModel.getWriteAckCorrelator().size());
+    }
+
     private Tester makeTester() throws IOException {
         return new Tester();
     }
@@ -339,6 +419,31 @@ public class AttributeWriterTest {
             return this;
         }
 
+        Tester batchSize(int batchSize) {
+            attributeWriter.batchSize(batchSize);
+            return this;
+        }
+
+        Tester pipelineDepth(int pipelineDepth) {
+            attributeWriter.pipelineDepth(pipelineDepth);
+            return this;
+        }
+
+        Tester holdBatchResponses() {
+            aferoClient.heldResponses = new ArrayList<>();
+            return this;
+        }
+
+        Tester releaseBatchResponse(int index) {
+            aferoClient.heldResponses.get(index).onCompleted();
+            return this;
+        }
+
+        Tester verifyRequestCount(int count) {
+            assertEquals(count, aferoClient.requestCount_postBatchAttributeWrite);
+            return this;
+        }
+
         Tester addAttributeWriteResponse(int reqId, String requestResponseStatus) {
 
             if (postBatchAttributeWriteResponses == null) {
@@ -456,10 +561,18 @@ public class AttributeWriterTest {
 
     private static class TestMockAferoClient extends MockAferoClient {
         private int requestCount_postBatchAttributeWrite;
+        private ArrayList<PublishSubject<Void>> heldResponses;
 
         @Override
         public Observable<WriteResponse[]> postBatchAttributeWrite(DeviceModel deviceModel, WriteRequest[] body, int maxRetryCount, int statusCode) {
-            return super.postBatchAttributeWrite(deviceModel, body, maxRetryCount, statusCode)
+            Observable<WriteResponse[]> response = super.postBatchAttributeWrite(deviceModel, body, maxRetryCount, statusCode);
+            if (heldResponses != null) {
+                PublishSubject<Void> release = PublishSubject.create();
+                heldResponses.add(release);
+                response = response.delaySubscription(release);
+            }
+
+            return response
                     .doOnSubscribe(new Action0() {
                         @Override
                         public void call() {
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import io.afero.sdk.client.afero.models.ConclaveAccessDetails;
+import io.afero.sdk.client.mock.MockAferoClient;
+import io.afero.sdk.conclave.ConclaveAccessManager;
+import io.afero.sdk.conclave.ConclaveClient;
+import io.afero.sdk.conclave.ConclaveMessageDecoder;
+import io.afero.sdk.conclave.SyncState;
+import io.afero.sdk.conclave.models.DeviceSync;
+import rx.Observable;
+import rx.observers.TestSubscriber;
+import rx.subjects.PublishSubject;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConclaveDeviceEventSourceTest {
+
+    private final ConclaveMessageDecoder mDecoder = new ConclaveMessageDecoder();
+    private final TestConclaveClient mConclaveClient = new TestConclaveClient();
+    private final ConclaveDeviceEventSource mEventSource = new ConclaveDeviceEventSource(
+            new ConclaveAccessManager(new MockAferoClient() {
+                @Override
+                public Observable<ConclaveAccessDetails> postConclaveAccess() {
+                    return Observable.never();
+                }
+            }), mConclaveClient);
+
+    private final TestSubscriber<DeviceSync> mAttributeChanges = new TestSubscriber<>();
+    private final TestSubscriber<DeviceSync[]> mSnapshots = new TestSubscriber<>();
+    private final TestSubscriber<SyncState> mSyncStates = new TestSubscriber<>();
+
+    @Before
+    public void beforeTests() {
+        mEventSource.start("account-id", "user-id", "client-id", "mobile");
+        mEventSource.observeAttributeChange().subscribe(mAttributeChanges);
+        mEventSource.observeSnapshot().subscribe(mSnapshots);
+        mEventSource.observeSyncState().subscribe(mSyncStates);
+    }
+
+    @Test
+    public void testInOrderSequence() throws IOException {
+        welcome(1, 10);
+        snapshot(10);
+
+        attributeChange(11);
+        attributeChange(12);
+        attributeChange(13);
+
+        assertEquals(3, mAttributeChanges.getOnNextEvents().size());
+        assertEquals(13, mAttributeChanges.getOnNextEvents().get(2).seq);
+        assertStatuses(SyncState.Status.GENERATION_CHANGED, SyncState.Status.SYNCED);
+        assertEquals(0, mConclaveClient.snapshotRequests);
+    }
+
+    @Test
+    public void testGapRecoversOnSnapshot() throws IOException {
+        welcome(1, 10);
+        snapshot(10);
+
+        attributeChange(11);
+        attributeChange(14);
+
+        assertStatuses(SyncState.Status.GENERATION_CHANGED, SyncState.Status.SYNCED, SyncState.Status.GAP);
+        assertEquals(2, lastSyncState().missedCount);
+        assertEquals(1, mConclaveClient.snapshotRequests);
+
+        // a further gap before the snapshot arrives doesn't request another
+        attributeChange(16);
+        assertEquals(1, mConclaveClient.snapshotRequests);
+
+        snapshot(16);
+        assertEquals(2, mSnapshots.getOnNextEvents().size());
+        assertEquals(SyncState.Status.SYNCED, lastSyncState().status);
+        assertEquals(16, lastSyncState().sequenceNum);
+
+        attributeChange(17);
+        assertEquals(SyncState.Status.SYNCED, lastSyncState().status);
+    }
+
+    @Test
+    public void testOldSequenceSkipped() throws IOException {
+        welcome(1, 10);
+        snapshot(10);
+
+        attributeChange(11);
+        attributeChange(11);
+        attributeChange(9);
+        attributeChange(12);
+
+        assertStatuses(SyncState.Status.GENERATION_CHANGED, SyncState.Status.SYNCED);
+        assertEquals(12, mAttributeChanges.getOnNextEvents().get(3).seq);
+        assertEquals(0, mConclaveClient.snapshotRequests);
+    }
+
+    @Test
+    public void testResumeAfterReconnect() throws IOException {
+        welcome(1, 10);
+        snapshot(10);
+        attributeChange(11);
+
+        // reconnect with nothing missed; the snapshot after login is skipped
+        mEventSource.reconnect();
+        welcome(1, 11);
+        snapshot(11);
+
+        assertEquals(1, mSnapshots.getOnNextEvents().size());
+        assertEquals(SyncState.Status.RESUMED, lastSyncState().status);
+
+        attributeChange(12);
+        assertEquals(2, mAttributeChanges.getOnNextEvents().size());
+        assertEquals(SyncState.Status.RESUMED, lastSyncState().status);
+    }
+
+    @Test
+    public void testReconnectAfterMissedMessages() throws IOException {
+        welcome(1, 10);
+        snapshot(10);
+
+        mEventSource.reconnect();
+        welcome(1, 15);
+
+        assertEquals(SyncState.Status.GAP, lastSyncState().status);
+        assertEquals(5, lastSyncState().missedCount);
+
+        // the snapshot the server sends after login is processed
+        snapshot(15);
+        assertEquals(2, mSnapshots.getOnNextEvents().size());
+        assertEquals(SyncState.Status.SYNCED, lastSyncState().status);
+        assertEquals(0, mConclaveClient.snapshotRequests);
+    }
+
+    @Test
+    public void testGenerationChangeProcessesSnapshot() throws IOException {
+        welcome(1, 10);
+        snapshot(10);
+
+        mEventSource.reconnect();
+        welcome(2, 10);
+        snapshot(10);
+
+        assertEquals(2, mSnapshots.getOnNextEvents().size());
+        assertStatuses(SyncState.Status.GENERATION_CHANGED, SyncState.Status.SYNCED,
+                SyncState.Status.GENERATION_CHANGED, SyncState.Status.SYNCED);
+    }
+
+    private void welcome(long generation, int seq) throws IOException {
+        receive("{\"welcome\":{\"sessionId\":5,\"generation\":" + generation + ",\"seq\":" + seq + "}}");
+    }
+
+    private void snapshot(int currentSeq) throws IOException {
+        receive("{\"private\":{\"event\":\"peripheralList\",\"data\":{\"currentSeq\":" + currentSeq + ",\"peripherals\":" +
+                "[{\"id\":\"device-1\",\"profileId\":\"profile-1\"}]}}}");
+    }
+
+    private void attributeChange(int seq) throws IOException {
+        receive("{\"public\":{\"sessionId\":5,\"seq\":" + seq + ",\"event\":\"attr_change\",\"data\":" +
+                "{\"id\":\"device-1\",\"state\":0,\"attribute\":{\"id\":100,\"value\":\"01\"}}}}");
+    }
+
+    private void receive(String line) throws IOException {
+        mConclaveClient.messages.onNext(mDecoder.decode(line));
+    }
+
+    private SyncState lastSyncState() {
+        final int count = mSyncStates.getOnNextEvents().size();
+        return mSyncStates.getOnNextEvents().get(count - 1);
+    }
+
+    private void assertStatuses(SyncState.Status... statuses) {
+        assertEquals(statuses.length, mSyncStates.getOnNextEvents().size());
+        for (int i = 0; i < statuses.length; ++i) {
+            assertEquals(statuses[i], mSyncStates.getOnNextEvents().get(i).status);
+        }
+    }
+
+    private static class TestConclaveClient extends ConclaveClient {
+        final PublishSubject<ConclaveMessageDecoder.Message> messages = PublishSubject.create();
+        int snapshotRequests;
+
+        @Override
+        public Observable<ConclaveMessageDecoder.Message> decodedMessageObservable() {
+            return messages;
+        }
+
+        @Override
+        public void say(String event, Object data) {
+            if ("snapshot?".equals(event)) {
+                snapshotRequests++;
+            }
+        }
+    }
+}
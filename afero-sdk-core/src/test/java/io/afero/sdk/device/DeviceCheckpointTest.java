@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import io.afero.sdk.client.afero.models.DeviceStatus;
+import io.afero.sdk.client.afero.models.DeviceTag;
+import io.afero.sdk.conclave.models.DeviceSync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceCheckpointTest {
+
+    private File file;
+
+    @Before
+    public void beforeTests() throws IOException {
+        file = File.createTempFile("devices", ".checkpoint");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void afterTests() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void writeThenRead() throws Exception {
+        DeviceSync full = new DeviceSync();
+        full.deviceId = "device-001";
+        full.profileId = "profile-001";
+        full.friendlyName = "Kitchen";
+        full.virtual = true;
+        full.status = new DeviceStatus();
+        full.status.available = false;
+        full.status.linked = true;
+        full.status.rssi = -42;
+        full.attributes = new DeviceSync.AttributeEntry[] {
+                new DeviceSync.AttributeEntry(100, "0A0B"),
+                new DeviceSync.AttributeEntry(65012, "")
+        };
+        full.attributes[0].updatedTimestamp = 1234567890123L;
+        full.deviceTags = new DeviceTag[] { new DeviceTag("room", "kitchen") };
+        full.timezone = full.new DeviceTimeZone();
+        full.timezone.timezone = "America/Los_Angeles";
+
+        DeviceSync sparse = new DeviceSync();
+        sparse.deviceId = "device-002";
+        sparse.profileId = "profile-001";
+
+        DeviceCheckpoint.write(file, new DeviceSync[] { full, sparse });
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        DeviceSync[] devices = DeviceCheckpoint.read(file);
+        assertEquals(2, devices.length);
+
+        DeviceSync ds = devices[0];
+        assertEquals("device-001", ds.deviceId);
+        assertEquals("profile-001", ds.profileId);
+        assertEquals("Kitchen", ds.friendlyName);
+        assertTrue(ds.virtual);
+        assertEquals(false, ds.status.available);
+        assertEquals(true, ds.status.linked);
+        assertEquals(false, ds.status.direct);
+        assertEquals(Integer.valueOf(-42), ds.status.rssi);
+        assertEquals(2, ds.attributes.length);
+        assertEquals(100, ds.attributes[0].id);
+        assertEquals("0A0B", ds.attributes[0].value);
+        assertEquals(1234567890123L, ds.attributes[0].updatedTimestamp);
+        assertEquals(65012, ds.attributes[1].id);
+        assertEquals("", ds.attributes[1].value);
+        assertEquals(1, ds.deviceTags.length);
+        assertEquals("room", ds.deviceTags[0].key);
+        assertEquals("kitchen", ds.deviceTags[0].value);
+        assertNull(ds.deviceTags[0].deviceTagId);
+        assertEquals("America/Los_Angeles", ds.timezone.timezone);
+
+        ds = devices[1];
+        assertEquals("device-002", ds.deviceId);
+        assertEquals("profile-001", ds.profileId);
+        assertNull(ds.friendlyName);
+        assertNull(ds.status.available);
+        assertNull(ds.status.rssi);
+        assertEquals(0, ds.attributes.length);
+        assertNull(ds.deviceTags);
+        assertNull(ds.timezone);
+    }
+
+    @Test
+    public void readMissingFile() throws Exception {
+        assertNull(DeviceCheckpoint.read(file));
+    }
+
+    @Test(expected = IOException.class)
+    public void readCorruptFile() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("not a checkpoint".getBytes("UTF-8"));
+        out.close();
+
+        DeviceCheckpoint.read(file);
+    }
+}
@@ -6,22 +6,36 @@ package io.afero.sdk.device;
 
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import io.afero.sdk.client.afero.models.AttributeValue;
 import io.afero.sdk.client.mock.MockAferoClient;
 import io.afero.sdk.client.mock.MockDeviceEventSource;
 import io.afero.sdk.client.mock.ResourceLoader;
 import io.afero.sdk.conclave.models.DeviceSync;
 import io.afero.sdk.conclave.models.InvalidateMessage;
+import io.afero.sdk.utils.JSONUtils;
+import rx.Observable;
 import rx.Observer;
 import rx.functions.Action1;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class DeviceCollectionTest {
 
@@ -212,6 +226,40 @@ public class DeviceCollectionTest {
         ;
     }
 
+    @Test
+    public void observeSnapshotSummaries() throws Exception {
+        newDeviceCollectionTester()
+                .deviceCollectionStart()
+                .deviceCollectionObserveSnapshotSummaries()
+                .deviceCollectionObserveUpdates()
+
+                // matches getDevices.json
+                .deviceEventSourceSnapshot("snapshot1")
+                .verifyLastSnapshotSummary(0, 0, 0, 1)
+                .verifyObservedUpdateCount(0)
+
+                // the same values re-reported with a newer timestamp
+                .deviceEventSourceSnapshot("snapshot2")
+                .verifyLastSnapshotSummary(0, 0, 0, 1)
+                .verifyObservedUpdateCount(0)
+
+                // device-001 is renamed, two devices are added
+                .deviceEventSourceSnapshot("snapshot3")
+                .verifyLastSnapshotSummary(2, 1, 0, 0)
+                .verifyObservedUpdateCount(1)
+                .verifyDeviceHasName("device-001", "device-name-001")
+
+                .deviceEventSourceSnapshot("snapshot3")
+                .verifyLastSnapshotSummary(0, 0, 0, 3)
+                .verifyObservedUpdateCount(1)
+
+                .deviceEventSourceSnapshot("snapshot1")
+                .verifyLastSnapshotSummary(0, 1, 2, 0)
+                .verifyObservedUpdateCount(2)
+                .verifyObservedSnapshotSummaryCount(5)
+        ;
+    }
+
     @Test
     public void observeDeletes() throws Exception {
         // test deletes emitted in response to snapshots
@@ -250,6 +298,310 @@ public class DeviceCollectionTest {
                 ;
     }
 
+    @Test
+    public void startWithProfileStore() throws Exception {
+        final ResourceLoader resourceLoader = new ResourceLoader("deviceCollection/");
+        final PublishSubject<byte[]> accountProfiles = PublishSubject.create();
+        final MockAferoClient aferoClient = new MockAferoClient("deviceCollection/") {
+            @Override
+            public Observable<byte[]> getAccountDeviceProfilesJson() {
+                return accountProfiles;
+            }
+        };
+
+        final String storedJson = new String(resourceLoader.readResource("getDeviceProfile/profile-001.json"), "UTF-8");
+        final DeviceProfile storedProfile = JSONUtils.readValue(storedJson, DeviceProfile.class);
+        final HashMap<String, DeviceProfile> stored = new HashMap<>();
+        final HashMap<String, byte[]> storedJsons = new HashMap<>();
+        final boolean[] storeFails = { false };
+        stored.put(storedProfile.getId(), storedProfile);
+        storedJsons.put(storedProfile.getId(), JSONUtils.getObjectMapper().writeValueAsBytes(JSONUtils.getObjectMapper().readTree(storedJson)));
+
+        DeviceCollection deviceCollection = new DeviceCollection(new MockDeviceEventSource(), aferoClient);
+        deviceCollection.setProfileStore(new ProfileStore() {
+            @Override
+            public boolean isEmpty() {
+                return stored.isEmpty();
+            }
+
+            @Override
+            public DeviceProfile load(String profileId) {
+                return stored.get(profileId);
+            }
+
+            @Override
+            public boolean save(DeviceProfile profile, byte[] json) throws IOException {
+                if (storeFails[0]) {
+                    throw new IOException("disk full");
+                }
+                stored.put(profile.getId(), profile);
+                byte[] old = storedJsons.put(profile.getId(), json);
+                return old == null || !Arrays.equals(old, json);
+            }
+
+            @Override
+            public void remove(String profileId) {
+                stored.remove(profileId);
+                storedJsons.remove(profileId);
+            }
+        });
+
+        TestSubscriber<DeviceCollection> startSubscriber = new TestSubscriber<>();
+        deviceCollection.start().subscribe(startSubscriber);
+
+        // the account profiles haven't arrived, but the stored profile is enough to start; the
+        // store is probed on the io scheduler and revalidation begins once the start completes
+        startSubscriber.awaitTerminalEvent(5, TimeUnit.SECONDS);
+        startSubscriber.assertCompleted();
+        assertTrue(accountProfiles.hasObservers());
+        DeviceModel deviceModel = deviceCollection.getDevice("device-001");
+        assertNotNull(deviceModel);
+        assertEquals(storedProfile, deviceModel.getProfile());
+
+        TestSubscriber<DeviceModel> profileChangeSubscriber = new TestSubscriber<>();
+        deviceCollection.observeProfileChanges().subscribe(profileChangeSubscriber);
+
+        // revalidation with an identical profile changes nothing
+        accountProfiles.onNext(("[" + storedJson + "]").getBytes("UTF-8"));
+        profileChangeSubscriber.assertNoValues();
+        assertEquals(storedProfile, deviceModel.getProfile());
+
+        // revalidation with a changed profile updates the device
+        accountProfiles.onNext(("[" + storedJson.replace("\"sint8\"", "\"sint16\"") + "]").getBytes("UTF-8"));
+        profileChangeSubscriber.assertValue(deviceModel);
+        assertNotEquals(storedProfile, deviceModel.getProfile());
+        assertEquals(AttributeValue.DataType.SINT16, deviceModel.getProfile().getAttributeById(100).getDataType());
+
+        // a changed profile that can't be stored still updates the device
+        storeFails[0] = true;
+        accountProfiles.onNext(("[" + storedJson.replace("\"sint8\"", "\"sint32\"") + "]").getBytes("UTF-8"));
+        assertEquals(2, profileChangeSubscriber.getValueCount());
+        assertEquals(AttributeValue.DataType.SINT32, deviceModel.getProfile().getAttributeById(100).getDataType());
+    }
+
+    @Test
+    public void startWithCheckpoint() throws Exception {
+        File checkpointFile = File.createTempFile("devices", ".checkpoint");
+        assertTrue(checkpointFile.delete());
+
+        try {
+            // a normal start, then stop writes the checkpoint
+            DeviceCollection deviceCollection = new DeviceCollection(new MockDeviceEventSource(), new MockAferoClient("deviceCollection/"));
+            deviceCollection.setCheckpointFile(checkpointFile);
+            TestSubscriber<DeviceCollection> firstStartSubscriber = new TestSubscriber<>();
+            deviceCollection.start().subscribe(firstStartSubscriber);
+            firstStartSubscriber.awaitTerminalEvent(5, TimeUnit.SECONDS);
+            deviceCollection.stop();
+            assertTrue(checkpointFile.exists());
+
+            // the next start restores from the checkpoint without waiting for the device list
+            final PublishSubject<DeviceSync[]> devices = PublishSubject.create();
+            final MockAferoClient aferoClient = new MockAferoClient("deviceCollection/") {
+                @Override
+                public Observable<DeviceSync[]> getDevicesWithState() {
+                    return devices;
+                }
+            };
+
+            deviceCollection = new DeviceCollection(new MockDeviceEventSource(), aferoClient);
+            deviceCollection.setCheckpointFile(checkpointFile);
+
+            TestSubscriber<DeviceCollection> snapshotSubscriber = new TestSubscriber<>();
+            deviceCollection.observeSnapshots().subscribe(snapshotSubscriber);
+
+            TestSubscriber<DeviceCollection> startSubscriber = new TestSubscriber<>();
+            deviceCollection.start().subscribe(startSubscriber);
+
+            // the checkpoint is read on the io scheduler
+            startSubscriber.awaitTerminalEvent(5, TimeUnit.SECONDS);
+            startSubscriber.assertCompleted();
+
+            DeviceModel deviceModel = deviceCollection.getDevice("device-001");
+            assertNotNull(deviceModel);
+            assertTrue(deviceModel.isStale());
+            assertEquals("device-name", deviceModel.getName());
+            assertEquals("123", deviceModel.getAttributeCurrentValue(deviceModel.getAttributeById(100)).toString());
+            snapshotSubscriber.assertNoValues();
+
+            // the live device list arrives and is reconciled with the restored devices
+            devices.onNext(new ResourceLoader("deviceCollection/").createObjectFromJSONResource("getDevices.json", DeviceSync[].class));
+            devices.onCompleted();
+
+            assertFalse(deviceModel.isStale());
+            assertEquals(deviceModel, deviceCollection.getDevice("device-001"));
+            snapshotSubscriber.assertValueCount(1);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            checkpointFile.delete();
+        }
+    }
+
+    @Test
+    public void stripedEventsHandledInParallel() throws Exception {
+        MockDeviceEventSource source = new MockDeviceEventSource();
+        StripedDeviceEventSource striped = new StripedDeviceEventSource(source, 4);
+        DeviceCollection deviceCollection = new DeviceCollection(striped, new MockAferoClient("deviceCollection/"));
+
+        try {
+            deviceCollection.start().subscribe(new TestSubscriber<DeviceCollection>());
+
+            final CountDownLatch snapshotApplied = new CountDownLatch(1);
+            deviceCollection.observeSnapshots().subscribe(new Action1<DeviceCollection>() {
+                @Override
+                public void call(DeviceCollection dc) {
+                    snapshotApplied.countDown();
+                }
+            });
+            source.putSnapshot(new ResourceLoader("deviceCollection/").createObjectFromJSONResource("snapshot3.json", DeviceSync[].class));
+            assertTrue(snapshotApplied.await(5, TimeUnit.SECONDS));
+
+            // two devices on different lanes
+            DeviceModel first = deviceCollection.getDevice("device-001");
+            DeviceModel second = null;
+            for (String id : new String[] { "device-002", "device-003" }) {
+                if (striped.laneFor(id) != striped.laneFor(first.getId())) {
+                    second = deviceCollection.getDevice(id);
+                }
+            }
+            assertNotNull(second);
+
+            // each update waits for the other, which only works if both are being handled at once
+            final CountDownLatch handling = new CountDownLatch(2);
+            final CountDownLatch bothHandled = new CountDownLatch(2);
+            Action1<DeviceModel> waitForOther = new Action1<DeviceModel>() {
+                @Override
+                public void call(DeviceModel deviceModel) {
+                    handling.countDown();
+                    try {
+                        if (handling.await(5, TimeUnit.SECONDS)) {
+                            bothHandled.countDown();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            first.getUpdateObservable().subscribe(waitForOther);
+            second.getUpdateObservable().subscribe(waitForOther);
+
+            source.putAttributeChanges(newAttributeChange(first.getId(), 0, "124"));
+            source.putAttributeChanges(newAttributeChange(second.getId(), 0, "124"));
+
+            assertTrue(bothHandled.await(10, TimeUnit.SECONDS));
+        } finally {
+            striped.shutdown();
+        }
+    }
+
+    @Test
+    public void startReplaysEarlyEventsInSeqOrder() throws Exception {
+        final PublishSubject<DeviceSync[]> devices = PublishSubject.create();
+        final MockAferoClient aferoClient = new MockAferoClient("deviceCollection/") {
+            @Override
+            public Observable<DeviceSync[]> getDevicesWithState() {
+                return devices;
+            }
+        };
+        MockDeviceEventSource deviceEventSource = new MockDeviceEventSource();
+        DeviceCollection deviceCollection = new DeviceCollection(deviceEventSource, aferoClient);
+
+        PublishSubject<Object> connect = PublishSubject.create();
+        TestSubscriber<DeviceCollection> startSubscriber = new TestSubscriber<>();
+        deviceCollection.start(connect).subscribe(startSubscriber);
+
+        // events for a device that isn't in the collection yet, delivered out of order
+        deviceEventSource.putAttributeChanges(newAttributeChange("device-001", 11, "456"));
+        deviceEventSource.putAttributeChanges(newAttributeChange("device-001", 10, "789"));
+
+        devices.onNext(new ResourceLoader("deviceCollection/").createObjectFromJSONResource("getDevices.json", DeviceSync[].class));
+        devices.onCompleted();
+
+        // still waiting for the connection
+        startSubscriber.assertNoTerminalEvent();
+        connect.onCompleted();
+        startSubscriber.assertCompleted();
+
+        DeviceModel deviceModel = deviceCollection.getDevice("device-001");
+        assertEquals("456", deviceModel.getAttributeCurrentValue(deviceModel.getAttributeById(100)).toString());
+
+        DeviceCollection.StartupTimings timings = deviceCollection.getStartupTimings();
+        assertNotNull(timings);
+        assertEquals(2, timings.replayedEventCount);
+        assertTrue(timings.profilesMillis >= 0);
+        assertTrue(timings.devicesMillis >= 0);
+        assertTrue(timings.connectMillis >= 0);
+
+        // once started, events are handled as they arrive
+        deviceEventSource.putAttributeChanges(newAttributeChange("device-001", 12, "321"));
+        assertEquals("321", deviceModel.getAttributeCurrentValue(deviceModel.getAttributeById(100)).toString());
+    }
+
+    @Test
+    public void observeConflatedUpdatesEmitsEachDeviceOncePerWindow() throws Exception {
+        MockDeviceEventSource deviceEventSource = new MockDeviceEventSource();
+        DeviceCollection deviceCollection = new DeviceCollection(deviceEventSource, new MockAferoClient("deviceCollection/"));
+        deviceCollection.start().subscribe(new TestSubscriber<DeviceCollection>());
+
+        TestScheduler scheduler = new TestScheduler();
+        TestSubscriber<DeviceModel> subscriber = new TestSubscriber<>();
+        deviceCollection.observeConflatedUpdates(100, TimeUnit.MILLISECONDS, scheduler).subscribe(subscriber);
+
+        for (int i = 0; i < 5; ++i) {
+            deviceEventSource.putAttributeChanges(newAttributeChange("device-001", 20 + i, Integer.toString(i)));
+        }
+        subscriber.assertNoValues();
+
+        scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+        subscriber.assertValueCount(1);
+        assertEquals("device-001", subscriber.getOnNextEvents().get(0).getId());
+
+        // nothing new, nothing emitted
+        scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+        subscriber.assertValueCount(1);
+
+        DeviceCollection.UpdateConflationStats stats = deviceCollection.getUpdateConflationStats();
+        assertEquals(5, stats.received);
+        assertEquals(1, stats.emitted);
+        assertEquals(4, stats.droppedDuplicates);
+        assertEquals(5.0, stats.getConflationRatio(), 0);
+    }
+
+    @Test
+    public void observeChangesReportsChangedAttributes() throws Exception {
+        MockDeviceEventSource deviceEventSource = new MockDeviceEventSource();
+        DeviceCollection deviceCollection = new DeviceCollection(deviceEventSource, new MockAferoClient("deviceCollection/"));
+        deviceCollection.start().subscribe(new TestSubscriber<DeviceCollection>());
+
+        TestSubscriber<DeviceChange> subscriber = new TestSubscriber<>();
+        deviceCollection.observeChanges().subscribe(subscriber);
+
+        deviceEventSource.putAttributeChanges(newAttributeChange("device-001", 20, "42"));
+
+        subscriber.assertValueCount(1);
+        DeviceChange change = subscriber.getOnNextEvents().get(0);
+        assertEquals("device-001", change.getDeviceModel().getId());
+        assertEquals(DeviceChange.ATTRIBUTES, change.getFlags());
+        assertArrayEquals(new int[] { 100 }, change.getChangedAttributeIds());
+        assertTrue(change.isAttributeChanged(100));
+        assertFalse(change.isAttributeChanged(200));
+
+        // the same value again is suppressed
+        deviceEventSource.putAttributeChanges(newAttributeChange("device-001", 21, "42"));
+        subscriber.assertValueCount(1);
+
+        DeviceCollection.UpdateSuppressionStats stats = deviceCollection.getUpdateSuppressionStats();
+        assertEquals(1, stats.attributeUpdatesApplied);
+        assertEquals(1, stats.attributeUpdatesSuppressed);
+    }
+
+    private static DeviceSync newAttributeChange(String deviceId, int seq, String value) {
+        DeviceSync ds = new DeviceSync();
+        ds.deviceId = deviceId;
+        ds.seq = seq;
+        ds.attribute = new DeviceSync.AttributeEntry(100, value);
+        return ds;
+    }
+
     @Test
     public void getCount() throws Exception {
         newDeviceCollectionTester()
@@ -275,6 +627,31 @@ public class DeviceCollectionTest {
                 ;
     }
 
+    @Test
+    public void setAttributeHistoryCapacityValidatesFirst() throws Exception {
+        DeviceCollection deviceCollection = new DeviceCollection(new MockDeviceEventSource(), new MockAferoClient("deviceCollection/"));
+        deviceCollection.start().subscribe(new TestSubscriber<DeviceCollection>());
+        DeviceModel deviceModel = deviceCollection.getDevice("device-001");
+        DeviceProfile.Attribute attribute = deviceModel.getAttributeById(100);
+
+        try {
+            deviceCollection.setAttributeHistoryCapacity("profile-001", 100, -1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+
+        try {
+            deviceCollection.setAttributeHistoryCapacity("profile-001", 999, 4);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertNull(deviceModel.getAttributeHistory(attribute));
+
+        deviceCollection.setAttributeHistoryCapacity("profile-001", 100, 4);
+        assertEquals(4, deviceModel.getAttributeHistory(attribute).getCapacity());
+    }
+
 
     private DeviceCollectionTester newDeviceCollectionTester() {
         return new DeviceCollectionTester();
@@ -294,6 +671,8 @@ public class DeviceCollectionTest {
         RecordObserver<DeviceModel> deleteObserver = new RecordObserver<>();
         RecordObserver<DeviceCollection> snapshotObserver = new RecordObserver<>();
         RecordObserver<DeviceModel> profileChangeObserver = new RecordObserver<>();
+        RecordObserver<DeviceModel> updateObserver = new RecordObserver<>();
+        RecordObserver<DeviceCollection.SnapshotSummary> snapshotSummaryObserver = new RecordObserver<>();
 
         DeviceCollectionTester() {
             deviceCollection = new DeviceCollection(deviceEventSource, aferoClient);
@@ -491,6 +870,18 @@ public class DeviceCollectionTest {
             return this;
         }
 
+        DeviceCollectionTester deviceCollectionObserveUpdates() {
+            deviceCollection.observeUpdates()
+                .subscribe(updateObserver);
+            return this;
+        }
+
+        DeviceCollectionTester deviceCollectionObserveSnapshotSummaries() {
+            deviceCollection.observeSnapshotSummaries()
+                .subscribe(snapshotSummaryObserver);
+            return this;
+        }
+
         DeviceCollectionTester deviceCollectionObserveProfileChanges() {
             deviceCollection.observeProfileChanges()
                 .subscribe(profileChangeObserver);
@@ -592,6 +983,30 @@ public class DeviceCollectionTest {
             return this;
         }
 
+        DeviceCollectionTester verifyObservedUpdateCount(int expectedCount) {
+            assertEquals(expectedCount, updateObserver.onNextList.size());
+            return this;
+        }
+
+        DeviceCollectionTester verifyObservedSnapshotSummaryCount(int expectedCount) {
+            assertEquals(expectedCount, snapshotSummaryObserver.onNextList.size());
+            return this;
+        }
+
+        DeviceCollectionTester verifyLastSnapshotSummary(int created, int updated, int removed, int unchanged) {
+            DeviceCollection.SnapshotSummary summary = snapshotSummaryObserver.onNextList.lastElement();
+            assertEquals(created, summary.created);
+            assertEquals(updated, summary.updated);
+            assertEquals(removed, summary.removed);
+            assertEquals(unchanged, summary.unchanged);
+            return this;
+        }
+
+        DeviceCollectionTester verifyDeviceHasName(String deviceId, String name) {
+            assertEquals(name, deviceCollection.getDevice(deviceId).getName());
+            return this;
+        }
+
         DeviceCollectionTester verifyObservedProfileChangeCount(int expectedCount) {
             assertEquals(expectedCount, profileChangeObserver.onNextList.size());
             return this;
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.afero.sdk.client.afero.models.DeviceStatus;
+import io.afero.sdk.client.afero.models.DeviceTag;
+import io.afero.sdk.client.mock.ResourceLoader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceIndexTest {
+
+    private DeviceProfile deviceProfile;
+    private DeviceIndex index;
+    private ArrayList<DeviceModel> all;
+
+    @Before
+    public void beforeTests() throws Exception {
+        deviceProfile = new ResourceLoader("deviceCollection/").createObjectFromJSONResource("getDeviceProfile/profile-001.json", DeviceProfile.class);
+        index = new DeviceIndex();
+        all = new ArrayList<>();
+    }
+
+    @Test
+    public void findIntersectsCriteria() throws Exception {
+        DeviceModel a = newDeviceModel("a", true);
+        DeviceModel b = newDeviceModel("b", false);
+        index.update(a);
+        index.update(b);
+        all.add(a);
+        all.add(b);
+
+        List<DeviceModel> found = find(new DeviceQuery().profileId(deviceProfile.getId()));
+        assertEquals(2, found.size());
+
+        found = find(new DeviceQuery().profileId(deviceProfile.getId()).available(true));
+        assertEquals(1, found.size());
+        assertSame(a, found.get(0));
+
+        found = find(new DeviceQuery().deviceType(deviceProfile.getDeviceType()).available(false));
+        assertEquals(1, found.size());
+        assertSame(b, found.get(0));
+
+        assertTrue(find(new DeviceQuery().profileId("no-such-profile")).isEmpty());
+        assertEquals(2, find(new DeviceQuery()).size());
+    }
+
+    @Test
+    public void updateMovesModelBetweenBuckets() throws Exception {
+        DeviceModel a = newDeviceModel("a", true);
+        index.update(a);
+        all.add(a);
+
+        DeviceStatus status = new DeviceStatus();
+        status.available = false;
+        a.update(status);
+        index.update(a);
+
+        assertTrue(find(new DeviceQuery().available(true)).isEmpty());
+        assertEquals(1, find(new DeviceQuery().available(false)).size());
+
+        index.remove(a);
+        all.remove(a);
+        assertTrue(find(new DeviceQuery().available(false)).isEmpty());
+        assertTrue(find(new DeviceQuery().profileId(deviceProfile.getId())).isEmpty());
+    }
+
+    @Test
+    public void tagChangesAreIndexed() throws Exception {
+        DeviceModel a = newDeviceModel("a", true);
+        index.update(a);
+        all.add(a);
+
+        DeviceTag tag = new DeviceTag("site", "42");
+        tag.deviceTagId = "tag-001";
+        a.invalidateTag("add", tag);
+        index.update(a);
+
+        List<DeviceModel> found = find(new DeviceQuery().tag("site", "42"));
+        assertEquals(1, found.size());
+        assertSame(a, found.get(0));
+        assertTrue(find(new DeviceQuery().tag("site", "43")).isEmpty());
+
+        a.invalidateTag("delete", tag);
+        index.update(a);
+        assertTrue(find(new DeviceQuery().tag("site", "42")).isEmpty());
+    }
+
+    private List<DeviceModel> find(DeviceQuery query) {
+        return index.find(query, all);
+    }
+
+    private DeviceModel newDeviceModel(String deviceId, boolean isAvailable) {
+        DeviceModel deviceModel = new DeviceModel(deviceId, deviceProfile, false, null);
+        DeviceStatus status = new DeviceStatus();
+        status.available = isAvailable;
+        deviceModel.update(status);
+        return deviceModel;
+    }
+}
@@ -12,6 +12,7 @@ import org.junit.Test;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.TimeZone;
 import java.util.TreeMap;
 import java.util.Vector;
@@ -20,6 +21,7 @@ import io.afero.sdk.AferoTest;
 import io.afero.sdk.client.afero.AferoClient;
 import io.afero.sdk.client.afero.models.AttributeValue;
 import io.afero.sdk.client.afero.models.DeviceTag;
+import io.afero.sdk.client.afero.models.WriteRequest;
 import io.afero.sdk.client.afero.models.WriteResponse;
 import io.afero.sdk.client.mock.MockAferoClient;
 import io.afero.sdk.client.mock.MockDeviceEventSource;
@@ -32,12 +34,16 @@ import rx.Observable;
 import rx.Observer;
 import rx.Subscription;
 import rx.functions.Action1;
+import rx.observers.TestSubscriber;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class DeviceModelTest extends AferoTest {
@@ -109,6 +115,104 @@ public class DeviceModelTest extends AferoTest {
         testAttribute(dm, a700, "string-value");
     }
 
+    @Test
+    public void testChangeObservable() throws IOException {
+        DeviceSync ds = loadDeviceSync(PATH_PREFIX + "deviceSync.json");
+        DeviceProfile dp = loadDeviceProfile(PATH_PREFIX + "deviceModelTestProfile.json");
+        DeviceModel dm = new DeviceModel(DEVICE_ID, dp, false, null);
+
+        TestSubscriber<DeviceChange> subscriber = new TestSubscriber<>();
+        dm.getChangeObservable().subscribe(subscriber);
+
+        dm.update(ds);
+
+        subscriber.assertValueCount(1);
+        DeviceChange change = subscriber.getOnNextEvents().get(0);
+        assertSame(dm, change.getDeviceModel());
+        assertTrue(change.hasAny(DeviceChange.ATTRIBUTES));
+        assertTrue(change.isNameChanged());
+        // same id as the profile the model was created with
+        assertFalse(change.isProfileChanged());
+        assertTrue(change.isStatusChanged());
+        assertFalse(change.isTagsChanged());
+        assertArrayEquals(new int[] { 100, 200, 300, 400, 500, 600, 700, 800, 900 }, change.getChangedAttributeIds());
+
+        DeviceSync attrChange = new DeviceSync();
+        attrChange.attributes = new DeviceSync.AttributeEntry[] {
+                new DeviceSync.AttributeEntry(300, "1"),
+                new DeviceSync.AttributeEntry(100, "2"),
+                new DeviceSync.AttributeEntry(300, "3"),
+        };
+        change = dm.update(attrChange);
+
+        subscriber.assertValueCount(2);
+        assertSame(change, subscriber.getOnNextEvents().get(1));
+        assertEquals(DeviceChange.ATTRIBUTES, change.getFlags());
+        assertEquals(2, change.getChangedAttributeCount());
+        assertEquals(100, change.getChangedAttributeId(0));
+        assertEquals(300, change.getChangedAttributeId(1));
+
+        dm.onWriteStart(Collections.singletonList(new WriteRequest(200, "7")));
+
+        subscriber.assertValueCount(3);
+        change = subscriber.getOnNextEvents().get(2);
+        assertEquals(DeviceChange.PENDING, change.getFlags());
+        assertArrayEquals(new int[] { 200 }, change.getChangedAttributeIds());
+    }
+
+    @Test
+    public void testRepeatedUpdateSuppressed() throws IOException {
+        DeviceSync ds = loadDeviceSync(PATH_PREFIX + "deviceSync.json");
+        DeviceProfile dp = loadDeviceProfile(PATH_PREFIX + "deviceModelTestProfile.json");
+        DeviceModel dm = new DeviceModel(DEVICE_ID, dp, false, null);
+        dm.update(ds);
+
+        TestSubscriber<DeviceModel> updates = new TestSubscriber<>();
+        dm.getUpdateObservable().subscribe(updates);
+
+        assertNull(dm.update(ds));
+        assertNull(dm.update(ds.status));
+        updates.assertNoValues();
+
+        // a re-reported value still settles a write in flight
+        DeviceProfile.Attribute a100 = dp.getAttributeById(100);
+        dm.onWriteStart(Collections.singletonList(new WriteRequest(100, "7")));
+        DeviceSync attrChange = new DeviceSync();
+        attrChange.attribute = new DeviceSync.AttributeEntry(100, "123");
+        DeviceChange change = dm.update(attrChange);
+
+        assertNotNull(change);
+        assertEquals(DeviceChange.PENDING, change.getFlags());
+        assertEquals(DeviceModel.UpdateState.NORMAL, dm.getState());
+        assertSame(dm.getAttributeCurrentValue(a100), dm.getAttributePendingValue(a100));
+        assertNull(dm.update(attrChange));
+    }
+
+    @Test
+    public void testPendingValueSharedUntilWrite() throws IOException {
+        DeviceSync ds = loadDeviceSync(PATH_PREFIX + "deviceSync.json");
+        DeviceProfile dp = loadDeviceProfile(PATH_PREFIX + "deviceModelTestProfile.json");
+        DeviceModel dm = new DeviceModel(DEVICE_ID, dp, false, null);
+
+        // before the device reports, the values are already shared and immutable
+        DeviceProfile.Attribute a100 = dp.getAttributeById(100);
+        assertSame(dm.getAttributeCurrentValue(a100), dm.getAttributePendingValue(a100));
+        assertTrue(dm.getAttributeCurrentValue(a100).isImmutable());
+        assertEquals(BigDecimal.ZERO, dm.getAttributeCurrentValue(a100).numericValue());
+
+        dm.update(ds);
+
+        assertSame(dm.getAttributeCurrentValue(a100), dm.getAttributePendingValue(a100));
+        assertTrue(dm.getAttributeCurrentValue(a100).isImmutable());
+
+        dm.onWriteStart(Collections.singletonList(new WriteRequest(100, "7")));
+        assertNotSame(dm.getAttributeCurrentValue(a100), dm.getAttributePendingValue(a100));
+        assertEquals("7", dm.getAttributePendingValue(a100).toString());
+
+        dm.cancelAttributePendingValue(a100);
+        assertSame(dm.getAttributeCurrentValue(a100), dm.getAttributePendingValue(a100));
+    }
+
     private void testAttribute(DeviceModel dm, DeviceProfile.Attribute attribute, BigDecimal expected) {
         AttributeValue av = dm.getAttributePendingValue(attribute);
         BigDecimal actual = av != null ? av.numericValue() : null;
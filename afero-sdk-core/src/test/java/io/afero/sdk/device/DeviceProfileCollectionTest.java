@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import io.afero.sdk.client.mock.MockAferoClient;
+import io.afero.sdk.client.mock.ResourceLoader;
+import rx.Observable;
+import rx.observers.TestSubscriber;
+import rx.subjects.PublishSubject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceProfileCollectionTest {
+
+    private static final String PATH_PREFIX = "deviceCollection/";
+
+    @Test
+    public void getDeviceProfileCoalescesInFlightFetches() throws Exception {
+        DeferredAferoClient aferoClient = new DeferredAferoClient();
+        DeviceProfileCollection profiles = new DeviceProfileCollection(aferoClient);
+
+        ArrayList<TestSubscriber<DeviceProfile>> subscribers = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            TestSubscriber<DeviceProfile> subscriber = new TestSubscriber<>();
+            profiles.getDeviceProfile("profile-001").subscribe(subscriber);
+            subscribers.add(subscriber);
+        }
+
+        assertEquals(1, aferoClient.getRequestCount("profile-001"));
+        assertEquals(1, profiles.getFetchCount());
+        assertEquals(9, profiles.getCoalescedCount());
+
+        aferoClient.complete("profile-001");
+
+        for (TestSubscriber<DeviceProfile> subscriber : subscribers) {
+            subscriber.assertValueCount(1);
+            subscriber.assertCompleted();
+        }
+        assertNotNull(profiles.getProfileFromID("profile-001"));
+
+        TestSubscriber<DeviceProfile> subscriber = new TestSubscriber<>();
+        profiles.getDeviceProfile("profile-001").subscribe(subscriber);
+        subscriber.assertValueCount(1);
+        assertEquals(1, profiles.getHitCount());
+        assertEquals(1, aferoClient.getRequestCount("profile-001"));
+    }
+
+    @Test
+    public void fetchesAreConcurrencyLimited() throws Exception {
+        DeferredAferoClient aferoClient = new DeferredAferoClient();
+        DeviceProfileCollection profiles = new DeviceProfileCollection(aferoClient, 2);
+
+        TestSubscriber<DeviceProfile> subscriber = new TestSubscriber<>();
+        Observable.merge(
+                profiles.getDeviceProfile("profile-001"),
+                profiles.getDeviceProfile("profile-002"),
+                profiles.getDeviceProfile("profile-003"))
+            .subscribe(subscriber);
+
+        assertEquals(2, aferoClient.getPendingCount());
+        assertEquals(0, aferoClient.getRequestCount("profile-003"));
+
+        aferoClient.complete("profile-001");
+
+        assertEquals(2, aferoClient.getPendingCount());
+        assertEquals(1, aferoClient.getRequestCount("profile-003"));
+
+        aferoClient.complete("profile-002");
+        aferoClient.complete("profile-003");
+
+        subscriber.assertValueCount(3);
+        subscriber.assertCompleted();
+        assertEquals(3, profiles.getFetchCount());
+    }
+
+    @Test
+    public void failedFetchIsRetried() throws Exception {
+        DeferredAferoClient aferoClient = new DeferredAferoClient();
+        DeviceProfileCollection profiles = new DeviceProfileCollection(aferoClient);
+
+        TestSubscriber<DeviceProfile> subscriber = new TestSubscriber<>();
+        profiles.getDeviceProfile("profile-001").subscribe(subscriber);
+        aferoClient.fail("profile-001");
+        subscriber.assertError(RuntimeException.class);
+
+        subscriber = new TestSubscriber<>();
+        profiles.getDeviceProfile("profile-001").subscribe(subscriber);
+        aferoClient.complete("profile-001");
+        subscriber.assertValueCount(1);
+        assertEquals(2, aferoClient.getRequestCount("profile-001"));
+    }
+
+    @Test
+    public void fetchDeviceProfileBypassesCache() throws Exception {
+        DeferredAferoClient aferoClient = new DeferredAferoClient();
+        DeviceProfileCollection profiles = new DeviceProfileCollection(aferoClient);
+
+        profiles.getDeviceProfile("profile-001").subscribe();
+        aferoClient.complete("profile-001");
+
+        TestSubscriber<DeviceProfile> subscriber = new TestSubscriber<>();
+        profiles.fetchDeviceProfile("profile-001").subscribe(subscriber);
+        assertEquals(1, aferoClient.getPendingCount());
+        aferoClient.complete("profile-001");
+
+        subscriber.assertValueCount(1);
+        assertEquals(2, aferoClient.getRequestCount("profile-001"));
+    }
+
+    @Test
+    public void fetchDeviceProfileJoinsInFlightFetch() throws Exception {
+        DeferredAferoClient aferoClient = new DeferredAferoClient();
+        DeviceProfileCollection profiles = new DeviceProfileCollection(aferoClient);
+
+        // one invalidate per device sharing the profile
+        ArrayList<TestSubscriber<DeviceProfile>> subscribers = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+            profiles.invalidateProfile("profile-001");
+            TestSubscriber<DeviceProfile> subscriber = new TestSubscriber<>();
+            profiles.fetchDeviceProfile("profile-001").subscribe(subscriber);
+            subscribers.add(subscriber);
+        }
+
+        assertEquals(1, aferoClient.getRequestCount("profile-001"));
+        assertEquals(4, profiles.getCoalescedCount());
+
+        aferoClient.complete("profile-001");
+        for (TestSubscriber<DeviceProfile> subscriber : subscribers) {
+            subscriber.assertValueCount(1);
+        }
+    }
+
+    @Test
+    public void hasProfileCountsHits() throws Exception {
+        DeferredAferoClient aferoClient = new DeferredAferoClient();
+        DeviceProfileCollection profiles = new DeviceProfileCollection(aferoClient);
+
+        assertFalse(profiles.hasProfile("profile-001"));
+        profiles.getDeviceProfile("profile-001").subscribe();
+        aferoClient.complete("profile-001");
+
+        assertTrue(profiles.hasProfile("profile-001"));
+        assertEquals(1, profiles.getHitCount());
+    }
+
+    private static class DeferredAferoClient extends MockAferoClient {
+        final ResourceLoader loader = new ResourceLoader(PATH_PREFIX);
+        final HashMap<String, PublishSubject<DeviceProfile>> pending = new HashMap<>();
+        final HashMap<String, Integer> requestCounts = new HashMap<>();
+
+        @Override
+        public Observable<DeviceProfile> getDeviceProfile(String profileId) {
+            PublishSubject<DeviceProfile> subject = PublishSubject.create();
+            pending.put(profileId, subject);
+            requestCounts.put(profileId, getRequestCount(profileId) + 1);
+            return subject;
+        }
+
+        int getRequestCount(String profileId) {
+            Integer count = requestCounts.get(profileId);
+            return count != null ? count : 0;
+        }
+
+        int getPendingCount() {
+            return pending.size();
+        }
+
+        void complete(String profileId) throws Exception {
+            PublishSubject<DeviceProfile> subject = pending.remove(profileId);
+            subject.onNext(loader.createObjectFromJSONResource("getDeviceProfile/" + profileId + ".json", DeviceProfile.class));
+            subject.onCompleted();
+        }
+
+        void fail(String profileId) {
+            pending.remove(profileId).onError(new RuntimeException("getDeviceProfile failed"));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import io.afero.sdk.client.mock.ResourceLoader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceRegistryTest {
+
+    private DeviceProfile deviceProfile;
+    private DeviceRegistry registry;
+
+    @Before
+    public void beforeTests() throws Exception {
+        deviceProfile = new ResourceLoader("deviceCollection/").createObjectFromJSONResource("getDeviceProfile/profile-001.json", DeviceProfile.class);
+        registry = new DeviceRegistry();
+    }
+
+    @Test
+    public void getIgnoresCase() throws Exception {
+        DeviceModel deviceModel = newDeviceModel("0123ABCD");
+        assertNull(registry.putIfAbsent(deviceModel));
+
+        assertSame(deviceModel, registry.get("0123abcd"));
+        assertSame(deviceModel, registry.get("0123ABCD"));
+        assertSame(deviceModel, registry.putIfAbsent(newDeviceModel("0123abcd")));
+        assertEquals(1, registry.size());
+        assertNull(registry.get("bogus"));
+        assertNull(registry.get(null));
+    }
+
+    @Test
+    public void valuesIsSharedUntilMembershipChanges() throws Exception {
+        DeviceModel b = newDeviceModel("b");
+        DeviceModel a = newDeviceModel("A");
+        registry.putIfAbsent(b);
+        registry.putIfAbsent(a);
+
+        List<DeviceModel> values = registry.values();
+        assertEquals(2, values.size());
+        assertSame(a, values.get(0));
+        assertSame(b, values.get(1));
+        assertSame(values, registry.values());
+
+        assertFalse(registry.remove(newDeviceModel("a")));
+        assertSame(values, registry.values());
+
+        assertTrue(registry.remove(a));
+        List<DeviceModel> newValues = registry.values();
+        assertNotSame(values, newValues);
+        assertEquals(2, values.size());
+        assertEquals(Collections.singletonList(b), newValues);
+    }
+
+    @Test
+    public void retainAllAndClear() throws Exception {
+        DeviceModel a = newDeviceModel("a");
+        DeviceModel b = newDeviceModel("b");
+        DeviceModel c = newDeviceModel("c");
+        registry.putIfAbsent(a);
+        registry.putIfAbsent(b);
+        registry.putIfAbsent(c);
+
+        assertEquals(Collections.singletonList(b), registry.retainAll(new HashSet<>(Arrays.asList(a, c))));
+        assertEquals(2, registry.size());
+
+        List<DeviceModel> removed = registry.clear();
+        assertEquals(2, removed.size());
+        assertEquals(0, registry.size());
+        assertTrue(registry.values().isEmpty());
+    }
+
+    private DeviceModel newDeviceModel(String deviceId) {
+        return new DeviceModel(deviceId, deviceProfile, false, null);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import io.afero.sdk.client.mock.ResourceLoader;
+import io.afero.sdk.utils.JSONUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileProfileStoreTest {
+
+    private File directory;
+    private FileProfileStore store;
+
+    @Before
+    public void beforeTests() throws IOException {
+        directory = File.createTempFile("profiles", "");
+        assertTrue(directory.delete());
+        store = new FileProfileStore(directory);
+    }
+
+    @After
+    public void afterTests() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                assertTrue(f.delete());
+            }
+        }
+        assertTrue(!directory.exists() || directory.delete());
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        assertTrue(store.isEmpty());
+
+        byte[] json = readProfileJson();
+        DeviceProfile profile = readProfile(json);
+        assertTrue(store.save(profile, json));
+        assertFalse(store.isEmpty());
+
+        DeviceProfile loaded = store.load(profile.getId());
+        assertNotNull(loaded);
+        assertEquals(profile.getId(), loaded.getId());
+        assertEquals("device-type", loaded.getDeviceType());
+        assertNotNull(loaded.getAttributeById(200));
+
+        // presentation isn't serializable from the model, so this checks the source JSON was stored
+        DeviceProfile.Presentation presentation = loaded.getPresentation(null);
+        assertNotNull(presentation);
+        assertEquals(2, presentation.getGroupCount());
+        assertEquals(1, presentation.getControlCount());
+    }
+
+    @Test
+    public void testSaveReportsChanges() throws IOException {
+        byte[] json = readProfileJson();
+        DeviceProfile profile = readProfile(json);
+        assertTrue(store.save(profile, json));
+        assertFalse(store.save(readProfile(json), readProfileJson()));
+
+        byte[] changedJson = new String(json, "UTF-8").replace("device-type-id", "device-type-id-2").getBytes("UTF-8");
+        assertTrue(store.save(readProfile(changedJson), changedJson));
+        assertEquals("device-type-id-2", store.load(profile.getId()).getDeviceTypeId());
+    }
+
+    @Test(expected = IOException.class)
+    public void testSaveFailureThrows() throws IOException {
+        // a plain file where the directory should be
+        assertTrue(directory.createNewFile());
+
+        byte[] json = readProfileJson();
+        store.save(readProfile(json), json);
+    }
+
+    @Test
+    public void testRemove() throws IOException {
+        byte[] json = readProfileJson();
+        DeviceProfile profile = readProfile(json);
+        store.save(profile, json);
+        store.remove(profile.getId());
+
+        assertNull(store.load(profile.getId()));
+        assertTrue(store.isEmpty());
+    }
+
+    @Test
+    public void testCorruptFileIsDiscarded() throws IOException {
+        byte[] json = readProfileJson();
+        DeviceProfile profile = readProfile(json);
+        store.save(profile, json);
+
+        File[] files = directory.listFiles();
+        assertNotNull(files);
+        assertEquals(1, files.length);
+
+        FileOutputStream out = new FileOutputStream(files[0]);
+        out.write(new byte[] { 1, 2, 3, 4 });
+        out.close();
+
+        assertNull(store.load(profile.getId()));
+        assertTrue(store.isEmpty());
+        assertNull(store.load("no-such-profile"));
+    }
+
+    private byte[] readProfileJson() throws IOException {
+        return new ResourceLoader().readResource("profile.json");
+    }
+
+    private DeviceProfile readProfile(byte[] json) throws IOException {
+        return JSONUtils.readValue(json, DeviceProfile.class);
+    }
+}
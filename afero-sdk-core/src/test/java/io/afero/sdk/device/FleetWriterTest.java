@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.afero.sdk.client.afero.models.AttributeValue;
+import io.afero.sdk.client.afero.models.WriteRequest;
+import io.afero.sdk.client.afero.models.WriteResponse;
+import io.afero.sdk.client.mock.MockAferoClient;
+import io.afero.sdk.client.mock.ResourceLoader;
+import io.afero.sdk.conclave.models.DeviceSync;
+import rx.Observable;
+import rx.functions.Func0;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class FleetWriterTest {
+
+    private static final int ATTR_ID = 100;
+
+    private final ArrayList<String> mWrittenDeviceIds = new ArrayList<>();
+    private String mStalledDeviceId;
+    private int mStalledBatchCount;
+    private final MockAferoClient mAferoClient = new MockAferoClient() {
+        @Override
+        public Observable<WriteResponse[]> postBatchAttributeWrite(DeviceModel deviceModel, WriteRequest[] body, int maxRetryCount, int statusCode) {
+            mWrittenDeviceIds.add(deviceModel.getId());
+            if (deviceModel.getId().equals(mStalledDeviceId) && ++mStalledBatchCount > 1) {
+                // the first batch is accepted, the rest are never answered
+                return Observable.never();
+            }
+            return super.postBatchAttributeWrite(deviceModel, body, maxRetryCount, statusCode);
+        }
+    };
+    private final DeviceProfile mProfile;
+
+    public FleetWriterTest() throws IOException {
+        mProfile = new ResourceLoader("writeAttributeOperation/")
+                .createObjectFromJSONResource("deviceProfile.json", DeviceProfile.class);
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        List<DeviceModel> devices = makeDevices(3);
+        FleetWriter writer = makeWriter(devices).maxConcurrency(2);
+        TestSubscriber<FleetWriter.DeviceResult> subscriber = new TestSubscriber<>();
+
+        writer.commit().subscribe(subscriber);
+
+        // the first two devices were sent request ids 1 and 2; the third waits for a free slot
+        assertEquals(Arrays.asList("device-0", "device-1"), mWrittenDeviceIds);
+
+        deviceUpdate(devices.get(0), 1);
+        subscriber.assertValueCount(1);
+        assertSame(devices.get(0), subscriber.getOnNextEvents().get(0).deviceModel);
+        assertEquals(3, mWrittenDeviceIds.size());
+
+        deviceUpdate(devices.get(2), 3);
+        deviceUpdate(devices.get(1), 2);
+
+        subscriber.assertNoErrors();
+        subscriber.assertCompleted();
+        subscriber.assertValueCount(3);
+
+        FleetWriter.Summary summary = writer.getSummary();
+        assertEquals(3, summary.deviceCount);
+        assertEquals(3, summary.successCount);
+        assertEquals(0, summary.failureCount + summary.timeoutCount + summary.notAttemptedCount);
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        List<DeviceModel> devices = makeDevices(3);
+        TestScheduler scheduler = new TestScheduler();
+        FleetWriter writer = makeWriter(devices).maxDevicesPerSecond(2).scheduler(scheduler);
+
+        writer.commit().subscribe(new TestSubscriber<FleetWriter.DeviceResult>());
+
+        assertEquals(1, mWrittenDeviceIds.size());
+
+        scheduler.advanceTimeBy(499, TimeUnit.MILLISECONDS);
+        assertEquals(1, mWrittenDeviceIds.size());
+
+        scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+        assertEquals(2, mWrittenDeviceIds.size());
+
+        scheduler.advanceTimeBy(500, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList("device-0", "device-1", "device-2"), mWrittenDeviceIds);
+    }
+
+    @Test
+    public void testMissingAttributeNotAttempted() throws Exception {
+        List<DeviceModel> devices = makeDevices(1);
+        FleetWriter writer = makeWriter(devices)
+                .put(12345, new AttributeValue("1", AttributeValue.DataType.SINT8));
+        TestSubscriber<FleetWriter.DeviceResult> subscriber = new TestSubscriber<>();
+
+        writer.commit().subscribe(subscriber);
+        deviceUpdate(devices.get(0), 1);
+
+        subscriber.assertCompleted();
+        subscriber.assertValueCount(2);
+        assertEquals(AttributeWriter.Result.Status.NOT_ATTEMPTED, subscriber.getOnNextEvents().get(1).result.status);
+        assertEquals(12345, subscriber.getOnNextEvents().get(1).result.attributeId);
+        assertEquals(1, writer.getSummary().notAttemptedCount);
+    }
+
+    @Test
+    public void testTimeoutCountsPendingAsFailure() throws Exception {
+        List<DeviceModel> devices = makeDevices(1);
+        mStalledDeviceId = "device-0";
+        FleetWriter writer = makeWriter(devices).timeout(1);
+        for (int i = 1; i <= AttributeWriter.REQUEST_BATCH_SIZE; ++i) {
+            writer.put(ATTR_ID + i * 100, new AttributeValue("1", AttributeValue.DataType.SINT8));
+        }
+        TestSubscriber<FleetWriter.DeviceResult> subscriber = new TestSubscriber<>();
+
+        writer.commit().subscribe(subscriber);
+
+        // the first batch is still awaiting acks when the second batch's request times out
+        subscriber.awaitTerminalEvent(5, TimeUnit.SECONDS);
+        subscriber.assertNoErrors();
+        subscriber.assertCompleted();
+        subscriber.assertValueCount(AttributeWriter.REQUEST_BATCH_SIZE + 1);
+
+        FleetWriter.Summary summary = writer.getSummary();
+        assertEquals(1, summary.deviceCount);
+        assertEquals(AttributeWriter.REQUEST_BATCH_SIZE, summary.failureCount);
+        assertEquals(1, summary.notAttemptedCount);
+    }
+
+    @Test
+    public void testSummaryPercentiles() {
+        long[] latencies = new long[100];
+        for (int i = 0; i < latencies.length; ++i) {
+            latencies[i] = i + 1;
+        }
+
+        FleetWriter.Summary summary = new FleetWriter.Summary(0, 0, 0, 0, 0, latencies);
+        assertEquals(50, summary.latencyP50Ms);
+        assertEquals(90, summary.latencyP90Ms);
+        assertEquals(99, summary.latencyP99Ms);
+        assertEquals(100, summary.latencyMaxMs);
+
+        summary = new FleetWriter.Summary(0, 0, 0, 0, 0, new long[0]);
+        assertEquals(0, summary.latencyMaxMs);
+    }
+
+    private List<DeviceModel> makeDevices(int count) {
+        ArrayList<DeviceModel> devices = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            devices.add(new DeviceModel("device-" + i, mProfile, false, mAferoClient));
+        }
+        return devices;
+    }
+
+    private FleetWriter makeWriter(final List<DeviceModel> devices) {
+        return new FleetWriter(new Func0<Collection<DeviceModel>>() {
+                @Override
+                public Collection<DeviceModel> call() {
+                    return devices;
+                }
+            })
+            .put(ATTR_ID, new AttributeValue("1", AttributeValue.DataType.SINT8));
+    }
+
+    private static void deviceUpdate(DeviceModel deviceModel, int requestId) {
+        DeviceSync ds = new DeviceSync();
+        ds.setDeviceId(deviceModel.getId());
+        ds.requestId = requestId;
+        ds.attribute = new DeviceSync.AttributeEntry(ATTR_ID, "1");
+        deviceModel.update(ds);
+    }
+}
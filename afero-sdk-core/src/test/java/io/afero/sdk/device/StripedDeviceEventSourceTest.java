@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2014-2017 Afero, Inc. All rights reserved.
+ */
+
+package io.afero.sdk.device;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.afero.sdk.client.mock.MockDeviceEventSource;
+import io.afero.sdk.conclave.models.DeviceSync;
+import rx.functions.Action1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StripedDeviceEventSourceTest {
+
+    private static final int DEVICE_COUNT = 16;
+    private static final int EVENTS_PER_DEVICE = 200;
+
+    private MockDeviceEventSource source;
+    private StripedDeviceEventSource striped;
+
+    @Before
+    public void beforeTests() {
+        source = new MockDeviceEventSource();
+        striped = new StripedDeviceEventSource(source, 4, 8);
+    }
+
+    @After
+    public void afterTests() {
+        striped.shutdown();
+    }
+
+    @Test
+    public void eventsForEachDeviceStayInOrder() throws Exception {
+        final HashMap<String, List<Integer>> received = new HashMap<>();
+        final CountDownLatch done = new CountDownLatch(DEVICE_COUNT * EVENTS_PER_DEVICE);
+
+        striped.observeAttributeChange().subscribe(new Action1<DeviceSync>() {
+            @Override
+            public void call(DeviceSync deviceSync) {
+                synchronized (received) {
+                    List<Integer> seqs = received.get(deviceSync.getDeviceId());
+                    if (seqs == null) {
+                        seqs = new ArrayList<>();
+                        received.put(deviceSync.getDeviceId(), seqs);
+                    }
+                    seqs.add(deviceSync.seq);
+                }
+                done.countDown();
+            }
+        });
+
+        for (int seq = 0; seq < EVENTS_PER_DEVICE; ++seq) {
+            for (int d = 0; d < DEVICE_COUNT; ++d) {
+                source.putAttributeChanges(newAttributeChange("device-" + d, seq));
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(DEVICE_COUNT, received.size());
+        for (List<Integer> seqs : received.values()) {
+            assertEquals(EVENTS_PER_DEVICE, seqs.size());
+            ArrayList<Integer> sorted = new ArrayList<>(seqs);
+            Collections.sort(sorted);
+            assertEquals(sorted, seqs);
+        }
+
+        long dispatched = 0;
+        for (StripedDeviceEventSource.LaneStats stats : striped.getLaneStats()) {
+            dispatched += stats.dispatched;
+            assertTrue(stats.maxQueueDepth <= 8);
+        }
+        assertEquals(DEVICE_COUNT * EVENTS_PER_DEVICE, dispatched);
+    }
+
+    @Test
+    public void snapshotWaitsForEarlierEventsOnEveryLane() throws Exception {
+        final ArrayList<String> received = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        striped.observeAttributeChange().subscribe(new Action1<DeviceSync>() {
+            @Override
+            public void call(DeviceSync deviceSync) {
+                synchronized (received) {
+                    received.add(deviceSync.getDeviceId());
+                }
+            }
+        });
+        striped.observeSnapshot().subscribe(new Action1<DeviceSync[]>() {
+            @Override
+            public void call(DeviceSync[] deviceSyncs) {
+                synchronized (received) {
+                    received.add("snapshot");
+                }
+                done.countDown();
+            }
+        });
+
+        for (int d = 0; d < DEVICE_COUNT; ++d) {
+            source.putAttributeChanges(newAttributeChange("device-" + d, 1));
+        }
+        source.putSnapshot(new DeviceSync[0]);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        synchronized (received) {
+            assertEquals(DEVICE_COUNT + 1, received.size());
+            assertEquals("snapshot", received.get(DEVICE_COUNT));
+        }
+    }
+
+    @Test
+    public void refusedSnapshotReleasesOtherLanes() throws Exception {
+        final String blockedDevice = deviceOnLane(3);
+        final String otherDevice = deviceOnLane(0);
+        final CountDownLatch blocking = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final CountDownLatch otherReceived = new CountDownLatch(1);
+
+        striped.observeAttributeChange().subscribe(new Action1<DeviceSync>() {
+            @Override
+            public void call(DeviceSync deviceSync) {
+                if (deviceSync.getDeviceId().equals(blockedDevice)) {
+                    blocking.countDown();
+                    try {
+                        unblock.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else if (deviceSync.getDeviceId().equals(otherDevice)) {
+                    otherReceived.countDown();
+                }
+            }
+        });
+
+        try {
+            // hold lane 3 and fill its queue
+            source.putAttributeChanges(newAttributeChange(blockedDevice, 0));
+            assertTrue(blocking.await(10, TimeUnit.SECONDS));
+            for (int seq = 1; seq <= 8; ++seq) {
+                source.putAttributeChanges(newAttributeChange(blockedDevice, seq));
+            }
+
+            // the snapshot reaches lanes 0 to 2, then waits for room on lane 3 until interrupted
+            Thread poster = new Thread() {
+                @Override
+                public void run() {
+                    source.putSnapshot(new DeviceSync[0]);
+                }
+            };
+            poster.start();
+            while (poster.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            poster.interrupt();
+            poster.join(10000);
+
+            source.putAttributeChanges(newAttributeChange(otherDevice, 1));
+            assertTrue(otherReceived.await(10, TimeUnit.SECONDS));
+        } finally {
+            unblock.countDown();
+        }
+    }
+
+    @Test
+    public void laneForIgnoresCase() {
+        assertEquals(striped.laneFor("abcdef0123"), striped.laneFor("ABCDEF0123"));
+    }
+
+    private String deviceOnLane(int lane) {
+        for (int d = 0; ; ++d) {
+            if (striped.laneFor("device-" + d) == lane) {
+                return "device-" + d;
+            }
+        }
+    }
+
+    private static DeviceSync newAttributeChange(String deviceId, int seq) {
+        DeviceSync ds = new DeviceSync();
+        ds.deviceId = deviceId;
+        ds.seq = seq;
+        return ds;
+    }
+}